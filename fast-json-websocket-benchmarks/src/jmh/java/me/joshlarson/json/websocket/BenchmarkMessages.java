@@ -0,0 +1,114 @@
+package me.joshlarson.json.websocket;
+
+import me.joshlarson.json.JSONArray;
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The messages every benchmark sends, so results from different benchmarks can be compared.  SMALL is a typical game-state update of about 100
+ * bytes, and LARGE is a snapshot of about 20 KiB with nested objects, arrays and escaped strings.  NUMERIC is an update made mostly of
+ * floating-point samples, where a binary codec saves the most
+ */
+public final class BenchmarkMessages {
+	
+	public static final String SMALL = "SMALL";
+	public static final String LARGE = "LARGE";
+	public static final String NUMERIC = "NUMERIC";
+	
+	private static final int LARGE_ENTITIES = 128;
+	private static final int NUMERIC_SAMPLES = 16;
+	
+	private BenchmarkMessages() {
+		
+	}
+	
+	/**
+	 * Creates a new copy of one of the messages
+	 *
+	 * @param size one of {@link #SMALL}, {@link #LARGE} or {@link #NUMERIC}
+	 * @return the message
+	 */
+	@Nonnull
+	public static JSONObject create(@Nonnull String size) {
+		switch (size) {
+			case SMALL:
+				return createSmall();
+			case LARGE:
+				return createLarge();
+			case NUMERIC:
+				return createNumeric();
+			default:
+				throw new IllegalArgumentException("Unknown message size: " + size);
+		}
+	}
+	
+	/**
+	 * Returns the UTF-8 JSON text of one of the messages, as it arrives in a text frame
+	 *
+	 * @param size one of {@link #SMALL}, {@link #LARGE} or {@link #NUMERIC}
+	 * @return the encoded message
+	 */
+	@Nonnull
+	public static byte[] encode(@Nonnull String size) {
+		return create(size).toString(true).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Nonnull
+	private static JSONObject createSmall() {
+		JSONObject object = new JSONObject();
+		object.put("type", "update");
+		object.put("id", 1234567);
+		object.put("name", "player-\u00e9\u00e8");
+		object.put("position", createPosition(12.5, -3.25, 100.0));
+		object.put("active", true);
+		return object;
+	}
+	
+	@Nonnull
+	private static JSONObject createLarge() {
+		JSONArray entities = new JSONArray();
+		for (int i = 0; i < LARGE_ENTITIES; i++) {
+			JSONObject entity = new JSONObject();
+			entity.put("id", 100000 + i);
+			entity.put("name", "entity \"" + i + "\"\t\u00fc");
+			entity.put("position", createPosition(i * 1.5, -i * 0.25, 64.0));
+			entity.put("health", 1000 - i);
+			entity.put("visible", i % 3 != 0);
+			entity.put("owner", i % 5 == 0 ? null : "guild-" + (i % 7));
+			entities.add(entity);
+		}
+		JSONObject object = new JSONObject();
+		object.put("type", "snapshot");
+		object.put("id", 7654321);
+		object.put("tick", 987654321012L);
+		object.put("entities", entities);
+		return object;
+	}
+	
+	@Nonnull
+	private static JSONObject createNumeric() {
+		JSONArray samples = new JSONArray();
+		for (int i = 0; i < NUMERIC_SAMPLES; i++)
+			samples.add(createPosition(12.5 * i, -3.25 * i, 100.0 + i / 3.0));
+		JSONObject object = new JSONObject();
+		object.put("type", "update");
+		object.put("id", 1234567);
+		object.put("time", 1700000000123L);
+		object.put("name", "player-\u00e9\u00e8");
+		object.put("samples", samples);
+		object.put("active", true);
+		return object;
+	}
+	
+	@Nonnull
+	private static JSONArray createPosition(double x, double y, double z) {
+		JSONArray position = new JSONArray();
+		position.add(x);
+		position.add(y);
+		position.add(z);
+		return position;
+	}
+	
+}
@@ -0,0 +1,106 @@
+package me.joshlarson.json.websocket;
+
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnectionHandler;
+import me.joshlarson.json.websocket.server.JSONWebSocketServer;
+import me.joshlarson.json.websocket.server.ServerEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips between real clients and a real server over loopback.  Each operation sends one call from every client, and completes once the
+ * server has echoed all of them back, so with more than one connection the score is rounds per second, and messages per second is the score
+ * times the connection count.  The average time mode gives the latency of a round
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoundTripBenchmark {
+	
+	private static final int PORT = 17290;
+	private static final URI SERVER_URI = URI.create("ws://localhost:" + PORT);
+	private static final long CALL_TIMEOUT = 10;
+	
+	@Param({"NANOHTTPD", "NIO"})
+	public ServerEngine engine;
+	
+	@Param({"1", "16"})
+	public int connections;
+	
+	@Param({BenchmarkMessages.SMALL, BenchmarkMessages.LARGE})
+	public String size;
+	
+	private JSONWebSocketServer server;
+	private JSONWebSocketClient [] clients;
+	private JSONObject [] requests;
+	private CompletableFuture<?>[] responses;
+	
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		server = new JSONWebSocketServer(PORT);
+		server.setEngine(engine);
+		server.setHandler(new JSONWebSocketConnectionHandler() {
+			@Override
+			public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+				try {
+					socket.reply(object, object);
+				} catch (IOException e) {
+					onError(socket, e);
+				}
+			}
+			
+			@Override
+			public void onError(@Nonnull JSONWebSocketConnection socket, @Nonnull Throwable t) {
+				t.printStackTrace();
+			}
+		});
+		server.start();
+		clients = new JSONWebSocketClient[connections];
+		requests = new JSONObject[connections];
+		responses = new CompletableFuture<?>[connections];
+		for (int i = 0; i < connections; i++) {
+			clients[i] = new JSONWebSocketClient();
+			clients[i].connect(SERVER_URI);
+			// call() sets the request's id field, so every client gets its own copy
+			requests[i] = BenchmarkMessages.create(size);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CALL_TIMEOUT);
+		while (server.getConnectionCount() < connections) {
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException("Only " + server.getConnectionCount() + " of " + connections + " clients connected");
+			Thread.sleep(1);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		for (JSONWebSocketClient client : clients)
+			client.disconnect();
+		server.stop();
+		while (server.getConnectionCount() != 0)
+			Thread.sleep(1);
+	}
+	
+	@Benchmark
+	public void roundTrip() {
+		for (int i = 0; i < connections; i++)
+			responses[i] = clients[i].call(requests[i], CALL_TIMEOUT, TimeUnit.SECONDS);
+		CompletableFuture.allOf(responses).join();
+	}
+	
+}
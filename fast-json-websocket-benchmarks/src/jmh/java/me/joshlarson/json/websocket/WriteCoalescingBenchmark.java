@@ -0,0 +1,107 @@
+package me.joshlarson.json.websocket;
+
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.client.JSONWebSocketHandler;
+import me.joshlarson.json.websocket.server.BackpressurePolicy;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketServer;
+import me.joshlarson.json.websocket.server.ServerEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small messages from the server to a single client over loopback, with and without write coalescing.  A batch size of 1 byte writes every
+ * message on its own.  Each operation is one message, and an invocation sends a burst and waits until the client has received all of it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WriteCoalescingBenchmark {
+	
+	private static final int PORT = 17291;
+	private static final URI SERVER_URI = URI.create("ws://localhost:" + PORT);
+	private static final int MESSAGES = 1000;
+	private static final long TIMEOUT = 10;
+	
+	@Param({"NANOHTTPD", "NIO"})
+	public ServerEngine engine;
+	
+	@Param({"1", "65536"})
+	public int maxWriteBatchBytes;
+	
+	@Param({"0", "50"})
+	public long maxWriteDelayMicros;
+	
+	private final AtomicInteger received = new AtomicInteger(0);
+	private JSONWebSocketServer server;
+	private JSONWebSocketClient client;
+	private JSONWebSocketConnection connection;
+	private JSONObject message;
+	
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		server = new JSONWebSocketServer(PORT);
+		server.setEngine(engine);
+		server.setOutboundQueueCapacity(MESSAGES);
+		server.setBackpressurePolicy(BackpressurePolicy.BLOCK);
+		server.setMaxWriteBatchBytes(maxWriteBatchBytes);
+		server.setMaxWriteDelayMicros(maxWriteDelayMicros);
+		server.start();
+		client = new JSONWebSocketClient();
+		client.setHandler(new JSONWebSocketHandler() {
+			@Override
+			public void onMessage(@Nonnull JSONWebSocketClient socket, @Nonnull JSONObject object) {
+				received.incrementAndGet();
+			}
+		});
+		client.connect(SERVER_URI);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+		while (server.getConnectionCount() == 0) {
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException("The client didn't connect");
+			Thread.sleep(1);
+		}
+		connection = server.getConnections().iterator().next();
+		message = new JSONObject();
+		message.put("type", "tick");
+		message.put("value", 12345);
+	}
+	
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		client.disconnect();
+		server.stop();
+		while (server.getConnectionCount() != 0)
+			Thread.sleep(1);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void burst() {
+		int target = received.get() + MESSAGES;
+		for (int i = 0; i < MESSAGES; i++)
+			connection.sendAsync(message);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+		while (received.get() < target) {
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException("Timed out with " + (target - received.get()) + " messages left");
+			Thread.yield();
+		}
+	}
+	
+}
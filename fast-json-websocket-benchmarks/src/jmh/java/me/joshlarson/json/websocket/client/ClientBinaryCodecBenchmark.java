@@ -0,0 +1,70 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONException;
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.BenchmarkMessages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON text compared with the CBOR binary codec, encoding and decoding the way the client does.  The encoded size of each message is printed
+ * once per fork, since JMH only reports rates
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientBinaryCodecBenchmark {
+	
+	@Param({BenchmarkMessages.SMALL, BenchmarkMessages.LARGE, BenchmarkMessages.NUMERIC})
+	public String size;
+	
+	private JSONObject message;
+	private byte[] text;
+	private byte[] cbor;
+	private JSONWebSocketCborCodec codec;
+	private JSONWebSocketKeyCache keyCache;
+	private JSONWebSocketBufferPool bufferPool;
+	
+	@Setup
+	public void setup() throws IOException {
+		message = BenchmarkMessages.create(size);
+		keyCache = new JSONWebSocketKeyCache();
+		codec = new JSONWebSocketCborCodec(keyCache);
+		bufferPool = new JSONWebSocketBufferPool();
+		text = JSONWebSocketEncoder.encode(message, bufferPool);
+		cbor = JSONWebSocketEncoder.encodeBinary(message, codec, bufferPool);
+		System.out.printf(Locale.US, "%s: %,d bytes as text, %,d bytes as CBOR%n", size, text.length, cbor.length);
+	}
+	
+	@Benchmark
+	public byte[] encodeText() {
+		return JSONWebSocketEncoder.encode(message, bufferPool);
+	}
+	
+	@Benchmark
+	public byte[] encodeCbor() throws IOException {
+		return JSONWebSocketEncoder.encodeBinary(message, codec, bufferPool);
+	}
+	
+	@Benchmark
+	public JSONObject decodeText() throws JSONException {
+		return JSONWebSocketDecoder.decode(text, 0, text.length, keyCache);
+	}
+	
+	@Benchmark
+	public JSONObject decodeCbor() throws IOException {
+		return codec.decode(new ByteArrayInputStream(cbor));
+	}
+	
+}
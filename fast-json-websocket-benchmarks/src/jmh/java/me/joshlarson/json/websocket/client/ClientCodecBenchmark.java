@@ -0,0 +1,89 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONException;
+import me.joshlarson.json.JSONInputStream;
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.BenchmarkMessages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client's message codec.  The onMessage benchmark is the whole inbound path of a disconnected client, from the text frame's payload
+ * arriving from the WebSocket library to the handler being called; the rest measure the codec on its own against fast-json baselines.  Framing
+ * and masking of outgoing messages is done by the WebSocket library, so it isn't measured here
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientCodecBenchmark {
+	
+	@Param({BenchmarkMessages.SMALL, BenchmarkMessages.LARGE})
+	public String size;
+	
+	private JSONObject message;
+	private byte[] payload;
+	private JSONWebSocketImpl impl;
+	private JSONWebSocketKeyCache keyCache;
+	private JSONWebSocketBufferPool bufferPool;
+	private JSONObject received;
+	
+	@Setup
+	public void setup() throws ReflectiveOperationException {
+		message = BenchmarkMessages.create(size);
+		payload = BenchmarkMessages.encode(size);
+		keyCache = new JSONWebSocketKeyCache();
+		bufferPool = new JSONWebSocketBufferPool();
+		JSONWebSocketClient client = new JSONWebSocketClient();
+		client.setKeyCache(keyCache);
+		client.setHandler(new JSONWebSocketHandler() {
+			public void onMessage(@Nonnull JSONWebSocketClient socket, @Nonnull JSONObject object) {
+				received = object;
+			}
+		});
+		Field implField = JSONWebSocketClient.class.getDeclaredField("impl");
+		implField.setAccessible(true);
+		impl = (JSONWebSocketImpl) implField.get(client);
+	}
+	
+	@Benchmark
+	public JSONObject onMessage() {
+		impl.onTextMessage(null, payload);
+		return received;
+	}
+	
+	@Benchmark
+	public JSONObject decode() throws JSONException {
+		return JSONWebSocketDecoder.decode(payload, 0, payload.length, keyCache);
+	}
+	
+	@Benchmark
+	public JSONObject decodeBaseline() throws IOException, JSONException {
+		try (JSONInputStream in = new JSONInputStream(new ByteArrayInputStream(payload))) {
+			return in.readObject();
+		}
+	}
+	
+	@Benchmark
+	public byte[] encode() {
+		return JSONWebSocketEncoder.encode(message, bufferPool);
+	}
+	
+	@Benchmark
+	public byte[] encodeBaseline() {
+		return message.toString(true).getBytes(StandardCharsets.UTF_8);
+	}
+	
+}
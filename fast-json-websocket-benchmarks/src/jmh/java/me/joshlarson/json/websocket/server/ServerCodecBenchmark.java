@@ -0,0 +1,99 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONException;
+import me.joshlarson.json.JSONInputStream;
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.BenchmarkMessages;
+import org.nanohttpd.protocols.websockets.OpCode;
+import org.nanohttpd.protocols.websockets.WebSocketFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's message codec on its own, without any sockets.  Each decode benchmark has a baseline that parses the same payload with fast-json's
+ * {@link JSONInputStream}, and each encode benchmark has a baseline that frames <code>toString(true)</code> with NanoHTTPD, which is how every
+ * message was sent before the server had its own encoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServerCodecBenchmark {
+	
+	@Param({BenchmarkMessages.SMALL, BenchmarkMessages.LARGE})
+	public String size;
+	
+	private JSONObject message;
+	private byte[] payload;
+	private JSONWebSocketKeyCache keyCache;
+	private JSONWebSocketBufferPool bufferPool;
+	private ByteArrayOutputStream out;
+	
+	@Setup
+	public void setup() {
+		message = BenchmarkMessages.create(size);
+		payload = BenchmarkMessages.encode(size);
+		keyCache = new JSONWebSocketKeyCache();
+		bufferPool = new JSONWebSocketBufferPool();
+		out = new ByteArrayOutputStream(payload.length + JSONWebSocketEncoder.MAX_HEADER_LENGTH);
+	}
+	
+	@Benchmark
+	public JSONObject decode() throws JSONException {
+		return JSONWebSocketDecoder.decode(ByteBuffer.wrap(payload), keyCache);
+	}
+	
+	@Benchmark
+	public JSONObject decodeUncached() throws JSONException {
+		return JSONWebSocketDecoder.decode(ByteBuffer.wrap(payload), null);
+	}
+	
+	@Benchmark
+	public Object decodeLazyField() throws JSONException {
+		JSONWebSocketLazyMessage lazy = JSONWebSocketLazyMessage.index(ByteBuffer.wrap(payload), keyCache);
+		try {
+			return lazy.get("type");
+		} finally {
+			lazy.close();
+		}
+	}
+	
+	@Benchmark
+	public JSONObject decodeBaseline() throws IOException, JSONException {
+		try (JSONInputStream in = new JSONInputStream(new ByteArrayInputStream(payload))) {
+			return in.readObject();
+		}
+	}
+	
+	@Benchmark
+	public int encode() throws IOException {
+		out.reset();
+		JSONWebSocketEncodedFrame frame = new JSONWebSocketEncodedFrame(message, bufferPool);
+		try {
+			frame.write(out);
+		} finally {
+			frame.release();
+		}
+		return out.size();
+	}
+	
+	@Benchmark
+	public int encodeBaseline() throws IOException {
+		out.reset();
+		new WebSocketFrame(OpCode.Text, true, message.toString(true).getBytes(StandardCharsets.UTF_8)).write(out);
+		return out.size();
+	}
+	
+}
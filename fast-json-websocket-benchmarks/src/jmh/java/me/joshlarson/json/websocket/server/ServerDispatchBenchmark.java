@@ -0,0 +1,147 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONException;
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.BenchmarkMessages;
+import org.nanohttpd.protocols.http.IHTTPSession;
+import org.nanohttpd.protocols.websockets.CloseCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path every incoming message takes through a {@link JSONWebSocketConnection}, from the engine handing over the payload to the handler
+ * returning, on a connection whose transport discards everything.  Messages are dispatched on the calling thread, as they are when the server
+ * has no callback executor.  The decode-only baseline is the cost of the same payload with no dispatch at all, so the difference is the overhead
+ * of the connection, the metrics and the handler
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServerDispatchBenchmark {
+	
+	@Param({BenchmarkMessages.SMALL, BenchmarkMessages.LARGE})
+	public String size;
+	
+	/**
+	 * EAGER overrides onMessage(), LAZY overrides onLazyMessage() and only reads the discriminator, ROUTER routes on the discriminator
+	 */
+	@Param({"EAGER", "LAZY", "ROUTER"})
+	public String handler;
+	
+	@Param({"true", "false"})
+	public boolean metrics;
+	
+	private byte[] payload;
+	private JSONWebSocketServer server;
+	private JSONWebSocketConnection connection;
+	private Object received;
+	
+	@Setup
+	public void setup() {
+		payload = BenchmarkMessages.encode(size);
+		server = new JSONWebSocketServer(0);
+		server.setHandler(createHandler());
+		server.getMetrics().setEnabled(metrics);
+		connection = new JSONWebSocketConnection(new DiscardTransport(), server);
+	}
+	
+	@Benchmark
+	public Object dispatch() {
+		connection.onMessage(payload, false);
+		return received;
+	}
+	
+	@Benchmark
+	public JSONObject decodeBaseline() throws JSONException {
+		return JSONWebSocketDecoder.decode(ByteBuffer.wrap(payload), server.getKeyCache());
+	}
+	
+	private JSONWebSocketConnectionHandler createHandler() {
+		switch (handler) {
+			case "EAGER":
+				return new JSONWebSocketConnectionHandler() {
+					@Override
+					public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+						received = object;
+					}
+				};
+			case "LAZY":
+				return new JSONWebSocketConnectionHandler() {
+					@Override
+					public void onLazyMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONWebSocketLazyMessage message) {
+						received = message.get("type");
+					}
+				};
+			case "ROUTER": {
+				JSONWebSocketRouteHandler route = new JSONWebSocketRouteHandler() {
+					public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+						received = object;
+					}
+				};
+				JSONWebSocketRouter router = new JSONWebSocketRouter();
+				router.route("update", route);
+				router.route("snapshot", route);
+				router.drop("heartbeat");
+				return router;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown handler: " + handler);
+		}
+	}
+	
+	private static class DiscardTransport implements JSONWebSocketTransport {
+		
+		@Nonnull
+		@Override
+		public IHTTPSession getHandshakeRequest() {
+			throw new UnsupportedOperationException("No handshake in a benchmark");
+		}
+		
+		@Override
+		public boolean isCompressed() {
+			return false;
+		}
+		
+		@Override
+		public void sendEncoded(@Nonnull JSONWebSocketEncodedFrame frame) {
+			frame.release();
+		}
+		
+		@Override
+		public void flushQueue() {
+			
+		}
+		
+		@Override
+		public void ping(@Nonnull byte[] data) {
+			
+		}
+		
+		@Override
+		public void pingAsync(@Nonnull byte[] data) {
+			
+		}
+		
+		@Override
+		public void close(@Nonnull CloseCode code, @Nonnull String reason) {
+			
+		}
+		
+		@Override
+		public void abort() {
+			
+		}
+		
+	}
+	
+}
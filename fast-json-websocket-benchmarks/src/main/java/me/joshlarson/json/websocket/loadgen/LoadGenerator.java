@@ -0,0 +1,322 @@
+package me.joshlarson.json.websocket.loadgen;
+
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.client.JSONWebSocketHandler;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnectionHandler;
+import me.joshlarson.json.websocket.server.JSONWebSocketServer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Opens many client connections to an echo server, sends messages at a fixed rate, and reports the latency of the echoes.  Without a target,
+ * it starts a local {@link JSONWebSocketServer} that echoes every message, so engine and configuration changes can be compared on one machine.
+ * <p>
+ * Sending is open-loop: every message has an intended send time on a fixed schedule, and is sent at that time whether or not earlier messages
+ * have been answered.  Each message carries its intended and actual send times, so the latency of its echo is measured both from when it should
+ * have been sent and from when it was.  The first is corrected for coordinated omission: if the server stalls and the sending threads fall
+ * behind, the messages that should have been sent during the stall are counted as waiting for all of it, rather than disappearing from the
+ * results.  The second is what a closed-loop client would report, and is shown for comparison </p>
+ */
+public class LoadGenerator {
+	
+	private static final double [] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+	private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	private static final String INTENDED_FIELD = "intended";
+	private static final String SENT_FIELD = "sent";
+	
+	private final LoadOptions options;
+	private final LoadHistogram connectTime;
+	private final LoadHistogram correctedLatency;
+	private final LoadHistogram uncorrectedLatency;
+	private final LoadHistogram senderLag;
+	private final LongAdder sent;
+	private final LongAdder received;
+	private final LongAdder sendFailures;
+	private final LongAdder errors;
+	private final List<JSONWebSocketClient> clients;
+	private volatile long measureStart;
+	private volatile long measureEnd;
+	private volatile boolean closing;
+	
+	LoadGenerator(@Nonnull LoadOptions options) {
+		this.options = options;
+		this.connectTime = new LoadHistogram();
+		this.correctedLatency = new LoadHistogram();
+		this.uncorrectedLatency = new LoadHistogram();
+		this.senderLag = new LoadHistogram();
+		this.sent = new LongAdder();
+		this.received = new LongAdder();
+		this.sendFailures = new LongAdder();
+		this.errors = new LongAdder();
+		this.clients = new ArrayList<>();
+		this.measureStart = Long.MAX_VALUE;
+		this.measureEnd = Long.MAX_VALUE;
+		this.closing = false;
+	}
+	
+	public static void main(String [] args) throws Exception {
+		if (Arrays.asList(args).contains("--help")) {
+			System.out.println(LoadOptions.USAGE);
+			return;
+		}
+		LoadOptions options;
+		try {
+			options = LoadOptions.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(LoadOptions.USAGE);
+			System.exit(2);
+			return;
+		}
+		int status = 0;
+		try {
+			new LoadGenerator(options).run(System.out);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			status = 1;
+		}
+		// The WebSocket library can leave a non-daemon close timer running after a disconnect, which would keep the JVM alive
+		System.exit(status);
+	}
+	
+	/**
+	 * Runs the whole load test, printing progress and then the report
+	 *
+	 * @param out the stream to print to
+	 * @throws IOException if no connections could be opened, or the local server couldn't start
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void run(@Nonnull PrintStream out) throws IOException, InterruptedException {
+		URI target = options.getTarget();
+		JSONWebSocketServer server = null;
+		if (target == null) {
+			server = startLocalServer();
+			target = URI.create("ws://localhost:" + options.getPort());
+			out.printf(Locale.US, "Started a local %s echo server on port %d%n", options.getEngine(), options.getPort());
+		}
+		try {
+			connect(target, out);
+			if (clients.isEmpty())
+				throw new IOException("Couldn't open any connections to " + target);
+			send(out);
+			drain();
+			report(target, server != null, out);
+		} finally {
+			closing = true;
+			for (JSONWebSocketClient client : clients)
+				client.disconnect();
+			if (server != null)
+				server.stop();
+		}
+	}
+	
+	@Nonnull
+	private JSONWebSocketServer startLocalServer() throws IOException {
+		JSONWebSocketServer server = new JSONWebSocketServer(options.getPort());
+		server.setEngine(options.getEngine());
+		server.setPerMessageDeflate(options.isCompress());
+		server.setHandler(new JSONWebSocketConnectionHandler() {
+			@Override
+			public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+				socket.sendAsync(object);
+			}
+		});
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * Opens the connections one at a time, at the configured connection rate
+	 */
+	private void connect(@Nonnull URI target, @Nonnull PrintStream out) throws InterruptedException {
+		int connections = options.getConnections();
+		long interval = options.getConnectRate() == 0 ? 0 : (long) (1E9 / options.getConnectRate());
+		long start = System.nanoTime();
+		int failures = 0;
+		for (int i = 0; i < connections; i++) {
+			waitUntil(start + i * interval);
+			JSONWebSocketClient client = new JSONWebSocketClient();
+			client.setPerMessageDeflate(options.isCompress());
+			client.setHandler(new EchoHandler());
+			long connectStart = System.nanoTime();
+			try {
+				client.connect(target);
+				connectTime.record(System.nanoTime() - connectStart);
+				clients.add(client);
+			} catch (IOException e) {
+				if (failures++ == 0)
+					System.err.println("Failed to connect: " + e.getMessage());
+			}
+		}
+		out.printf(Locale.US, "Opened %d of %d connections in %.1fs%n", clients.size(), connections, (System.nanoTime() - start) / 1E9);
+	}
+	
+	/**
+	 * Sends from every sending thread, through the warmup and then the measurement
+	 */
+	private void send(@Nonnull PrintStream out) throws InterruptedException {
+		int threads = options.getThreads();
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		measureStart = start + options.getWarmupNanos();
+		measureEnd = measureStart + options.getDurationNanos();
+		if (options.getWarmupNanos() > 0)
+			out.printf(Locale.US, "Warming up for %.1fs%n", options.getWarmupNanos() / 1E9);
+		out.printf(Locale.US, "Sending %.0f messages/s of %d bytes over %d connections for %.1fs%n", options.getRate(), options.getSize(), clients.size(), options.getDurationNanos() / 1E9);
+		String padding = createPadding();
+		Thread [] senders = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			senders[i] = new Thread(new Sender(i, threads, start, padding), "load-sender-" + i);
+			senders[i].start();
+		}
+		for (Thread sender : senders)
+			sender.join();
+	}
+	
+	/**
+	 * Waits for the echoes of every measured message, or until the drain timeout
+	 */
+	private void drain() throws InterruptedException {
+		long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+		while (received.sum() < sent.sum() && System.nanoTime() < deadline)
+			Thread.sleep(10);
+	}
+	
+	private void report(@Nonnull URI target, boolean local, @Nonnull PrintStream out) {
+		double seconds = options.getDurationNanos() / 1E9;
+		long sent = this.sent.sum();
+		long received = this.received.sum();
+		out.println();
+		out.printf(Locale.US, "Target:       %s%s%n", target, local ? " (local " + options.getEngine() + " server" + (options.isCompress() ? ", compressed)" : ")") : "");
+		out.printf(Locale.US, "Connections:  %d, connect time p50 %.3fms, p99 %.3fms, max %.3fms%n", clients.size(), connectTime.getPercentileNanos(50) / 1E6,
+				connectTime.getPercentileNanos(99) / 1E6, connectTime.getMaxNanos() / 1E6);
+		out.printf(Locale.US, "Messages:     %d sent, %d received, %d lost, %d send failures, %d errors%n", sent, received, Math.max(0, sent - received),
+				sendFailures.sum(), errors.sum());
+		out.printf(Locale.US, "Throughput:   %.1f messages/s sent, %.1f messages/s received, %.1f messages/s intended%n", sent / seconds, received / seconds,
+				options.getRate());
+		out.printf(Locale.US, "Sender lag:   p99 %.3fms, max %.3fms%n", senderLag.getPercentileNanos(99) / 1E6, senderLag.getMaxNanos() / 1E6);
+		out.println();
+		out.printf(Locale.US, "%-14s %12s %12s%n", "Latency (ms)", "corrected", "uncorrected");
+		for (double percentile : PERCENTILES)
+			out.printf(Locale.US, "%-14s %12.3f %12.3f%n", "p" + formatPercentile(percentile), correctedLatency.getPercentileNanos(percentile) / 1E6,
+					uncorrectedLatency.getPercentileNanos(percentile) / 1E6);
+		out.printf(Locale.US, "%-14s %12.3f %12.3f%n", "max", correctedLatency.getMaxNanos() / 1E6, uncorrectedLatency.getMaxNanos() / 1E6);
+		out.printf(Locale.US, "%-14s %12.3f %12.3f%n", "mean", correctedLatency.getMeanNanos() / 1E6, uncorrectedLatency.getMeanNanos() / 1E6);
+		if (senderLag.getPercentileNanos(99) > correctedLatency.getPercentileNanos(50))
+			out.println("Warning: the sending threads fell behind their schedule, so the generator itself may be the bottleneck; try more --threads, or a separate machine");
+	}
+	
+	/**
+	 * Creates the padding that brings each message up to the configured size.  The send times are always a similar number of digits, so one
+	 * padding fits every message
+	 */
+	@Nonnull
+	private String createPadding() {
+		int length = createMessage(System.nanoTime(), "").toString(true).length();
+		char [] padding = new char[Math.max(0, options.getSize() - length)];
+		Arrays.fill(padding, 'x');
+		return new String(padding);
+	}
+	
+	@Nonnull
+	private static JSONObject createMessage(long intended, @Nonnull String padding) {
+		JSONObject message = new JSONObject();
+		message.put(INTENDED_FIELD, intended);
+		message.put(SENT_FIELD, System.nanoTime());
+		message.put("padding", padding);
+		return message;
+	}
+	
+	@Nonnull
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+	}
+	
+	private static void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+	
+	/**
+	 * One sending thread.  Thread t of n sends messages t, t+n, t+2n, ... of the overall schedule, each to the next connection in turn, so every
+	 * connection gets an even share of the rate no matter how many threads there are.  A thread that falls behind sends its late messages as soon
+	 * as it can, still stamped with the time they were meant to be sent
+	 */
+	private class Sender implements Runnable {
+		
+		private final int index;
+		private final int threads;
+		private final long start;
+		private final String padding;
+		
+		Sender(int index, int threads, long start, @Nonnull String padding) {
+			this.index = index;
+			this.threads = threads;
+			this.start = start;
+			this.padding = padding;
+		}
+		
+		@Override
+		public void run() {
+			double interval = 1E9 / options.getRate();
+			int connections = clients.size();
+			for (long message = index; ; message += threads) {
+				long intended = start + (long) (message * interval);
+				if (intended >= measureEnd)
+					break;
+				waitUntil(intended);
+				boolean measured = intended >= measureStart;
+				if (measured)
+					senderLag.record(System.nanoTime() - intended);
+				if (!clients.get((int) (message % connections)).send(createMessage(intended, padding))) {
+					sendFailures.increment();
+				} else if (measured) {
+					sent.increment();
+				}
+			}
+		}
+		
+	}
+	
+	private class EchoHandler extends JSONWebSocketHandler {
+		
+		@Override
+		public void onMessage(@Nonnull JSONWebSocketClient socket, @Nonnull JSONObject object) {
+			long now = System.nanoTime();
+			long intended = getTime(object.get(INTENDED_FIELD));
+			if (intended < measureStart)
+				return;
+			correctedLatency.record(now - intended);
+			uncorrectedLatency.record(now - getTime(object.get(SENT_FIELD)));
+			received.increment();
+		}
+		
+		@Override
+		public void onError(@Nonnull JSONWebSocketClient socket, @Nonnull Throwable t) {
+			if (closing)
+				return;
+			if (errors.sum() == 0)
+				System.err.println("Connection error: " + t);
+			errors.increment();
+		}
+		
+		private long getTime(@CheckForNull Object time) {
+			return time instanceof Number ? ((Number) time).longValue() : Long.MIN_VALUE;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,162 @@
+package me.joshlarson.json.websocket.loadgen;
+
+import me.joshlarson.json.websocket.server.ServerEngine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * The command line options of the {@link LoadGenerator}
+ */
+final class LoadOptions {
+	
+	static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: LoadGenerator [options]",
+			"  --target <uri>         an echo server to load, such as ws://host:port (default: start a local server)",
+			"  --engine <engine>      the local server's engine, NANOHTTPD or NIO (default: NIO)",
+			"  --port <port>          the local server's port (default: 17291)",
+			"  --compress             enable per-message deflate on the clients and the local server",
+			"  --connections <n>      the number of connections to open (default: 10)",
+			"  --connect-rate <n>     connections opened per second, or 0 for as fast as possible (default: 100)",
+			"  --rate <n>             messages sent per second, across every connection (default: 1000)",
+			"  --size <bytes>         the size of each message (default: 128)",
+			"  --warmup <seconds>     the time to send before measuring (default: 5)",
+			"  --duration <seconds>   the time to measure for (default: 30)",
+			"  --threads <n>          the number of sending threads (default: one per core, at most one per connection)",
+			"  --help                 print this message");
+	
+	private URI target = null;
+	private ServerEngine engine = ServerEngine.NIO;
+	private int port = 17291;
+	private boolean compress = false;
+	private int connections = 10;
+	private double connectRate = 100;
+	private double rate = 1000;
+	private int size = 128;
+	private double warmup = 5;
+	private double duration = 30;
+	private int threads = 0;
+	
+	private LoadOptions() {
+		
+	}
+	
+	/**
+	 * Parses the command line
+	 *
+	 * @param args the command line arguments
+	 * @return the options
+	 * @throws IllegalArgumentException if an option is unknown, is missing its value, or has an invalid value
+	 */
+	@Nonnull
+	static LoadOptions parse(@Nonnull String [] args) {
+		LoadOptions options = new LoadOptions();
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--compress")) {
+				options.compress = true;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + option);
+			String value = args[++i];
+			try {
+				switch (option) {
+					case "--target":
+						options.target = URI.create(value);
+						break;
+					case "--engine":
+						options.engine = ServerEngine.valueOf(value.toUpperCase(Locale.US));
+						break;
+					case "--port":
+						options.port = Integer.parseInt(value);
+						break;
+					case "--connections":
+						options.connections = Integer.parseInt(value);
+						break;
+					case "--connect-rate":
+						options.connectRate = Double.parseDouble(value);
+						break;
+					case "--rate":
+						options.rate = Double.parseDouble(value);
+						break;
+					case "--size":
+						options.size = Integer.parseInt(value);
+						break;
+					case "--warmup":
+						options.warmup = Double.parseDouble(value);
+						break;
+					case "--duration":
+						options.duration = Double.parseDouble(value);
+						break;
+					case "--threads":
+						options.threads = Integer.parseInt(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option: " + option);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+			}
+		}
+		if (options.connections <= 0 || options.rate <= 0 || options.size < 0 || options.connectRate < 0 || options.warmup < 0 || options.duration <= 0 || options.threads < 0)
+			throw new IllegalArgumentException("connections, rate and duration must be positive, and the other values can't be negative");
+		return options;
+	}
+	
+	/**
+	 * Returns the server to load
+	 *
+	 * @return the server's URI, or null to start a local server
+	 */
+	@CheckForNull
+	URI getTarget() {
+		return target;
+	}
+	
+	@Nonnull
+	ServerEngine getEngine() {
+		return engine;
+	}
+	
+	int getPort() {
+		return port;
+	}
+	
+	boolean isCompress() {
+		return compress;
+	}
+	
+	int getConnections() {
+		return connections;
+	}
+	
+	double getConnectRate() {
+		return connectRate;
+	}
+	
+	double getRate() {
+		return rate;
+	}
+	
+	int getSize() {
+		return size;
+	}
+	
+	long getWarmupNanos() {
+		return (long) (warmup * 1E9);
+	}
+	
+	long getDurationNanos() {
+		return (long) (duration * 1E9);
+	}
+	
+	int getThreads() {
+		if (threads > 0)
+			return Math.min(threads, connections);
+		return Math.min(Runtime.getRuntime().availableProcessors(), connections);
+	}
+	
+}
@@ -0,0 +1,486 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONArray;
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encodes JSONObjects as CBOR (RFC 8949) under the "json.cbor" subprotocol.  Numbers are sent in binary instead of as decimal text, in as
+ * few bytes as hold them exactly, and strings are length-prefixed instead of escaped, which makes numeric-heavy messages both smaller and
+ * cheaper to encode and decode. <p>
+ * Only the JSON data model is supported: maps with string keys, arrays, strings, integers, floating point numbers, booleans and null.  Integers
+ * decode as Long, or BigInteger if they don't fit, and floating point numbers as Double, the same as parsed JSON text.  Indefinite-length items
+ * and byte strings are rejected, and tags are ignored.  With a {@link JSONWebSocketKeyCache}, short strings are looked up by their bytes the same
+ * way as in JSON text messages </p>
+ */
+public final class JSONWebSocketCborCodec implements JSONWebSocketBinaryCodec {
+	
+	public static final String PROTOCOL = "json.cbor";
+	
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_STRING = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+	private static final int MAJOR_TAG = 6;
+	private static final int MAJOR_SIMPLE = 7;
+	private static final int FALSE = 0xF4;
+	private static final int TRUE = 0xF5;
+	private static final int NULL = 0xF6;
+	private static final int UNDEFINED = 0xF7;
+	private static final int HALF = 0xF9;
+	private static final int FLOAT = 0xFA;
+	private static final int DOUBLE = 0xFB;
+	private static final int MAX_DEPTH = 512;
+	private static final int BUFFER_SIZE = 1024;
+	
+	private final JSONWebSocketKeyCache cache;
+	
+	/**
+	 * Creates a codec that allocates every decoded string
+	 */
+	public JSONWebSocketCborCodec() {
+		this(null);
+	}
+	
+	/**
+	 * Creates a codec that looks decoded strings up in a cache
+	 *
+	 * @param cache the key cache, or null to allocate every decoded string
+	 */
+	public JSONWebSocketCborCodec(@CheckForNull JSONWebSocketKeyCache cache) {
+		this.cache = cache;
+	}
+	
+	@Nonnull
+	@Override
+	public String getProtocol() {
+		return PROTOCOL;
+	}
+	
+	@Override
+	public void encode(@Nonnull JSONObject object, @Nonnull OutputStream out) throws IOException {
+		Encoder encoder = new Encoder(out);
+		encoder.writeMap(object);
+		encoder.flush();
+	}
+	
+	@Nonnull
+	@Override
+	public JSONObject decode(@Nonnull InputStream in) throws IOException {
+		Decoder decoder = new Decoder(in, cache);
+		try {
+			int initial = decoder.readHeader();
+			if (initial >>> 5 != MAJOR_MAP)
+				throw new IOException("Message is not a CBOR map");
+			JSONObject object = decoder.readMap(initial, 0);
+			if (decoder.hasRemaining())
+				throw new IOException("Unexpected data after the CBOR map");
+			return object;
+		} finally {
+			if (cache != null)
+				cache.record(decoder.hits, decoder.misses);
+		}
+	}
+	
+	/**
+	 * Writes into a small buffer that's flushed to the stream when full, so each value doesn't cost a call on the stream
+	 */
+	private static final class Encoder {
+		
+		private final OutputStream out;
+		private final byte[] buffer;
+		private int position;
+		
+		Encoder(OutputStream out) {
+			this.out = out;
+			this.buffer = new byte[BUFFER_SIZE];
+			this.position = 0;
+		}
+		
+		void flush() throws IOException {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+		
+		private void writeValue(Object value, int depth) throws IOException {
+			if (depth > MAX_DEPTH)
+				throw new IOException("Object is nested too deeply");
+			if (value == null) {
+				writeByte(NULL);
+			} else if (value instanceof String) {
+				writeString((String) value);
+			} else if (value instanceof Boolean) {
+				writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+				writeLong(((Number) value).longValue());
+			} else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+				writeLong(((BigInteger) value).longValue());
+			} else if (value instanceof Number) {
+				writeDouble(((Number) value).doubleValue());
+			} else if (value instanceof Map) {
+				writeMap((Map<?, ?>) value, depth);
+			} else if (value instanceof Collection) {
+				Collection<?> array = (Collection<?>) value;
+				writeHeader(MAJOR_ARRAY, array.size());
+				for (Object element : array)
+					writeValue(element, depth + 1);
+			} else {
+				writeString(value.toString());
+			}
+		}
+		
+		void writeMap(Map<?, ?> map) throws IOException {
+			writeMap(map, 0);
+		}
+		
+		private void writeMap(Map<?, ?> map, int depth) throws IOException {
+			writeHeader(MAJOR_MAP, map.size());
+			for (Entry<?, ?> e : map.entrySet()) {
+				writeString(String.valueOf(e.getKey()));
+				writeValue(e.getValue(), depth + 1);
+			}
+		}
+		
+		private void writeLong(long value) throws IOException {
+			if (value >= 0)
+				writeHeader(MAJOR_UNSIGNED, value);
+			else
+				writeHeader(MAJOR_NEGATIVE, -1 - value);
+		}
+		
+		/**
+		 * Writes the value in the shortest of half, single or double precision that holds it exactly, which is CBOR's preferred serialization
+		 */
+		private void writeDouble(double value) throws IOException {
+			ensureCapacity(9);
+			float single = (float) value;
+			if (single != value && !Double.isNaN(value)) {
+				buffer[position++] = (byte) DOUBLE;
+				writeBigEndian(Double.doubleToLongBits(value), 8);
+				return;
+			}
+			int half = floatToHalf(single);
+			if (half != -1) {
+				buffer[position++] = (byte) HALF;
+				writeBigEndian(half, 2);
+			} else {
+				buffer[position++] = (byte) FLOAT;
+				writeBigEndian(Float.floatToIntBits(single), 4);
+			}
+		}
+		
+		/**
+		 * Writes the string as UTF-8 after its length, a chunk at a time.  Unpaired surrogates are replaced with '?', the same as
+		 * {@link String#getBytes(java.nio.charset.Charset)}
+		 */
+		private void writeString(String str) throws IOException {
+			int length = str.length();
+			long utf8Length = 0;
+			for (int i = 0; i < length; i++) {
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					utf8Length++;
+				} else if (c < 0x800) {
+					utf8Length += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+					utf8Length += 4;
+					i++;
+				} else {
+					utf8Length += Character.isSurrogate(c) ? 1 : 3;
+				}
+			}
+			writeHeader(MAJOR_STRING, utf8Length);
+			for (int i = 0; i < length; i++) {
+				if (buffer.length - position < 4)
+					flush();
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					buffer[position++] = (byte) c;
+				} else if (c < 0x800) {
+					buffer[position++] = (byte) (0xC0 | (c >>> 6));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, str.charAt(++i));
+					buffer[position++] = (byte) (0xF0 | (codePoint >>> 18));
+					buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+					buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					buffer[position++] = '?';
+				} else {
+					buffer[position++] = (byte) (0xE0 | (c >>> 12));
+					buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+		}
+		
+		/**
+		 * Writes a major type with its argument in the shortest form
+		 */
+		private void writeHeader(int major, long argument) throws IOException {
+			ensureCapacity(9);
+			int type = major << 5;
+			if (argument < 24) {
+				buffer[position++] = (byte) (type | argument);
+			} else if (argument <= 0xFF) {
+				buffer[position++] = (byte) (type | 24);
+				buffer[position++] = (byte) argument;
+			} else if (argument <= 0xFFFF) {
+				buffer[position++] = (byte) (type | 25);
+				writeBigEndian(argument, 2);
+			} else if (argument <= 0xFFFFFFFFL) {
+				buffer[position++] = (byte) (type | 26);
+				writeBigEndian(argument, 4);
+			} else {
+				buffer[position++] = (byte) (type | 27);
+				writeBigEndian(argument, 8);
+			}
+		}
+		
+		private void writeBigEndian(long value, int bytes) {
+			for (int i = bytes - 1; i >= 0; i--)
+				buffer[position++] = (byte) (value >>> (8 * i));
+		}
+		
+		/**
+		 * Returns the half precision bits of a float that half precision holds exactly, or -1 if it would lose precision.  Values that would be
+		 * subnormal halves are left to single precision
+		 */
+		private static int floatToHalf(float value) {
+			int bits = Float.floatToIntBits(value);
+			int sign = (bits >>> 16) & 0x8000;
+			if ((bits & 0x7FFFFFFF) == 0)
+				return sign;
+			if (Float.isNaN(value))
+				return 0x7E00;
+			if (Float.isInfinite(value))
+				return sign | 0x7C00;
+			int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+			int mantissa = bits & 0x7FFFFF;
+			if (exponent < 1 || exponent > 30 || (mantissa & 0x1FFF) != 0)
+				return -1;
+			return sign | (exponent << 10) | (mantissa >>> 13);
+		}
+		
+		private void writeByte(int b) throws IOException {
+			ensureCapacity(1);
+			buffer[position++] = (byte) b;
+		}
+		
+		private void ensureCapacity(int bytes) throws IOException {
+			if (buffer.length - position < bytes)
+				flush();
+		}
+		
+	}
+	
+	private static final class Decoder {
+		
+		private final InputStream in;
+		private final JSONWebSocketKeyCache cache;
+		private byte[] scratch;
+		private int hits;
+		private int misses;
+		
+		Decoder(InputStream in, JSONWebSocketKeyCache cache) {
+			this.in = in;
+			this.cache = cache;
+			this.scratch = new byte[64];
+			this.hits = 0;
+			this.misses = 0;
+		}
+		
+		boolean hasRemaining() throws IOException {
+			return in.read() != -1;
+		}
+		
+		/**
+		 * Reads the initial byte of the next item, skipping any tags in front of it
+		 */
+		int readHeader() throws IOException {
+			while (true) {
+				int initial = readByte();
+				if (initial >>> 5 != MAJOR_TAG)
+					return initial;
+				readArgument(initial);
+			}
+		}
+		
+		private Object readValue(int depth) throws IOException {
+			if (depth > MAX_DEPTH)
+				throw new IOException("Message is nested too deeply");
+			int initial = readHeader();
+			switch (initial >>> 5) {
+				case MAJOR_UNSIGNED: {
+					long value = readArgument(initial);
+					return value >= 0 ? (Object) value : new BigInteger(Long.toUnsignedString(value));
+				}
+				case MAJOR_NEGATIVE: {
+					long value = readArgument(initial);
+					return value >= 0 ? (Object) (-1 - value) : new BigInteger(Long.toUnsignedString(value)).not();
+				}
+				case MAJOR_BYTES:
+					throw new IOException("Byte strings are not supported");
+				case MAJOR_STRING:
+					return readString(initial, false);
+				case MAJOR_ARRAY: {
+					long size = readArgument(initial);
+					JSONArray array = new JSONArray();
+					for (long i = 0; i < size; i++)
+						array.add(readValue(depth + 1));
+					return array;
+				}
+				case MAJOR_MAP:
+					return readMap(initial, depth);
+				default:
+					return readSimple(initial);
+			}
+		}
+		
+		JSONObject readMap(int initial, int depth) throws IOException {
+			long size = readArgument(initial);
+			JSONObject object = new JSONObject();
+			for (long i = 0; i < size; i++) {
+				int keyInitial = readHeader();
+				if (keyInitial >>> 5 != MAJOR_STRING)
+					throw new IOException("Map keys must be strings");
+				String key = readString(keyInitial, true);
+				object.put(key, readValue(depth + 1));
+			}
+			return object;
+		}
+		
+		private Object readSimple(int initial) throws IOException {
+			switch (initial) {
+				case FALSE:
+					return Boolean.FALSE;
+				case TRUE:
+					return Boolean.TRUE;
+				case NULL:
+				case UNDEFINED:
+					return null;
+				case HALF:
+					return (double) halfToFloat((int) readBigEndian(2));
+				case FLOAT:
+					return (double) Float.intBitsToFloat((int) readBigEndian(4));
+				case DOUBLE:
+					return Double.longBitsToDouble(readBigEndian(8));
+				default:
+					throw new IOException("Unsupported CBOR simple value: " + Integer.toHexString(initial));
+			}
+		}
+		
+		private String readString(int initial, boolean key) throws IOException {
+			long length = readArgument(initial);
+			if (length > Integer.MAX_VALUE - 8)
+				throw new IOException("String is too long");
+			byte[] bytes = scratch;
+			if (length > bytes.length) {
+				// The declared length isn't trusted, so the buffer only grows as the bytes actually arrive
+				int read = 0;
+				bytes = new byte[(int) Math.min(length, 8192)];
+				while (read < length) {
+					if (read == bytes.length)
+						bytes = java.util.Arrays.copyOf(bytes, (int) Math.min(length, bytes.length * 2L));
+					read += readFully(bytes, read, bytes.length - read);
+				}
+				if (length <= BUFFER_SIZE)
+					scratch = bytes;
+			} else {
+				readFully(bytes, 0, (int) length);
+				if (cache != null && cache.isCacheable((int) length, key))
+					return createCachedString(bytes, (int) length);
+			}
+			return new String(bytes, 0, (int) length, StandardCharsets.UTF_8);
+		}
+		
+		private String createCachedString(byte[] bytes, int length) {
+			int hash = 0;
+			for (int i = 0; i < length; i++)
+				hash = JSONWebSocketKeyCache.hash(hash, bytes[i]);
+			String str = cache.get(bytes, 0, length, hash);
+			if (str != null) {
+				hits++;
+				return str;
+			}
+			misses++;
+			str = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			cache.put(bytes, 0, length, hash, str);
+			return str;
+		}
+		
+		private long readArgument(int initial) throws IOException {
+			int info = initial & 0x1F;
+			if (info < 24)
+				return info;
+			switch (info) {
+				case 24:
+					return readByte();
+				case 25:
+					return readBigEndian(2);
+				case 26:
+					return readBigEndian(4);
+				case 27:
+					return readBigEndian(8);
+				case 31:
+					throw new IOException("Indefinite-length items are not supported");
+				default:
+					throw new IOException("Invalid CBOR argument: " + info);
+			}
+		}
+		
+		private long readBigEndian(int bytes) throws IOException {
+			long value = 0;
+			for (int i = 0; i < bytes; i++)
+				value = (value << 8) | readByte();
+			return value;
+		}
+		
+		private int readByte() throws IOException {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException("Truncated CBOR message");
+			return b;
+		}
+		
+		private int readFully(byte[] bytes, int offset, int length) throws IOException {
+			int read = 0;
+			while (read < length) {
+				int n = in.read(bytes, offset + read, length - read);
+				if (n == -1)
+					throw new EOFException("Truncated CBOR message");
+				read += n;
+			}
+			return read;
+		}
+		
+		private static float halfToFloat(int half) {
+			int exponent = (half >>> 10) & 0x1F;
+			int mantissa = half & 0x3FF;
+			float value;
+			if (exponent == 0)
+				value = mantissa * (float) Math.pow(2, -24);
+			else if (exponent == 31)
+				value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+			else
+				value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+			return (half & 0x8000) != 0 ? -value : value;
+		}
+		
+	}
+	
+}
@@ -1,28 +1,64 @@
 package me.joshlarson.json.websocket.client;
 
 import me.joshlarson.json.JSONException;
-import me.joshlarson.json.JSONInputStream;
 import me.joshlarson.json.JSONObject;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 public class JSONWebSocketClient {
 	
+	private static final JSONWebSocketBufferPool SHARED_BUFFER_POOL = new JSONWebSocketBufferPool();
+	private static final JSONWebSocketKeyCache SHARED_KEY_CACHE = new JSONWebSocketKeyCache();
+	private static final String DEFAULT_RPC_ID_FIELD = "id";
+	private static final String DEFAULT_RPC_REPLY_FIELD = "replyTo";
+	
+	private final JSONWebSocketClientMetrics metrics;
 	private final JSONWebSocketImpl impl;
 	private final AtomicReference<JSONWebSocketHandler> handler;
+	private final AtomicReference<JSONWebSocketBufferPool> bufferPool;
+	private final AtomicReference<JSONWebSocketBinaryCodec> binaryCodec;
+	private final AtomicReference<JSONWebSocketKeyCache> keyCache;
+	private final AtomicReference<String> rpcIdField;
+	private final AtomicReference<String> rpcReplyField;
+	private final JSONWebSocketPendingCalls pendingCalls;
+	private final AtomicLong heartbeatInterval;
+	private final AtomicInteger maxMissedPongs;
+	private final AtomicInteger missedPongs;
+	private final JSONWebSocketRttStats rttStats;
+	private final AtomicLong heartbeatGeneration;
+	private volatile JSONWebSocketTimerWheel.Timeout heartbeat;
+	private final JSONWebSocketOutboundBuffer outbound;
+	private final AtomicReference<URI> reconnectUri;
+	private final AtomicLong reconnectInitialDelay;
+	private final AtomicLong reconnectMaxDelay;
+	private final AtomicInteger maxReconnectAttempts;
+	private final AtomicInteger reconnectAttempt;
+	private final AtomicBoolean reconnecting;
+	private final AtomicLong reconnectGeneration;
+	private volatile JSONWebSocketTimerWheel.Timeout reconnect;
 	
 	public JSONWebSocketClient() {
+		this.metrics = new JSONWebSocketClientMetrics(this);
 		this.impl = new JSONWebSocketImpl(new JSONWebSocketImplHandler() {
 			
 			public void onConnect() {
@@ -33,10 +69,14 @@ public class JSONWebSocketClient {
 				JSONWebSocketClient.this.onDisconnect();
 			}
 			
-			public void onMessage(@Nonnull String message) {
+			public void onMessage(@Nonnull byte[] message) {
 				JSONWebSocketClient.this.onMessage(message);
 			}
 			
+			public void onBinaryMessage(@Nonnull byte[] message) {
+				JSONWebSocketClient.this.onBinaryMessage(message);
+			}
+			
 			public void onPong(@Nonnull ByteBuffer data) {
 				JSONWebSocketClient.this.onPong(data);
 			}
@@ -48,8 +88,29 @@ public class JSONWebSocketClient {
 			public void onError(@Nonnull Throwable t) {
 				JSONWebSocketClient.this.onError(t);
 			}
-		});
+		}, metrics);
 		this.handler = new AtomicReference<>(null);
+		this.bufferPool = new AtomicReference<>(SHARED_BUFFER_POOL);
+		this.binaryCodec = new AtomicReference<>(null);
+		this.keyCache = new AtomicReference<>(SHARED_KEY_CACHE);
+		this.rpcIdField = new AtomicReference<>(DEFAULT_RPC_ID_FIELD);
+		this.rpcReplyField = new AtomicReference<>(DEFAULT_RPC_REPLY_FIELD);
+		this.pendingCalls = new JSONWebSocketPendingCalls(JSONWebSocketTimerWheel.getShared());
+		this.heartbeatInterval = new AtomicLong(0);
+		this.maxMissedPongs = new AtomicInteger(2);
+		this.missedPongs = new AtomicInteger(0);
+		this.rttStats = new JSONWebSocketRttStats();
+		this.heartbeatGeneration = new AtomicLong(0);
+		this.heartbeat = null;
+		this.outbound = new JSONWebSocketOutboundBuffer(metrics);
+		this.reconnectUri = new AtomicReference<>(null);
+		this.reconnectInitialDelay = new AtomicLong(0);
+		this.reconnectMaxDelay = new AtomicLong(0);
+		this.maxReconnectAttempts = new AtomicInteger(0);
+		this.reconnectAttempt = new AtomicInteger(0);
+		this.reconnecting = new AtomicBoolean(false);
+		this.reconnectGeneration = new AtomicLong(0);
+		this.reconnect = null;
 	}
 	
 	/**
@@ -159,6 +220,18 @@ public class JSONWebSocketClient {
 		impl.setConnectionTimeout(timeout);
 	}
 	
+	/**
+	 * Sets the event loop group that this client's socket is serviced by, instead of the socket's own reading and writing threads.  Thousands of
+	 * clients can share one group with a handful of threads, while each client's callbacks still happen in order.  Callbacks run on the event loop
+	 * thread, so the handler must not block, and must not wait on a call() or connect() of another client in the same group.  Only ws://
+	 * endpoints are supported, without a proxy or socket factory. <p> Must be done before connecting </p>
+	 *
+	 * @param group the group to connect with, or null for a socket with its own threads (default)
+	 */
+	public void setEventLoopGroup(@Nullable JSONWebSocketEventLoopGroup group) {
+		impl.setEventLoopGroup(group);
+	}
+	
 	/**
 	 * Sets whether or not the local socket should verify the certificate's hostname during the SSL/TLS handshake. <p> Must be done before connecting
 	 * </p>
@@ -311,6 +384,71 @@ public class JSONWebSocketClient {
 		impl.setMaxPayloadSize(size);
 	}
 	
+	/**
+	 * Sets whether the permessage-deflate extension is offered to the server.  JSON usually compresses several times over, which trades CPU time
+	 * for bandwidth.  Messages from the server are inflated whenever the server compresses them. <p> Must be done before connecting </p>
+	 *
+	 * @param enabled TRUE to offer compression, defaults to FALSE
+	 */
+	public void setPerMessageDeflate(boolean enabled) {
+		impl.setPerMessageDeflate(enabled);
+	}
+	
+	/**
+	 * Sets the smallest message that's compressed once permessage-deflate has been agreed.  Messages over the threshold are compressed with a
+	 * pooled Deflater, and shorter ones are sent uncompressed on either transport.  The threaded transport does that by sending them as two
+	 * fragments, which costs 6 bytes per message
+	 *
+	 * @param bytes the minimum encoded message size, defaults to 256 bytes
+	 */
+	public void setCompressionThreshold(int bytes) {
+		impl.setCompressionThreshold(bytes);
+	}
+	
+	/**
+	 * Sets the largest LZ77 window, as a power of two, that the server is asked to compress with.  A smaller window needs less memory on both
+	 * sides, at some cost to compression. <p> Must be done before connecting </p>
+	 *
+	 * @param bits the window size in bits, from 8 to 15, defaults to 15
+	 */
+	public void setCompressionWindowBits(int bits) {
+		impl.setCompressionWindowBits(bits);
+	}
+	
+	/**
+	 * Sets whether the server may keep compression context from one message to the next.  Turning it off lets the server compress each message
+	 * with a pooled Deflater instead of holding one per connection.  Messages sent by this client never use context takeover.
+	 * <p> Must be done before connecting </p>
+	 *
+	 * @param contextTakeover TRUE to allow context takeover, defaults to TRUE
+	 */
+	public void setCompressionContextTakeover(boolean contextTakeover) {
+		impl.setCompressionContextTakeover(contextTakeover);
+	}
+	
+	/**
+	 * Sets the binary encoding to offer the server, by offering the codec's subprotocol ahead of any added with {@link #addProtocol(String)}.  If
+	 * the server agrees to it, messages are sent in binary frames encoded with the codec instead of as JSON text, and binary frames from the
+	 * server are decoded with it.  Handlers receive JSONObjects either way. <p> Must be done before connecting </p>
+	 *
+	 * @param codec the codec to offer, or null to only send JSON text (the default)
+	 * @see JSONWebSocketCborCodec
+	 */
+	public void setBinaryCodec(@Nullable JSONWebSocketBinaryCodec codec) {
+		this.binaryCodec.set(codec);
+		impl.setBinaryProtocol(codec == null ? null : codec.getProtocol());
+	}
+	
+	/**
+	 * Returns the subprotocol the server accepted during the handshake
+	 *
+	 * @return the agreed subprotocol, or null if the server didn't accept one or the session isn't connected
+	 */
+	@CheckForNull
+	public String getAgreedProtocol() {
+		return impl.getAgreedProtocol();
+	}
+	
 	/**
 	 * Determines if the current session is connected
 	 *
@@ -320,6 +458,15 @@ public class JSONWebSocketClient {
 		return impl.isConnected();
 	}
 	
+	/**
+	 * Determines if the current session negotiated permessage-deflate
+	 *
+	 * @return TRUE if the session is connected and compressed, FALSE otherwise
+	 */
+	public boolean isCompressed() {
+		return impl.isCompressed();
+	}
+	
 	/**
 	 * Blocks until a connection is made to the remote endpoint specified by the URI
 	 *
@@ -337,13 +484,43 @@ public class JSONWebSocketClient {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void connect(@Nonnull URI uri) throws IOException {
-		impl.connect(uri);
+		long generation = startSession(uri);
+		try {
+			impl.connect(uri);
+		} catch (IOException | RuntimeException e) {
+			endSession(generation);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Starts connecting to the remote endpoint specified by the URI without waiting for the connection.  The settings are copied when this is
+	 * called, and no lock is held during the handshake, so many clients can connect at once, such as when they all reconnect after a server
+	 * restart.  Threaded connects share a pool of max(8, 2 * cores) threads with every client's reconnect attempts, so past that many
+	 * handshakes at once, the rest wait their turn.  The handler's onConnect() is called before the future completes
+	 *
+	 * @param uri the URI to connect to
+	 * @return a future completed once the connection is open, or completed exceptionally with the IOException that stopped it
+	 */
+	@Nonnull
+	public CompletableFuture<Void> connectAsync(@Nonnull URI uri) {
+		final long generation = startSession(uri);
+		CompletableFuture<Void> future = impl.connectAsync(uri);
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable error) {
+				if (error != null)
+					endSession(generation);
+			}
+		});
+		return future;
 	}
 	
 	/**
 	 * Stops the session with the remote endpoint with the normal close code and an empty reason string
 	 */
 	public void disconnect() {
+		if (stopReconnecting())
+			return;
 		impl.disconnect();
 	}
 	
@@ -354,6 +531,8 @@ public class JSONWebSocketClient {
 	 * @param reason the reason the session is being ended
 	 */
 	public void disconnect(@Nonnull CloseCode code, @Nonnull String reason) {
+		if (stopReconnecting())
+			return;
 		impl.disconnect(code, reason);
 	}
 	
@@ -365,6 +544,8 @@ public class JSONWebSocketClient {
 	 * @param closeTimeout the time until the Socket is closed forcibly. This is meant to give time for the server to respond to the close request
 	 */
 	public void disconnect(@Nonnull CloseCode code, @Nonnull String reason, long closeTimeout) {
+		if (stopReconnecting())
+			return;
 		impl.disconnect(code, reason, closeTimeout);
 	}
 	
@@ -374,21 +555,261 @@ public class JSONWebSocketClient {
 	 * <pre>{    "key": "value"    }</pre>
 	 * turns into:
 	 * <pre>{"key":"value"}</pre>
+	 * If the server agreed to the binary codec, the JSONObject is encoded with that instead.  While the client is reconnecting, the JSONObject is
+	 * added to the outbound buffer, if there is one, and must not be changed until it's replayed
 	 *
 	 * @param object the JSONObject to send
+	 * @return TRUE if the message was sent or buffered, FALSE otherwise
 	 */
 	public boolean send(@Nonnull JSONObject object) {
 		Objects.requireNonNull(object, "object");
-		return impl.send(object.toString(true));
+		if (outbound.isBuffering() && !outbound.isReplayThread()) {
+			synchronized (outbound) {
+				if (outbound.isBuffering())
+					return outbound.offer(object, null);
+			}
+		}
+		return sendNow(object);
+	}
+	
+	/**
+	 * Sends a message to the remote endpoint of the JSONObject encoded as a compact string, or with the agreed binary codec, without waiting for
+	 * it to be written.  Messages are written in the order they are sent, whether they are sent with this function or {@link #send(JSONObject)}.
+	 * While the client is reconnecting, the JSONObject is added to the outbound buffer, if there is one, and the future completes once it's been
+	 * replayed and written
+	 *
+	 * @param object the JSONObject to send
+	 * @return a future that completes once the message has been written to the socket, or completes exceptionally if the connection closes first,
+	 * the binary codec can't encode the object, or the outbound buffer rejects or drops it
+	 */
+	@Nonnull
+	public CompletableFuture<Void> sendAsync(@Nonnull JSONObject object) {
+		Objects.requireNonNull(object, "object");
+		if (outbound.isBuffering() && !outbound.isReplayThread()) {
+			synchronized (outbound) {
+				if (outbound.isBuffering()) {
+					CompletableFuture<Void> future = new CompletableFuture<>();
+					if (!outbound.offer(object, future))
+						future.completeExceptionally(new IOException("The outbound buffer is full"));
+					return future;
+				}
+			}
+		}
+		return sendNowAsync(object);
+	}
+	
+	private boolean sendNow(@Nonnull JSONObject object) {
+		JSONWebSocketBufferPool pool = bufferPool.get();
+		JSONWebSocketBinaryCodec codec = getAgreedCodec();
+		if (codec == null)
+			return impl.send(JSONWebSocketEncoder.encode(object, pool), false, pool);
+		try {
+			return impl.send(JSONWebSocketEncoder.encodeBinary(object, codec, pool), true, pool);
+		} catch (IOException e) {
+			onError(e);
+			return false;
+		}
+	}
+	
+	@Nonnull
+	private CompletableFuture<Void> sendNowAsync(@Nonnull JSONObject object) {
+		JSONWebSocketBufferPool pool = bufferPool.get();
+		JSONWebSocketBinaryCodec codec = getAgreedCodec();
+		if (codec == null)
+			return impl.sendAsync(JSONWebSocketEncoder.encode(object, pool), false, pool);
+		try {
+			return impl.sendAsync(JSONWebSocketEncoder.encodeBinary(object, codec, pool), true, pool);
+		} catch (IOException e) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+	
+	/**
+	 * Sends a request and waits for the server's response, which is the message whose RPC reply field holds the request's id.  The request's id
+	 * field is set to a new id before it's sent, so the same JSONObject must not be used for two calls at once.  The response completes the
+	 * future instead of being passed to {@link JSONWebSocketHandler#onMessage(JSONWebSocketClient, JSONObject)}, while a request from the
+	 * server is never taken for a response, even if its id is the same. <p>
+	 * The future completes exceptionally with a TimeoutException if there's no response in time, or an IOException if the connection closes
+	 * first.  It completes on the thread that read the response, or the shared timer thread for timeouts, so dependent stages that take any
+	 * time should use one of the async variants </p>
+	 *
+	 * @param request the request to send
+	 * @param timeout the time to wait for the response
+	 * @param unit    the unit of the timeout
+	 * @return a future for the response
+	 */
+	@Nonnull
+	public CompletableFuture<JSONObject> call(@Nonnull JSONObject request, long timeout, @Nonnull TimeUnit unit) {
+		Objects.requireNonNull(request, "request");
+		Objects.requireNonNull(unit, "unit");
+		CompletableFuture<JSONObject> response = new CompletableFuture<>();
+		final long id = pendingCalls.register(response, timeout, unit);
+		request.put(rpcIdField.get(), id);
+		sendAsync(request).whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable error) {
+				if (error != null)
+					pendingCalls.fail(id, error);
+			}
+		});
+		return response;
+	}
+	
+	/**
+	 * Sends a response to a request from the server, with the request's RPC id in its reply field
+	 *
+	 * @param request  the request being answered
+	 * @param response the response, whose reply field is set to the request's id
+	 * @return TRUE if the response was sent, FALSE otherwise
+	 */
+	public boolean reply(@Nonnull JSONObject request, @Nonnull JSONObject response) {
+		response.put(rpcReplyField.get(), request.get(rpcIdField.get()));
+		return send(response);
+	}
+	
+	/**
+	 * Returns the number of calls that are still waiting for a response
+	 *
+	 * @return the pending call count
+	 */
+	public int getPendingCallCount() {
+		return pendingCalls.size();
+	}
+	
+	/**
+	 * Pings the server once per interval while connected, and drops the connection if too many of those pings in a row go unanswered.  A
+	 * silent server is closed abnormally (close code 1006): the socket is closed straight away without a close frame, which it wouldn't answer.
+	 * Any message from the server counts as an answer. <p>
+	 * The pings are timed, so they also report {@link JSONWebSocketHandler#onPongTimed(JSONWebSocketClient, long)}.  The heartbeats of every
+	 * client run on one shared timer wheel.  The setting applies from the next connection </p>
+	 *
+	 * @param interval       the time between pings, defaults to 0 which disables the heartbeat
+	 * @param unit           the unit of the interval
+	 * @param maxMissedPongs the number of pings in a row that may go unanswered before the connection is dropped, defaults to 2
+	 */
+	public void setHeartbeat(long interval, @Nonnull TimeUnit unit, int maxMissedPongs) {
+		if (interval < 0)
+			throw new IllegalArgumentException("interval must not be negative");
+		if (maxMissedPongs <= 0)
+			throw new IllegalArgumentException("maxMissedPongs must be positive");
+		this.maxMissedPongs.set(maxMissedPongs);
+		this.heartbeatInterval.set(unit.toNanos(interval));
+	}
+	
+	/**
+	 * Reconnects on its own whenever the connection drops, until {@link #disconnect()} is called.  Each attempt waits a random delay of up to
+	 * the initial delay, doubled for every attempt that failed in a row, but never more than the maximum delay.  The randomness spreads out a
+	 * fleet of clients that all lost the same server, so they don't all reconnect at the same moment when it comes back. <p>
+	 * Failed attempts aren't reported, except for the last one if the client gives up.  A client only reconnects after it has been connected,
+	 * so the first connect() still throws if it fails.  The setting applies from the next time the connection drops </p>
+	 *
+	 * @param initialDelay the longest delay before the first attempt, defaults to 0 which disables reconnecting
+	 * @param maxDelay     the longest delay before any attempt
+	 * @param unit         the unit of the delays
+	 * @param maxAttempts  the attempts in a row after which the client gives up, or 0 to never give up
+	 * @see #setOutboundBuffer(int, OverflowPolicy)
+	 */
+	public void setReconnect(long initialDelay, long maxDelay, @Nonnull TimeUnit unit, int maxAttempts) {
+		if (initialDelay < 0)
+			throw new IllegalArgumentException("initialDelay must not be negative");
+		if (maxDelay < initialDelay)
+			throw new IllegalArgumentException("maxDelay must not be less than initialDelay");
+		if (maxAttempts < 0)
+			throw new IllegalArgumentException("maxAttempts must not be negative");
+		this.maxReconnectAttempts.set(maxAttempts);
+		this.reconnectMaxDelay.set(unit.toNanos(maxDelay));
+		this.reconnectInitialDelay.set(unit.toNanos(initialDelay));
+	}
+	
+	/**
+	 * Buffers messages sent while the client is reconnecting, instead of failing them, and sends them in order once it has reconnected.  Messages
+	 * sent from the handler's onConnect() go ahead of the buffered messages, so it can log in or resubscribe first.  If the client is disconnected
+	 * or gives up reconnecting, the buffered messages are discarded.  Only used with {@link #setReconnect(long, long, TimeUnit, int)}
+	 *
+	 * @param capacity the most messages to buffer, defaults to 0 which disables the buffer
+	 * @param policy   what to do with a message sent once the buffer is full
+	 */
+	public void setOutboundBuffer(int capacity, @Nonnull OverflowPolicy policy) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative");
+		outbound.configure(capacity, Objects.requireNonNull(policy, "policy"));
+	}
+	
+	/**
+	 * Determines if the connection dropped and the client is waiting to reconnect, or reconnecting
+	 *
+	 * @return TRUE if a reconnect is pending, FALSE otherwise
+	 */
+	public boolean isReconnecting() {
+		return reconnecting.get();
+	}
+	
+	/**
+	 * Returns the number of messages waiting in the outbound buffer to be replayed
+	 *
+	 * @return the buffered message count
+	 */
+	public int getBufferedMessageCount() {
+		return outbound.size();
+	}
+	
+	/**
+	 * Returns the round-trip time statistics of this client, which are updated by every pong to {@link #pingTimed()} or the heartbeat.  They
+	 * carry on across reconnects
+	 *
+	 * @return the live statistics, readable from any thread
+	 */
+	@Nonnull
+	public JSONWebSocketRttStats getRttStats() {
+		return rttStats;
+	}
+	
+	/**
+	 * Returns the client's message, connection and handler latency metrics, which can also be published over JMX
+	 *
+	 * @return the live metrics
+	 */
+	@Nonnull
+	public JSONWebSocketClientMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Returns the number of heartbeat pings in a row that haven't been answered yet
+	 *
+	 * @return the missed pong count, which is always 0 if the heartbeat is disabled
+	 */
+	public int getMissedPongs() {
+		return missedPongs.get();
 	}
 	
 	/**
-	 * Flushes the buffered data into the network
+	 * Asks the writing thread to flush the buffered data into the network.  The flush happens asynchronously
 	 */
 	public void flush() {
 		impl.flush();
 	}
 	
+	/**
+	 * Stops flushing after every message, so that messages sent until the matching {@link #uncork()} are buffered and written to the network
+	 * together.  Buffered data is still flushed at least once a second.  Calls may be nested, in which case only the outermost uncork()
+	 * flushes
+	 */
+	public void cork() {
+		impl.cork();
+	}
+	
+	/**
+	 * Undoes one call to {@link #cork()}.  Once every cork() has been matched, everything buffered is flushed and messages are flushed as soon as
+	 * they are written again
+	 *
+	 * @throws IllegalStateException if there is no matching call to cork()
+	 */
+	public void uncork() {
+		impl.uncork();
+	}
+	
 	/**
 	 * Sends a ping with random data to the remote endpoint
 	 */
@@ -430,38 +851,363 @@ public class JSONWebSocketClient {
 		this.handler.set(handler);
 	}
 	
+	/**
+	 * Sets the pool that outgoing messages are encoded into
+	 *
+	 * @param pool the buffer pool, defaults to a pool shared by every client that retains up to 32 MiB
+	 */
+	public void setBufferPool(@Nonnull JSONWebSocketBufferPool pool) {
+		this.bufferPool.set(Objects.requireNonNull(pool, "pool"));
+	}
+	
+	/**
+	 * Returns the pool that outgoing messages are encoded into, whose hit, miss and retained byte counts show how well it's working
+	 *
+	 * @return the buffer pool
+	 */
+	@Nonnull
+	public JSONWebSocketBufferPool getBufferPool() {
+		return bufferPool.get();
+	}
+	
+	/**
+	 * Sets the cache that strings in incoming JSON messages are looked up in, so repeated keys are decoded without allocating
+	 *
+	 * @param cache the key cache, defaults to a cache shared by every client that holds 1024 keys and no values
+	 */
+	public void setKeyCache(@Nonnull JSONWebSocketKeyCache cache) {
+		this.keyCache.set(Objects.requireNonNull(cache, "cache"));
+	}
+	
+	/**
+	 * Returns the cache that strings in incoming JSON messages are looked up in, whose hit rate shows how well it's working
+	 *
+	 * @return the key cache
+	 */
+	@Nonnull
+	public JSONWebSocketKeyCache getKeyCache() {
+		return keyCache.get();
+	}
+	
+	/**
+	 * Sets the field that RPC calls carry their id in
+	 *
+	 * @param field the id field, defaults to "id"
+	 */
+	public void setRpcIdField(@Nonnull String field) {
+		this.rpcIdField.set(Objects.requireNonNull(field, "field"));
+	}
+	
+	/**
+	 * Returns the field that RPC calls carry their id in
+	 *
+	 * @return the id field
+	 */
+	@Nonnull
+	public String getRpcIdField() {
+		return rpcIdField.get();
+	}
+	
+	/**
+	 * Sets the field that RPC responses carry the id of the request they answer in.  Only messages with this field are matched against pending
+	 * calls, so both sides can make calls at once without a request being mistaken for a response
+	 *
+	 * @param field the reply field, defaults to "replyTo"
+	 */
+	public void setRpcReplyField(@Nonnull String field) {
+		this.rpcReplyField.set(Objects.requireNonNull(field, "field"));
+	}
+	
+	/**
+	 * Returns the field that RPC responses carry the id of the request they answer in
+	 *
+	 * @return the reply field
+	 */
+	@Nonnull
+	public String getRpcReplyField() {
+		return rpcReplyField.get();
+	}
+	
 	private void onConnect() {
+		// Cleared here rather than once the attempt returns, so a connection that drops straight away still starts reconnecting again
+		if (reconnecting.compareAndSet(true, false)) {
+			reconnectAttempt.set(0);
+			metrics.onReconnect();
+		}
+		missedPongs.set(0);
+		scheduleHeartbeat(heartbeatGeneration.incrementAndGet());
 		JSONWebSocketHandler handler = this.handler.get();
-		if (handler != null)
-			handler.onConnect(this);
+		if (!outbound.isBuffering()) {
+			if (handler != null)
+				handler.onConnect(this);
+			return;
+		}
+		// Sends from onConnect() on this thread skip the buffer and are written ahead of the replay, while other threads keep buffering
+		outbound.startReplay();
+		try {
+			if (handler != null)
+				handler.onConnect(this);
+		} finally {
+			replayOutbound();
+		}
 	}
 	
 	private void onDisconnect() {
+		heartbeatGeneration.incrementAndGet();
+		JSONWebSocketTimerWheel.Timeout heartbeat = this.heartbeat;
+		if (heartbeat != null)
+			heartbeat.cancel();
+		pendingCalls.failAll(new IOException("Disconnected before the response arrived"));
+		scheduleReconnect();
 		JSONWebSocketHandler handler = this.handler.get();
 		if (handler != null)
 			handler.onDisconnect(this);
 	}
 	
-	private void onMessage(@Nonnull String message) {
-		try (JSONInputStream in = new JSONInputStream(message)) {
-			JSONObject object = in.readObject();
-			if (object == null)
-				throw new JSONException("Invalid JSON: empty string");
-			JSONWebSocketHandler handler = this.handler.get();
-			if (handler != null)
-				handler.onMessage(this, object);
-		} catch (JSONException | IOException e) {
+	private void onMessage(@Nonnull byte[] message) {
+		missedPongs.lazySet(0);
+		try {
+			dispatchMessage(JSONWebSocketDecoder.decode(message, 0, message.length, keyCache.get()));
+		} catch (JSONException e) {
+			metrics.onDecodeError();
+			onError(e);
+		}
+	}
+	
+	private void onBinaryMessage(@Nonnull byte[] message) {
+		missedPongs.lazySet(0);
+		JSONWebSocketBinaryCodec codec = binaryCodec.get();
+		if (codec == null) {
+			onError(new IOException("Received a binary message, but no binary codec was set"));
+			return;
+		}
+		JSONObject object;
+		try (ByteArrayInputStream in = new ByteArrayInputStream(message)) {
+			object = codec.decode(in);
+		} catch (IOException e) {
+			metrics.onDecodeError();
 			onError(e);
+			return;
+		}
+		dispatchMessage(object);
+	}
+	
+	private void dispatchMessage(@Nonnull JSONObject object) {
+		if (pendingCalls.size() > 0) {
+			Object id = object.get(rpcReplyField.get());
+			if ((id instanceof Long || id instanceof Integer) && pendingCalls.complete(((Number) id).longValue(), object))
+				return;
+		}
+		JSONWebSocketHandler handler = this.handler.get();
+		if (handler != null) {
+			long start = metrics.onHandlerCalled();
+			try {
+				handler.onMessage(this, object);
+			} finally {
+				metrics.onHandlerReturned(start);
+			}
+		}
+	}
+	
+	private void scheduleHeartbeat(final long generation) {
+		long interval = heartbeatInterval.get();
+		if (interval == 0 || heartbeatGeneration.get() != generation)
+			return;
+		heartbeat = JSONWebSocketTimerWheel.getShared().schedule(new Runnable() {
+			public void run() {
+				heartbeat(generation);
+			}
+		}, interval, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Runs on the timer thread once per heartbeat interval, until the connection it was started for ends.  Anything received since the last run
+	 * resets the missed pong count
+	 */
+	private void heartbeat(long generation) {
+		if (heartbeatGeneration.get() != generation)
+			return;
+		// The connect callback runs before the socket is published, so an early heartbeat may not find it yet
+		if (impl.isConnected()) {
+			int missed = missedPongs.getAndIncrement();
+			if (missed >= maxMissedPongs.get()) {
+				onError(new IOException("No response to the last " + missed + " heartbeat pings"));
+				impl.abort();
+				return;
+			}
+			try {
+				impl.pingTimed();
+			} catch (JSONWebSocketImpl.JSONWebSocketException e) {
+				// Disconnected since the check
+				return;
+			}
+		}
+		scheduleHeartbeat(generation);
+	}
+	
+	/**
+	 * Remembers the endpoint to reconnect to, and cancels any reconnect in progress, since this connect takes over from it
+	 *
+	 * @return the generation to pass to {@link #endSession(long)} if the connect fails
+	 */
+	private long startSession(@Nonnull URI uri) {
+		Objects.requireNonNull(uri, "uri");
+		long generation = reconnectGeneration.incrementAndGet();
+		cancelReconnect();
+		reconnectAttempt.set(0);
+		reconnecting.set(false);
+		reconnectUri.set(uri);
+		return generation;
+	}
+	
+	/**
+	 * Forgets the endpoint after a connect() that failed, unless another connect has started since
+	 */
+	private void endSession(long generation) {
+		if (reconnectGeneration.get() == generation) {
+			reconnectUri.set(null);
+			outbound.discardAll(new IOException("Failed to connect before the message was sent"));
 		}
 	}
 	
+	/**
+	 * Stops reconnecting for good, and discards anything buffered
+	 *
+	 * @return TRUE if the client was reconnecting and isn't connected, so there is no connection left to close
+	 */
+	private boolean stopReconnecting() {
+		reconnectGeneration.incrementAndGet();
+		reconnectUri.set(null);
+		cancelReconnect();
+		boolean wasReconnecting = reconnecting.getAndSet(false);
+		outbound.discardAll(new IOException("Disconnected before the message was sent"));
+		return wasReconnecting && !impl.isConnected();
+	}
+	
+	private void cancelReconnect() {
+		JSONWebSocketTimerWheel.Timeout reconnect = this.reconnect;
+		if (reconnect != null)
+			reconnect.cancel();
+	}
+	
+	/**
+	 * Starts reconnecting after the connection dropped, if reconnecting is enabled and the client wasn't disconnected on purpose.  Messages are
+	 * buffered from here until the replay in {@link #onConnect()}
+	 */
+	private void scheduleReconnect() {
+		URI uri = reconnectUri.get();
+		if (uri == null || reconnectInitialDelay.get() == 0 || !reconnecting.compareAndSet(false, true))
+			return;
+		outbound.startBuffering();
+		scheduleReconnectAttempt(reconnectGeneration.get(), uri);
+	}
+	
+	private void scheduleReconnectAttempt(final long generation, @Nonnull final URI uri) {
+		if (reconnectGeneration.get() != generation)
+			return;
+		reconnect = JSONWebSocketTimerWheel.getShared().schedule(new Runnable() {
+			public void run() {
+				// Resolving the host and connecting may block, so it's done off the timer thread, on the bounded connect pool
+				JSONWebSocketImpl.CONNECT_EXECUTOR.execute(new Runnable() {
+					public void run() {
+						reconnect(generation, uri);
+					}
+				});
+			}
+		}, getReconnectDelay(reconnectAttempt.get()), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns a delay with "full jitter": anywhere from zero up to the exponential backoff for this attempt.  Spreading every client over the
+	 * whole range keeps reconnects to a restarted server at a steady rate, instead of waves of clients that all retry together
+	 */
+	private long getReconnectDelay(int attempt) {
+		long maxDelay = reconnectMaxDelay.get();
+		long ceiling = reconnectInitialDelay.get();
+		for (int i = 0; i < attempt && ceiling < maxDelay; i++)
+			ceiling *= 2;
+		return ThreadLocalRandom.current().nextLong(Math.min(ceiling, maxDelay) + 1);
+	}
+	
+	/**
+	 * Runs on a connect thread for each reconnect attempt.  A disconnect() or connect() since the attempt was scheduled changes the generation,
+	 * which stops the attempt
+	 */
+	private void reconnect(long generation, @Nonnull URI uri) {
+		if (reconnectGeneration.get() != generation)
+			return;
+		int attempt = reconnectAttempt.incrementAndGet();
+		metrics.onReconnectAttempt();
+		try {
+			impl.connect(uri);
+		} catch (IOException | RuntimeException e) {
+			if (reconnectGeneration.get() != generation)
+				return;
+			int maxAttempts = maxReconnectAttempts.get();
+			if (maxAttempts > 0 && attempt >= maxAttempts) {
+				reconnecting.set(false);
+				outbound.discardAll(new IOException("Gave up reconnecting before the message was sent"));
+				onError(new IOException("Gave up reconnecting to " + uri + " after " + attempt + " attempts", e));
+				return;
+			}
+			scheduleReconnectAttempt(generation, uri);
+			return;
+		}
+		// Disconnected while this attempt was connecting, which couldn't close a connection that wasn't open yet
+		if (reconnectGeneration.get() != generation && reconnectUri.get() == null && impl.isConnected())
+			impl.disconnect();
+	}
+	
+	/**
+	 * Sends everything buffered while reconnecting, in order, including messages other threads buffer during the replay, then stops buffering.
+	 * If the connection drops again partway through, the rest stays buffered for the next connection
+	 */
+	private void replayOutbound() {
+		while (true) {
+			if (!impl.isConnected()) {
+				outbound.abortReplay();
+				return;
+			}
+			JSONWebSocketOutboundBuffer.Entry entry = outbound.pollReplay();
+			if (entry == null)
+				return;
+			final CompletableFuture<Void> future = entry.getFuture();
+			metrics.onMessageReplayed();
+			if (future == null) {
+				sendNow(entry.getObject());
+			} else {
+				sendNowAsync(entry.getObject()).whenComplete(new BiConsumer<Void, Throwable>() {
+					public void accept(Void result, Throwable error) {
+						if (error == null)
+							future.complete(null);
+						else
+							future.completeExceptionally(error);
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Returns the binary codec if the server agreed to its subprotocol, which is what decides whether messages are sent as binary
+	 */
+	@CheckForNull
+	private JSONWebSocketBinaryCodec getAgreedCodec() {
+		JSONWebSocketBinaryCodec codec = binaryCodec.get();
+		if (codec == null || !codec.getProtocol().equals(impl.getAgreedProtocol()))
+			return null;
+		return codec;
+	}
+	
 	private void onPong(@Nonnull ByteBuffer data) {
+		missedPongs.lazySet(0);
 		JSONWebSocketHandler handler = this.handler.get();
 		if (handler != null)
 			handler.onPong(this, data);
 	}
 	
 	private void onPongTimed(long rttNano) {
+		rttStats.record(rttNano);
 		JSONWebSocketHandler handler = this.handler.get();
 		if (handler != null)
 			handler.onPongTimed(this, rttNano);
@@ -0,0 +1,360 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and a handler latency histogram for one client, across every connection it makes.  Counters are {@link LongAdder}s, so threads
+ * sending at the same time don't contend on them.  Message and byte counts are of payloads, after decompression for
+ * incoming messages and before compression for outgoing ones. <p>
+ * Metrics are enabled by default.  Disabled metrics are a no-op: each event costs one volatile read, and handlers aren't timed.  The metrics can
+ * be published as a JMX MBean with {@link #registerMBean(String)}, where they can also be switched on and off </p>
+ */
+public final class JSONWebSocketClientMetrics implements JSONWebSocketClientMetricsMBean {
+	
+	private static final String JMX_DOMAIN = "me.joshlarson.json.websocket";
+	private static final long NOT_TIMED = Long.MIN_VALUE;
+	
+	private final JSONWebSocketClient client;
+	private final LongAdder connects;
+	private final LongAdder disconnects;
+	private final LongAdder reconnectAttempts;
+	private final LongAdder reconnects;
+	private final LongAdder messagesIn;
+	private final LongAdder bytesIn;
+	private final LongAdder messagesOut;
+	private final LongAdder bytesOut;
+	private final LongAdder decodeErrors;
+	private final LongAdder messagesBuffered;
+	private final LongAdder messagesReplayed;
+	private final LongAdder messagesDropped;
+	private final JSONWebSocketLatencyHistogram handlerTime;
+	private final AtomicReference<ObjectName> mbeanName;
+	private volatile boolean enabled;
+	
+	JSONWebSocketClientMetrics(@Nonnull JSONWebSocketClient client) {
+		this.client = client;
+		this.connects = new LongAdder();
+		this.disconnects = new LongAdder();
+		this.reconnectAttempts = new LongAdder();
+		this.reconnects = new LongAdder();
+		this.messagesIn = new LongAdder();
+		this.bytesIn = new LongAdder();
+		this.messagesOut = new LongAdder();
+		this.bytesOut = new LongAdder();
+		this.decodeErrors = new LongAdder();
+		this.messagesBuffered = new LongAdder();
+		this.messagesReplayed = new LongAdder();
+		this.messagesDropped = new LongAdder();
+		this.handlerTime = new JSONWebSocketLatencyHistogram();
+		this.mbeanName = new AtomicReference<>(null);
+		this.enabled = true;
+	}
+	
+	/**
+	 * Publishes these metrics to the platform MBean server, as <code>me.joshlarson.json.websocket:type=JSONWebSocketClient,name=&lt;name&gt;</code>
+	 *
+	 * @param name the name that tells this client apart from others in the same JVM
+	 * @return the name the MBean was registered under
+	 * @throws JMException if the MBean can't be registered, such as when the name is already taken
+	 */
+	@Nonnull
+	public ObjectName registerMBean(@Nonnull String name) throws JMException {
+		ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=JSONWebSocketClient,name=" + ObjectName.quote(name));
+		synchronized (mbeanName) {
+			if (mbeanName.get() != null)
+				throw new IllegalStateException("Already registered as " + mbeanName.get());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			mbeanName.set(objectName);
+		}
+		return objectName;
+	}
+	
+	/**
+	 * Removes these metrics from the platform MBean server, if they were registered
+	 *
+	 * @throws JMException if the MBean can't be unregistered
+	 */
+	public void unregisterMBean() throws JMException {
+		synchronized (mbeanName) {
+			ObjectName objectName = mbeanName.getAndSet(null);
+			if (objectName != null)
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+	
+	/**
+	 * Returns the name these metrics are registered under
+	 *
+	 * @return the MBean's name, or null if it isn't registered
+	 */
+	@CheckForNull
+	public ObjectName getMBeanName() {
+		return mbeanName.get();
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Turns the metrics on or off.  Counts stop changing while the metrics are off, and are kept for when they're turned back on
+	 *
+	 * @param enabled TRUE to record metrics, FALSE for no-op metrics
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Returns the number of times the client has connected
+	 *
+	 * @return the connect count
+	 */
+	@Override
+	public long getConnects() {
+		return connects.sum();
+	}
+	
+	/**
+	 * Returns the number of times the client has disconnected
+	 *
+	 * @return the disconnect count
+	 */
+	@Override
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+	
+	/**
+	 * Returns the number of times the client has tried to reconnect on its own, including attempts that failed
+	 *
+	 * @return the reconnect attempt count
+	 */
+	@Override
+	public long getReconnectAttempts() {
+		return reconnectAttempts.sum();
+	}
+	
+	/**
+	 * Returns the number of times the client has reconnected on its own after the connection dropped
+	 *
+	 * @return the successful reconnect count
+	 */
+	@Override
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+	
+	/**
+	 * Returns whether the client is waiting to reconnect or reconnecting right now, which is tracked even while the metrics are disabled
+	 *
+	 * @return TRUE if a reconnect is pending, FALSE otherwise
+	 */
+	@Override
+	public boolean isReconnecting() {
+		return client.isReconnecting();
+	}
+	
+	/**
+	 * Returns whether the client is connected right now, which is tracked even while the metrics are disabled
+	 *
+	 * @return TRUE if the client is connected, FALSE otherwise
+	 */
+	@Override
+	public boolean isConnected() {
+		return client.isConnected();
+	}
+	
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+	
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+	
+	/**
+	 * Returns the number of incoming messages that couldn't be decoded, which were reported to the handler's onError() instead
+	 *
+	 * @return the decode failure count
+	 */
+	@Override
+	public long getDecodeErrors() {
+		return decodeErrors.sum();
+	}
+	
+	/**
+	 * Returns the number of messages that were buffered because they were sent while the client was reconnecting
+	 *
+	 * @return the buffered message count
+	 */
+	@Override
+	public long getMessagesBuffered() {
+		return messagesBuffered.sum();
+	}
+	
+	/**
+	 * Returns the number of buffered messages that were sent once the client reconnected
+	 *
+	 * @return the replayed message count
+	 */
+	@Override
+	public long getMessagesReplayed() {
+		return messagesReplayed.sum();
+	}
+	
+	/**
+	 * Returns the number of messages sent while reconnecting that were never sent: rejected or dropped by the overflow policy, or discarded by
+	 * a disconnect() or by giving up on reconnecting
+	 *
+	 * @return the dropped message count
+	 */
+	@Override
+	public long getMessagesDropped() {
+		return messagesDropped.sum();
+	}
+	
+	/**
+	 * Returns the number of messages waiting in the outbound buffer right now, which is tracked even while the metrics are disabled
+	 *
+	 * @return the current buffer size
+	 */
+	@Override
+	public int getBufferedMessageCount() {
+		return client.getBufferedMessageCount();
+	}
+	
+	/**
+	 * Returns the number of messages passed to the handler's onMessage()
+	 *
+	 * @return the timed handler call count
+	 */
+	@Override
+	public long getHandlerCalls() {
+		return handlerTime.getCount();
+	}
+	
+	@Override
+	public double getHandlerTimeMeanMicros() {
+		return handlerTime.getMeanNanos() / 1E3;
+	}
+	
+	@Override
+	public double getHandlerTimeP50Micros() {
+		return handlerTime.getPercentileNanos(50) / 1E3;
+	}
+	
+	@Override
+	public double getHandlerTimeP99Micros() {
+		return handlerTime.getPercentileNanos(99) / 1E3;
+	}
+	
+	@Override
+	public double getHandlerTimeP999Micros() {
+		return handlerTime.getPercentileNanos(99.9) / 1E3;
+	}
+	
+	@Override
+	public double getHandlerTimeMaxMicros() {
+		return handlerTime.getMaxNanos() / 1E3;
+	}
+	
+	/**
+	 * Returns an estimate of a percentile of the time the handler took per message, within about 6%
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the handler time in nanoseconds, or 0 if no calls were timed
+	 */
+	public long getHandlerTimePercentileNanos(double percentile) {
+		return handlerTime.getPercentileNanos(percentile);
+	}
+	
+	void onConnect() {
+		if (enabled)
+			connects.increment();
+	}
+	
+	void onDisconnect() {
+		if (enabled)
+			disconnects.increment();
+	}
+	
+	void onReconnectAttempt() {
+		if (enabled)
+			reconnectAttempts.increment();
+	}
+	
+	void onReconnect() {
+		if (enabled)
+			reconnects.increment();
+	}
+	
+	void onMessageIn(int bytes) {
+		if (enabled) {
+			messagesIn.increment();
+			bytesIn.add(bytes);
+		}
+	}
+	
+	void onMessageOut(int bytes) {
+		if (enabled) {
+			messagesOut.increment();
+			bytesOut.add(bytes);
+		}
+	}
+	
+	void onDecodeError() {
+		if (enabled)
+			decodeErrors.increment();
+	}
+	
+	void onMessageBuffered() {
+		if (enabled)
+			messagesBuffered.increment();
+	}
+	
+	void onMessageReplayed() {
+		if (enabled)
+			messagesReplayed.increment();
+	}
+	
+	void onMessageDropped() {
+		if (enabled)
+			messagesDropped.increment();
+	}
+	
+	/**
+	 * Starts timing a handler call
+	 *
+	 * @return the value to pass to {@link #onHandlerReturned(long)}
+	 */
+	long onHandlerCalled() {
+		return enabled ? System.nanoTime() : NOT_TIMED;
+	}
+	
+	void onHandlerReturned(long start) {
+		if (start != NOT_TIMED)
+			handlerTime.record(System.nanoTime() - start);
+	}
+	
+}
@@ -0,0 +1,54 @@
+package me.joshlarson.json.websocket.client;
+
+/**
+ * The JMX view of a {@link JSONWebSocketClientMetrics}.  Every attribute is read live when it's requested
+ */
+public interface JSONWebSocketClientMetricsMBean {
+	
+	boolean isEnabled();
+	
+	void setEnabled(boolean enabled);
+	
+	long getConnects();
+	
+	long getDisconnects();
+	
+	long getReconnectAttempts();
+	
+	long getReconnects();
+	
+	boolean isReconnecting();
+	
+	boolean isConnected();
+	
+	long getMessagesIn();
+	
+	long getBytesIn();
+	
+	long getMessagesOut();
+	
+	long getBytesOut();
+	
+	long getDecodeErrors();
+	
+	long getMessagesBuffered();
+	
+	long getMessagesReplayed();
+	
+	long getMessagesDropped();
+	
+	int getBufferedMessageCount();
+	
+	long getHandlerCalls();
+	
+	double getHandlerTimeMeanMicros();
+	
+	double getHandlerTimeP50Micros();
+	
+	double getHandlerTimeP99Micros();
+	
+	double getHandlerTimeP999Micros();
+	
+	double getHandlerTimeMaxMicros();
+	
+}
@@ -0,0 +1,55 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * One connected socket of a {@link JSONWebSocketImpl}.  Each transport reports socket events back through the impl's package-private event
+ * methods, and calls them for a given socket one at a time and in order
+ */
+interface JSONWebSocketClientTransport {
+	
+	boolean isOpen();
+	
+	/**
+	 * Returns the subprotocol the server accepted, or null if it didn't accept any
+	 */
+	@CheckForNull
+	String getAgreedProtocol();
+	
+	/**
+	 * Sends a complete text or binary message, in a single frame unless the transport has to fragment it to keep it uncompressed.  The impl's
+	 * onMessageWritten() is called once for each message, in order, once it has been written to the socket.  Must be called holding the impl's
+	 * send lock, so the fragments of two messages are never interleaved
+	 *
+	 * @param payload    the frame's payload
+	 * @param binary     TRUE for a binary frame, FALSE for a text frame
+	 * @param compressed TRUE if the payload has already been compressed for permessage-deflate, which sets RSV1
+	 */
+	void send(@Nonnull byte[] payload, boolean binary, boolean compressed);
+	
+	/**
+	 * Sets whether every frame is written as soon as it's sent, or held until the next {@link #flush()}
+	 */
+	void setAutoFlush(boolean autoFlush);
+	
+	void flush();
+	
+	void ping(@Nonnull byte[] data);
+	
+	/**
+	 * Starts the close handshake, and drops the connection if the server hasn't finished it within the timeout
+	 *
+	 * @param code         the close code
+	 * @param reason       the close reason, or null for none
+	 * @param closeTimeout the time to wait for the server, in milliseconds
+	 */
+	void disconnect(int code, @Nullable String reason, long closeTimeout);
+	
+	/**
+	 * Drops the connection without a close handshake, for a server that has stopped responding.  The impl's onClose() is still called
+	 */
+	void abort();
+	
+}
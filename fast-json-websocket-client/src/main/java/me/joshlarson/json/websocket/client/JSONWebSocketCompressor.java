@@ -0,0 +1,72 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses outgoing messages for permessage-deflate before they reach the socket, so that only messages over the compression threshold are
+ * compressed and the Deflater doesn't have to be created again for each one.  Every message is compressed on its own, without context takeover,
+ * using a raw Deflater borrowed from a pool shared by every client
+ */
+final class JSONWebSocketCompressor {
+	
+	private static final int MAX_POOLED = 16;
+	private static final int SYNC_FLUSH_TAIL_LENGTH = 4;
+	private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger POOLED = new AtomicInteger(0);
+	
+	private JSONWebSocketCompressor() {
+		
+	}
+	
+	/**
+	 * Compresses a message payload
+	 *
+	 * @param payload the UTF-8 payload to compress
+	 * @param pool    the pool to take the scratch buffer from
+	 * @return the compressed payload, without the empty block that ends every flush, or null if compressing doesn't make the payload smaller
+	 */
+	@CheckForNull
+	static byte[] compress(@Nonnull byte[] payload, @Nonnull JSONWebSocketBufferPool pool) {
+		Deflater deflater = acquireDeflater();
+		// Anything that doesn't fit in the payload's own length, plus the flush tail that's stripped off, isn't worth sending compressed
+		int capacity = payload.length + SYNC_FLUSH_TAIL_LENGTH;
+		ByteBuffer scratch = pool.acquire(capacity);
+		try {
+			deflater.setInput(payload);
+			int deflated = deflater.deflate(scratch.array(), 0, capacity, Deflater.SYNC_FLUSH);
+			if (deflated >= capacity)
+				return null;
+			return Arrays.copyOf(scratch.array(), deflated - SYNC_FLUSH_TAIL_LENGTH);
+		} finally {
+			pool.release(scratch);
+			releaseDeflater(deflater);
+		}
+	}
+	
+	@Nonnull
+	private static Deflater acquireDeflater() {
+		Deflater deflater = DEFLATERS.poll();
+		if (deflater == null)
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		POOLED.decrementAndGet();
+		return deflater;
+	}
+	
+	private static void releaseDeflater(@Nonnull Deflater deflater) {
+		if (POOLED.incrementAndGet() > MAX_POOLED) {
+			POOLED.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		DEFLATERS.add(deflater);
+	}
+	
+}
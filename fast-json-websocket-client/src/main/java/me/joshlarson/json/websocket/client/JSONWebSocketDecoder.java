@@ -0,0 +1,365 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONArray;
+import me.joshlarson.json.JSONException;
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a JSON text message straight from its UTF-8 payload, the counterpart of {@link JSONWebSocketEncoder}.  Strings without escape
+ * sequences are looked up in a {@link JSONWebSocketKeyCache} by their bytes, so keys that were seen before cost no allocation at all, and
+ * numbers are parsed from the bytes without building a String unless they need full precision rounding. <p>
+ * Integers decode as Long, or Double if they don't fit, and numbers with a fraction or exponent as Double, the same as JSONInputStream.  The
+ * message must be a single object, optionally surrounded by whitespace </p>
+ */
+final class JSONWebSocketDecoder {
+	
+	private static final int MAX_DEPTH = 512;
+	private static final int MAX_FAST_DIGITS = 18;
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	private final byte[] buffer;
+	private final int offset;
+	private final int limit;
+	private final JSONWebSocketKeyCache cache;
+	private int position;
+	private int hits;
+	private int misses;
+	
+	private JSONWebSocketDecoder(@Nonnull byte[] buffer, int offset, int length, @CheckForNull JSONWebSocketKeyCache cache) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.limit = offset + length;
+		this.cache = cache;
+		this.position = offset;
+		this.hits = 0;
+		this.misses = 0;
+	}
+	
+	/**
+	 * Decodes a text message
+	 *
+	 * @param buffer the buffer holding the UTF-8 payload
+	 * @param offset the offset of the payload's first byte
+	 * @param length the payload length
+	 * @param cache  the cache to look strings up in, or null to allocate every string
+	 * @return the decoded object
+	 * @throws JSONException if the payload isn't a single valid JSON object
+	 */
+	@Nonnull
+	static JSONObject decode(@Nonnull byte[] buffer, int offset, int length, @CheckForNull JSONWebSocketKeyCache cache) throws JSONException {
+		JSONWebSocketDecoder decoder = new JSONWebSocketDecoder(buffer, offset, length, cache);
+		try {
+			return decoder.readMessage();
+		} finally {
+			if (cache != null)
+				cache.record(decoder.hits, decoder.misses);
+		}
+	}
+	
+	private JSONObject readMessage() throws JSONException {
+		skipWhitespace();
+		if (position == limit)
+			throw new JSONException("Invalid JSON: empty string");
+		if (buffer[position] != '{')
+			throw error("Expected '{'");
+		position++;
+		JSONObject object = readObject(1);
+		skipWhitespace();
+		if (position != limit)
+			throw error("Unexpected data after the JSON object");
+		return object;
+	}
+	
+	private Object readValue(int depth) throws JSONException {
+		skipWhitespace();
+		if (position == limit)
+			throw error("Unexpected end of JSON");
+		byte b = buffer[position];
+		switch (b) {
+			case '{':
+				position++;
+				return readObject(depth + 1);
+			case '[':
+				position++;
+				return readArray(depth + 1);
+			case '"':
+				position++;
+				return readString(false);
+			case 't':
+				readLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				readLiteral("false");
+				return Boolean.FALSE;
+			case 'n':
+				readLiteral("null");
+				return null;
+			default:
+				if (b == '-' || (b >= '0' && b <= '9'))
+					return readNumber();
+				throw error("Unexpected character '" + (char) (b & 0xFF) + "'");
+		}
+	}
+	
+	private JSONObject readObject(int depth) throws JSONException {
+		if (depth > MAX_DEPTH)
+			throw error("JSON is nested too deeply");
+		JSONObject object = new JSONObject();
+		skipWhitespace();
+		if (position < limit && buffer[position] == '}') {
+			position++;
+			return object;
+		}
+		while (true) {
+			skipWhitespace();
+			if (next() != '"')
+				throw error("Expected a string key");
+			String key = readString(true);
+			skipWhitespace();
+			if (next() != ':')
+				throw error("Expected ':'");
+			object.put(key, readValue(depth));
+			skipWhitespace();
+			byte b = next();
+			if (b == '}')
+				return object;
+			if (b != ',')
+				throw error("Expected ',' or '}'");
+		}
+	}
+	
+	private JSONArray readArray(int depth) throws JSONException {
+		if (depth > MAX_DEPTH)
+			throw error("JSON is nested too deeply");
+		JSONArray array = new JSONArray();
+		skipWhitespace();
+		if (position < limit && buffer[position] == ']') {
+			position++;
+			return array;
+		}
+		while (true) {
+			array.add(readValue(depth));
+			skipWhitespace();
+			byte b = next();
+			if (b == ']')
+				return array;
+			if (b != ',')
+				throw error("Expected ',' or ']'");
+		}
+	}
+	
+	/**
+	 * Reads a string whose opening quote has already been read.  Strings without escapes are decoded from the buffer in one go, and looked up
+	 * in the cache first if they're short enough
+	 */
+	private String readString(boolean key) throws JSONException {
+		byte[] buffer = this.buffer;
+		int start = position;
+		int hash = 0;
+		for (int i = start; i < limit; i++) {
+			byte b = buffer[i];
+			if (b == '"') {
+				position = i + 1;
+				return createString(start, i - start, hash, key);
+			}
+			if (b == '\\')
+				return readEscapedString(start);
+			if (b >= 0 && b < 0x20) {
+				position = i;
+				throw error("Unescaped control character in string");
+			}
+			hash = JSONWebSocketKeyCache.hash(hash, b);
+		}
+		position = limit;
+		throw error("Unterminated string");
+	}
+	
+	private String createString(int start, int length, int hash, boolean key) {
+		JSONWebSocketKeyCache cache = this.cache;
+		if (cache == null || !cache.isCacheable(length, key))
+			return new String(buffer, start, length, StandardCharsets.UTF_8);
+		String str = cache.get(buffer, start, length, hash);
+		if (str != null) {
+			hits++;
+			return str;
+		}
+		misses++;
+		str = new String(buffer, start, length, StandardCharsets.UTF_8);
+		cache.put(buffer, start, length, hash, str);
+		return str;
+	}
+	
+	private String readEscapedString(int start) throws JSONException {
+		StringBuilder str = new StringBuilder();
+		int runStart = start;
+		position = start;
+		while (true) {
+			if (position >= limit)
+				throw error("Unterminated string");
+			byte b = buffer[position];
+			if (b == '"') {
+				str.append(new String(buffer, runStart, position - runStart, StandardCharsets.UTF_8));
+				position++;
+				return str.toString();
+			}
+			if (b >= 0 && b < 0x20)
+				throw error("Unescaped control character in string");
+			if (b != '\\') {
+				position++;
+				continue;
+			}
+			str.append(new String(buffer, runStart, position - runStart, StandardCharsets.UTF_8));
+			position++;
+			switch (next()) {
+				case '"':	str.append('"'); break;
+				case '\\':	str.append('\\'); break;
+				case '/':	str.append('/'); break;
+				case 'b':	str.append('\b'); break;
+				case 'f':	str.append('\f'); break;
+				case 'n':	str.append('\n'); break;
+				case 'r':	str.append('\r'); break;
+				case 't':	str.append('\t'); break;
+				case 'u':	str.append(readHexChar()); break;
+				default:
+					position--;
+					throw error("Invalid escape sequence");
+			}
+			runStart = position;
+		}
+	}
+	
+	private char readHexChar() throws JSONException {
+		if (limit - position < 4)
+			throw error("Invalid unicode escape");
+		int c = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(buffer[position++], 16);
+			if (digit == -1)
+				throw error("Invalid unicode escape");
+			c = (c << 4) | digit;
+		}
+		return (char) c;
+	}
+	
+	/**
+	 * Reads a number.  Integers of up to 18 digits, and decimals whose digits and exponent are small enough to be converted exactly with one
+	 * multiplication or division, are built straight from the digits.  Anything else goes through the JDK's parsers for correct rounding
+	 */
+	private Object readNumber() throws JSONException {
+		byte[] buffer = this.buffer;
+		int start = position;
+		boolean negative = buffer[position] == '-';
+		if (negative)
+			position++;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean truncated = false;
+		int integerStart = position;
+		while (position < limit && isDigit(buffer[position])) {
+			int digit = buffer[position++] - '0';
+			if (digits < MAX_FAST_DIGITS) {
+				mantissa = mantissa * 10 + digit;
+				if (mantissa != 0)
+					digits++;
+			} else {
+				truncated = true;
+				exponent++;
+			}
+		}
+		if (position == integerStart)
+			throw error("Invalid number");
+		if (buffer[integerStart] == '0' && position - integerStart > 1)
+			throw error("Numbers must not have leading zeros");
+		boolean integer = true;
+		if (position < limit && buffer[position] == '.') {
+			integer = false;
+			position++;
+			int fractionStart = position;
+			while (position < limit && isDigit(buffer[position])) {
+				int digit = buffer[position++] - '0';
+				if (digits < MAX_FAST_DIGITS) {
+					mantissa = mantissa * 10 + digit;
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				} else {
+					truncated = true;
+				}
+			}
+			if (position == fractionStart)
+				throw error("Invalid number");
+		}
+		if (position < limit && (buffer[position] == 'e' || buffer[position] == 'E')) {
+			integer = false;
+			position++;
+			boolean negativeExponent = false;
+			if (position < limit && (buffer[position] == '+' || buffer[position] == '-'))
+				negativeExponent = buffer[position++] == '-';
+			int exponentStart = position;
+			int explicit = 0;
+			while (position < limit && isDigit(buffer[position])) {
+				explicit = Math.min(explicit * 10 + (buffer[position++] - '0'), 100000);
+			}
+			if (position == exponentStart)
+				throw error("Invalid number");
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+		if (integer && !truncated)
+			return negative ? -mantissa : mantissa;
+		String number = new String(buffer, start, position - start, StandardCharsets.US_ASCII);
+		if (integer) {
+			try {
+				return Long.parseLong(number);
+			} catch (NumberFormatException e) {
+				return Double.parseDouble(number);
+			}
+		}
+		if (!truncated && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(number);
+	}
+	
+	private void readLiteral(String literal) throws JSONException {
+		int length = literal.length();
+		if (limit - position < length)
+			throw error("Unexpected end of JSON");
+		for (int i = 0; i < length; i++) {
+			if (buffer[position + i] != literal.charAt(i))
+				throw error("Unexpected token");
+		}
+		position += length;
+	}
+	
+	private void skipWhitespace() {
+		while (position < limit) {
+			byte b = buffer[position];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t')
+				return;
+			position++;
+		}
+	}
+	
+	private byte next() throws JSONException {
+		if (position >= limit)
+			throw error("Unexpected end of JSON");
+		return buffer[position++];
+	}
+	
+	private JSONException error(String message) {
+		return new JSONException("Invalid JSON: " + message + " at offset " + (position - offset));
+	}
+	
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+	
+}
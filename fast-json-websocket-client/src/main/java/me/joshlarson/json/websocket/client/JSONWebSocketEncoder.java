@@ -0,0 +1,265 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONArray;
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encodes a JSONObject as compact JSON straight into UTF-8, without building the intermediate String and byte array that
+ * {@link JSONObject#toString(boolean)} would.  The JSON is written into a buffer from the client's {@link JSONWebSocketBufferPool}, so the only
+ * allocation per message is the final payload array handed to the socket
+ * <p>
+ * Subclasses of JSONObject and JSONArray may customize their output by overriding toString, so they're encoded with toString(true) instead.
+ * Binary payloads are built the same way, with a {@link JSONWebSocketBinaryCodec} writing into the buffer instead
+ * </p>
+ */
+final class JSONWebSocketEncoder {
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int STRING_CHUNK = 1024;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+	
+	private final JSONWebSocketBufferPool pool;
+	private ByteBuffer scratch;
+	private byte[] buffer;
+	private int position;
+	
+	private JSONWebSocketEncoder(@Nonnull JSONWebSocketBufferPool pool) {
+		this.pool = pool;
+		this.scratch = pool.acquire(INITIAL_CAPACITY);
+		this.buffer = scratch.array();
+		this.position = 0;
+	}
+	
+	/**
+	 * Encodes the object as the payload of a text frame
+	 *
+	 * @param object the object to encode
+	 * @param pool   the pool to take scratch buffers from
+	 * @return the UTF-8 encoded JSON
+	 */
+	@Nonnull
+	static byte[] encode(@Nonnull JSONObject object, @Nonnull JSONWebSocketBufferPool pool) {
+		JSONWebSocketEncoder encoder = new JSONWebSocketEncoder(pool);
+		try {
+			encoder.writeValue(object);
+			return Arrays.copyOf(encoder.buffer, encoder.position);
+		} finally {
+			pool.release(encoder.scratch);
+		}
+	}
+	
+	/**
+	 * Encodes the object as the payload of a binary frame
+	 *
+	 * @param object the object to encode
+	 * @param codec  the codec that encodes the payload
+	 * @param pool   the pool to take scratch buffers from
+	 * @return the encoded payload
+	 * @throws IOException if the codec can't encode the object
+	 */
+	@Nonnull
+	static byte[] encodeBinary(@Nonnull JSONObject object, @Nonnull JSONWebSocketBinaryCodec codec, @Nonnull JSONWebSocketBufferPool pool) throws IOException {
+		final JSONWebSocketEncoder encoder = new JSONWebSocketEncoder(pool);
+		try {
+			codec.encode(object, new OutputStream() {
+				@Override
+				public void write(int b) {
+					encoder.ensureCapacity(1);
+					encoder.buffer[encoder.position++] = (byte) b;
+				}
+				
+				@Override
+				public void write(@Nonnull byte[] b, int off, int len) {
+					encoder.ensureCapacity(len);
+					System.arraycopy(b, off, encoder.buffer, encoder.position, len);
+					encoder.position += len;
+				}
+			});
+			return Arrays.copyOf(encoder.buffer, encoder.position);
+		} finally {
+			pool.release(encoder.scratch);
+		}
+	}
+	
+	private void writeValue(Object value) {
+		if (value == null) {
+			writeAscii(NULL);
+		} else if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof Boolean) {
+			writeAscii((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			writeLong(((Number) value).longValue());
+		} else if (value instanceof JSONObject && value.getClass() != JSONObject.class) {
+			writeRaw(((JSONObject) value).toString(true));
+		} else if (value instanceof JSONArray && value.getClass() != JSONArray.class) {
+			writeRaw(((JSONArray) value).toString(true));
+		} else if (value instanceof Map) {
+			writeObject((Map<?, ?>) value);
+		} else if (value instanceof Collection) {
+			writeArray((Collection<?>) value);
+		} else if (value instanceof Number) {
+			writeRaw(value.toString());
+		} else {
+			writeString(value.toString());
+		}
+	}
+	
+	private void writeObject(Map<?, ?> object) {
+		ensureCapacity(1);
+		buffer[position++] = '{';
+		boolean first = true;
+		for (Entry<?, ?> e : object.entrySet()) {
+			ensureCapacity(1);
+			if (!first)
+				buffer[position++] = ',';
+			first = false;
+			writeString(String.valueOf(e.getKey()));
+			ensureCapacity(1);
+			buffer[position++] = ':';
+			writeValue(e.getValue());
+		}
+		ensureCapacity(1);
+		buffer[position++] = '}';
+	}
+	
+	private void writeArray(Collection<?> array) {
+		ensureCapacity(1);
+		buffer[position++] = '[';
+		boolean first = true;
+		for (Object value : array) {
+			if (!first) {
+				ensureCapacity(1);
+				buffer[position++] = ',';
+			}
+			first = false;
+			writeValue(value);
+		}
+		ensureCapacity(1);
+		buffer[position++] = ']';
+	}
+	
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii(MIN_LONG);
+			return;
+		}
+		ensureCapacity(20);
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long remaining = value / 10; remaining != 0; remaining /= 10)
+			digits++;
+		for (int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		position += digits;
+	}
+	
+	private void writeAscii(byte[] ascii) {
+		ensureCapacity(ascii.length);
+		System.arraycopy(ascii, 0, buffer, position, ascii.length);
+		position += ascii.length;
+	}
+	
+	private void writeString(String str) {
+		ensureCapacity(1);
+		buffer[position++] = '"';
+		writeChars(str, true);
+		ensureCapacity(1);
+		buffer[position++] = '"';
+	}
+	
+	private void writeRaw(String str) {
+		writeChars(str, false);
+	}
+	
+	/**
+	 * Writes the string as UTF-8, a chunk at a time so the buffer only ever has to grow by the worst case of the chunk rather than of the whole
+	 * string.  Unpaired surrogates are replaced with '?', the same as {@link String#getBytes(java.nio.charset.Charset)}
+	 */
+	private void writeChars(String str, boolean escape) {
+		int length = str.length();
+		for (int chunkStart = 0; chunkStart < length; ) {
+			int chunkEnd = Math.min(length, chunkStart + STRING_CHUNK);
+			ensureCapacity((chunkEnd - chunkStart + 1) * 6);
+			byte[] buffer = this.buffer;
+			int position = this.position;
+			int i = chunkStart;
+			for (; i < chunkEnd; i++) {
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					if (escape && (c < 0x20 || c == '"' || c == '\\')) {
+						buffer[position++] = '\\';
+						switch (c) {
+							case '"':	buffer[position++] = '"'; break;
+							case '\\':	buffer[position++] = '\\'; break;
+							case '\b':	buffer[position++] = 'b'; break;
+							case '\f':	buffer[position++] = 'f'; break;
+							case '\n':	buffer[position++] = 'n'; break;
+							case '\r':	buffer[position++] = 'r'; break;
+							case '\t':	buffer[position++] = 't'; break;
+							default:
+								buffer[position++] = 'u';
+								buffer[position++] = '0';
+								buffer[position++] = '0';
+								buffer[position++] = HEX[c >>> 4];
+								buffer[position++] = HEX[c & 0xF];
+								break;
+						}
+					} else {
+						buffer[position++] = (byte) c;
+					}
+				} else if (c < 0x800) {
+					buffer[position++] = (byte) (0xC0 | (c >>> 6));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, str.charAt(++i));
+					buffer[position++] = (byte) (0xF0 | (codePoint >>> 18));
+					buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+					buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					buffer[position++] = '?';
+				} else {
+					buffer[position++] = (byte) (0xE0 | (c >>> 12));
+					buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			this.position = position;
+			chunkStart = i;
+		}
+	}
+	
+	private void ensureCapacity(int bytes) {
+		if (position + bytes <= buffer.length)
+			return;
+		long required = (long) position + bytes;
+		if (required > Integer.MAX_VALUE - 8)
+			throw new OutOfMemoryError("Encoded message is too large");
+		ByteBuffer grown = pool.acquire((int) Math.max(required, Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L)));
+		System.arraycopy(buffer, 0, grown.array(), 0, position);
+		pool.release(scratch);
+		scratch = grown;
+		buffer = grown.array();
+	}
+	
+}
@@ -0,0 +1,104 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A fixed set of event loop threads that any number of clients can share, instead of each client having its own reading and writing thread.
+ * Each client's socket is handed to the event loop with the fewest sockets when it connects, and stays on that loop until it disconnects, so
+ * every callback for one client still happens in order on one thread.  The thread count stays the same however many clients connect. <p>
+ * Callbacks run on the event loop thread itself, so a handler that blocks holds up every other client on the same loop.  Handlers that need to
+ * block should hand the work to an executor.  Event loops only support plain ws:// connections, without a proxy or custom socket factory </p>
+ *
+ * @see JSONWebSocketClient#setEventLoopGroup(JSONWebSocketEventLoopGroup)
+ */
+public final class JSONWebSocketEventLoopGroup {
+	
+	private final JSONWebSocketNioEventLoop[] loops;
+	private final AtomicBoolean shutdown;
+	
+	/**
+	 * Creates a group with one event loop per available processor
+	 *
+	 * @throws IOException if a selector can't be opened
+	 */
+	public JSONWebSocketEventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a group and starts its event loop threads, which are daemon threads
+	 *
+	 * @param threads the number of event loops
+	 * @throws IOException if a selector can't be opened
+	 */
+	public JSONWebSocketEventLoopGroup(int threads) throws IOException {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		this.loops = new JSONWebSocketNioEventLoop[threads];
+		this.shutdown = new AtomicBoolean(false);
+		for (int i = 0; i < threads; i++)
+			loops[i] = new JSONWebSocketNioEventLoop("JSONWebSocket Client Event Loop #" + (i + 1));
+		for (JSONWebSocketNioEventLoop loop : loops)
+			loop.start();
+	}
+	
+	/**
+	 * Returns the number of event loop threads
+	 *
+	 * @return the thread count
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+	
+	/**
+	 * Returns the number of sockets currently connecting or connected on any of the event loops
+	 *
+	 * @return the socket count
+	 */
+	public int getSocketCount() {
+		int count = 0;
+		for (JSONWebSocketNioEventLoop loop : loops)
+			count += loop.getSocketCount();
+		return count;
+	}
+	
+	public boolean isShutdown() {
+		return shutdown.get();
+	}
+	
+	/**
+	 * Stops every event loop, dropping their sockets without a close handshake.  Each connected client gets onDisconnect(), and no more clients can
+	 * connect with this group.  Blocks until the event loops have finished, unless called from one of them
+	 */
+	public void shutdown() {
+		if (!shutdown.compareAndSet(false, true))
+			return;
+		for (JSONWebSocketNioEventLoop loop : loops)
+			loop.stop();
+		for (JSONWebSocketNioEventLoop loop : loops)
+			loop.awaitTermination();
+	}
+	
+	/**
+	 * Picks the event loop for a new socket, and counts the socket against it until the socket closes
+	 *
+	 * @return the event loop with the fewest sockets
+	 * @throws IOException if the group has been shut down
+	 */
+	@Nonnull
+	JSONWebSocketNioEventLoop next() throws IOException {
+		if (shutdown.get())
+			throw new IOException("Event loop group has been shut down");
+		JSONWebSocketNioEventLoop least = loops[0];
+		for (int i = 1; i < loops.length; i++) {
+			if (loops[i].getSocketCount() < least.getSocketCount())
+				least = loops[i];
+		}
+		least.onSocketAssigned();
+		return least;
+	}
+	
+}
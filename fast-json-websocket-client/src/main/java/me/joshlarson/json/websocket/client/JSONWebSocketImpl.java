@@ -3,6 +3,7 @@ package me.joshlarson.json.websocket.client;
 import com.neovisionaries.ws.client.*;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -11,23 +12,51 @@ import java.net.URI;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 class JSONWebSocketImpl extends WebSocketAdapter {
 	
-	private final AtomicReference<WebSocket> socket;
+	private static final CompletableFuture<Void> SYNCHRONOUS_SEND = CompletableFuture.completedFuture(null);
+	private static final int MAX_WINDOW_BITS = JSONWebSocketThreadedTransport.MAX_WINDOW_BITS;
+	private static final long DEFAULT_CLOSE_TIMEOUT = 10000;
+	private static final int CONNECT_THREADS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+	static final Executor CONNECT_EXECUTOR = createConnectExecutor();
+	
+	private final AtomicReference<JSONWebSocketClientTransport> transport;
+	private final AtomicReference<JSONWebSocketEventLoopGroup> eventLoopGroup;
+	private final Queue<CompletableFuture<Void>> pendingSends;
+	private final AtomicInteger corkDepth;
+	private final AtomicInteger compressionThreshold;
+	private final AtomicInteger agreedWindowBits;
 	private final JSONWebSocketImplHandler messageHandler;
+	private final JSONWebSocketClientMetrics metrics;
 	private final WebSocketSettings socketSettings;
 	private final WebSocketFactory webSocketFactory;
 	private final Random random;
 	private final long pingId;
 	
-	JSONWebSocketImpl(@Nonnull JSONWebSocketImplHandler handler) {
-		this.socket = new AtomicReference<>(null);
+	JSONWebSocketImpl(@Nonnull JSONWebSocketImplHandler handler, @Nonnull JSONWebSocketClientMetrics metrics) {
+		this.transport = new AtomicReference<>(null);
+		this.eventLoopGroup = new AtomicReference<>(null);
+		this.pendingSends = new ArrayDeque<>();
+		this.corkDepth = new AtomicInteger(0);
+		this.compressionThreshold = new AtomicInteger(256);
+		this.agreedWindowBits = new AtomicInteger(-1);
 		this.messageHandler = handler;
+		this.metrics = metrics;
 		this.socketSettings = new WebSocketSettings();
 		this.webSocketFactory = new WebSocketFactory();
 		this.random = new Random();
@@ -35,8 +64,16 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 	}
 	
 	public boolean isConnected() {
-		WebSocket socket = this.socket.get();
-		return socket != null && socket.isOpen();
+		JSONWebSocketClientTransport transport = this.transport.get();
+		return transport != null && transport.isOpen();
+	}
+	
+	public boolean isCompressed() {
+		return agreedWindowBits.get() != -1 && isConnected();
+	}
+	
+	public void setEventLoopGroup(@Nullable JSONWebSocketEventLoopGroup group) {
+		eventLoopGroup.set(group);
 	}
 	
 	public void setProxy(@Nonnull URI proxyUri) {
@@ -111,6 +148,19 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 		socketSettings.removeProtocol(protocol);
 	}
 	
+	public void setBinaryProtocol(@Nullable String protocol) {
+		socketSettings.setBinaryProtocol(protocol);
+	}
+	
+	/**
+	 * Returns the subprotocol the server accepted, or null if it didn't accept any or the socket isn't connected
+	 */
+	@Nullable
+	public String getAgreedProtocol() {
+		JSONWebSocketClientTransport transport = this.transport.get();
+		return transport == null ? null : transport.getAgreedProtocol();
+	}
+	
 	public void clearHeaders() {
 		socketSettings.clearHeaders();
 	}
@@ -139,42 +189,221 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 		socketSettings.setMaxPayloadSize(size);
 	}
 	
+	public void setPerMessageDeflate(boolean enabled) {
+		socketSettings.setPerMessageDeflate(enabled);
+	}
+	
+	public void setCompressionThreshold(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("bytes must not be negative");
+		compressionThreshold.set(bytes);
+	}
+	
+	public void setCompressionWindowBits(int bits) {
+		if (bits < 8 || bits > MAX_WINDOW_BITS)
+			throw new IllegalArgumentException("bits must be between 8 and 15");
+		socketSettings.setCompressionWindowBits(bits);
+	}
+	
+	public void setCompressionContextTakeover(boolean contextTakeover) {
+		socketSettings.setCompressionContextTakeover(contextTakeover);
+	}
+	
 	public void connect(@Nonnull URI endpoint) throws IOException {
 		Objects.requireNonNull(endpoint, "endpoint");
-		synchronized (webSocketFactory) {
+		JSONWebSocketEventLoopGroup group = eventLoopGroup.get();
+		if (group != null) {
+			JSONWebSocketNioTransport transport = createNioTransport(endpoint, group);
 			try {
-				WebSocket socket = webSocketFactory.createSocket(endpoint);
-				socket.addListener(this);
-				socketSettings.apply(socket);
-				socket.connect();
-				this.socket.set(socket);
-			} catch (WebSocketException e) {
-				throw new IOException("WebSocket error: " + e.getMessage());
+				transport.connect(webSocketFactory.getConnectionTimeout());
+			} catch (IOException e) {
+				this.transport.compareAndSet(transport, null);
+				throw e;
 			}
+			return;
 		}
+		WebSocket socket = createSocket(endpoint);
+		connectThreaded(socket, createThreadedTransport(socket));
+	}
+	
+	/**
+	 * Starts connecting without blocking the caller.  On an event loop group the handshake runs on the event loop, and otherwise the blocking
+	 * connect runs on a thread from a pool shared by every client.  No lock is held while connecting, so any number of connects can be in flight at
+	 * once
+	 */
+	@Nonnull
+	public CompletableFuture<Void> connectAsync(@Nonnull URI endpoint) {
+		Objects.requireNonNull(endpoint, "endpoint");
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		try {
+			JSONWebSocketEventLoopGroup group = eventLoopGroup.get();
+			if (group != null) {
+				final JSONWebSocketNioTransport transport = createNioTransport(endpoint, group);
+				transport.connectAsync(webSocketFactory.getConnectionTimeout()).whenComplete(new BiConsumer<Void, Throwable>() {
+					public void accept(Void result, Throwable error) {
+						if (error == null) {
+							future.complete(null);
+						} else {
+							JSONWebSocketImpl.this.transport.compareAndSet(transport, null);
+							future.completeExceptionally(error);
+						}
+					}
+				});
+				return future;
+			}
+			final WebSocket socket = createSocket(endpoint);
+			final JSONWebSocketThreadedTransport transport = createThreadedTransport(socket);
+			CONNECT_EXECUTOR.execute(new Runnable() {
+				public void run() {
+					try {
+						connectThreaded(socket, transport);
+						future.complete(null);
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * Creates a socket from the current settings.  The settings are copied rather than locked, so they can still be changed while this socket
+	 * connects, and only apply to the next one
+	 */
+	@Nonnull
+	private WebSocket createSocket(@Nonnull URI endpoint) throws IOException {
+		WebSocket socket = webSocketFactory.createSocket(endpoint);
+		socket.addListener(this);
+		socketSettings.snapshot().apply(socket);
+		socket.setAutoFlush(corkDepth.get() == 0);
+		socket.setDirectTextMessage(true);
+		// Without this, the last segment of a message larger than one segment waits for the server's delayed ACK, about 40ms
+		socket.getSocket().setTcpNoDelay(true);
+		return socket;
+	}
+	
+	@Nonnull
+	private JSONWebSocketThreadedTransport createThreadedTransport(@Nonnull WebSocket socket) {
+		JSONWebSocketThreadedTransport transport = new JSONWebSocketThreadedTransport(socket);
+		// Set before the handshake finishes, so the handler's onConnect() can already send
+		this.transport.set(transport);
+		return transport;
+	}
+	
+	private void connectThreaded(@Nonnull WebSocket socket, @Nonnull JSONWebSocketThreadedTransport transport) throws IOException {
+		try {
+			socket.connect();
+			// onConnected() comes from the socket's reading thread, which may not have started yet
+			agreedWindowBits.set(JSONWebSocketThreadedTransport.getAgreedWindowBits(socket));
+		} catch (WebSocketException e) {
+			this.transport.compareAndSet(transport, null);
+			throw new IOException("WebSocket error: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Creates a non-blocking socket owned by one of the group's event loops, instead of a socket with its own threads.  The event loop only speaks
+	 * plain TCP, so secure endpoints, proxies and custom socket factories are refused rather than silently ignored
+	 */
+	@Nonnull
+	private JSONWebSocketNioTransport createNioTransport(@Nonnull URI endpoint, @Nonnull JSONWebSocketEventLoopGroup group) throws IOException {
+		if (!"ws".equalsIgnoreCase(endpoint.getScheme()))
+			throw new IOException("Only ws:// endpoints can be connected on an event loop group, not " + endpoint.getScheme());
+		if (webSocketFactory.getProxySettings().getHost() != null || webSocketFactory.getSocketFactory() != null)
+			throw new IOException("Proxies and socket factories aren't supported on an event loop group");
+		JSONWebSocketNioTransport transport = socketSettings.snapshot().createNioTransport(this, endpoint, group.next());
+		transport.setAutoFlush(corkDepth.get() == 0);
+		// Set before the handshake finishes, so the handler's onConnect() can already send
+		this.transport.set(transport);
+		return transport;
 	}
 	
 	public void disconnect() {
-		getSocket().disconnect();
-		this.socket.set(null);
+		getTransport().disconnect(CloseCode.NORMAL_CLOSURE.getCode(), null, DEFAULT_CLOSE_TIMEOUT);
+		this.transport.set(null);
 	}
 	
 	public void disconnect(@Nonnull CloseCode code, @Nonnull String reason) {
 		Objects.requireNonNull(code, "code");
 		Objects.requireNonNull(reason, "reason");
-		getSocket().disconnect(code.getCode(), reason);
-		this.socket.set(null);
+		getTransport().disconnect(code.getCode(), reason, DEFAULT_CLOSE_TIMEOUT);
+		this.transport.set(null);
 	}
 	
 	public void disconnect(@Nonnull CloseCode code, @Nonnull String reason, long closeTimeout) {
 		Objects.requireNonNull(code, "code");
 		Objects.requireNonNull(reason, "reason");
-		getSocket().disconnect(code.getCode(), reason, closeTimeout);
-		this.socket.set(null);
+		getTransport().disconnect(code.getCode(), reason, closeTimeout);
+		this.transport.set(null);
+	}
+	
+	/**
+	 * Closes the socket without a close handshake, for a server that has stopped responding.  The transport reports this as a disconnect
+	 */
+	public void abort() {
+		JSONWebSocketClientTransport transport = this.transport.get();
+		if (transport != null)
+			transport.abort();
 	}
 	
 	@Override
 	public void onConnected(WebSocket websocket, Map<String, List<String>> headers) {
+		onOpen(JSONWebSocketThreadedTransport.getAgreedWindowBits(websocket));
+	}
+	
+	@Override
+	public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) {
+		onClose();
+	}
+	
+	@Override
+	public void onPongFrame(WebSocket websocket, WebSocketFrame frame) {
+		byte[] payload = frame.getPayload();
+		onPong(payload == null ? new byte[0] : payload);
+	}
+	
+	/**
+	 * Called with the raw UTF-8 payload of each text message, since direct text messages are enabled.  The JSON is parsed straight from these
+	 * bytes, without decoding them into a String first
+	 */
+	@Override
+	public void onTextMessage(WebSocket websocket, byte[] data) {
+		onText(data == null ? new byte[0] : data);
+	}
+	
+	@Override
+	public void onBinaryMessage(WebSocket websocket, byte[] binary) {
+		onBinary(binary == null ? new byte[0] : binary);
+	}
+	
+	@Override
+	public void onFrameSent(WebSocket websocket, WebSocketFrame frame) {
+		if (isEndOfMessage(frame))
+			onMessageWritten(null);
+	}
+	
+	@Override
+	public void onFrameUnsent(WebSocket websocket, WebSocketFrame frame) {
+		if (isEndOfMessage(frame))
+			onMessageWritten(new IOException("WebSocket closed before the message was sent"));
+	}
+	
+	@Override
+	public void onError(WebSocket websocket, WebSocketException cause) {
+		onError(cause);
+	}
+	
+	/**
+	 * Called by the transport once the handshake has finished
+	 *
+	 * @param windowBits the largest window the server allows this client to compress with, or -1 if permessage-deflate wasn't agreed
+	 */
+	void onOpen(int windowBits) {
+		agreedWindowBits.set(windowBits);
+		metrics.onConnect();
 		try {
 			getHandler().onConnect();
 		} catch (Throwable user) {
@@ -183,8 +412,9 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 		}
 	}
 	
-	@Override
-	public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) {
+	void onClose() {
+		failPendingSends();
+		metrics.onDisconnect();
 		try {
 			getHandler().onDisconnect();
 		} catch (Throwable user) {
@@ -193,17 +423,16 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 		}
 	}
 	
-	@Override
-	public void onPongFrame(WebSocket websocket, WebSocketFrame frame) {
+	void onPong(@Nonnull byte[] payload) {
 		try {
-			getHandler().onPong(ByteBuffer.wrap(frame.getPayload()));
+			getHandler().onPong(ByteBuffer.wrap(payload));
 		} catch (Throwable user) {
 			System.err.println("Exception in handler's onPong() function");
 			user.printStackTrace();
 		}
-		if (frame.getPayloadLength() == 16) {
+		if (payload.length == 16) {
 			try {
-				ByteBuffer pong = ByteBuffer.wrap(frame.getPayload()).order(ByteOrder.BIG_ENDIAN);
+				ByteBuffer pong = ByteBuffer.wrap(payload).order(ByteOrder.BIG_ENDIAN);
 				if (pong.getLong(0) == pingId) {
 					getHandler().onPongTimed(System.nanoTime() - pong.getLong(8));
 				}
@@ -214,41 +443,129 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 		}
 	}
 	
-	@Override
-	public void onTextMessage(WebSocket websocket, String text) {
+	void onText(@Nonnull byte[] data) {
 		try {
-			if (text == null)
-				text = "";
-			getHandler().onMessage(text);
+			metrics.onMessageIn(data.length);
+			getHandler().onMessage(data);
 		} catch (Throwable user) {
 			System.err.println("Exception in handler's onMessage() function");
 			user.printStackTrace();
 		}
 	}
 	
-	@Override
-	public void onError(WebSocket websocket, WebSocketException cause) {
-		onError(cause);
+	void onBinary(@Nonnull byte[] binary) {
+		try {
+			metrics.onMessageIn(binary.length);
+			getHandler().onBinaryMessage(binary);
+		} catch (Throwable user) {
+			System.err.println("Exception in handler's onMessage() function");
+			user.printStackTrace();
+		}
 	}
 	
-	public boolean send(@Nonnull String message) {
+	/**
+	 * Messages are sent in order, so each message that finishes sending completes the oldest pending send
+	 *
+	 * @param error the reason the message couldn't be sent, or null if it was written
+	 */
+	void onMessageWritten(@Nullable Throwable error) {
+		CompletableFuture<Void> future;
+		synchronized (pendingSends) {
+			future = pendingSends.poll();
+		}
+		if (future == null)
+			return;
+		if (error == null)
+			future.complete(null);
+		else
+			future.completeExceptionally(error);
+	}
+	
+	void onError(@Nonnull Throwable t) {
+		try {
+			getHandler().onError(t);
+		} catch (Throwable user) {
+			System.err.println("Exception in handler's onError() function");
+			user.printStackTrace();
+		}
+	}
+	
+	public boolean send(@Nonnull byte[] message, boolean binary, @Nonnull JSONWebSocketBufferPool pool) {
 		Objects.requireNonNull(message, "message");
-		WebSocket socket = getSocket();
+		JSONWebSocketClientTransport transport = getTransport();
 		try {
-			socket.sendText(message);
-			return socket.getState() == WebSocketState.OPEN;
+			synchronized (pendingSends) {
+				if (!transport.isOpen())
+					return false;
+				pendingSends.add(SYNCHRONOUS_SEND);
+				sendFrame(transport, message, binary, pool);
+			}
+			metrics.onMessageOut(message.length);
+			return transport.isOpen();
 		} catch (Throwable t) {
 			onError(t);
 			return false;
 		}
 	}
 	
+	@Nonnull
+	public CompletableFuture<Void> sendAsync(@Nonnull byte[] message, boolean binary, @Nonnull JSONWebSocketBufferPool pool) {
+		Objects.requireNonNull(message, "message");
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		JSONWebSocketClientTransport transport = this.transport.get();
+		synchronized (pendingSends) {
+			if (transport == null || !transport.isOpen()) {
+				future.completeExceptionally(new IOException("WebSocket is not connected"));
+				return future;
+			}
+			pendingSends.add(future);
+			sendFrame(transport, message, binary, pool);
+		}
+		metrics.onMessageOut(message.length);
+		return future;
+	}
+	
+	/**
+	 * Sends a text frame around an already UTF-8 encoded payload, so the socket doesn't have to encode a String again, or a binary frame around a
+	 * payload from a binary codec.  If permessage-deflate was negotiated and the payload is over the compression threshold, it's compressed here
+	 * and the frame is marked with RSV1, which tells the transport the frame is already compressed
+	 */
+	private void sendFrame(@Nonnull JSONWebSocketClientTransport transport, @Nonnull byte[] payload, boolean binary, @Nonnull JSONWebSocketBufferPool pool) {
+		int windowBits = agreedWindowBits.get();
+		if (windowBits != -1 && payload.length >= compressionThreshold.get() && (windowBits == MAX_WINDOW_BITS || payload.length <= 1 << windowBits)) {
+			byte[] compressed = JSONWebSocketCompressor.compress(payload, pool);
+			if (compressed != null) {
+				transport.send(compressed, binary, true);
+				return;
+			}
+		}
+		transport.send(payload, binary, false);
+	}
+	
 	public void flush() {
-		WebSocket socket = getSocket();
-		try {
-			socket.getSocket().getOutputStream().flush();
-		} catch (Throwable t) {
-			onError(t);
+		getTransport().flush();
+	}
+	
+	public void cork() {
+		if (corkDepth.getAndIncrement() == 0) {
+			JSONWebSocketClientTransport transport = this.transport.get();
+			if (transport != null)
+				transport.setAutoFlush(false);
+		}
+	}
+	
+	public void uncork() {
+		int depth = corkDepth.decrementAndGet();
+		if (depth < 0) {
+			corkDepth.incrementAndGet();
+			throw new IllegalStateException("uncork() called without a matching cork()");
+		}
+		if (depth == 0) {
+			JSONWebSocketClientTransport transport = this.transport.get();
+			if (transport != null) {
+				transport.setAutoFlush(true);
+				transport.flush();
+			}
 		}
 	}
 	
@@ -260,12 +577,12 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 	
 	public void ping(@Nonnull byte[] data) {
 		Objects.requireNonNull(data, "data");
-		getSocket().sendPing(data);
+		getTransport().ping(data);
 	}
 	
 	public void ping(@Nonnull ByteBuffer data) {
 		Objects.requireNonNull(data, "data");
-		getSocket().sendPing(data.array());
+		getTransport().ping(data.array());
 	}
 	
 	public void pingTimed() {
@@ -275,13 +592,39 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 		ping(data.array());
 	}
 	
-	private void onError(@Nonnull Throwable t) {
-		try {
-			getHandler().onError(t);
-		} catch (Throwable user) {
-			System.err.println("Exception in handler's onError() function");
-			user.printStackTrace();
+	private void failPendingSends() {
+		List<CompletableFuture<Void>> futures;
+		synchronized (pendingSends) {
+			futures = new ArrayList<>(pendingSends);
+			pendingSends.clear();
 		}
+		for (CompletableFuture<Void> future : futures)
+			future.completeExceptionally(new IOException("WebSocket closed before the message was sent"));
+	}
+	
+	private static boolean isEndOfMessage(@Nonnull WebSocketFrame frame) {
+		return frame.getFin() && (frame.isTextFrame() || frame.isBinaryFrame() || frame.isContinuationFrame());
+	}
+	
+	/**
+	 * Creates the pool that runs the blocking connects of {@link #connectAsync(URI)} for threaded sockets, and every client's reconnect
+	 * attempts.  At most {@link #CONNECT_THREADS} connects run at once, and the rest wait in the queue in the order they were started, so a
+	 * burst of connects can't start a thread each.  Threads exit after being idle for a while
+	 */
+	@Nonnull
+	private static Executor createConnectExecutor() {
+		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 30, TimeUnit.SECONDS, queue, new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger(0);
+			
+			public Thread newThread(@Nonnull Runnable r) {
+				Thread thread = new Thread(r, "json-websocket-connect-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
 	}
 	
 	@Nonnull
@@ -290,10 +633,10 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 	}
 	
 	@Nonnull
-	private WebSocket getSocket() {
-		WebSocket socket = this.socket.get();
-		if (socket != null)
-			return socket;
+	private JSONWebSocketClientTransport getTransport() {
+		JSONWebSocketClientTransport transport = this.transport.get();
+		if (transport != null)
+			return transport;
 		throw new JSONWebSocketException("WebSocket hasn't been connected yet!");
 	}
 	
@@ -311,54 +654,87 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 	private static class WebSocketSettings {
 		
 		private final List<String> protocols;
+		private final AtomicReference<String> binaryProtocol;
 		private final LinkedHashMap<String, String> headers;
 		private final Pair<String, String> userInfo;
 		private final AtomicInteger frameQueueSize;
 		private final AtomicInteger maxPayloadSize;
+		private final AtomicBoolean perMessageDeflate;
+		private final AtomicInteger compressionWindowBits;
+		private final AtomicBoolean compressionContextTakeover;
 		
 		public WebSocketSettings() {
 			this.protocols = new ArrayList<>();
+			this.binaryProtocol = new AtomicReference<>(null);
 			this.headers = new LinkedHashMap<>();
 			this.userInfo = new Pair<>(null, null);
 			this.frameQueueSize = new AtomicInteger(-1);
 			this.maxPayloadSize = new AtomicInteger(-1);
+			this.perMessageDeflate = new AtomicBoolean(false);
+			this.compressionWindowBits = new AtomicInteger(MAX_WINDOW_BITS);
+			this.compressionContextTakeover = new AtomicBoolean(true);
+		}
+		
+		private WebSocketSettings(@Nonnull WebSocketSettings settings) {
+			this.protocols = new ArrayList<>(settings.protocols);
+			this.binaryProtocol = new AtomicReference<>(settings.binaryProtocol.get());
+			this.headers = new LinkedHashMap<>(settings.headers);
+			this.userInfo = new Pair<>(settings.userInfo.getKey(), settings.userInfo.getValue());
+			this.frameQueueSize = new AtomicInteger(settings.frameQueueSize.get());
+			this.maxPayloadSize = new AtomicInteger(settings.maxPayloadSize.get());
+			this.perMessageDeflate = new AtomicBoolean(settings.perMessageDeflate.get());
+			this.compressionWindowBits = new AtomicInteger(settings.compressionWindowBits.get());
+			this.compressionContextTakeover = new AtomicBoolean(settings.compressionContextTakeover.get());
 		}
 		
-		public void clearProtocols() {
+		/**
+		 * Copies the settings for one connect.  Changing the settings only takes the lock for as long as the copy does, rather than for a whole
+		 * handshake, and a connect in progress never sees a half-applied change
+		 */
+		@Nonnull
+		public synchronized WebSocketSettings snapshot() {
+			return new WebSocketSettings(this);
+		}
+		
+		public synchronized void clearProtocols() {
 			protocols.clear();
 		}
 		
-		public void addProtocol(@Nonnull String protocol) {
+		public synchronized void addProtocol(@Nonnull String protocol) {
 			Objects.requireNonNull(protocol, "protocol");
 			this.protocols.add(protocol);
 		}
 		
-		public void removeProtocol(@Nonnull String protocol) {
+		public synchronized void removeProtocol(@Nonnull String protocol) {
 			Objects.requireNonNull(protocol, "protocol");
 			this.protocols.remove(protocol);
 		}
 		
-		public void clearHeaders() {
+		public void setBinaryProtocol(@Nullable String protocol) {
+			binaryProtocol.set(protocol);
+		}
+		
+		public synchronized void clearHeaders() {
 			headers.clear();
 		}
 		
-		public void addHeader(@Nonnull String key, @Nonnull String value) {
+		public synchronized void addHeader(@Nonnull String key, @Nonnull String value) {
 			Objects.requireNonNull(key, "key");
 			Objects.requireNonNull(value, "value");
 			headers.put(key, value);
 		}
 		
-		public void removeHeader(@Nonnull String key) {
+		public synchronized void removeHeader(@Nonnull String key) {
 			Objects.requireNonNull(key, "key");
 			headers.remove(key);
 		}
 		
-		public void clearUserInfo() {
+		public synchronized void clearUserInfo() {
 			userInfo.setKey(null);
 			userInfo.setValue(null);
 		}
 		
-		public void setUserInfo(@Nonnull String username, @Nonnull String password) {
+		public synchronized void setUserInfo(@Nonnull String username, @Nonnull String password) {
 			Objects.requireNonNull(username, "username");
 			Objects.requireNonNull(password, "password");
 			userInfo.setKey(username);
@@ -373,10 +749,28 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 			maxPayloadSize.set(size);
 		}
 		
+		public void setPerMessageDeflate(boolean enabled) {
+			perMessageDeflate.set(enabled);
+		}
+		
+		public void setCompressionWindowBits(int bits) {
+			compressionWindowBits.set(bits);
+		}
+		
+		public void setCompressionContextTakeover(boolean contextTakeover) {
+			compressionContextTakeover.set(contextTakeover);
+		}
+		
 		public void apply(@Nonnull WebSocket socket) {
 			Objects.requireNonNull(socket, "socket");
-			for (String str : protocols)
-				socket.addProtocol(str);
+			// The binary codec's subprotocol goes first, so a server that only accepts the first offer still picks it
+			String binaryProtocol = this.binaryProtocol.get();
+			if (binaryProtocol != null)
+				socket.addProtocol(binaryProtocol);
+			for (String str : protocols) {
+				if (!str.equals(binaryProtocol))
+					socket.addProtocol(str);
+			}
 			for (Entry<String, String> e : headers.entrySet())
 				socket.addHeader(e.getKey(), e.getValue());
 			{
@@ -395,6 +789,57 @@ class JSONWebSocketImpl extends WebSocketAdapter {
 				if (maxPayloadSize != -1)
 					socket.setMaxPayloadSize(maxPayloadSize);
 			}
+			if (perMessageDeflate.get()) {
+				// Outgoing messages are compressed without context takeover either way, so the server never needs to keep context for them
+				WebSocketExtension extension = new WebSocketExtension(WebSocketExtension.PERMESSAGE_DEFLATE);
+				extension.setParameter("client_max_window_bits", null);
+				extension.setParameter("client_no_context_takeover", null);
+				int windowBits = compressionWindowBits.get();
+				if (windowBits < MAX_WINDOW_BITS)
+					extension.setParameter("server_max_window_bits", Integer.toString(windowBits));
+				if (!compressionContextTakeover.get())
+					extension.setParameter("server_no_context_takeover", null);
+				socket.addExtension(extension);
+			}
+		}
+		
+		/**
+		 * Creates a transport for an event loop, with the same handshake that {@link #apply(WebSocket)} configures on a threaded socket
+		 */
+		@Nonnull
+		public JSONWebSocketNioTransport createNioTransport(@Nonnull JSONWebSocketImpl impl, @Nonnull URI endpoint, @Nonnull JSONWebSocketNioEventLoop loop) {
+			Map<String, String> headers = new LinkedHashMap<>();
+			StringBuilder protocols = new StringBuilder();
+			String binaryProtocol = this.binaryProtocol.get();
+			if (binaryProtocol != null)
+				protocols.append(binaryProtocol);
+			for (String str : this.protocols) {
+				if (str.equals(binaryProtocol))
+					continue;
+				if (protocols.length() > 0)
+					protocols.append(", ");
+				protocols.append(str);
+			}
+			if (protocols.length() > 0)
+				headers.put("Sec-WebSocket-Protocol", protocols.toString());
+			if (perMessageDeflate.get()) {
+				StringBuilder extension = new StringBuilder("permessage-deflate; client_max_window_bits; client_no_context_takeover");
+				int windowBits = compressionWindowBits.get();
+				if (windowBits < MAX_WINDOW_BITS)
+					extension.append("; server_max_window_bits=").append(windowBits);
+				if (!compressionContextTakeover.get())
+					extension.append("; server_no_context_takeover");
+				headers.put("Sec-WebSocket-Extensions", extension.toString());
+			}
+			{
+				String username = userInfo.getKey();
+				String password = userInfo.getValue();
+				String credentials = username != null && password != null ? username + ':' + password : endpoint.getUserInfo();
+				if (credentials != null)
+					headers.put("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+			}
+			headers.putAll(this.headers);
+			return new JSONWebSocketNioTransport(impl, loop, endpoint, headers, maxPayloadSize.get());
 		}
 		
 	}
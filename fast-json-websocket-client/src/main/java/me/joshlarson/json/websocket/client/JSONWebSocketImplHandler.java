@@ -7,7 +7,8 @@ interface JSONWebSocketImplHandler {
 	
 	void onConnect();
 	void onDisconnect();
-	void onMessage(@Nonnull String message);
+	void onMessage(@Nonnull byte[] message);
+	void onBinaryMessage(@Nonnull byte[] message);
 	void onPong(@Nonnull ByteBuffer data);
 	void onPongTimed(long rttNano);
 	void onError(@Nonnull Throwable t);
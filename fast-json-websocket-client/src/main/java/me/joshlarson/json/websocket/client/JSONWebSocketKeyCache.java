@@ -0,0 +1,191 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe, fixed-size cache of the strings decoded from incoming messages, looked up straight from their UTF-8 bytes.  Messages tend to
+ * repeat the same few field names, so once a key has been seen, decoding it again returns the same String instance without allocating.  Short
+ * string values, such as enum-like type names, may optionally be cached as well. <p>
+ * Each string has two possible slots, chosen by its hash, and a new string replaces whatever was in the first slot when both are taken, so the
+ * cache never grows past its capacity.  Strings longer than 64 bytes, and strings with escape sequences, are never cached </p>
+ */
+public class JSONWebSocketKeyCache {
+	
+	static final int MAX_KEY_LENGTH = 64;
+	private static final int DEFAULT_CAPACITY = 1024;
+	
+	private final Entry[] table;
+	private final int mask;
+	private final int maxValueLength;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	
+	/**
+	 * Creates a cache for up to 1024 keys, that doesn't cache values
+	 */
+	public JSONWebSocketKeyCache() {
+		this(DEFAULT_CAPACITY, 0);
+	}
+	
+	/**
+	 * Creates a cache
+	 *
+	 * @param capacity       the most strings kept at once, rounded up to a power of two
+	 * @param maxValueLength the longest string value, in UTF-8 bytes, that's cached along with the keys, or 0 to only cache keys
+	 */
+	public JSONWebSocketKeyCache(int capacity, int maxValueLength) {
+		if (capacity <= 0 || capacity > 1 << 20)
+			throw new IllegalArgumentException("capacity must be between 1 and 2^20");
+		if (maxValueLength < 0 || maxValueLength > MAX_KEY_LENGTH)
+			throw new IllegalArgumentException("maxValueLength must be between 0 and " + MAX_KEY_LENGTH);
+		int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+		this.table = new Entry[size];
+		this.mask = size - 1;
+		this.maxValueLength = maxValueLength;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+	
+	/**
+	 * Returns the number of strings the cache can hold
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return table.length;
+	}
+	
+	/**
+	 * Returns the longest string value that's cached along with the keys
+	 *
+	 * @return the maximum value length in UTF-8 bytes, or 0 if only keys are cached
+	 */
+	public int getMaxValueLength() {
+		return maxValueLength;
+	}
+	
+	/**
+	 * Returns the number of decoded strings that were found in the cache
+	 *
+	 * @return the cache hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	/**
+	 * Returns the number of cacheable strings that had to be allocated, because they weren't in the cache
+	 *
+	 * @return the cache misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	/**
+	 * Returns the fraction of cacheable strings that were found in the cache
+	 *
+	 * @return the hit rate from 0 to 1, or 0 if nothing has been looked up yet
+	 */
+	public double getHitRate() {
+		long hits = this.hits.sum();
+		long lookups = hits + misses.sum();
+		return lookups == 0 ? 0 : hits / (double) lookups;
+	}
+	
+	/**
+	 * Returns whether a string of the specified length is cached
+	 *
+	 * @param length the string's length in UTF-8 bytes
+	 * @param key    TRUE if the string is an object key, FALSE if it's a value
+	 * @return TRUE if the string should be looked up in the cache
+	 */
+	boolean isCacheable(int length, boolean key) {
+		return length <= (key ? MAX_KEY_LENGTH : maxValueLength);
+	}
+	
+	/**
+	 * Returns the cached string with the specified UTF-8 encoding
+	 *
+	 * @param utf8   the buffer holding the encoded string
+	 * @param offset the offset of the string's first byte
+	 * @param length the string's length in bytes
+	 * @param hash   the hash of the bytes, from {@link #hash(int, byte)}
+	 * @return the cached string, or null if it isn't cached
+	 */
+	@CheckForNull
+	String get(@Nonnull byte[] utf8, int offset, int length, int hash) {
+		int index = spread(hash) & mask;
+		Entry entry = table[index];
+		if (entry != null && entry.matches(utf8, offset, length, hash))
+			return entry.value;
+		entry = table[index ^ 1];
+		if (entry != null && entry.matches(utf8, offset, length, hash))
+			return entry.value;
+		return null;
+	}
+	
+	/**
+	 * Caches a string that {@link #get(byte[], int, int, int)} didn't find
+	 */
+	void put(@Nonnull byte[] utf8, int offset, int length, int hash, @Nonnull String value) {
+		int index = spread(hash) & mask;
+		if (table[index] != null && table[index ^ 1] == null)
+			index ^= 1;
+		// Entries are immutable, so a reader that races with this write sees either the old entry or the complete new one
+		table[index] = new Entry(Arrays.copyOfRange(utf8, offset, offset + length), hash, value);
+	}
+	
+	/**
+	 * Adds a decoded message's lookups to the statistics, once per message rather than once per string
+	 */
+	void record(int hits, int misses) {
+		if (hits != 0)
+			this.hits.add(hits);
+		if (misses != 0)
+			this.misses.add(misses);
+	}
+	
+	/**
+	 * Adds the next byte of a string to its hash
+	 *
+	 * @param hash the hash of the bytes so far, starting from 0
+	 * @param b    the next byte
+	 * @return the new hash
+	 */
+	static int hash(int hash, byte b) {
+		return 31 * hash + b;
+	}
+	
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static final class Entry {
+		
+		private final byte[] utf8;
+		private final int hash;
+		private final String value;
+		
+		Entry(byte[] utf8, int hash, String value) {
+			this.utf8 = utf8;
+			this.hash = hash;
+			this.value = value;
+		}
+		
+		boolean matches(byte[] buffer, int offset, int length, int hash) {
+			if (this.hash != hash || utf8.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (utf8[i] != buffer[offset + i])
+					return false;
+			}
+			return true;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,190 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One selector thread of a {@link JSONWebSocketEventLoopGroup}.  Every socket is owned by exactly one event loop for its whole lifetime, so reads
+ * and callbacks for a given client always happen in order on the same thread
+ */
+class JSONWebSocketNioEventLoop implements Runnable {
+	
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final ByteBuffer readBuffer;
+	private final AtomicBoolean running;
+	private final AtomicInteger sockets;
+	private final Thread thread;
+	
+	JSONWebSocketNioEventLoop(@Nonnull String name) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.running = new AtomicBoolean(false);
+		this.sockets = new AtomicInteger(0);
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+	
+	void start() {
+		running.set(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops the event loop, closing every socket that it owns
+	 */
+	void stop() {
+		running.set(false);
+		if (thread.getState() == Thread.State.NEW)
+			closeAll();
+		else
+			selector.wakeup();
+	}
+	
+	/**
+	 * Waits for the event loop thread to finish closing its sockets.  Returns immediately if called from the event loop thread itself
+	 */
+	void awaitTermination() {
+		if (Thread.currentThread() == thread)
+			return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	boolean isRunning() {
+		return running.get();
+	}
+	
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	 * Returns the number of sockets assigned to this event loop, which the group uses to balance new sockets
+	 *
+	 * @return the assigned socket count
+	 */
+	int getSocketCount() {
+		return sockets.get();
+	}
+	
+	/**
+	 * Counts a socket as soon as the group assigns it, before it's registered, so a burst of connects is spread over every event loop
+	 */
+	void onSocketAssigned() {
+		sockets.incrementAndGet();
+	}
+	
+	/**
+	 * Called by a transport once its channel is closed, including when it never finished connecting
+	 */
+	void onSocketClosed() {
+		sockets.decrementAndGet();
+	}
+	
+	/**
+	 * Registers a transport's channel with this event loop's selector.  Must be called on the event loop thread
+	 *
+	 * @param transport the transport that handles the channel's events
+	 * @param ops       the operations to select for
+	 * @return the channel's selection key
+	 * @throws ClosedChannelException if the channel has already been closed
+	 */
+	@Nonnull
+	SelectionKey register(@Nonnull JSONWebSocketNioTransport transport, int ops) throws ClosedChannelException {
+		return transport.getChannel().register(selector, ops, transport);
+	}
+	
+	/**
+	 * Runs the task on the event loop thread
+	 *
+	 * @param task the task to run
+	 */
+	void execute(@Nonnull Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (running.get()) {
+				// Tasks queued from this thread don't wake the selector, so don't block while any are waiting
+				if (tasks.isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+				runTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					JSONWebSocketNioTransport transport = (JSONWebSocketNioTransport) key.attachment();
+					if (key.isValid() && key.isConnectable())
+						transport.onConnectable();
+					if (key.isValid() && key.isReadable())
+						transport.onReadable(readBuffer);
+					if (key.isValid() && key.isWritable())
+						transport.onWritable();
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// Selector closed underneath us
+		} catch (IOException e) {
+			System.err.println("Unexpected error in NIO event loop");
+			e.printStackTrace();
+		} finally {
+			closeAll();
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				System.err.println("Exception in NIO event loop task");
+				t.printStackTrace();
+			}
+		}
+	}
+	
+	private void closeAll() {
+		runTasks();
+		List<JSONWebSocketNioTransport> transports = new ArrayList<>();
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof JSONWebSocketNioTransport)
+				transports.add((JSONWebSocketNioTransport) attachment);
+		}
+		for (JSONWebSocketNioTransport transport : transports)
+			transport.closeChannel();
+		// Sockets registered after the last pass see the loop isn't running, and close themselves
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Shutting down anyways
+		}
+	}
+	
+}
@@ -0,0 +1,873 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A non-blocking socket serviced by a {@link JSONWebSocketNioEventLoop}.  The handshake, all reads, frame parsing and every call into the impl
+ * happen on the event loop thread.  Writes may come from any thread and are attempted immediately, with anything the socket won't take queued
+ * until the event loop sees the socket as writable
+ */
+final class JSONWebSocketNioTransport implements JSONWebSocketClientTransport {
+	
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+	
+	private static final int CLOSE_NORMAL = 1000;
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_INVALID_PAYLOAD = 1007;
+	private static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+	
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int MAX_HANDSHAKE_SIZE = 16 * 1024;
+	private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+	private static final long CORKED_FLUSH_INTERVAL = 1000;
+	private static final byte[] SYNC_FLUSH_TAIL = new byte[]{0, 0, (byte) 0xFF, (byte) 0xFF};
+	
+	private final JSONWebSocketImpl impl;
+	private final JSONWebSocketNioEventLoop loop;
+	private final URI endpoint;
+	private final Map<String, String> headers;
+	private final int maxMessageSize;
+	private final String key;
+	private final CompletableFuture<Void> opened;
+	private final Queue<Outbound> outbound;
+	private final List<Outbound> corked;
+	private final AtomicBoolean closed;
+	private final Runnable flush;
+	private volatile SocketChannel channel;
+	private volatile SelectionKey selectionKey;
+	private volatile String agreedProtocol;
+	private volatile boolean upgraded;
+	private volatile boolean closing;
+	private boolean closeAfterWrite;
+	private boolean autoFlush;
+	private boolean writeInterest;
+	private JSONWebSocketTimerWheel.Timeout corkedFlush;
+	private Inflater inflater;
+	private ByteBuffer inbound;
+	private ByteArrayOutputStream fragments;
+	private boolean fragmentsCompressed;
+	private boolean fragmentsBinary;
+	
+	JSONWebSocketNioTransport(@Nonnull JSONWebSocketImpl impl, @Nonnull JSONWebSocketNioEventLoop loop, @Nonnull URI endpoint, @Nonnull Map<String, String> headers, int maxPayloadSize) {
+		byte[] key = new byte[16];
+		ThreadLocalRandom.current().nextBytes(key);
+		this.impl = impl;
+		this.loop = loop;
+		this.endpoint = endpoint;
+		this.headers = headers;
+		this.maxMessageSize = maxPayloadSize > 0 ? maxPayloadSize : MAX_MESSAGE_SIZE;
+		this.key = Base64.getEncoder().encodeToString(key);
+		this.opened = new CompletableFuture<>();
+		this.outbound = new ArrayDeque<>();
+		this.corked = new ArrayList<>();
+		this.closed = new AtomicBoolean(false);
+		this.flush = new Runnable() {
+			public void run() {
+				flush();
+			}
+		};
+		this.channel = null;
+		this.selectionKey = null;
+		this.agreedProtocol = null;
+		this.upgraded = false;
+		this.closing = false;
+		this.closeAfterWrite = false;
+		this.autoFlush = true;
+		this.corkedFlush = null;
+		this.inflater = null;
+		this.inbound = null;
+		this.fragments = null;
+		this.fragmentsCompressed = false;
+		this.fragmentsBinary = false;
+	}
+	
+	/**
+	 * Opens the socket on the event loop, and blocks until the handshake has finished
+	 *
+	 * @param timeout the time allowed for both the TCP connect and the handshake in milliseconds, or 0 to wait forever
+	 * @throws IOException if the connection fails, the server rejects the handshake, or the timeout passes
+	 */
+	void connect(int timeout) throws IOException {
+		try {
+			connectAsync(timeout).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abort();
+			throw new InterruptedIOException("Interrupted while connecting");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * Opens the socket on the event loop.  Only the host name is resolved on the calling thread, and the JVM normally has it cached
+	 *
+	 * @param timeout the time allowed for both the TCP connect and the handshake in milliseconds, or 0 to wait forever
+	 * @return a future completed once the handshake has finished, or completed exceptionally with the IOException that stopped it
+	 */
+	@Nonnull
+	CompletableFuture<Void> connectAsync(final int timeout) {
+		try {
+			String host = endpoint.getHost();
+			if (host == null)
+				throw new IOException("No host in " + endpoint);
+			final InetSocketAddress address = new InetSocketAddress(host, endpoint.getPort() == -1 ? 80 : endpoint.getPort());
+			if (address.isUnresolved())
+				throw new UnknownHostException(host);
+			SocketChannel channel = SocketChannel.open();
+			this.channel = channel;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			loop.execute(new Runnable() {
+				public void run() {
+					startConnect(address);
+				}
+			});
+		} catch (IOException e) {
+			opened.completeExceptionally(e);
+			abort();
+			return opened;
+		}
+		if (timeout > 0) {
+			final JSONWebSocketTimerWheel.Timeout connectTimeout = JSONWebSocketTimerWheel.getShared().schedule(new Runnable() {
+				public void run() {
+					loop.execute(new Runnable() {
+						public void run() {
+							if (!upgraded)
+								failConnect(new SocketTimeoutException("WebSocket handshake didn't finish within " + timeout + "ms"));
+						}
+					});
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			opened.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void result, Throwable error) {
+					connectTimeout.cancel();
+				}
+			});
+		}
+		return opened;
+	}
+	
+	@Nonnull
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return upgraded && !closing && !closed.get();
+	}
+	
+	@CheckForNull
+	@Override
+	public String getAgreedProtocol() {
+		return agreedProtocol;
+	}
+	
+	@Override
+	public void send(@Nonnull byte[] payload, boolean binary, boolean compressed) {
+		Outbound frame = new Outbound(encodeFrame(binary ? OPCODE_BINARY : OPCODE_TEXT, compressed, payload), true);
+		int written;
+		synchronized (outbound) {
+			if (closing || closed.get()) {
+				written = -1;
+			} else if (autoFlush) {
+				outbound.add(frame);
+				written = writeOutbound();
+			} else {
+				corked.add(frame);
+				if (corkedFlush == null)
+					corkedFlush = JSONWebSocketTimerWheel.getShared().schedule(new Runnable() {
+						public void run() {
+							loop.execute(flush);
+						}
+					}, CORKED_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+				written = 0;
+			}
+		}
+		if (written == -1)
+			impl.onMessageWritten(new IOException("WebSocket closed before the message was sent"));
+		onMessagesWritten(written);
+	}
+	
+	@Override
+	public void setAutoFlush(boolean autoFlush) {
+		synchronized (outbound) {
+			this.autoFlush = autoFlush;
+		}
+	}
+	
+	@Override
+	public void flush() {
+		int written;
+		synchronized (outbound) {
+			written = flushCorked();
+		}
+		onMessagesWritten(written);
+	}
+	
+	@Override
+	public void ping(@Nonnull byte[] data) {
+		int written;
+		synchronized (outbound) {
+			if (!upgraded || closing || closed.get())
+				return;
+			outbound.add(new Outbound(encodeFrame(OPCODE_PING, false, data), false));
+			written = writeOutbound();
+		}
+		onMessagesWritten(written);
+	}
+	
+	@Override
+	public void disconnect(int code, @Nullable String reason, long closeTimeout) {
+		int written;
+		synchronized (outbound) {
+			if (closing || closed.get())
+				return;
+			if (!upgraded) {
+				abort();
+				return;
+			}
+			// Anything corked still goes out ahead of the close frame
+			written = flushCorked();
+			closing = true;
+			outbound.add(new Outbound(encodeFrame(OPCODE_CLOSE, false, createClosePayload(code, reason == null ? "" : reason)), false));
+			written += writeOutbound();
+		}
+		onMessagesWritten(written);
+		JSONWebSocketTimerWheel.getShared().schedule(new Runnable() {
+			public void run() {
+				abort();
+			}
+		}, closeTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	@Override
+	public void abort() {
+		loop.execute(new Runnable() {
+			public void run() {
+				closeChannel();
+			}
+		});
+	}
+	
+	/**
+	 * Called by the event loop once the channel has either connected or failed to
+	 */
+	void onConnectable() {
+		try {
+			if (!channel.finishConnect())
+				return;
+			selectionKey.interestOps(SelectionKey.OP_READ);
+			sendHandshake();
+		} catch (IOException e) {
+			failConnect(e);
+		}
+	}
+	
+	/**
+	 * Called by the event loop when the channel has data to read
+	 *
+	 * @param readBuffer the event loop's shared read buffer, used whenever this socket has no partial data left over from a previous read
+	 */
+	void onReadable(@Nonnull ByteBuffer readBuffer) {
+		ByteBuffer buffer = inbound;
+		if (buffer == null) {
+			buffer = readBuffer;
+			buffer.clear();
+		}
+		try {
+			if (channel.read(buffer) == -1) {
+				// Like the threaded transport, a server that drops the connection without a close frame is a disconnect rather than an error
+				if (!upgraded)
+					failConnect(new EOFException("Connection closed during the WebSocket handshake"));
+				closeChannel();
+				return;
+			}
+		} catch (IOException e) {
+			if (!upgraded)
+				failConnect(e);
+			onException(e);
+			closeChannel();
+			return;
+		}
+		buffer.flip();
+		int needed;
+		try {
+			needed = upgraded ? processFrames(buffer) : processResponse(buffer);
+		} catch (CloseException e) {
+			if (!upgraded)
+				failConnect(e);
+			onException(e);
+			fail(e.getCode(), e.getMessage());
+			return;
+		} catch (IOException e) {
+			if (!upgraded)
+				failConnect(e);
+			onException(e);
+			closeChannel();
+			return;
+		}
+		if (closed.get() || !buffer.hasRemaining()) {
+			inbound = null;
+			return;
+		}
+		if (buffer == readBuffer || buffer.capacity() < needed) {
+			ByteBuffer retained = ByteBuffer.allocate(Math.max(needed, buffer.remaining()));
+			retained.put(buffer);
+			inbound = retained;
+		} else {
+			buffer.compact();
+		}
+	}
+	
+	/**
+	 * Called by the event loop when the channel can accept more queued data
+	 */
+	void onWritable() {
+		int written;
+		synchronized (outbound) {
+			written = writeOutbound();
+		}
+		onMessagesWritten(written);
+	}
+	
+	/**
+	 * Closes the underlying channel without any close handshake, notifying the impl if the handshake had finished.  Must be called on the event
+	 * loop thread
+	 */
+	void closeChannel() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		SelectionKey selectionKey = this.selectionKey;
+		if (selectionKey != null)
+			selectionKey.cancel();
+		try {
+			SocketChannel channel = this.channel;
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			// The channel is gone either way
+		}
+		loop.onSocketClosed();
+		synchronized (outbound) {
+			outbound.clear();
+			corked.clear();
+			if (corkedFlush != null)
+				corkedFlush.cancel();
+		}
+		if (inflater != null)
+			inflater.end();
+		if (upgraded)
+			impl.onClose();
+		else
+			opened.completeExceptionally(new IOException("WebSocket closed before the handshake finished"));
+	}
+	
+	private void startConnect(@Nonnull InetSocketAddress address) {
+		try {
+			if (closed.get())
+				return;
+			if (!loop.isRunning())
+				throw new IOException("Event loop group has been shut down");
+			if (channel.connect(address)) {
+				selectionKey = loop.register(this, SelectionKey.OP_READ);
+				sendHandshake();
+			} else {
+				selectionKey = loop.register(this, SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException e) {
+			failConnect(e);
+		}
+	}
+	
+	private void sendHandshake() {
+		StringBuilder request = new StringBuilder();
+		String path = endpoint.getRawPath();
+		if (path == null || path.isEmpty())
+			path = "/";
+		if (endpoint.getRawQuery() != null)
+			path += '?' + endpoint.getRawQuery();
+		request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(endpoint.getHost());
+		if (endpoint.getPort() != -1 && endpoint.getPort() != 80)
+			request.append(':').append(endpoint.getPort());
+		request.append("\r\n");
+		request.append("Connection: Upgrade\r\n");
+		request.append("Upgrade: websocket\r\n");
+		request.append("Sec-WebSocket-Version: 13\r\n");
+		request.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+		for (Entry<String, String> header : headers.entrySet())
+			request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		request.append("\r\n");
+		synchronized (outbound) {
+			outbound.add(new Outbound(ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.UTF_8)), false));
+			writeOutbound();
+		}
+	}
+	
+	private int processResponse(@Nonnull ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int end = -1;
+		for (int i = start; i + 3 < buffer.limit(); i++) {
+			if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			if (buffer.remaining() >= MAX_HANDSHAKE_SIZE)
+				throw new ProtocolException("WebSocket handshake response is too large");
+			return Math.min(buffer.remaining() * 2 + 512, MAX_HANDSHAKE_SIZE);
+		}
+		byte[] response = new byte[end - start];
+		buffer.get(response);
+		buffer.position(end + 4);
+		
+		String[] lines = new String(response, StandardCharsets.ISO_8859_1).split("\r\n");
+		String[] status = lines[0].split(" ", 3);
+		if (status.length < 2 || !status[1].equals("101"))
+			throw new ProtocolException("The server rejected the WebSocket handshake: " + lines[0]);
+		Map<String, String> responseHeaders = new HashMap<>();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon == -1)
+				continue;
+			String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+			String value = lines[i].substring(colon + 1).trim();
+			String previous = responseHeaders.get(name);
+			responseHeaders.put(name, previous == null ? value : previous + ", " + value);
+		}
+		String upgrade = responseHeaders.get("upgrade");
+		String connection = responseHeaders.get("connection");
+		if (upgrade == null || !upgrade.equalsIgnoreCase("websocket") || connection == null || !connection.toLowerCase(Locale.US).contains("upgrade"))
+			throw new ProtocolException("The server's handshake response isn't a WebSocket upgrade");
+		if (!getExpectedAccept().equals(responseHeaders.get("sec-websocket-accept")))
+			throw new ProtocolException("The server's Sec-WebSocket-Accept doesn't match the key");
+		int windowBits = negotiateExtensions(responseHeaders.get("sec-websocket-extensions"));
+		if (windowBits != -1)
+			inflater = new Inflater(true);
+		agreedProtocol = responseHeaders.get("sec-websocket-protocol");
+		upgraded = true;
+		impl.onOpen(windowBits);
+		opened.complete(null);
+		return processFrames(buffer);
+	}
+	
+	/**
+	 * Checks the extensions the server agreed to, which can only be the permessage-deflate offer this client made
+	 *
+	 * @return the largest window the server allows this client to compress with, or -1 if permessage-deflate wasn't agreed
+	 */
+	private int negotiateExtensions(@CheckForNull String extensions) throws IOException {
+		if (extensions == null || extensions.trim().isEmpty())
+			return -1;
+		String[] parameters = extensions.split(";");
+		if (extensions.contains(",") || !parameters[0].trim().equalsIgnoreCase("permessage-deflate") || !headers.containsKey("Sec-WebSocket-Extensions"))
+			throw new ProtocolException("The server agreed to an extension that wasn't offered: " + extensions);
+		String clientWindowBits = null;
+		for (int i = 1; i < parameters.length; i++) {
+			String[] parameter = parameters[i].split("=", 2);
+			if (parameter[0].trim().equalsIgnoreCase("client_max_window_bits"))
+				clientWindowBits = parameter.length == 2 ? parameter[1] : "15";
+		}
+		int windowBits = JSONWebSocketThreadedTransport.parseWindowBits(clientWindowBits);
+		if (windowBits < 8 || windowBits > JSONWebSocketThreadedTransport.MAX_WINDOW_BITS)
+			throw new ProtocolException("Invalid client_max_window_bits: " + clientWindowBits);
+		return windowBits;
+	}
+	
+	@Nonnull
+	private String getExpectedAccept() {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is required by every JVM", e);
+		}
+	}
+	
+	private int processFrames(@Nonnull ByteBuffer buffer) throws IOException {
+		while (!closed.get()) {
+			int start = buffer.position();
+			int available = buffer.remaining();
+			if (available < 2)
+				return 2;
+			int b0 = buffer.get(start) & 0xFF;
+			int b1 = buffer.get(start + 1) & 0xFF;
+			int lengthBits = b1 & 0x7F;
+			int headerLength = 2 + (lengthBits == 126 ? 2 : (lengthBits == 127 ? 8 : 0));
+			if (available < headerLength)
+				return headerLength;
+			boolean fin = (b0 & 0x80) != 0;
+			boolean compressed = (b0 & 0x40) != 0;
+			int opcode = b0 & 0x0F;
+			// RSV1 marks the first frame of a compressed message, and is only allowed once permessage-deflate has been negotiated
+			if ((b0 & 0x30) != 0 || (compressed && (inflater == null || (opcode != OPCODE_TEXT && opcode != OPCODE_BINARY))))
+				throw new CloseException(CLOSE_PROTOCOL_ERROR, "Reserved bits must be zero");
+			if ((b1 & 0x80) != 0)
+				throw new CloseException(CLOSE_PROTOCOL_ERROR, "Server frames must not be masked");
+			long payloadLength = lengthBits == 126 ? buffer.getShort(start + 2) & 0xFFFF : (lengthBits == 127 ? buffer.getLong(start + 2) : lengthBits);
+			if (payloadLength < 0 || payloadLength > maxMessageSize)
+				throw new CloseException(CLOSE_MESSAGE_TOO_BIG, "Max message size is " + maxMessageSize);
+			int frameLength = headerLength + (int) payloadLength;
+			if (available < frameLength)
+				return frameLength;
+			
+			byte[] payload = new byte[(int) payloadLength];
+			buffer.position(start + headerLength);
+			buffer.get(payload);
+			if (opcode >= OPCODE_CLOSE)
+				onControlFrame(fin, opcode, payload);
+			else
+				onDataFrame(fin, opcode, compressed, payload);
+		}
+		return 0;
+	}
+	
+	/**
+	 * Handles a text, binary or continuation frame.  Compressed messages are decompressed once all of their fragments have arrived
+	 */
+	private void onDataFrame(boolean fin, int opcode, boolean compressed, @Nonnull byte[] payload) throws IOException {
+		switch (opcode) {
+			case OPCODE_CONTINUATION:
+				if (fragments == null)
+					throw new CloseException(CLOSE_PROTOCOL_ERROR, "Continuous frame sequence was not started.");
+				if (fragments.size() + payload.length > maxMessageSize)
+					throw new CloseException(CLOSE_MESSAGE_TOO_BIG, "Max message size is " + maxMessageSize);
+				fragments.write(payload, 0, payload.length);
+				if (fin) {
+					byte[] message = fragments.toByteArray();
+					fragments = null;
+					onMessage(fragmentsCompressed ? decompress(message) : message, fragmentsBinary);
+				}
+				break;
+			case OPCODE_TEXT:
+			case OPCODE_BINARY:
+				if (fragments != null)
+					throw new CloseException(CLOSE_PROTOCOL_ERROR, "Continuous frame sequence not completed.");
+				if (fin) {
+					onMessage(compressed ? decompress(payload) : payload, opcode == OPCODE_BINARY);
+				} else {
+					fragmentsCompressed = compressed;
+					fragmentsBinary = opcode == OPCODE_BINARY;
+					fragments = new ByteArrayOutputStream(payload.length * 2);
+					fragments.write(payload, 0, payload.length);
+				}
+				break;
+			default:
+				throw new CloseException(CLOSE_PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+		}
+	}
+	
+	private void onMessage(@Nonnull byte[] message, boolean binary) {
+		if (binary)
+			impl.onBinary(message);
+		else
+			impl.onText(message);
+	}
+	
+	/**
+	 * Inflates a compressed message.  The Inflater is kept for the whole connection, since the server may compress with context takeover
+	 */
+	@Nonnull
+	private byte[] decompress(@Nonnull byte[] payload) throws IOException {
+		byte[] input = Arrays.copyOf(payload, payload.length + SYNC_FLUSH_TAIL.length);
+		System.arraycopy(SYNC_FLUSH_TAIL, 0, input, payload.length, SYNC_FLUSH_TAIL.length);
+		inflater.setInput(input);
+		byte[] output = new byte[Math.min(maxMessageSize, Math.max(64, payload.length * 4))];
+		int length = 0;
+		try {
+			while (true) {
+				if (length == output.length) {
+					if (length >= maxMessageSize)
+						throw new CloseException(CLOSE_MESSAGE_TOO_BIG, "Max message size is " + maxMessageSize);
+					output = Arrays.copyOf(output, (int) Math.min(maxMessageSize, output.length * 2L));
+				}
+				int inflated = inflater.inflate(output, length, output.length - length);
+				length += inflated;
+				if (inflated == 0 && length < output.length)
+					break;
+			}
+		} catch (DataFormatException e) {
+			throw new CloseException(CLOSE_INVALID_PAYLOAD, "Invalid compressed message: " + e.getMessage());
+		}
+		if (inflater.finished())
+			inflater.reset();
+		return Arrays.copyOf(output, length);
+	}
+	
+	private void onControlFrame(boolean fin, int opcode, @Nonnull byte[] payload) throws IOException {
+		if (!fin || payload.length > 125)
+			throw new CloseException(CLOSE_PROTOCOL_ERROR, "Control frames must not be fragmented or exceed 125 bytes");
+		switch (opcode) {
+			case OPCODE_CLOSE:
+				onCloseFrame(payload);
+				break;
+			case OPCODE_PING: {
+				int written = 0;
+				synchronized (outbound) {
+					if (!closing) {
+						outbound.add(new Outbound(encodeFrame(OPCODE_PONG, false, payload), false));
+						written = writeOutbound();
+					}
+				}
+				onMessagesWritten(written);
+				break;
+			}
+			case OPCODE_PONG:
+				impl.onPong(payload);
+				break;
+			default:
+				throw new CloseException(CLOSE_PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+		}
+	}
+	
+	private void onCloseFrame(@Nonnull byte[] payload) throws IOException {
+		if (closing) {
+			// Answer for our requested close
+			closeChannel();
+			return;
+		}
+		int code = CLOSE_NORMAL;
+		if (payload.length >= 2) {
+			code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+			if (code < 1000 || code >= 5000 || code == 1004 || code == 1005 || code == 1006 || (code >= 1015 && code < 3000))
+				throw new CloseException(CLOSE_PROTOCOL_ERROR, "Invalid close code: " + code);
+		}
+		fail(code, "");
+	}
+	
+	/**
+	 * Sends a close frame and closes the channel as soon as it's written, without waiting for the server's answer
+	 */
+	private void fail(int code, @Nonnull String reason) {
+		int written;
+		synchronized (outbound) {
+			if (closing || closed.get())
+				return;
+			closing = true;
+			closeAfterWrite = true;
+			outbound.add(new Outbound(encodeFrame(OPCODE_CLOSE, false, createClosePayload(code, reason)), false));
+			written = writeOutbound();
+		}
+		onMessagesWritten(written);
+	}
+	
+	private void failConnect(@Nonnull IOException e) {
+		opened.completeExceptionally(e);
+		closeChannel();
+	}
+	
+	private void onException(@Nonnull IOException e) {
+		if (upgraded && !closing && !closed.get())
+			impl.onError(e);
+	}
+	
+	/**
+	 * Tells the impl about messages that have been written.  Must not be called while holding the outbound lock, since the impl takes its own
+	 * lock here, and holds that lock while calling {@link #send(byte[], boolean, boolean)}
+	 */
+	private void onMessagesWritten(int count) {
+		for (int i = 0; i < count; i++)
+			impl.onMessageWritten(null);
+	}
+	
+	/**
+	 * Moves everything corked to the outbound queue and writes it.  Must be called holding the outbound lock
+	 *
+	 * @return the number of messages that were written in full
+	 */
+	private int flushCorked() {
+		if (corkedFlush != null) {
+			corkedFlush.cancel();
+			corkedFlush = null;
+		}
+		if (corked.isEmpty() || closing || closed.get())
+			return 0;
+		outbound.addAll(corked);
+		corked.clear();
+		return writeOutbound();
+	}
+	
+	/**
+	 * Writes as much of the outbound queue as the socket will take, with a single gathering write.  If anything is left, the event loop waits for
+	 * the socket to be writable, and if the queue is empty after a close frame that ends the connection, the channel is closed.  A failed write
+	 * closes the channel on the event loop.  Off the event loop, the loop is only woken up when the interest ops have to change, so a write that
+	 * finishes straight away costs no task or selector wakeup.  Must be called holding the outbound lock
+	 *
+	 * @return the number of messages that were written in full
+	 */
+	private int writeOutbound() {
+		int messages = 0;
+		if (closed.get())
+			return 0;
+		try {
+			if (!outbound.isEmpty()) {
+				ByteBuffer[] buffers = new ByteBuffer[outbound.size()];
+				int i = 0;
+				for (Outbound frame : outbound)
+					buffers[i++] = frame.data;
+				channel.write(buffers);
+				Outbound head;
+				while ((head = outbound.peek()) != null && !head.data.hasRemaining()) {
+					outbound.poll();
+					if (head.message)
+						messages++;
+				}
+			}
+		} catch (final IOException e) {
+			loop.execute(new Runnable() {
+				public void run() {
+					onException(e);
+					closeChannel();
+				}
+			});
+			return messages;
+		}
+		final boolean pending = !outbound.isEmpty();
+		if (!pending && closeAfterWrite) {
+			loop.execute(new Runnable() {
+				public void run() {
+					closeChannel();
+				}
+			});
+		} else if (loop.inEventLoop()) {
+			updateInterest(pending);
+		} else if (pending != writeInterest) {
+			writeInterest = pending;
+			loop.execute(new Runnable() {
+				public void run() {
+					synchronized (outbound) {
+						updateInterest(!outbound.isEmpty());
+					}
+				}
+			});
+		}
+		return messages;
+	}
+	
+	/**
+	 * Sets whether the event loop waits for the socket to be writable.  Must be called on the event loop, holding the outbound lock
+	 */
+	private void updateInterest(boolean writable) {
+		writeInterest = writable;
+		SelectionKey selectionKey = this.selectionKey;
+		if (selectionKey != null && selectionKey.isValid())
+			selectionKey.interestOps(writable ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+	
+	/**
+	 * Encodes a client frame, which every frame must be masked with a fresh key
+	 */
+	@Nonnull
+	private static ByteBuffer encodeFrame(int opcode, boolean compressed, @Nonnull byte[] payload) {
+		int headerLength = (payload.length < 126 ? 2 : (payload.length <= 0xFFFF ? 4 : 10)) + 4;
+		ByteBuffer frame = ByteBuffer.allocate(headerLength + payload.length);
+		frame.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+		if (payload.length < 126) {
+			frame.put((byte) (0x80 | payload.length));
+		} else if (payload.length <= 0xFFFF) {
+			frame.put((byte) (0x80 | 126));
+			frame.putShort((short) payload.length);
+		} else {
+			frame.put((byte) (0x80 | 127));
+			frame.putLong(payload.length);
+		}
+		byte[] mask = new byte[4];
+		ThreadLocalRandom.current().nextBytes(mask);
+		frame.put(mask);
+		byte[] array = frame.array();
+		for (int i = 0; i < payload.length; i++)
+			array[headerLength + i] = (byte) (payload[i] ^ mask[i & 3]);
+		frame.clear();
+		return frame;
+	}
+	
+	@Nonnull
+	private static byte[] createClosePayload(int code, @Nonnull String reason) {
+		byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+		int reasonLength = Math.min(reasonBytes.length, 123);
+		byte[] payload = new byte[2 + reasonLength];
+		payload[0] = (byte) (code >> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+		return payload;
+	}
+	
+	private static final class Outbound {
+		
+		private final ByteBuffer data;
+		private final boolean message;
+		
+		Outbound(@Nonnull ByteBuffer data, boolean message) {
+			this.data = data;
+			this.message = message;
+		}
+		
+	}
+	
+	/**
+	 * A protocol violation by the server, which ends the connection with the close code
+	 */
+	private static final class CloseException extends ProtocolException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int code;
+		
+		CloseException(int code, @Nonnull String message) {
+			super(message);
+			this.code = code;
+		}
+		
+		int getCode() {
+			return code;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,181 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The messages sent while a client is reconnecting, which are replayed in order once it's connected again.  The buffer only takes messages
+ * between {@link #startBuffering()} and the end of the replay, and holds at most its capacity, after which its {@link OverflowPolicy} decides
+ * which message is lost. <p>
+ * The thread replaying the buffer is marked rather than holding the lock, so a message sent meanwhile from another thread is added to the
+ * end of the buffer instead of overtaking the replay, and buffering only stops once the replay finds the buffer empty </p>
+ */
+final class JSONWebSocketOutboundBuffer {
+	
+	private final JSONWebSocketClientMetrics metrics;
+	private final ArrayDeque<Entry> entries;
+	private int capacity;
+	private OverflowPolicy policy;
+	private volatile boolean buffering;
+	private volatile Thread replayThread;
+	
+	JSONWebSocketOutboundBuffer(@Nonnull JSONWebSocketClientMetrics metrics) {
+		this.metrics = metrics;
+		this.entries = new ArrayDeque<>();
+		this.capacity = 0;
+		this.policy = OverflowPolicy.REJECT_NEWEST;
+		this.buffering = false;
+	}
+	
+	/**
+	 * Sets how many messages are kept and what happens to the rest.  Messages already buffered are kept even if there are more than the new
+	 * capacity
+	 *
+	 * @param capacity the most messages to buffer, or 0 to never buffer
+	 * @param policy   what to do with a message sent once the buffer is full
+	 */
+	synchronized void configure(int capacity, @Nonnull OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+	
+	/**
+	 * Returns whether messages are being buffered rather than sent.  This can be checked without the lock, but has to be checked again under it
+	 *
+	 * @return TRUE if send() should call {@link #offer(JSONObject, CompletableFuture)}, FALSE otherwise
+	 */
+	boolean isBuffering() {
+		return buffering;
+	}
+	
+	/**
+	 * Starts buffering, such as when the connection drops and a reconnect is scheduled.  Does nothing if the capacity is 0
+	 */
+	synchronized void startBuffering() {
+		if (capacity > 0)
+			buffering = true;
+	}
+	
+	/**
+	 * Marks the calling thread as the one replaying the buffer, whose own sends skip the buffer and are written ahead of the replay
+	 */
+	void startReplay() {
+		replayThread = Thread.currentThread();
+	}
+	
+	/**
+	 * Returns whether the calling thread is replaying the buffer, and so should send straight away
+	 *
+	 * @return TRUE if the calling thread started the replay, FALSE otherwise
+	 */
+	boolean isReplayThread() {
+		return replayThread == Thread.currentThread();
+	}
+	
+	/**
+	 * Ends the replay early, such as when the connection drops partway through, leaving the rest buffered for the next connection
+	 */
+	void abortReplay() {
+		replayThread = null;
+	}
+	
+	/**
+	 * Buffers a message to replay once connected
+	 *
+	 * @param object the message
+	 * @param future the future to complete once the message is written, or null for a synchronous send
+	 * @return TRUE if the message was buffered, FALSE if it was rejected
+	 */
+	synchronized boolean offer(@Nonnull JSONObject object, @Nullable CompletableFuture<Void> future) {
+		Entry dropped = null;
+		if (entries.size() >= capacity) {
+			if (capacity == 0 || policy == OverflowPolicy.REJECT_NEWEST) {
+				metrics.onMessageDropped();
+				return false;
+			}
+			dropped = entries.poll();
+			metrics.onMessageDropped();
+		}
+		entries.add(new Entry(object, future));
+		metrics.onMessageBuffered();
+		// Completed last, so anything chained onto the dropped future sees a consistent buffer
+		if (dropped != null && dropped.future != null)
+			dropped.future.completeExceptionally(new IOException("Dropped from the full outbound buffer while reconnecting"));
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest buffered message, to be replayed.  Once the buffer is empty, buffering stops and the replay ends in the same step, so a
+	 * message offered meanwhile is either replayed or sent after the replay
+	 *
+	 * @return the oldest message, or null if the buffer is empty and buffering has stopped
+	 */
+	@CheckForNull
+	synchronized Entry pollReplay() {
+		Entry entry = entries.poll();
+		if (entry == null) {
+			buffering = false;
+			replayThread = null;
+		}
+		return entry;
+	}
+	
+	/**
+	 * Returns the number of messages waiting to be replayed
+	 *
+	 * @return the buffered message count
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Stops buffering and discards everything buffered, such as when the client is disconnected on purpose or gives up reconnecting
+	 *
+	 * @param error the reason the messages weren't sent, which their futures are failed with
+	 */
+	void discardAll(@Nonnull Throwable error) {
+		List<Entry> discarded;
+		synchronized (this) {
+			buffering = false;
+			discarded = new ArrayList<>(entries);
+			entries.clear();
+		}
+		for (Entry entry : discarded) {
+			metrics.onMessageDropped();
+			if (entry.future != null)
+				entry.future.completeExceptionally(error);
+		}
+	}
+	
+	static final class Entry {
+		
+		private final JSONObject object;
+		private final CompletableFuture<Void> future;
+		
+		private Entry(@Nonnull JSONObject object, @Nullable CompletableFuture<Void> future) {
+			this.object = object;
+			this.future = future;
+		}
+		
+		@Nonnull
+		JSONObject getObject() {
+			return object;
+		}
+		
+		@CheckForNull
+		CompletableFuture<Void> getFuture() {
+			return future;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,184 @@
+package me.joshlarson.json.websocket.client;
+
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RPC calls of one socket that are waiting for a response, by id.  The table is split into stripes, each with its own lock, so calls that
+ * start and finish on different threads rarely contend.  Ids are handed out in sequence, which spreads consecutive calls over every stripe.
+ * Each call's timeout is a single entry on a {@link JSONWebSocketTimerWheel}, rather than a scheduled task
+ */
+final class JSONWebSocketPendingCalls {
+	
+	private static final int STRIPES = 16;
+	
+	private final JSONWebSocketTimerWheel timer;
+	private final Stripe[] stripes;
+	private final AtomicLong nextId;
+	private final AtomicInteger pending;
+	
+	JSONWebSocketPendingCalls(@Nonnull JSONWebSocketTimerWheel timer) {
+		this.timer = timer;
+		this.stripes = new Stripe[STRIPES];
+		this.nextId = new AtomicLong(1);
+		this.pending = new AtomicInteger(0);
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+	
+	/**
+	 * Registers a new call, and starts its timeout
+	 *
+	 * @param future  the future to complete with the response
+	 * @param timeout the time to wait for the response
+	 * @param unit    the unit of the timeout
+	 * @return the call's id
+	 */
+	long register(@Nonnull CompletableFuture<JSONObject> future, long timeout, @Nonnull TimeUnit unit) {
+		final long id = nextId.getAndIncrement();
+		final Call call = new Call(future);
+		final long timeoutMillis = unit.toMillis(timeout);
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			stripe.calls.put(id, call);
+		}
+		pending.incrementAndGet();
+		call.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				if (remove(id) != null)
+					call.future.completeExceptionally(new TimeoutException("No response to call " + id + " within " + timeoutMillis + "ms"));
+			}
+		}, timeout, unit);
+		return id;
+	}
+	
+	/**
+	 * Completes the call with the specified id, if it's still waiting
+	 *
+	 * @param id       the id from the response
+	 * @param response the response
+	 * @return TRUE if a call was waiting for this response, FALSE otherwise
+	 */
+	boolean complete(long id, @Nonnull JSONObject response) {
+		Call call = remove(id);
+		if (call == null)
+			return false;
+		call.cancelTimeout();
+		call.future.complete(response);
+		return true;
+	}
+	
+	/**
+	 * Returns whether the call with the specified id is still waiting, so a response is only decoded in full if it's going to be used
+	 *
+	 * @param id the id from the response
+	 * @return TRUE if the call is waiting, FALSE otherwise
+	 */
+	boolean isPending(long id) {
+		if (pending.get() == 0)
+			return false;
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			return stripe.calls.containsKey(id);
+		}
+	}
+	
+	/**
+	 * Fails the call with the specified id, if it's still waiting
+	 *
+	 * @param id    the call's id
+	 * @param error the reason the call failed
+	 */
+	void fail(long id, @Nonnull Throwable error) {
+		Call call = remove(id);
+		if (call != null) {
+			call.cancelTimeout();
+			call.future.completeExceptionally(error);
+		}
+	}
+	
+	/**
+	 * Fails every call that's still waiting, such as when the connection closes
+	 *
+	 * @param error the reason the calls failed
+	 */
+	void failAll(@Nonnull Throwable error) {
+		if (pending.get() == 0)
+			return;
+		List<Call> failed = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				failed.addAll(stripe.calls.values());
+				pending.addAndGet(-stripe.calls.size());
+				stripe.calls.clear();
+			}
+		}
+		for (Call call : failed) {
+			call.cancelTimeout();
+			call.future.completeExceptionally(error);
+		}
+	}
+	
+	/**
+	 * Returns the number of calls waiting for a response
+	 *
+	 * @return the pending call count
+	 */
+	int size() {
+		return pending.get();
+	}
+	
+	@CheckForNull
+	private Call remove(long id) {
+		if (pending.get() == 0)
+			return null;
+		Stripe stripe = stripe(id);
+		Call call;
+		synchronized (stripe) {
+			call = stripe.calls.remove(id);
+		}
+		if (call != null)
+			pending.decrementAndGet();
+		return call;
+	}
+	
+	private Stripe stripe(long id) {
+		return stripes[(int) (id & (STRIPES - 1))];
+	}
+	
+	private static final class Stripe {
+		
+		private final Map<Long, Call> calls = new HashMap<>();
+		
+	}
+	
+	private static final class Call {
+		
+		private final CompletableFuture<JSONObject> future;
+		private volatile JSONWebSocketTimerWheel.Timeout timeout;
+		
+		Call(CompletableFuture<JSONObject> future) {
+			this.future = future;
+			this.timeout = null;
+		}
+		
+		void cancelTimeout() {
+			JSONWebSocketTimerWheel.Timeout timeout = this.timeout;
+			if (timeout != null)
+				timeout.cancel();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,121 @@
+package me.joshlarson.json.websocket.client;
+
+import com.neovisionaries.ws.client.WebSocket;
+import com.neovisionaries.ws.client.WebSocketExtension;
+import com.neovisionaries.ws.client.WebSocketFrame;
+import com.neovisionaries.ws.client.WebSocketOpcode;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The default transport, an nv-websocket-client socket with its own reading and writing threads.  It supports everything the client can be
+ * configured with, including secure connections and proxies, at the cost of two threads per connection
+ */
+final class JSONWebSocketThreadedTransport implements JSONWebSocketClientTransport {
+	
+	static final int MAX_WINDOW_BITS = 15;
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	
+	private final WebSocket socket;
+	
+	JSONWebSocketThreadedTransport(@Nonnull WebSocket socket) {
+		this.socket = socket;
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return socket.isOpen();
+	}
+	
+	@CheckForNull
+	@Override
+	public String getAgreedProtocol() {
+		return socket.getAgreedProtocol();
+	}
+	
+	/**
+	 * Sends a message in a single frame, unless it has to be kept uncompressed.  Once permessage-deflate is agreed, the socket deflates every
+	 * whole message that isn't marked with RSV1 yet, but leaves fragmented messages alone, so a message under the compression threshold is sent
+	 * as one fragment followed by an empty final one.  That costs 6 more bytes than a single frame, rather than deflating a message too small to
+	 * be worth it
+	 */
+	@Override
+	public void send(@Nonnull byte[] payload, boolean binary, boolean compressed) {
+		int opcode = binary ? WebSocketOpcode.BINARY : WebSocketOpcode.TEXT;
+		if (compressed || getAgreedWindowBits(socket) == -1) {
+			// RSV1 tells the socket that the payload is already compressed
+			socket.sendFrame(new WebSocketFrame().setFin(true).setOpcode(opcode).setRsv1(compressed).setPayload(payload));
+			return;
+		}
+		socket.sendFrame(new WebSocketFrame().setFin(false).setOpcode(opcode).setPayload(payload));
+		socket.sendFrame(new WebSocketFrame().setFin(true).setOpcode(WebSocketOpcode.CONTINUATION).setPayload(EMPTY_PAYLOAD));
+	}
+	
+	@Override
+	public void setAutoFlush(boolean autoFlush) {
+		socket.setAutoFlush(autoFlush);
+	}
+	
+	@Override
+	public void flush() {
+		socket.flush();
+	}
+	
+	@Override
+	public void ping(@Nonnull byte[] data) {
+		socket.sendPing(data);
+	}
+	
+	@Override
+	public void disconnect(int code, @Nullable String reason, long closeTimeout) {
+		socket.disconnect(code, reason, closeTimeout);
+	}
+	
+	/**
+	 * Closes the socket underneath the WebSocket.  The reading thread reports this as a disconnect
+	 */
+	@Override
+	public void abort() {
+		try {
+			socket.getSocket().close();
+		} catch (IOException e) {
+			// The socket is gone either way
+		}
+	}
+	
+	/**
+	 * Returns the largest window the server allows this client to compress with, or -1 if permessage-deflate wasn't agreed
+	 */
+	static int getAgreedWindowBits(@Nonnull WebSocket socket) {
+		List<WebSocketExtension> extensions = socket.getAgreedExtensions();
+		if (extensions == null)
+			return -1;
+		for (WebSocketExtension extension : extensions) {
+			if (!WebSocketExtension.PERMESSAGE_DEFLATE.equals(extension.getName()))
+				continue;
+			return parseWindowBits(extension.getParameter("client_max_window_bits"));
+		}
+		return -1;
+	}
+	
+	/**
+	 * Parses the value of the client_max_window_bits parameter the server agreed to
+	 *
+	 * @param bits the parameter's value, or null if the server didn't send the parameter
+	 * @return the window size in bits, or -1 if the value is invalid
+	 */
+	static int parseWindowBits(@CheckForNull String bits) {
+		if (bits == null)
+			return MAX_WINDOW_BITS;
+		try {
+			return Integer.parseInt(bits.replace("\"", "").trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+}
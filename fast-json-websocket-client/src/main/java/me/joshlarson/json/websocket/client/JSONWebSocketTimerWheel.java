@@ -0,0 +1,230 @@
+package me.joshlarson.json.websocket.client;
+
+import javax.annotation.Nonnull;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel for large numbers of short timeouts, such as one per RPC call.  Scheduling and cancelling only add the timeout to a
+ * queue, and a single daemon thread moves new timeouts into the wheel's buckets, unlinks cancelled ones, and runs the tasks that are due once per
+ * tick.  Timeouts fire up to one tick late, so tasks must be short and must not block; anything longer should be handed to an executor. <p>
+ * The thread is started by the first timeout that's scheduled, and runs for the lifetime of the JVM </p>
+ */
+final class JSONWebSocketTimerWheel {
+	
+	private static final JSONWebSocketTimerWheel SHARED = new JSONWebSocketTimerWheel("json-websocket-timer", TimeUnit.MILLISECONDS.toNanos(10), 512);
+	
+	private final String threadName;
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> added;
+	private final Queue<Timeout> cancelled;
+	private final AtomicBoolean started;
+	private final long startTime;
+	
+	/**
+	 * Creates a timer wheel
+	 *
+	 * @param threadName the name of the timer thread
+	 * @param tickNanos  the length of a tick, which is the timer's precision
+	 * @param ticks      the number of buckets, rounded up to a power of two.  Timeouts longer than a full turn wait for extra turns
+	 */
+	JSONWebSocketTimerWheel(@Nonnull String threadName, long tickNanos, int ticks) {
+		int size = Integer.highestOneBit(Math.max(2, ticks) - 1) << 1;
+		this.threadName = threadName;
+		this.tickNanos = tickNanos;
+		this.wheel = new Bucket[size];
+		this.mask = size - 1;
+		this.added = new ConcurrentLinkedQueue<>();
+		this.cancelled = new ConcurrentLinkedQueue<>();
+		this.started = new AtomicBoolean(false);
+		this.startTime = System.nanoTime();
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+	}
+	
+	/**
+	 * Returns the timer wheel shared by every socket, with a 10ms tick
+	 *
+	 * @return the shared timer wheel
+	 */
+	@Nonnull
+	static JSONWebSocketTimerWheel getShared() {
+		return SHARED;
+	}
+	
+	/**
+	 * Runs a task after a delay, on the timer thread
+	 *
+	 * @param task  the task to run, which must be short
+	 * @param delay the delay
+	 * @param unit  the unit of the delay
+	 * @return a handle that can cancel the task
+	 */
+	@Nonnull
+	Timeout schedule(@Nonnull Runnable task, long delay, @Nonnull TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+		added.add(timeout);
+		return timeout;
+	}
+	
+	private void start() {
+		if (started.get() || !started.compareAndSet(false, true))
+			return;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				runWheel();
+			}
+		}, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void runWheel() {
+		long tick = (System.nanoTime() - startTime) / tickNanos;
+		while (true) {
+			long deadline = (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = deadline - (System.nanoTime() - startTime)) > 0)
+				LockSupport.parkNanos(this, sleep);
+			unlinkCancelled();
+			transferAdded(tick);
+			wheel[(int) (tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+	
+	private void transferAdded(long currentTick) {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != Timeout.PENDING)
+				continue;
+			long ticks = Math.max(currentTick, timeout.deadline / tickNanos);
+			timeout.rounds = (ticks - currentTick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+	
+	private void unlinkCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+	
+	/**
+	 * A scheduled task
+	 */
+	static final class Timeout {
+		
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		
+		private final JSONWebSocketTimerWheel timer;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state;
+		// Only touched by the timer thread
+		private long rounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+		
+		private Timeout(JSONWebSocketTimerWheel timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(PENDING);
+			this.rounds = 0;
+			this.bucket = null;
+			this.prev = null;
+			this.next = null;
+		}
+		
+		/**
+		 * Stops the task from running, if it hasn't already
+		 *
+		 * @return TRUE if the task was cancelled, FALSE if it had already run or been cancelled
+		 */
+		boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			timer.cancelled.add(this);
+			return true;
+		}
+		
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED))
+				return;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				System.err.println("Exception in timer task");
+				t.printStackTrace();
+			}
+		}
+		
+	}
+	
+	/**
+	 * A doubly linked list of the timeouts that fall on one tick of the wheel
+	 */
+	private static final class Bucket {
+		
+		private Timeout head;
+		private Timeout tail;
+		
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+		
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.state.get() == Timeout.CANCELLED) {
+					remove(timeout);
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+		
+		void remove(Timeout timeout) {
+			if (timeout.bucket != this)
+				return;
+			if (timeout.prev == null)
+				head = timeout.next;
+			else
+				timeout.prev.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.prev;
+			else
+				timeout.next.prev = timeout.prev;
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,18 @@
+package me.joshlarson.json.websocket.client;
+
+/**
+ * What a client does with a message sent while it's reconnecting, once its outbound buffer is full
+ *
+ * @see JSONWebSocketClient#setOutboundBuffer(int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+	/**
+	 * Refuses the new message, so send() returns FALSE and sendAsync() fails straight away.  Everything already buffered is still sent
+	 */
+	REJECT_NEWEST,
+	/**
+	 * Discards the oldest buffered message to make room for the new one, failing the oldest message's future if it has one.  Suits messages
+	 * where only the latest state matters
+	 */
+	DROP_OLDEST
+}
@@ -0,0 +1,24 @@
+package me.joshlarson.json.websocket.server;
+
+/**
+ * What {@link JSONWebSocketConnection#sendAsync(me.joshlarson.json.JSONObject)} does when a connection's outbound queue is full
+ */
+public enum BackpressurePolicy {
+	/**
+	 * Discards the message being sent, leaving the queue unchanged
+	 */
+	DROP_NEWEST,
+	/**
+	 * Discards the oldest queued message to make room for the message being sent
+	 */
+	DROP_OLDEST,
+	/**
+	 * Blocks the sender until there is room in the queue, or until the backpressure timeout elapses and the message is discarded.  Must not be
+	 * used from handler callbacks that run on the server's I/O threads, since those threads are the ones that empty the queue
+	 */
+	BLOCK,
+	/**
+	 * Closes the connection with {@link org.nanohttpd.protocols.websockets.CloseCode#PolicyViolation}, discarding everything still queued
+	 */
+	CLOSE
+}
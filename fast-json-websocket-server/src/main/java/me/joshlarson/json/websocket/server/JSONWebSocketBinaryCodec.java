@@ -0,0 +1,47 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A binary encoding of JSONObject, used on connections that negotiate its subprotocol.  Once a codec's subprotocol has been agreed, every
+ * message sent on the connection is encoded with it into a binary frame, and binary frames received on the connection are decoded with it.
+ * Text frames are still parsed as JSON, and handlers receive JSONObjects either way. <p>
+ * Codecs must be thread-safe, since the same instance encodes and decodes for every connection at once </p>
+ *
+ * @see JSONWebSocketCborCodec
+ */
+public interface JSONWebSocketBinaryCodec {
+	
+	/**
+	 * Returns the subprotocol that selects this codec during the handshake
+	 *
+	 * @return the Sec-WebSocket-Protocol value
+	 */
+	@Nonnull
+	String getProtocol();
+	
+	/**
+	 * Encodes an object as a single message
+	 *
+	 * @param object the object to encode
+	 * @param out    the stream to write the message to; the caller closes it
+	 * @throws IOException if the object can't be encoded, or the stream fails
+	 */
+	void encode(@Nonnull JSONObject object, @Nonnull OutputStream out) throws IOException;
+	
+	/**
+	 * Decodes a single message
+	 *
+	 * @param in a stream over exactly one message; the caller closes it
+	 * @return the decoded object
+	 * @throws IOException if the message isn't valid
+	 */
+	@Nonnull
+	JSONObject decode(@Nonnull InputStream in) throws IOException;
+	
+}
@@ -0,0 +1,195 @@
+package me.joshlarson.json.websocket.server;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of reusable buffers for frame payloads, shared by the server's receive and send paths.  Buffers are handed out in
+ * power-of-two size classes from 64 bytes to 1 MiB; anything larger is allocated on demand and never retained.  Released buffers are kept for
+ * reuse until the total retained capacity reaches the pool's cap, after which they're left to the garbage collector. <p>
+ * A pool may hand out direct (off-heap) buffers instead of heap buffers.  Direct buffers avoid a copy when the NIO engine writes to the socket,
+ * but they're slower to allocate, so they only pay off when the pool's hit rate is high </p>
+ */
+public class JSONWebSocketBufferPool {
+	
+	private static final int MIN_CLASS_SHIFT = 6;
+	private static final int MAX_CLASS_SHIFT = 20;
+	private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+	private static final long DEFAULT_MAX_RETAINED_BYTES = 32 * 1024 * 1024;
+	
+	private final Queue<ByteBuffer>[] heapBuffers;
+	private final Queue<ByteBuffer>[] directBuffers;
+	private final boolean direct;
+	private final long maxRetainedBytes;
+	private final AtomicLong retainedBytes;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	
+	/**
+	 * Creates a pool of heap buffers that retains up to 32 MiB
+	 */
+	public JSONWebSocketBufferPool() {
+		this(DEFAULT_MAX_RETAINED_BYTES, false);
+	}
+	
+	/**
+	 * Creates a pool
+	 *
+	 * @param maxRetainedBytes the most buffer capacity, in bytes, kept for reuse at any one time
+	 * @param direct           TRUE to hand out direct buffers, FALSE for heap buffers
+	 */
+	public JSONWebSocketBufferPool(long maxRetainedBytes, boolean direct) {
+		if (maxRetainedBytes < 0)
+			throw new IllegalArgumentException("maxRetainedBytes must be non-negative");
+		this.heapBuffers = createQueues();
+		this.directBuffers = createQueues();
+		this.direct = direct;
+		this.maxRetainedBytes = maxRetainedBytes;
+		this.retainedBytes = new AtomicLong(0);
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+	}
+	
+	/**
+	 * Takes a buffer with room for at least the specified number of bytes.  The buffer's position is zero and its limit is the requested size,
+	 * though its capacity may be larger.  It should be given back with {@link #release(ByteBuffer)} once nothing refers to it anymore
+	 *
+	 * @param size the number of bytes needed
+	 * @return a direct buffer if this pool is direct, otherwise a heap buffer
+	 */
+	@Nonnull
+	public ByteBuffer acquire(int size) {
+		return acquire(size, direct);
+	}
+	
+	/**
+	 * Takes a heap buffer regardless of whether this pool is direct, for code that needs to work on the backing array
+	 *
+	 * @param size the number of bytes needed
+	 * @return a heap buffer
+	 */
+	@Nonnull
+	ByteBuffer acquireHeap(int size) {
+		return acquire(size, false);
+	}
+	
+	/**
+	 * Gives a buffer back to the pool.  The caller must not use the buffer, or any buffer sharing its contents, afterwards.  Buffers that aren't
+	 * one of the pool's size classes, and any buffer that would take the pool over its retention cap, are dropped
+	 *
+	 * @param buffer the buffer to release
+	 */
+	public void release(@Nonnull ByteBuffer buffer) {
+		int sizeClass = getSizeClass(buffer.capacity());
+		if (sizeClass == -1 || buffer.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT) || buffer.isReadOnly())
+			return;
+		if (buffer.hasArray() && buffer.arrayOffset() != 0)
+			return;
+		long retained;
+		do {
+			retained = retainedBytes.get();
+			if (retained + buffer.capacity() > maxRetainedBytes)
+				return;
+		} while (!retainedBytes.compareAndSet(retained, retained + buffer.capacity()));
+		buffer.clear();
+		(buffer.isDirect() ? directBuffers : heapBuffers)[sizeClass].add(buffer);
+	}
+	
+	/**
+	 * Returns whether {@link #acquire(int)} hands out direct buffers
+	 *
+	 * @return TRUE if this pool is direct, FALSE otherwise
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+	
+	/**
+	 * Returns the number of acquired buffers that were reused from the pool
+	 *
+	 * @return the pool hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of acquired buffers that had to be allocated, because no buffer of the right size class was free
+	 *
+	 * @return the pool misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Returns the total capacity of the buffers currently held for reuse
+	 *
+	 * @return the retained bytes
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+	
+	/**
+	 * Returns the cap on {@link #getRetainedBytes()}
+	 *
+	 * @return the maximum retained bytes
+	 */
+	public long getMaxRetainedBytes() {
+		return maxRetainedBytes;
+	}
+	
+	@Nonnull
+	private ByteBuffer acquire(int size, boolean direct) {
+		if (size < 0)
+			throw new IllegalArgumentException("size must be non-negative");
+		int sizeClass = getSizeClass(size);
+		if (sizeClass == -1) {
+			misses.incrementAndGet();
+			return allocate(size, direct);
+		}
+		ByteBuffer buffer = (direct ? directBuffers : heapBuffers)[sizeClass].poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			buffer = allocate(1 << (sizeClass + MIN_CLASS_SHIFT), direct);
+		} else {
+			hits.incrementAndGet();
+			retainedBytes.addAndGet(-buffer.capacity());
+		}
+		buffer.limit(size);
+		return buffer;
+	}
+	
+	@Nonnull
+	private static ByteBuffer allocate(int capacity, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+	
+	/**
+	 * Returns the smallest size class that fits the specified size, or -1 if it's too large to pool
+	 */
+	private static int getSizeClass(int size) {
+		if (size <= 1 << MIN_CLASS_SHIFT)
+			return 0;
+		if (size > 1 << MAX_CLASS_SHIFT)
+			return -1;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+	}
+	
+	/**
+	 * Creates an empty queue for every size class.  Arrays can't be created with a generic type, so the unchecked cast is confined to here
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	private static Queue<ByteBuffer>[] createQueues() {
+		Queue<ByteBuffer>[] queues = (Queue<ByteBuffer>[]) new Queue<?>[CLASSES];
+		for (int i = 0; i < CLASSES; i++)
+			queues[i] = new ConcurrentLinkedQueue<>();
+		return queues;
+	}
+	
+}
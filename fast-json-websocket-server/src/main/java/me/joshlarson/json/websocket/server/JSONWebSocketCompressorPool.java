@@ -0,0 +1,69 @@
+package me.joshlarson.json.websocket.server;
+
+import javax.annotation.Nonnull;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A thread-safe pool of raw (headerless) Deflater and Inflater instances for permessage-deflate.  Each instance holds a few hundred KiB of native
+ * memory, so connections without context takeover borrow one per message rather than keeping their own.  Released instances are reset and kept
+ * for reuse up to a fixed count, and anything past that is ended so its native memory is freed straight away
+ */
+class JSONWebSocketCompressorPool {
+	
+	private static final int MAX_POOLED = 64;
+	
+	private final Queue<Deflater> deflaters;
+	private final Queue<Inflater> inflaters;
+	private final AtomicInteger pooledDeflaters;
+	private final AtomicInteger pooledInflaters;
+	
+	JSONWebSocketCompressorPool() {
+		this.deflaters = new ConcurrentLinkedQueue<>();
+		this.inflaters = new ConcurrentLinkedQueue<>();
+		this.pooledDeflaters = new AtomicInteger(0);
+		this.pooledInflaters = new AtomicInteger(0);
+	}
+	
+	@Nonnull
+	Deflater acquireDeflater() {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		pooledDeflaters.decrementAndGet();
+		return deflater;
+	}
+	
+	void releaseDeflater(@Nonnull Deflater deflater) {
+		if (pooledDeflaters.incrementAndGet() > MAX_POOLED) {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		deflaters.add(deflater);
+	}
+	
+	@Nonnull
+	Inflater acquireInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null)
+			return new Inflater(true);
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+	
+	void releaseInflater(@Nonnull Inflater inflater) {
+		if (pooledInflaters.incrementAndGet() > MAX_POOLED) {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+			return;
+		}
+		inflater.reset();
+		inflaters.add(inflater);
+	}
+	
+}
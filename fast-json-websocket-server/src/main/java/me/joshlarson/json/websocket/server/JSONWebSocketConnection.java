@@ -1,28 +1,82 @@
 package me.joshlarson.json.websocket.server;
 
+import me.joshlarson.json.JSONException;
 import me.joshlarson.json.JSONObject;
 import org.nanohttpd.protocols.http.IHTTPSession;
 import org.nanohttpd.protocols.websockets.CloseCode;
+import org.nanohttpd.protocols.websockets.NanoWSD;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
 import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class JSONWebSocketConnection {
 	
 	private static final AtomicLong GLOBAL_SOCKET_ID = new AtomicLong(0);
 	
-	private final JSONWebSocketConnectionImpl impl;
+	private final JSONWebSocketTransport transport;
+	private final JSONWebSocketServer server;
+	private final JSONWebSocketSerialExecutor callbacks;
 	private final AtomicReference<Object> userData;
+	private final AtomicBoolean connected;
+	private final Set<String> topics;
+	private final JSONWebSocketOutboundQueue outboundQueue;
+	private final AtomicBoolean flushScheduled;
+	private final Runnable delayedFlush;
+	private final JSONWebSocketPendingCalls pendingCalls;
+	private final AtomicInteger missedPongs;
+	private final JSONWebSocketRttStats rttStats;
+	private final Runnable heartbeatTask;
+	private final Random random;
+	private final long pingId;
 	private final long socketId;
+	private volatile JSONWebSocketBinaryCodec binaryCodec;
+	private volatile JSONWebSocketTimerWheel.Timeout heartbeat;
 	
-	JSONWebSocketConnection(JSONWebSocketConnectionImpl impl) {
-		this.impl = impl;
+	JSONWebSocketConnection(@Nonnull JSONWebSocketTransport transport, @Nonnull JSONWebSocketServer server) {
+		this.transport = transport;
+		this.server = server;
+		this.callbacks = new JSONWebSocketSerialExecutor(server);
 		this.userData = new AtomicReference<>(null);
+		this.connected = new AtomicBoolean(false);
+		this.topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.outboundQueue = new JSONWebSocketOutboundQueue();
+		this.flushScheduled = new AtomicBoolean(false);
+		this.delayedFlush = new Runnable() {
+			public void run() {
+				flushScheduled.set(false);
+				JSONWebSocketConnection.this.transport.flushQueue();
+			}
+		};
+		this.pendingCalls = new JSONWebSocketPendingCalls(JSONWebSocketTimerWheel.getShared());
+		this.missedPongs = new AtomicInteger(0);
+		this.rttStats = new JSONWebSocketRttStats();
+		this.heartbeatTask = new Runnable() {
+			public void run() {
+				heartbeat();
+			}
+		};
+		this.random = new Random();
+		this.pingId = random.nextLong();
 		this.socketId = GLOBAL_SOCKET_ID.incrementAndGet();
+		this.binaryCodec = null;
+		this.heartbeat = null;
 	}
 	
 	/**
@@ -31,7 +85,7 @@ public class JSONWebSocketConnection {
 	 * @return the remote IP address
 	 */
 	public String getRemoteIpAddress() {
-		return impl.getHandshakeRequest().getRemoteIpAddress();
+		return transport.getHandshakeRequest().getRemoteIpAddress();
 	}
 	
 	/**
@@ -41,7 +95,27 @@ public class JSONWebSocketConnection {
 	 */
 	@Nonnull
 	public IHTTPSession getHandshakeRequest() {
-		return impl.getHandshakeRequest();
+		return transport.getHandshakeRequest();
+	}
+	
+	/**
+	 * Returns whether the permessage-deflate extension was negotiated for this connection
+	 *
+	 * @return TRUE if messages may be compressed, FALSE otherwise
+	 */
+	public boolean isCompressed() {
+		return transport.isCompressed();
+	}
+	
+	/**
+	 * Returns the binary codec agreed with the client through its subprotocol.  When there is one, every message sent on this connection is
+	 * encoded with it as a binary frame instead of as JSON text
+	 *
+	 * @return the agreed codec, or null if messages are sent as JSON text
+	 */
+	@CheckForNull
+	public JSONWebSocketBinaryCodec getBinaryCodec() {
+		return binaryCodec;
 	}
 	
 	/**
@@ -59,7 +133,7 @@ public class JSONWebSocketConnection {
 	 * @return TRUE if the session is connected, FALSE otherwise
 	 */
 	public boolean isConnected() {
-		return impl.isConnected();
+		return connected.get();
 	}
 	
 	/**
@@ -98,7 +172,7 @@ public class JSONWebSocketConnection {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void close(@Nonnull CloseCode code, @Nonnull String reason) throws IOException {
-		impl.close(code, reason, false);
+		transport.close(code, reason);
 	}
 	
 	/**
@@ -107,7 +181,9 @@ public class JSONWebSocketConnection {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void pingRandom() throws IOException {
-		impl.pingRandom();
+		byte[] pingBytes = new byte[4];
+		random.nextBytes(pingBytes);
+		ping(pingBytes);
 	}
 	
 	/**
@@ -116,7 +192,7 @@ public class JSONWebSocketConnection {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void pingTimed() throws IOException {
-		impl.pingTimed();
+		ping(createTimedPing());
 	}
 	
 	/**
@@ -126,7 +202,7 @@ public class JSONWebSocketConnection {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void ping(@Nonnull byte[] data) throws IOException {
-		impl.ping(data);
+		transport.ping(data);
 	}
 	
 	/**
@@ -135,13 +211,456 @@ public class JSONWebSocketConnection {
 	 * <pre>{    "key": "value"    }</pre>
 	 * turns into:
 	 * <pre>{"key":"value"}</pre>
+	 * If a binary codec was agreed, the JSONObject is encoded with that instead
 	 *
 	 * @param object the JSONObject to send
 	 * @throws IOException if an I/O error occurs   
 	 */
 	public void send(@Nonnull JSONObject object) throws IOException {
 		Objects.requireNonNull(object, "object");
-		impl.send(object.toString(true));
+		JSONWebSocketEncodedFrame frame;
+		try {
+			frame = new JSONWebSocketEncodedFrame(object, binaryCodec, server.getBufferPool());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		try {
+			transport.sendEncoded(frame);
+			server.getMetrics().onMessageOut(frame.getPayloadLength());
+		} finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Queues a message to the client of the JSONObject encoded as a compact string, or with the agreed binary codec, without waiting for it to
+	 * be written.  The connection's outbound queue is emptied by the server's I/O threads; when it's full, the server's
+	 * {@link BackpressurePolicy} decides what happens. <p>
+	 * Messages sent with this function are written in order, but may be written before or after messages sent with {@link #send(JSONObject)}
+	 * around the same time.  The future completes on the I/O thread that wrote the message, so dependent stages that take any time should use
+	 * one of the async variants </p>
+	 *
+	 * @param object the JSONObject to send
+	 * @return a future that completes once the message has been written, or as soon as it's dropped or the connection closes
+	 * @throws UncheckedIOException if the binary codec can't encode the object
+	 */
+	@Nonnull
+	public CompletableFuture<SendStatus> sendAsync(@Nonnull JSONObject object) {
+		Objects.requireNonNull(object, "object");
+		if (!connected.get())
+			return CompletableFuture.completedFuture(SendStatus.CLOSED);
+		BackpressurePolicy policy = server.getBackpressurePolicy();
+		CompletableFuture<SendStatus> future = new CompletableFuture<>();
+		JSONWebSocketEncodedFrame frame = new JSONWebSocketEncodedFrame(object, binaryCodec, server.getBufferPool(), future);
+		SendStatus status = outboundQueue.offer(frame, server.getOutboundQueueCapacity(), policy, server.getBackpressureTimeoutNanos());
+		if (status == null) {
+			scheduleFlush();
+			return future;
+		}
+		frame.release();
+		future.complete(status);
+		if (status == SendStatus.CLOSED && policy == BackpressurePolicy.CLOSE && connected.get()) {
+			try {
+				close(CloseCode.PolicyViolation, "Outbound queue is full");
+			} catch (IOException e) {
+				onError(e);
+			}
+		}
+		return future;
+	}
+	
+	/**
+	 * Sends a request with {@link #sendAsync(JSONObject)} and waits for the client's response, which is the message whose RPC reply field holds
+	 * the request's id.  The request's id field is set to a new id before it's sent, so the same JSONObject must not be used for two calls at
+	 * once.  The response completes the future instead of being passed to the handler, while a request from the client is never taken for a
+	 * response, even if its id is the same. <p>
+	 * The future completes exceptionally with a TimeoutException if there's no response in time, or an IOException if the request is
+	 * dropped or the connection closes first.  It completes on the callback thread that handled the response, the shared timer thread for
+	 * timeouts, or the I/O thread that gave up on the request, so dependent stages that take any time should use one of the async variants </p>
+	 *
+	 * @param request the request to send
+	 * @param timeout the time to wait for the response
+	 * @param unit    the unit of the timeout
+	 * @return a future for the response
+	 * @see JSONWebSocketServer#setRpcIdField(String)
+	 * @see JSONWebSocketServer#setRpcReplyField(String)
+	 */
+	@Nonnull
+	public CompletableFuture<JSONObject> call(@Nonnull JSONObject request, long timeout, @Nonnull TimeUnit unit) {
+		Objects.requireNonNull(request, "request");
+		Objects.requireNonNull(unit, "unit");
+		CompletableFuture<JSONObject> response = new CompletableFuture<>();
+		final long id = pendingCalls.register(response, timeout, unit);
+		request.put(server.getRpcIdField(), id);
+		try {
+			sendAsync(request).thenAccept(new Consumer<SendStatus>() {
+				public void accept(SendStatus status) {
+					if (status != SendStatus.WRITTEN)
+						pendingCalls.fail(id, new IOException("Request was not sent: " + status));
+				}
+			});
+		} catch (UncheckedIOException e) {
+			pendingCalls.fail(id, e.getCause());
+		}
+		return response;
+	}
+	
+	/**
+	 * Sends a response to a request from the client, with the request's RPC id in its reply field
+	 *
+	 * @param request  the request being answered
+	 * @param response the response, whose reply field is set to the request's id
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void reply(@Nonnull JSONObject request, @Nonnull JSONObject response) throws IOException {
+		response.put(server.getRpcReplyField(), request.get(server.getRpcIdField()));
+		send(response);
+	}
+	
+	/**
+	 * Returns the number of calls that are still waiting for a response
+	 *
+	 * @return the pending call count
+	 */
+	public int getPendingCallCount() {
+		return pendingCalls.size();
+	}
+	
+	/**
+	 * Returns the round-trip time statistics of this connection, which are updated by every pong to {@link #pingTimed()} or the heartbeat
+	 *
+	 * @return the live statistics, readable from any thread
+	 */
+	@Nonnull
+	public JSONWebSocketRttStats getRttStats() {
+		return rttStats;
+	}
+	
+	/**
+	 * Returns the number of heartbeat pings in a row that haven't been answered yet
+	 *
+	 * @return the missed pong count, which is always 0 if the heartbeat is disabled
+	 * @see JSONWebSocketServer#setHeartbeat(long, TimeUnit, int)
+	 */
+	public int getMissedPongs() {
+		return missedPongs.get();
+	}
+	
+	/**
+	 * Writes the outbound queue now if there's no write delay or a full batch is waiting, otherwise gives other messages up to the write delay to
+	 * join the batch
+	 */
+	private void scheduleFlush() {
+		long delay = server.getMaxWriteDelayNanos();
+		if (delay == 0 || outboundQueue.bytes() >= server.getMaxWriteBatchBytes()) {
+			transport.flushQueue();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			try {
+				server.getFlushScheduler().schedule(delayedFlush, delay, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				flushScheduled.set(false);
+				transport.flushQueue();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of messages sent with {@link #sendAsync(JSONObject)} that have not been written yet
+	 *
+	 * @return the outbound queue depth
+	 */
+	public int getQueueDepth() {
+		return outboundQueue.size();
+	}
+	
+	/**
+	 * Removes the next frame from the outbound queue, for the transport to write
+	 *
+	 * @return the next frame, or null if the queue is empty
+	 */
+	@CheckForNull
+	JSONWebSocketEncodedFrame pollQueued() {
+		JSONWebSocketEncodedFrame frame = outboundQueue.poll();
+		if (frame != null)
+			server.getMetrics().onMessageOut(frame.getPayloadLength());
+		return frame;
+	}
+	
+	/**
+	 * Returns the topics this connection is subscribed to, maintained by {@link JSONWebSocketTopicIndex}
+	 *
+	 * @return the subscribed topics
+	 */
+	@Nonnull
+	Set<String> getTopics() {
+		return topics;
+	}
+	
+	/**
+	 * Writes an already encoded frame, reporting any failure through the handler's onError() rather than throwing it
+	 *
+	 * @param frame the frame to send
+	 * @return TRUE if the frame was written, FALSE if this connection is closed or the write failed
+	 */
+	boolean send(@Nonnull JSONWebSocketEncodedFrame frame) {
+		if (!connected.get())
+			return false;
+		try {
+			transport.sendEncoded(frame);
+			server.getMetrics().onMessageOut(frame.getPayloadLength());
+			return true;
+		} catch (IOException e) {
+			onError(e);
+			return false;
+		}
+	}
+	
+	void onOpen() {
+		binaryCodec = server.selectBinaryCodec(transport.getHandshakeRequest().getHeaders().get(NanoWSD.HEADER_WEBSOCKET_PROTOCOL));
+		connected.set(true);
+		server.onConnectionOpened(this);
+		scheduleHeartbeat();
+		callbacks.execute(new Runnable() {
+			public void run() {
+				JSONWebSocketConnectionHandler handler = server.getHandler();
+				if (handler != null) {
+					try {
+						handler.onConnect(JSONWebSocketConnection.this);
+					} catch (Throwable t) {
+						System.err.println("Exception in handler's onConnect() function");
+						t.printStackTrace();
+					}
+				}
+			}
+		});
+	}
+	
+	void onClose() {
+		connected.set(false);
+		outboundQueue.close();
+		JSONWebSocketTimerWheel.Timeout heartbeat = this.heartbeat;
+		if (heartbeat != null)
+			heartbeat.cancel();
+		pendingCalls.failAll(new IOException("Disconnected before the response arrived"));
+		server.onConnectionClosed(this);
+		callbacks.execute(new Runnable() {
+			public void run() {
+				JSONWebSocketConnectionHandler handler = server.getHandler();
+				if (handler != null) {
+					try {
+						handler.onDisconnect(JSONWebSocketConnection.this);
+					} catch (Throwable t) {
+						System.err.println("Exception in handler's onDisconnect() function");
+						t.printStackTrace();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Handles a complete message
+	 *
+	 * @param payload the message payload
+	 * @param binary  TRUE if the message arrived in binary frames, which are decoded with the agreed codec, FALSE if it's JSON text
+	 */
+	void onMessage(@Nonnull final byte[] payload, final boolean binary) {
+		missedPongs.lazySet(0);
+		server.getMetrics().onMessageIn(payload.length);
+		callbacks.execute(new Runnable() {
+			public void run() {
+				dispatchMessage(ByteBuffer.wrap(payload), binary);
+			}
+		});
+	}
+	
+	/**
+	 * Same as {@link #onMessage(byte[], boolean)}, but the payload is a buffer from the server's {@link JSONWebSocketBufferPool}, which is
+	 * released once the message has been parsed
+	 */
+	void onPooledMessage(@Nonnull final ByteBuffer payload, final boolean binary) {
+		missedPongs.lazySet(0);
+		server.getMetrics().onMessageIn(payload.remaining());
+		callbacks.execute(new Runnable() {
+			public void run() {
+				try {
+					dispatchMessage(payload, binary);
+				} finally {
+					server.getBufferPool().release(payload);
+				}
+			}
+		});
+	}
+	
+	void onPong(@Nonnull final byte[] payload) {
+		missedPongs.lazySet(0);
+		callbacks.execute(new Runnable() {
+			public void run() {
+				dispatchPong(payload);
+			}
+		});
+	}
+	
+	void onError(@Nonnull final Throwable error) {
+		callbacks.execute(new Runnable() {
+			public void run() {
+				dispatchError(error);
+			}
+		});
+	}
+	
+	private void scheduleHeartbeat() {
+		long interval = server.getHeartbeatIntervalNanos();
+		if (interval > 0 && connected.get())
+			heartbeat = JSONWebSocketTimerWheel.getShared().schedule(heartbeatTask, interval, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Runs on the timer thread once per heartbeat interval.  Anything received since the last run resets the missed pong count; once too many
+	 * pings in a row have gone unanswered, the connection is dropped without waiting for a close handshake the peer won't answer
+	 */
+	private void heartbeat() {
+		if (!connected.get())
+			return;
+		int missed = missedPongs.getAndIncrement();
+		if (missed >= server.getMaxMissedPongs()) {
+			onError(new IOException("No response to the last " + missed + " heartbeat pings"));
+			transport.abort();
+			return;
+		}
+		transport.pingAsync(createTimedPing());
+		scheduleHeartbeat();
+	}
+	
+	@Nonnull
+	private byte[] createTimedPing() {
+		ByteBuffer data = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+		data.putLong(pingId);
+		data.putLong(System.nanoTime());
+		return data.array();
+	}
+	
+	private void dispatchMessage(@Nonnull ByteBuffer payload, boolean binary) {
+		JSONWebSocketConnectionHandler handler = server.getHandler();
+		if (handler == null && pendingCalls.size() == 0)
+			return;
+		
+		try {
+			if (handler == null || handler.isLazyMessages()) {
+				dispatchLazyMessage(handler, payload, binary);
+				return;
+			}
+			JSONObject object = binary ? decodeBinary(payload) : decodeText(payload);
+			if (completeCall(object))
+				return;
+			long start = server.getMetrics().onHandlerCalled();
+			try {
+				handler.onMessage(this, object);
+			} catch (Throwable t) {
+				System.err.println("Exception in handler's onMessage() function");
+				t.printStackTrace();
+			}
+			server.getMetrics().onHandlerReturned(start);
+		} catch (JSONException | IOException e) {
+			server.getMetrics().onDecodeError();
+			dispatchError(e);
+		}
+	}
+	
+	private void dispatchLazyMessage(@CheckForNull JSONWebSocketConnectionHandler handler, @Nonnull ByteBuffer payload, boolean binary) throws JSONException, IOException {
+		JSONWebSocketLazyMessage message = binary ? new JSONWebSocketLazyMessage(decodeBinary(payload)) : JSONWebSocketLazyMessage.index(payload, server.getKeyCache());
+		try {
+			if (pendingCalls.size() > 0) {
+				long id = getCallId(message.get(server.getRpcReplyField()));
+				if (id != 0 && pendingCalls.isPending(id) && pendingCalls.complete(id, message.toJSONObject()))
+					return;
+			}
+			if (handler == null)
+				return;
+			long start = server.getMetrics().onHandlerCalled();
+			try {
+				handler.onLazyMessage(this, message);
+			} catch (Throwable t) {
+				System.err.println("Exception in handler's onLazyMessage() function");
+				t.printStackTrace();
+			}
+			server.getMetrics().onHandlerReturned(start);
+		} finally {
+			message.close();
+		}
+	}
+	
+	/**
+	 * Completes the pending call that a message is the response to, if there is one.  Only the reply field is checked, since the client's own
+	 * requests carry ids from the same range in the id field
+	 */
+	private boolean completeCall(@Nonnull JSONObject response) {
+		if (pendingCalls.size() == 0)
+			return false;
+		long id = getCallId(response.get(server.getRpcReplyField()));
+		return id != 0 && pendingCalls.complete(id, response);
+	}
+	
+	/**
+	 * Returns the call id in a message's RPC reply field, or 0 if it can't be one.  Ids start from 1
+	 */
+	private static long getCallId(@CheckForNull Object id) {
+		return id instanceof Long || id instanceof Integer ? ((Number) id).longValue() : 0;
+	}
+	
+	@Nonnull
+	private JSONObject decodeText(@Nonnull ByteBuffer payload) throws JSONException {
+		return JSONWebSocketDecoder.decode(payload, server.getKeyCache());
+	}
+	
+	@Nonnull
+	private JSONObject decodeBinary(@Nonnull ByteBuffer payload) throws IOException {
+		JSONWebSocketBinaryCodec codec = binaryCodec;
+		if (codec == null)
+			throw new IOException("Received a binary message, but no binary codec was agreed");
+		try (JSONWebSocketBufferInputStream in = new JSONWebSocketBufferInputStream(payload)) {
+			return codec.decode(in);
+		}
+	}
+	
+	private void dispatchPong(@Nonnull byte[] payload) {
+		long rttNano = -1;
+		if (payload.length == 16) {
+			ByteBuffer pong = ByteBuffer.wrap(payload).order(ByteOrder.BIG_ENDIAN);
+			if (pong.getLong(0) == pingId) {
+				rttNano = System.nanoTime() - pong.getLong(8);
+				rttStats.record(rttNano);
+			}
+		}
+		JSONWebSocketConnectionHandler handler = server.getHandler();
+		if (handler != null) {
+			try {
+				handler.onPong(this, ByteBuffer.wrap(payload));
+			} catch (Throwable t) {
+				System.err.println("Exception in handler's onPong() function");
+				t.printStackTrace();
+			}
+			if (rttNano != -1) {
+				try {
+					handler.onPongTimed(this, rttNano);
+				} catch (Throwable t) {
+					System.err.println("Exception in handler's onPongTimed() function");
+					t.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private void dispatchError(@Nonnull Throwable error) {
+		JSONWebSocketConnectionHandler handler = server.getHandler();
+		if (handler != null) {
+			try {
+				handler.onError(this, error);
+			} catch (Throwable t) {
+				System.err.println("Exception in handler's onError() function");
+				t.printStackTrace();
+			}
+		}
 	}
 	
 }
@@ -7,6 +7,12 @@ import java.nio.ByteBuffer;
 
 public abstract class JSONWebSocketConnectionHandler {
 	
+	private final boolean lazyMessages;
+	
+	public JSONWebSocketConnectionHandler() {
+		this.lazyMessages = overridesLazyMessage(getClass());
+	}
+	
 	/**
 	 * Called when the socket is officially connected
 	 *
@@ -35,6 +41,19 @@ public abstract class JSONWebSocketConnectionHandler {
 		
 	}
 	
+	/**
+	 * Called instead of {@link #onMessage(JSONWebSocketConnection, JSONObject)} when a handler overrides it.  The message is validated, but its values
+	 * are only decoded as they're read, which saves most of the work for handlers that only look at a field or two before dropping or routing a
+	 * message.  The message is only valid until this returns; call {@link JSONWebSocketLazyMessage#toJSONObject()} to keep it. <p>
+	 * The default implementation decodes the whole message and passes it to onMessage </p>
+	 *
+	 * @param socket  the socket that the message arrived from
+	 * @param message the message received
+	 */
+	public void onLazyMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONWebSocketLazyMessage message) {
+		onMessage(socket, message.toJSONObject());
+	}
+	
 	/**
 	 * Called when the client replies to a server ping
 	 *
@@ -66,4 +85,20 @@ public abstract class JSONWebSocketConnectionHandler {
 		
 	}
 	
+	/**
+	 * Returns whether this handler overrides {@link #onLazyMessage(JSONWebSocketConnection, JSONWebSocketLazyMessage)}, in which case messages
+	 * are indexed rather than decoded up front
+	 */
+	boolean isLazyMessages() {
+		return lazyMessages;
+	}
+	
+	private static boolean overridesLazyMessage(Class<?> type) {
+		try {
+			return type.getMethod("onLazyMessage", JSONWebSocketConnection.class, JSONWebSocketLazyMessage.class).getDeclaringClass() != JSONWebSocketConnectionHandler.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
 }
@@ -1,150 +1,163 @@
 package me.joshlarson.json.websocket.server;
 
-import me.joshlarson.json.JSONException;
-import me.joshlarson.json.JSONInputStream;
-import me.joshlarson.json.JSONObject;
 import org.nanohttpd.protocols.http.IHTTPSession;
 import org.nanohttpd.protocols.websockets.CloseCode;
+import org.nanohttpd.protocols.websockets.OpCode;
 import org.nanohttpd.protocols.websockets.WebSocket;
 import org.nanohttpd.protocols.websockets.WebSocketFrame;
 
 import javax.annotation.Nonnull;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
-class JSONWebSocketConnectionImpl extends WebSocket {
+class JSONWebSocketConnectionImpl extends WebSocket implements JSONWebSocketTransport {
 	
-	private final AtomicReference<JSONWebSocketConnectionHandler> handler;
+	private final JSONWebSocketServer server;
 	private final JSONWebSocketConnection socket;
-	private final Random random;
-	private final long pingId;
-	private final AtomicBoolean connected;
+	private final AtomicBoolean flushing;
+	private final Runnable flush;
 	
-	JSONWebSocketConnectionImpl(@Nonnull IHTTPSession handshakeRequest, @Nonnull AtomicReference<JSONWebSocketConnectionHandler> handler) {
+	JSONWebSocketConnectionImpl(@Nonnull IHTTPSession handshakeRequest, @Nonnull JSONWebSocketServer server) {
 		super(handshakeRequest);
-		this.handler = handler;
-		this.socket = new JSONWebSocketConnection(this);
-		this.random = new Random();
-		this.pingId = random.nextLong();
-		this.connected = new AtomicBoolean(false);
-	}
-	
-	public boolean isConnected() {
-		return connected.get();
+		this.server = server;
+		this.socket = new JSONWebSocketConnection(this, server);
+		this.flushing = new AtomicBoolean(false);
+		this.flush = new Runnable() {
+			public void run() {
+				writeQueued();
+			}
+		};
 	}
 	
-	public void pingRandom() throws IOException {
-		byte[] pingBytes = new byte[4];
-		random.nextBytes(pingBytes);
-		ping(pingBytes);
+	@Override
+	public boolean isCompressed() {
+		return false;
 	}
 	
-	public void pingTimed() throws IOException {
-		ByteBuffer data = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
-		data.putLong(pingId);
-		data.putLong(System.nanoTime());
-		ping(data.array());
+	@Override
+	public void sendEncoded(@Nonnull JSONWebSocketEncodedFrame frame) throws IOException {
+		sendFrame(frame);
 	}
 	
 	@Override
-	protected void onOpen() {
-		connected.set(true);
-		JSONWebSocketConnectionHandler handler = this.handler.get();
-		if (handler != null) {
+	public void flushQueue() {
+		if (flushing.compareAndSet(false, true)) {
 			try {
-				handler.onConnect(socket);
-			} catch (Throwable t) {
-				System.err.println("Exception in handler's onConnect() function");
-				t.printStackTrace();
+				server.getWriterExecutor().execute(flush);
+			} catch (RejectedExecutionException e) {
+				// The server stopped, so the write fails quickly on the closed socket
+				flush.run();
 			}
 		}
 	}
 	
 	@Override
-	protected void onClose(CloseCode closeCode, String s, boolean b) {
-		connected.set(false);
-		JSONWebSocketConnectionHandler handler = this.handler.get();
-		if (handler != null) {
-			try {
-				handler.onDisconnect(socket);
-			} catch (Throwable t) {
-				System.err.println("Exception in handler's onDisconnect() function");
-				t.printStackTrace();
-			}
+	public void pingAsync(@Nonnull final byte[] data) {
+		// Writes block on this engine, and a peer that has stopped reading could hold the timer thread indefinitely
+		try {
+			server.getWriterExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						ping(data);
+					} catch (IOException e) {
+						onException(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The server stopped, and its connections with it
 		}
 	}
 	
 	@Override
-	protected void onMessage(@Nonnull WebSocketFrame webSocketFrame) {
-		JSONWebSocketConnectionHandler handler = this.handler.get();
-		if (handler == null)
-			return;
-		
-		try (JSONInputStream in = new JSONInputStream(new ByteArrayInputStream(webSocketFrame.getBinaryPayload()))) {
-			JSONObject object = in.readObject();
-			if (object == null)
-				throw new JSONException("Invalid JSON: empty string");
-			try {
-				handler.onMessage(socket, object);
-			} catch (Throwable t) {
-				System.err.println("Exception in handler's onMessage() function");
-				t.printStackTrace();
-			}
-		} catch (JSONException | IOException e) {
-			try {
-				handler.onError(socket, e);
-			} catch (Throwable t) {
-				System.err.println("Exception in handler's onError() function");
-				t.printStackTrace();
-			}
+	public void close(@Nonnull CloseCode code, @Nonnull String reason) throws IOException {
+		close(code, reason, false);
+	}
+	
+	@Override
+	public void abort() {
+		// Closing the socket's input ends the read loop, which closes the socket and reports the connection as closed
+		try {
+			getHandshakeRequest().getInputStream().close();
+		} catch (IOException e) {
+			// The socket is gone either way
 		}
 	}
 	
+	@Override
+	protected void onOpen() {
+		socket.onOpen();
+	}
+	
+	@Override
+	protected void onClose(CloseCode closeCode, String s, boolean b) {
+		socket.onClose();
+	}
+	
+	@Override
+	protected void onMessage(@Nonnull WebSocketFrame webSocketFrame) {
+		socket.onMessage(webSocketFrame.getBinaryPayload(), webSocketFrame.getOpCode() == OpCode.Binary);
+	}
+	
 	@Override
 	protected void onPong(@Nonnull WebSocketFrame webSocketFrame) {
-		JSONWebSocketConnectionHandler handler = this.handler.get();
-		if (handler != null) {
-			byte [] payload = webSocketFrame.getBinaryPayload();
-			try {
-				handler.onPong(socket, ByteBuffer.wrap(payload));
-			} catch (Throwable t) {
-				System.err.println("Exception in handler's onPong() function");
-				t.printStackTrace();
-			}
-			if (payload.length == 16) {
-				try {
-					ByteBuffer pong = ByteBuffer.wrap(payload).order(ByteOrder.BIG_ENDIAN);
-					if (pong.getLong(0) == pingId) {
-						handler.onPongTimed(socket, System.nanoTime() - pong.getLong(8));
+		socket.onPong(webSocketFrame.getBinaryPayload());
+	}
+	
+	private void writeQueued() {
+		int maxBatchBytes = server.getMaxWriteBatchBytes();
+		List<JSONWebSocketEncodedFrame> batch = new ArrayList<>();
+		try {
+			while (true) {
+				int batchBytes = 0;
+				JSONWebSocketEncodedFrame frame;
+				while (batchBytes < maxBatchBytes && (frame = socket.pollQueued()) != null) {
+					batch.add(frame);
+					batchBytes += frame.getLength();
+				}
+				if (batch.isEmpty())
+					break;
+				if (batch.size() == 1) {
+					sendFrame(batch.get(0));
+				} else {
+					JSONWebSocketFrameBatch frames = new JSONWebSocketFrameBatch(batch, batchBytes, server.getBufferPool());
+					try {
+						sendFrame(frames);
+					} finally {
+						frames.release();
 					}
-				} catch (Throwable t) {
-					System.err.println("Exception in handler's onPongTimed() function");
-					t.printStackTrace();
 				}
+				release(batch, SendStatus.WRITTEN);
 			}
+		} catch (IOException e) {
+			release(batch, SendStatus.CLOSED);
+			onException(e);
+			flushing.set(false);
+			return;
 		}
+		flushing.set(false);
+		if (socket.getQueueDepth() > 0)
+			flushQueue();
+	}
+	
+	private static void release(@Nonnull List<JSONWebSocketEncodedFrame> frames, @Nonnull SendStatus status) {
+		for (JSONWebSocketEncodedFrame frame : frames) {
+			frame.complete(status);
+			frame.release();
+		}
+		frames.clear();
 	}
 	
 	@Override
 	protected void onException(@Nonnull IOException e) {
 		if (e instanceof SocketException && e.getMessage() != null && e.getMessage().toLowerCase(Locale.US).contains("socket closed"))
 			return;
-		JSONWebSocketConnectionHandler handler = this.handler.get();
-		if (handler != null) {
-			try {
-				handler.onError(socket, e);
-			} catch (Throwable t) {
-				System.err.println("Exception in handler's onError() function");
-				t.printStackTrace();
-			}
-		}
+		socket.onError(e);
 	}
 	
 }
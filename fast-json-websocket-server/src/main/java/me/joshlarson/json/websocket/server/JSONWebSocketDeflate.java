@@ -0,0 +1,315 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.websockets.CloseCode;
+import org.nanohttpd.protocols.websockets.WebSocketException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate (RFC 7692) state of a single NIO connection: the parameters agreed in the handshake, and the Deflater and Inflater that
+ * carry context from one message to the next when context takeover is on.  Without context takeover, each message borrows an instance from the
+ * server's {@link JSONWebSocketCompressorPool} and gives it straight back, so idle connections hold no compression memory at all. <p>
+ * java.util.zip always deflates with a 32 KiB window, so a smaller server window is honoured by only compressing messages that fit in the
+ * window, each independently of the last.  Inflating works with any window the client uses. </p>
+ * Compression happens under the connection's outbound lock and decompression on its event loop thread, so neither needs locking here
+ */
+class JSONWebSocketDeflate {
+	
+	static final String EXTENSION_NAME = "permessage-deflate";
+	
+	private static final int MIN_WINDOW_BITS = 8;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final byte[] SYNC_FLUSH_TAIL = new byte[]{0, 0, (byte) 0xFF, (byte) 0xFF};
+	
+	private final JSONWebSocketCompressorPool compressors;
+	private final int threshold;
+	private final int serverWindowBits;
+	private final boolean serverContextTakeover;
+	private final boolean clientContextTakeover;
+	private final String responseHeader;
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean closed;
+	
+	private JSONWebSocketDeflate(@Nonnull JSONWebSocketCompressorPool compressors, int threshold, int serverWindowBits, boolean serverContextTakeover, boolean clientContextTakeover, @Nonnull String responseHeader) {
+		this.compressors = compressors;
+		this.threshold = threshold;
+		this.serverWindowBits = serverWindowBits;
+		this.serverContextTakeover = serverContextTakeover;
+		this.clientContextTakeover = clientContextTakeover;
+		this.responseHeader = responseHeader;
+		this.deflater = null;
+		this.inflater = null;
+		this.closed = false;
+	}
+	
+	/**
+	 * Picks the first permessage-deflate offer in a Sec-WebSocket-Extensions request header whose parameters are all valid, and works out the
+	 * parameters to answer it with from the server's compression settings
+	 *
+	 * @param offers the Sec-WebSocket-Extensions header sent by the client, if any
+	 * @param server the server whose compression settings apply
+	 * @return the negotiated state, or null if the client made no acceptable offer
+	 */
+	@CheckForNull
+	static JSONWebSocketDeflate negotiate(@CheckForNull String offers, @Nonnull JSONWebSocketServer server) {
+		if (offers == null)
+			return null;
+		for (String offer : offers.split(",")) {
+			JSONWebSocketDeflate deflate = negotiateOffer(offer, server);
+			if (deflate != null)
+				return deflate;
+		}
+		return null;
+	}
+	
+	@CheckForNull
+	private static JSONWebSocketDeflate negotiateOffer(@Nonnull String offer, @Nonnull JSONWebSocketServer server) {
+		String[] parameters = offer.split(";");
+		if (!parameters[0].trim().equalsIgnoreCase(EXTENSION_NAME))
+			return null;
+		Set<String> seen = new HashSet<>();
+		boolean serverNoContextTakeover = false;
+		boolean clientNoContextTakeover = false;
+		int offeredServerWindowBits = -1;
+		int offeredClientWindowBits = -1;
+		for (int i = 1; i < parameters.length; i++) {
+			String parameter = parameters[i].trim();
+			int equals = parameter.indexOf('=');
+			String name = (equals == -1 ? parameter : parameter.substring(0, equals)).trim().toLowerCase(Locale.US);
+			String value = equals == -1 ? null : unquote(parameter.substring(equals + 1).trim());
+			if (!seen.add(name))
+				return null;
+			switch (name) {
+				case "server_no_context_takeover":
+					if (value != null)
+						return null;
+					serverNoContextTakeover = true;
+					break;
+				case "client_no_context_takeover":
+					if (value != null)
+						return null;
+					clientNoContextTakeover = true;
+					break;
+				case "server_max_window_bits":
+					offeredServerWindowBits = parseWindowBits(value);
+					if (offeredServerWindowBits == -1)
+						return null;
+					break;
+				case "client_max_window_bits":
+					offeredClientWindowBits = value == null ? MAX_WINDOW_BITS : parseWindowBits(value);
+					if (offeredClientWindowBits == -1)
+						return null;
+					break;
+				default:
+					return null;
+			}
+		}
+		int windowBits = server.getCompressionWindowBits();
+		boolean contextTakeover = server.isCompressionContextTakeover();
+		int serverWindowBits = offeredServerWindowBits == -1 ? windowBits : Math.min(windowBits, offeredServerWindowBits);
+		boolean serverContextTakeover = contextTakeover && !serverNoContextTakeover && serverWindowBits == MAX_WINDOW_BITS;
+		boolean clientContextTakeover = contextTakeover && !clientNoContextTakeover;
+		
+		StringBuilder response = new StringBuilder(EXTENSION_NAME);
+		if (!serverContextTakeover)
+			response.append("; server_no_context_takeover");
+		if (!clientContextTakeover)
+			response.append("; client_no_context_takeover");
+		if (serverWindowBits < MAX_WINDOW_BITS || offeredServerWindowBits != -1)
+			response.append("; server_max_window_bits=").append(serverWindowBits);
+		if (offeredClientWindowBits != -1 && windowBits < offeredClientWindowBits)
+			response.append("; client_max_window_bits=").append(windowBits);
+		return new JSONWebSocketDeflate(server.getCompressorPool(), server.getCompressionThreshold(), serverWindowBits, serverContextTakeover, clientContextTakeover, response.toString());
+	}
+	
+	/**
+	 * Returns the value of the Sec-WebSocket-Extensions header that accepts the client's offer
+	 *
+	 * @return the response header value
+	 */
+	@Nonnull
+	String getResponseHeader() {
+		return responseHeader;
+	}
+	
+	/**
+	 * Compresses a message into a single frame with the RSV1 bit set, unless it's smaller than the compression threshold or too large for a
+	 * restricted server window
+	 *
+	 * @param payload the uncompressed payload; its position is left unchanged
+	 * @param opcode  the frame's opcode
+	 * @param pool    the pool to take the frame's buffer from
+	 * @return a pooled heap buffer whose remaining bytes are the compressed frame, or null to send the message uncompressed
+	 */
+	@CheckForNull
+	ByteBuffer compress(@Nonnull ByteBuffer payload, int opcode, @Nonnull JSONWebSocketBufferPool pool) {
+		int length = payload.remaining();
+		if (closed || length < threshold || (serverWindowBits < MAX_WINDOW_BITS && length > 1 << serverWindowBits))
+			return null;
+		Deflater deflater = serverContextTakeover ? getDeflater() : compressors.acquireDeflater();
+		ByteBuffer input = null;
+		ByteBuffer output = pool.acquireHeap(JSONWebSocketEncoder.MAX_HEADER_LENGTH + length / 2 + 64);
+		try {
+			if (payload.hasArray()) {
+				deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+			} else {
+				input = pool.acquireHeap(length);
+				payload.duplicate().get(input.array(), 0, length);
+				deflater.setInput(input.array(), 0, length);
+			}
+			int position = JSONWebSocketEncoder.MAX_HEADER_LENGTH;
+			while (true) {
+				if (position == output.capacity())
+					output = grow(pool, output, position);
+				int space = output.capacity() - position;
+				int deflated = deflater.deflate(output.array(), position, space, Deflater.SYNC_FLUSH);
+				position += deflated;
+				if (deflated < space)
+					break;
+			}
+			// Every sync flush ends with an empty stored block, which the receiver adds back
+			int compressedLength = position - JSONWebSocketEncoder.MAX_HEADER_LENGTH - SYNC_FLUSH_TAIL.length;
+			if (!serverContextTakeover && compressedLength >= length) {
+				pool.release(output);
+				return null;
+			}
+			int start = JSONWebSocketEncoder.writeHeader(output.array(), JSONWebSocketEncoder.MAX_HEADER_LENGTH, 0x80 | 0x40 | opcode, compressedLength);
+			output.limit(position - SYNC_FLUSH_TAIL.length);
+			output.position(start);
+			return output;
+		} catch (RuntimeException | Error e) {
+			pool.release(output);
+			throw e;
+		} finally {
+			if (input != null)
+				pool.release(input);
+			if (!serverContextTakeover)
+				compressors.releaseDeflater(deflater);
+		}
+	}
+	
+	/**
+	 * Decompresses a message received with the RSV1 bit set.  The compressed payload is released whether or not it decompresses
+	 *
+	 * @param payload        a pooled buffer holding the compressed payload
+	 * @param maxMessageSize the largest decompressed message allowed
+	 * @param pool           the pool the payload came from, and that the decompressed message is taken from
+	 * @return a pooled heap buffer whose remaining bytes are the decompressed message
+	 * @throws WebSocketException if the payload isn't valid deflate data, or decompresses to more than the maximum message size
+	 */
+	@Nonnull
+	ByteBuffer decompress(@Nonnull ByteBuffer payload, int maxMessageSize, @Nonnull JSONWebSocketBufferPool pool) throws WebSocketException {
+		Inflater inflater = clientContextTakeover ? getInflater() : compressors.acquireInflater();
+		ByteBuffer input = payload;
+		ByteBuffer output = pool.acquireHeap(Math.max(1024, Math.min(maxMessageSize, payload.remaining() * 4)));
+		boolean success = false;
+		try {
+			if (!payload.hasArray()) {
+				input = pool.acquireHeap(payload.remaining());
+				input.put(payload);
+				input.flip();
+			}
+			inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+			int position = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				if (pass == 1)
+					inflater.setInput(SYNC_FLUSH_TAIL);
+				while (true) {
+					if (position == output.capacity())
+						output = grow(pool, output, position);
+					int inflated = inflater.inflate(output.array(), position, output.capacity() - position);
+					position += inflated;
+					if (position > maxMessageSize)
+						throw new WebSocketException(CloseCode.MessageTooBig, "Max message size is " + maxMessageSize);
+					if (inflater.needsDictionary())
+						throw new DataFormatException("Preset dictionaries are not supported");
+					if (inflated == 0 && (inflater.needsInput() || inflater.finished()))
+						break;
+				}
+			}
+			// A final block ends the peer's stream, so there's no context left to take over
+			if (inflater.finished())
+				inflater.reset();
+			output.limit(position);
+			output.position(0);
+			success = true;
+			return output;
+		} catch (DataFormatException e) {
+			throw new WebSocketException(CloseCode.InvalidFramePayloadData, "Invalid compressed data: " + e.getMessage());
+		} finally {
+			if (!success)
+				pool.release(output);
+			if (input != payload)
+				pool.release(input);
+			pool.release(payload);
+			if (!clientContextTakeover)
+				compressors.releaseInflater(inflater);
+		}
+	}
+	
+	/**
+	 * Gives any Deflater and Inflater held for context takeover back to the pool.  Must be called holding the connection's outbound lock, on
+	 * the event loop thread
+	 */
+	void close() {
+		closed = true;
+		if (deflater != null) {
+			compressors.releaseDeflater(deflater);
+			deflater = null;
+		}
+		if (inflater != null) {
+			compressors.releaseInflater(inflater);
+			inflater = null;
+		}
+	}
+	
+	@Nonnull
+	private Deflater getDeflater() {
+		if (deflater == null)
+			deflater = compressors.acquireDeflater();
+		return deflater;
+	}
+	
+	@Nonnull
+	private Inflater getInflater() {
+		if (inflater == null)
+			inflater = compressors.acquireInflater();
+		return inflater;
+	}
+	
+	@Nonnull
+	private static ByteBuffer grow(@Nonnull JSONWebSocketBufferPool pool, @Nonnull ByteBuffer buffer, int used) {
+		ByteBuffer grown = pool.acquireHeap((int) Math.min(Integer.MAX_VALUE - 8, buffer.capacity() * 2L));
+		System.arraycopy(buffer.array(), 0, grown.array(), 0, used);
+		pool.release(buffer);
+		return grown;
+	}
+	
+	private static int parseWindowBits(@CheckForNull String value) {
+		if (value == null)
+			return -1;
+		try {
+			int bits = Integer.parseInt(value);
+			return bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS ? bits : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	@Nonnull
+	private static String unquote(@Nonnull String value) {
+		if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+			return value.substring(1, value.length() - 1);
+		return value;
+	}
+	
+}
@@ -0,0 +1,144 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONObject;
+import org.nanohttpd.protocols.websockets.OpCode;
+import org.nanohttpd.protocols.websockets.WebSocketFrame;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A text or binary frame that has already been encoded into its wire format.  The same instance can be written to any number of connections, on either
+ * engine, without encoding the JSON or the frame header again.  The payload is only kept inside the encoded frame, so the payload accessors
+ * inherited from WebSocketFrame return an empty payload. <p>
+ * The frame's buffer comes from the server's {@link JSONWebSocketBufferPool}.  Whoever owns the frame - the sender, or the outbound queue once
+ * it's queued - calls {@link #release()} after the last write, and the frame can't be written again after that </p>
+ */
+class JSONWebSocketEncodedFrame extends WebSocketFrame {
+	
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	
+	private static final int WRITE_CHUNK = 8 * 1024;
+	
+	private final JSONWebSocketBufferPool pool;
+	private final ByteBuffer frame;
+	private final AtomicBoolean released;
+	private final CompletableFuture<SendStatus> future;
+	
+	JSONWebSocketEncodedFrame(@Nonnull JSONObject object, @Nonnull JSONWebSocketBufferPool pool) {
+		this(object, null, pool);
+	}
+	
+	JSONWebSocketEncodedFrame(@Nonnull JSONObject object, @CheckForNull JSONWebSocketBinaryCodec codec, @Nonnull JSONWebSocketBufferPool pool) {
+		this(object, codec, pool, null);
+	}
+	
+	/**
+	 * Encodes the object as a binary frame with the specified codec, or as a text frame if the codec is null
+	 *
+	 * @param object the object to encode
+	 * @param codec  the codec to encode a binary frame with, or null for JSON text
+	 * @param pool   the pool to take the frame's buffer from
+	 * @param future the future to complete with the frame's outcome once it's queued, or null if nothing is waiting for it
+	 */
+	JSONWebSocketEncodedFrame(@Nonnull JSONObject object, @CheckForNull JSONWebSocketBinaryCodec codec, @Nonnull JSONWebSocketBufferPool pool, @CheckForNull CompletableFuture<SendStatus> future) {
+		super(codec == null ? OpCode.Text : OpCode.Binary, true, EMPTY_PAYLOAD);
+		this.pool = pool;
+		this.frame = codec == null ? JSONWebSocketEncoder.encodeTextFrame(object, pool) : JSONWebSocketEncoder.encodeBinaryFrame(object, codec, pool);
+		this.released = new AtomicBoolean(false);
+		this.future = future;
+	}
+	
+	/**
+	 * Returns a new buffer over the encoded frame, with its own position and limit, so each connection can write it independently
+	 *
+	 * @return the encoded frame
+	 */
+	@Nonnull
+	ByteBuffer getFrame() {
+		return frame.duplicate();
+	}
+	
+	/**
+	 * Returns a new buffer over just the frame's payload, the encoded object, for transports that need to frame it differently
+	 *
+	 * @return the encoded payload
+	 */
+	@Nonnull
+	ByteBuffer getPayload() {
+		ByteBuffer payload = frame.duplicate();
+		int lengthBits = payload.get(payload.position() + 1) & 0x7F;
+		payload.position(payload.position() + (lengthBits < 126 ? 2 : (lengthBits == 126 ? 4 : 10)));
+		return payload;
+	}
+	
+	/**
+	 * Returns the size of the encoded frame, including its header
+	 *
+	 * @return the frame length in bytes
+	 */
+	int getLength() {
+		return frame.remaining();
+	}
+	
+	/**
+	 * Returns the size of the frame's payload, the encoded object
+	 *
+	 * @return the payload length in bytes
+	 */
+	int getPayloadLength() {
+		int lengthBits = frame.get(frame.position() + 1) & 0x7F;
+		return frame.remaining() - (lengthBits < 126 ? 2 : (lengthBits == 126 ? 4 : 10));
+	}
+	
+	/**
+	 * Completes the future the frame was queued with, if there is one.  Only the first call has any effect, so a frame that's already been written
+	 * isn't reported as closed later
+	 *
+	 * @param status what happened to the frame
+	 */
+	void complete(@Nonnull SendStatus status) {
+		if (future != null)
+			future.complete(status);
+	}
+	
+	/**
+	 * Gives the frame's buffer back to the pool it came from.  Only the first call has any effect
+	 */
+	void release() {
+		if (released.compareAndSet(false, true))
+			pool.release(frame);
+	}
+	
+	@Override
+	public void write(OutputStream out) throws IOException {
+		write(out, frame.duplicate());
+		out.flush();
+	}
+	
+	/**
+	 * Writes the remaining bytes of a buffer to a stream, copying through a small array if the buffer is direct
+	 *
+	 * @param out  the stream to write to
+	 * @param data the bytes to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(@Nonnull OutputStream out, @Nonnull ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(WRITE_CHUNK, data.remaining())];
+		while (data.hasRemaining()) {
+			int length = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+	
+}
@@ -0,0 +1,327 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONArray;
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encodes a JSONObject as compact JSON straight into UTF-8, without building the intermediate String and byte array that
+ * {@link JSONObject#toString(boolean)} would.  The JSON is written into a buffer from the server's {@link JSONWebSocketBufferPool}, with room
+ * left at the front for the largest possible frame header, and once the payload length is known the header is filled in just ahead of it.
+ * Unless the buffer turned out much larger than the frame, or the pool hands out direct buffers, that buffer is the finished frame.
+ * <p>
+ * Subclasses of JSONObject and JSONArray may customize their output by overriding toString, so they're encoded with toString(true) instead.
+ * Binary frames are built the same way, with a {@link JSONWebSocketBinaryCodec} writing the payload into the buffer instead
+ * </p>
+ */
+final class JSONWebSocketEncoder {
+	
+	static final int MAX_HEADER_LENGTH = 10;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int STRING_CHUNK = 1024;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+	
+	private final JSONWebSocketBufferPool pool;
+	private ByteBuffer scratch;
+	private byte[] buffer;
+	private int position;
+	
+	private JSONWebSocketEncoder(@Nonnull JSONWebSocketBufferPool pool) {
+		this.pool = pool;
+		this.scratch = pool.acquireHeap(INITIAL_CAPACITY);
+		this.buffer = scratch.array();
+		this.position = 0;
+	}
+	
+	/**
+	 * Encodes the object as a single unmasked text frame
+	 *
+	 * @param object the object to encode
+	 * @param pool   the pool to take buffers from
+	 * @return a pooled buffer whose remaining bytes are exactly the encoded frame, header included
+	 */
+	@Nonnull
+	static ByteBuffer encodeTextFrame(@Nonnull JSONObject object, @Nonnull JSONWebSocketBufferPool pool) {
+		JSONWebSocketEncoder encoder = new JSONWebSocketEncoder(pool);
+		try {
+			return encoder.encodeFrame(JSONWebSocketNioConnection.OPCODE_TEXT, object);
+		} catch (RuntimeException | Error e) {
+			pool.release(encoder.scratch);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Encodes the object as a single unmasked binary frame
+	 *
+	 * @param object the object to encode
+	 * @param codec  the codec that encodes the payload
+	 * @param pool   the pool to take buffers from
+	 * @return a pooled buffer whose remaining bytes are exactly the encoded frame, header included
+	 * @throws UncheckedIOException if the codec can't encode the object
+	 */
+	@Nonnull
+	static ByteBuffer encodeBinaryFrame(@Nonnull JSONObject object, @Nonnull JSONWebSocketBinaryCodec codec, @Nonnull JSONWebSocketBufferPool pool) {
+		JSONWebSocketEncoder encoder = new JSONWebSocketEncoder(pool);
+		try {
+			return encoder.encodeFrame(JSONWebSocketNioConnection.OPCODE_BINARY, object, codec);
+		} catch (RuntimeException | Error e) {
+			pool.release(encoder.scratch);
+			throw e;
+		}
+	}
+	
+	private ByteBuffer encodeFrame(int opcode, JSONObject object) {
+		position = MAX_HEADER_LENGTH;
+		writeValue(object);
+		return finishFrame(opcode);
+	}
+	
+	private ByteBuffer encodeFrame(int opcode, JSONObject object, JSONWebSocketBinaryCodec codec) {
+		position = MAX_HEADER_LENGTH;
+		try {
+			codec.encode(object, new OutputStream() {
+				@Override
+				public void write(int b) {
+					ensureCapacity(1);
+					buffer[position++] = (byte) b;
+				}
+				
+				@Override
+				public void write(@Nonnull byte[] b, int off, int len) {
+					ensureCapacity(len);
+					System.arraycopy(b, off, buffer, position, len);
+					position += len;
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return finishFrame(opcode);
+	}
+	
+	private ByteBuffer finishFrame(int opcode) {
+		int start = writeHeader(buffer, MAX_HEADER_LENGTH, 0x80 | opcode, position - MAX_HEADER_LENGTH);
+		int frameLength = position - start;
+		if (!pool.isDirect() && frameLength > scratch.capacity() / 4) {
+			scratch.limit(position);
+			scratch.position(start);
+			return scratch;
+		}
+		// Queued frames hold on to their buffers, so don't let a small frame keep a much larger one
+		ByteBuffer frame = pool.acquire(frameLength);
+		frame.put(buffer, start, frameLength);
+		frame.flip();
+		pool.release(scratch);
+		return frame;
+	}
+	
+	/**
+	 * Writes an unmasked frame header immediately before a payload that starts at the specified offset, which must leave at least
+	 * {@link #MAX_HEADER_LENGTH} bytes in front of it
+	 *
+	 * @param buffer        the buffer holding the payload
+	 * @param payloadOffset the offset of the first payload byte
+	 * @param firstByte     the first header byte: the FIN and RSV bits and the opcode
+	 * @param payloadLength the payload length
+	 * @return the offset the header starts at, which is where the frame starts
+	 */
+	static int writeHeader(@Nonnull byte[] buffer, int payloadOffset, int firstByte, int payloadLength) {
+		int headerLength = payloadLength < 126 ? 2 : (payloadLength <= 0xFFFF ? 4 : 10);
+		int start = payloadOffset - headerLength;
+		buffer[start] = (byte) firstByte;
+		if (payloadLength < 126) {
+			buffer[start + 1] = (byte) payloadLength;
+		} else if (payloadLength <= 0xFFFF) {
+			buffer[start + 1] = (byte) 126;
+			buffer[start + 2] = (byte) (payloadLength >>> 8);
+			buffer[start + 3] = (byte) payloadLength;
+		} else {
+			buffer[start + 1] = (byte) 127;
+			for (int i = 0; i < 8; i++)
+				buffer[start + 2 + i] = (byte) (i < 4 ? 0 : payloadLength >>> (8 * (7 - i)));
+		}
+		return start;
+	}
+	
+	private void writeValue(Object value) {
+		if (value == null) {
+			writeAscii(NULL);
+		} else if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof Boolean) {
+			writeAscii((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			writeLong(((Number) value).longValue());
+		} else if (value instanceof JSONObject && value.getClass() != JSONObject.class) {
+			writeRaw(((JSONObject) value).toString(true));
+		} else if (value instanceof JSONArray && value.getClass() != JSONArray.class) {
+			writeRaw(((JSONArray) value).toString(true));
+		} else if (value instanceof Map) {
+			writeObject((Map<?, ?>) value);
+		} else if (value instanceof Collection) {
+			writeArray((Collection<?>) value);
+		} else if (value instanceof Number) {
+			writeRaw(value.toString());
+		} else {
+			writeString(value.toString());
+		}
+	}
+	
+	private void writeObject(Map<?, ?> object) {
+		ensureCapacity(1);
+		buffer[position++] = '{';
+		boolean first = true;
+		for (Entry<?, ?> e : object.entrySet()) {
+			ensureCapacity(1);
+			if (!first)
+				buffer[position++] = ',';
+			first = false;
+			writeString(String.valueOf(e.getKey()));
+			ensureCapacity(1);
+			buffer[position++] = ':';
+			writeValue(e.getValue());
+		}
+		ensureCapacity(1);
+		buffer[position++] = '}';
+	}
+	
+	private void writeArray(Collection<?> array) {
+		ensureCapacity(1);
+		buffer[position++] = '[';
+		boolean first = true;
+		for (Object value : array) {
+			if (!first) {
+				ensureCapacity(1);
+				buffer[position++] = ',';
+			}
+			first = false;
+			writeValue(value);
+		}
+		ensureCapacity(1);
+		buffer[position++] = ']';
+	}
+	
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii(MIN_LONG);
+			return;
+		}
+		ensureCapacity(20);
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long remaining = value / 10; remaining != 0; remaining /= 10)
+			digits++;
+		for (int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		position += digits;
+	}
+	
+	private void writeAscii(byte[] ascii) {
+		ensureCapacity(ascii.length);
+		System.arraycopy(ascii, 0, buffer, position, ascii.length);
+		position += ascii.length;
+	}
+	
+	private void writeString(String str) {
+		ensureCapacity(1);
+		buffer[position++] = '"';
+		writeChars(str, true);
+		ensureCapacity(1);
+		buffer[position++] = '"';
+	}
+	
+	private void writeRaw(String str) {
+		writeChars(str, false);
+	}
+	
+	/**
+	 * Writes the string as UTF-8, a chunk at a time so the buffer only ever has to grow by the worst case of the chunk rather than of the whole
+	 * string.  Unpaired surrogates are replaced with '?', the same as {@link String#getBytes(java.nio.charset.Charset)}
+	 */
+	private void writeChars(String str, boolean escape) {
+		int length = str.length();
+		for (int chunkStart = 0; chunkStart < length; ) {
+			int chunkEnd = Math.min(length, chunkStart + STRING_CHUNK);
+			ensureCapacity((chunkEnd - chunkStart + 1) * 6);
+			byte[] buffer = this.buffer;
+			int position = this.position;
+			int i = chunkStart;
+			for (; i < chunkEnd; i++) {
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					if (escape && (c < 0x20 || c == '"' || c == '\\')) {
+						buffer[position++] = '\\';
+						switch (c) {
+							case '"':	buffer[position++] = '"'; break;
+							case '\\':	buffer[position++] = '\\'; break;
+							case '\b':	buffer[position++] = 'b'; break;
+							case '\f':	buffer[position++] = 'f'; break;
+							case '\n':	buffer[position++] = 'n'; break;
+							case '\r':	buffer[position++] = 'r'; break;
+							case '\t':	buffer[position++] = 't'; break;
+							default:
+								buffer[position++] = 'u';
+								buffer[position++] = '0';
+								buffer[position++] = '0';
+								buffer[position++] = HEX[c >>> 4];
+								buffer[position++] = HEX[c & 0xF];
+								break;
+						}
+					} else {
+						buffer[position++] = (byte) c;
+					}
+				} else if (c < 0x800) {
+					buffer[position++] = (byte) (0xC0 | (c >>> 6));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, str.charAt(++i));
+					buffer[position++] = (byte) (0xF0 | (codePoint >>> 18));
+					buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+					buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					buffer[position++] = '?';
+				} else {
+					buffer[position++] = (byte) (0xE0 | (c >>> 12));
+					buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			this.position = position;
+			chunkStart = i;
+		}
+	}
+	
+	private void ensureCapacity(int bytes) {
+		if (position + bytes <= buffer.length)
+			return;
+		long required = (long) position + bytes;
+		if (required > Integer.MAX_VALUE - 8)
+			throw new OutOfMemoryError("Encoded message is too large");
+		ByteBuffer grown = pool.acquireHeap((int) Math.max(required, Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L)));
+		System.arraycopy(buffer, 0, grown.array(), 0, position);
+		pool.release(scratch);
+		scratch = grown;
+		buffer = grown.array();
+	}
+	
+}
@@ -0,0 +1,43 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.websockets.OpCode;
+import org.nanohttpd.protocols.websockets.WebSocketFrame;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Several encoded frames copied back-to-back into one pooled buffer, so NanoHTTPD's
+ * {@link org.nanohttpd.protocols.websockets.WebSocket#sendFrame} writes all of them to the socket in a single call.  This isn't a real frame:
+ * the payload accessors return an empty payload, and only {@link #write} is meaningful.  Call {@link #release()} once it's been sent
+ */
+class JSONWebSocketFrameBatch extends WebSocketFrame {
+	
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	
+	private final JSONWebSocketBufferPool pool;
+	private final ByteBuffer batch;
+	
+	JSONWebSocketFrameBatch(@Nonnull List<JSONWebSocketEncodedFrame> frames, int length, @Nonnull JSONWebSocketBufferPool pool) {
+		super(OpCode.Text, true, EMPTY_PAYLOAD);
+		this.pool = pool;
+		this.batch = pool.acquireHeap(length);
+		for (JSONWebSocketEncodedFrame frame : frames)
+			batch.put(frame.getFrame());
+		batch.flip();
+	}
+	
+	@Override
+	public void write(OutputStream out) throws IOException {
+		JSONWebSocketEncodedFrame.write(out, batch.duplicate());
+		out.flush();
+	}
+	
+	void release() {
+		pool.release(batch);
+	}
+	
+}
@@ -0,0 +1,112 @@
+package me.joshlarson.json.websocket.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A latency histogram that any number of threads can record into at once.  Every bucket is a {@link LongAdder}, so threads recording similar
+ * latencies at the same time don't contend on one counter.  The buckets are log-linear, 8 per power of two between 1 microsecond and 34
+ * seconds, so percentiles are within about 6% of the real value.  The same layout backs {@link JSONWebSocketRttStats}
+ */
+final class JSONWebSocketLatencyHistogram {
+	
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MIN_EXPONENT = 10;
+	private static final int MAX_EXPONENT = 34;
+	// One bucket below 2^MIN_EXPONENT, the log-linear buckets, then one bucket for everything past 2^(MAX_EXPONENT+1)
+	static final int BUCKETS = 2 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+	
+	private final LongAdder[] buckets;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+	
+	JSONWebSocketLatencyHistogram() {
+		this.buckets = new LongAdder[BUCKETS];
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(new LongBinaryOperator() {
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+	
+	/**
+	 * Adds a sample
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	void record(long nanos) {
+		long value = Math.max(0, nanos);
+		buckets[getBucket(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+		count.increment();
+	}
+	
+	long getCount() {
+		return count.sum();
+	}
+	
+	long getMeanNanos() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+	
+	long getMaxNanos() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns an estimate of a percentile of every sample recorded
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the estimated latency in nanoseconds, or 0 if there are no samples
+	 */
+	long getPercentileNanos(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(getMaxNanos(), getBucketMidpoint(i));
+		}
+		return getMaxNanos();
+	}
+	
+	static int getBucket(long value) {
+		if (value < 1L << MIN_EXPONENT)
+			return 0;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+	
+	static long getBucketMidpoint(int bucket) {
+		if (bucket == 0)
+			return (1L << MIN_EXPONENT) / 2;
+		if (bucket == BUCKETS - 1)
+			return 1L << (MAX_EXPONENT + 1);
+		int exponent = MIN_EXPONENT + (bucket - 1) / SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + ((bucket - 1) % SUB_BUCKETS) * width + width / 2;
+	}
+	
+}
@@ -0,0 +1,266 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONException;
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An incoming message whose values are only decoded when they're read.  When the message arrives it's validated, and the position of each
+ * top-level field in the payload is recorded, but nothing other than the keys is created.  Each value is decoded the first time it's read, so a
+ * handler that only looks at a "type" field pays for decoding that one field.  Messages that arrive through a binary codec are always decoded
+ * in full, and are simply wrapped. <p>
+ * A lazy message reads straight from the frame's buffer, which goes back to the server's buffer pool once the handler returns.  It's only valid
+ * during {@link JSONWebSocketConnectionHandler#onLazyMessage(JSONWebSocketConnection, JSONWebSocketLazyMessage)}, and every method throws an
+ * IllegalStateException after that, apart from {@link #toJSONObject()} if it was already called.  It is not thread-safe </p>
+ */
+public final class JSONWebSocketLazyMessage {
+	
+	private static final Object UNREAD = new Object();
+	private static final int INITIAL_FIELDS = 8;
+	private static final int MAX_LINEAR_FIELDS = 16;
+	
+	private final byte[] buffer;
+	private final JSONWebSocketKeyCache cache;
+	private String[] keys;
+	private int[] valueOffsets;
+	private int[] valueLengths;
+	private Object[] values;
+	private int fields;
+	private Map<String, Integer> fieldIndex;
+	private JSONObject object;
+	private boolean closed;
+	
+	private JSONWebSocketLazyMessage(@CheckForNull byte[] buffer, @CheckForNull JSONWebSocketKeyCache cache, @CheckForNull JSONObject object) {
+		this.buffer = buffer;
+		this.cache = cache;
+		this.keys = new String[object == null ? INITIAL_FIELDS : 0];
+		this.valueOffsets = new int[keys.length];
+		this.valueLengths = new int[keys.length];
+		this.values = new Object[keys.length];
+		this.fields = 0;
+		this.fieldIndex = null;
+		this.object = object;
+		this.closed = false;
+	}
+	
+	/**
+	 * Wraps an object that has already been decoded
+	 *
+	 * @param object the decoded message
+	 */
+	JSONWebSocketLazyMessage(@Nonnull JSONObject object) {
+		this(null, null, object);
+	}
+	
+	/**
+	 * Validates a text message and indexes its top-level fields.  If the buffer is direct, its bytes are copied to an array first
+	 *
+	 * @param payload the UTF-8 payload, which must not change while the message is in use
+	 * @param cache   the cache to look strings up in, or null to allocate every string
+	 * @return the indexed message
+	 * @throws JSONException if the payload isn't a single valid JSON object
+	 */
+	@Nonnull
+	static JSONWebSocketLazyMessage index(@Nonnull ByteBuffer payload, @CheckForNull JSONWebSocketKeyCache cache) throws JSONException {
+		byte[] buffer;
+		int offset;
+		if (payload.hasArray()) {
+			buffer = payload.array();
+			offset = payload.arrayOffset() + payload.position();
+		} else {
+			buffer = new byte[payload.remaining()];
+			offset = 0;
+			payload.duplicate().get(buffer);
+		}
+		JSONWebSocketLazyMessage message = new JSONWebSocketLazyMessage(buffer, cache, null);
+		JSONWebSocketDecoder.index(buffer, offset, payload.remaining(), cache, message);
+		return message;
+	}
+	
+	/**
+	 * Returns whether the message has a top-level field with the specified key, without decoding its value
+	 *
+	 * @param key the key to look for
+	 * @return TRUE if the field exists, FALSE otherwise
+	 */
+	public boolean containsKey(@Nonnull String key) {
+		ensureOpen();
+		if (object != null)
+			return object.containsKey(key);
+		return find(key) != -1;
+	}
+	
+	/**
+	 * Returns the keys of the top-level fields, in the order they appear in the message, without decoding any values
+	 *
+	 * @return an unmodifiable set of keys
+	 */
+	@Nonnull
+	public Set<String> keySet() {
+		ensureOpen();
+		if (object != null)
+			return Collections.unmodifiableSet(object.keySet());
+		return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(keys).subList(0, fields)));
+	}
+	
+	/**
+	 * Returns the value of a top-level field, decoding it the first time it's read.  Nested objects and arrays are decoded in full
+	 *
+	 * @param key the key of the field
+	 * @return the value, or null if the field doesn't exist or is null
+	 */
+	@CheckForNull
+	public Object get(@Nonnull String key) {
+		ensureOpen();
+		if (object != null)
+			return object.get(key);
+		int field = find(key);
+		return field == -1 ? null : getValue(field);
+	}
+	
+	/**
+	 * Returns the value of a top-level field if it's a string
+	 *
+	 * @param key the key of the field
+	 * @return the string, or null if the field doesn't exist or isn't a string
+	 */
+	@CheckForNull
+	public String getString(@Nonnull String key) {
+		Object value = get(key);
+		return value instanceof String ? (String) value : null;
+	}
+	
+	/**
+	 * Decodes every field that hasn't been read yet, and returns the whole message as a JSONObject.  Later calls return the same object, which
+	 * stays valid after the handler returns
+	 *
+	 * @return the decoded message
+	 */
+	@Nonnull
+	public JSONObject toJSONObject() {
+		JSONObject object = this.object;
+		if (object != null)
+			return object;
+		ensureOpen();
+		object = new JSONObject();
+		for (int i = 0; i < fields; i++)
+			object.put(keys[i], getValue(i));
+		this.object = object;
+		return object;
+	}
+	
+	@Override
+	public String toString() {
+		if (object == null && closed)
+			return "JSONWebSocketLazyMessage[" + fields + " fields, closed]";
+		return toJSONObject().toString(true);
+	}
+	
+	/**
+	 * Records a top-level field found by {@link JSONWebSocketDecoder#index(byte[], int, int, JSONWebSocketKeyCache, JSONWebSocketLazyMessage)}
+	 */
+	void addField(@Nonnull String key, int offset, int length) {
+		if (fields == keys.length) {
+			int capacity = fields * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+			valueLengths = Arrays.copyOf(valueLengths, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		keys[fields] = key;
+		valueOffsets[fields] = offset;
+		valueLengths[fields] = length;
+		values[fields] = UNREAD;
+		fields++;
+	}
+	
+	/**
+	 * Returns the buffer that the indexed fields point into
+	 *
+	 * @return the payload buffer, or null if the message wraps an already decoded object
+	 */
+	@CheckForNull
+	byte[] getBuffer() {
+		ensureOpen();
+		return buffer;
+	}
+	
+	/**
+	 * Returns the index of the field with the specified key, for {@link #getValueOffset(int)} and {@link #getValueLength(int)}
+	 *
+	 * @param key the key of the field
+	 * @return the field's index, or -1 if it doesn't exist or the message wraps an already decoded object
+	 */
+	int findField(@Nonnull String key) {
+		ensureOpen();
+		return buffer == null ? -1 : find(key);
+	}
+	
+	int getValueOffset(int field) {
+		return valueOffsets[field];
+	}
+	
+	int getValueLength(int field) {
+		return valueLengths[field];
+	}
+	
+	/**
+	 * Called once the handler has returned, after which the payload may be reused
+	 */
+	void close() {
+		closed = true;
+	}
+	
+	private void ensureOpen() {
+		if (closed)
+			throw new IllegalStateException("A lazy message can only be read during onLazyMessage; keep toJSONObject() instead");
+	}
+	
+	/**
+	 * Returns the index of the last field with the specified key, the same one a JSONObject would keep.  Small messages are searched in order,
+	 * and larger ones build a map on the first lookup
+	 */
+	private int find(String key) {
+		if (fields > MAX_LINEAR_FIELDS) {
+			Map<String, Integer> fieldIndex = this.fieldIndex;
+			if (fieldIndex == null) {
+				fieldIndex = new HashMap<>(fields * 2);
+				for (int i = 0; i < fields; i++)
+					fieldIndex.put(keys[i], i);
+				this.fieldIndex = fieldIndex;
+			}
+			Integer field = fieldIndex.get(key);
+			return field == null ? -1 : field;
+		}
+		for (int i = fields - 1; i >= 0; i--) {
+			String candidate = keys[i];
+			if (candidate == key || candidate.equals(key))
+				return i;
+		}
+		return -1;
+	}
+	
+	private Object getValue(int field) {
+		Object value = values[field];
+		if (value != UNREAD)
+			return value;
+		try {
+			value = JSONWebSocketDecoder.decodeValue(buffer, valueOffsets[field], valueLengths[field], cache);
+		} catch (JSONException e) {
+			// The whole message was validated when it was indexed
+			throw new IllegalStateException("Indexed value failed to decode", e);
+		}
+		values[field] = value;
+		return value;
+	}
+	
+}
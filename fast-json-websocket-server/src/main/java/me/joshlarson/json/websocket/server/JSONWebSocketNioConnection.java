@@ -0,0 +1,665 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.http.IHTTPSession;
+import org.nanohttpd.protocols.websockets.CloseCode;
+import org.nanohttpd.protocols.websockets.WebSocketException;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single connection serviced by a {@link JSONWebSocketNioEventLoop}.  All reads and frame parsing happen on the event loop thread, while writes may
+ * come from any thread and are attempted immediately, with anything the socket won't take queued until the event loop sees the socket as writable
+ */
+class JSONWebSocketNioConnection implements JSONWebSocketTransport {
+	
+	static final int OPCODE_CONTINUATION = 0x0;
+	static final int OPCODE_TEXT = 0x1;
+	static final int OPCODE_BINARY = 0x2;
+	static final int OPCODE_CLOSE = 0x8;
+	static final int OPCODE_PING = 0x9;
+	static final int OPCODE_PONG = 0xA;
+	
+	private static final int MAX_HANDSHAKE_SIZE = 16 * 1024;
+	private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+	
+	private final JSONWebSocketNioEventLoop loop;
+	private final JSONWebSocketServer server;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final JSONWebSocketConnection socket;
+	private final Queue<ByteBuffer> outbound;
+	private final List<JSONWebSocketEncodedFrame> unflushed;
+	private final AtomicBoolean closed;
+	private final AtomicBoolean flushing;
+	private final Runnable flush;
+	private volatile IHTTPSession handshake;
+	private volatile boolean upgraded;
+	private volatile boolean closing;
+	private volatile JSONWebSocketDeflate deflate;
+	private ByteBuffer inbound;
+	private ByteBuffer fragments;
+	private boolean fragmentsCompressed;
+	private boolean fragmentsBinary;
+	
+	JSONWebSocketNioConnection(@Nonnull JSONWebSocketNioEventLoop loop, @Nonnull SocketChannel channel, @Nonnull SelectionKey key, @Nonnull JSONWebSocketServer server) {
+		this.loop = loop;
+		this.server = server;
+		this.channel = channel;
+		this.key = key;
+		this.socket = new JSONWebSocketConnection(this, server);
+		this.outbound = new ArrayDeque<>();
+		this.unflushed = new ArrayList<>();
+		this.closed = new AtomicBoolean(false);
+		this.flushing = new AtomicBoolean(false);
+		this.flush = new Runnable() {
+			public void run() {
+				flushing.set(false);
+				onFlushQueue();
+			}
+		};
+		this.handshake = null;
+		this.upgraded = false;
+		this.closing = false;
+		this.deflate = null;
+		this.inbound = null;
+		this.fragments = null;
+		this.fragmentsCompressed = false;
+		this.fragmentsBinary = false;
+	}
+	
+	@Nonnull
+	@Override
+	public IHTTPSession getHandshakeRequest() {
+		IHTTPSession handshake = this.handshake;
+		if (handshake == null)
+			throw new IllegalStateException("handshake has not completed");
+		return handshake;
+	}
+	
+	@Override
+	public boolean isCompressed() {
+		return deflate != null;
+	}
+	
+	@Override
+	public void sendEncoded(@Nonnull JSONWebSocketEncodedFrame frame) throws IOException {
+		JSONWebSocketDeflate deflate = this.deflate;
+		if (deflate == null) {
+			write(frame.getFrame(), false);
+			return;
+		}
+		JSONWebSocketBufferPool pool = server.getBufferPool();
+		synchronized (outbound) {
+			// Compressed frames have to reach the socket in the order they were compressed, so both happen under the lock
+			if (closing || closed.get())
+				throw new IOException("Socket closed");
+			ByteBuffer compressed = deflate.compress(frame.getPayload(), frame.getOpCode().getValue(), pool);
+			if (compressed == null) {
+				write(frame.getFrame(), false);
+				return;
+			}
+			try {
+				write(compressed, false);
+			} finally {
+				pool.release(compressed);
+			}
+		}
+	}
+	
+	@Override
+	public void flushQueue() {
+		if (flushing.compareAndSet(false, true))
+			loop.execute(flush);
+	}
+	
+	@Override
+	public void ping(@Nonnull byte[] data) throws IOException {
+		write(encodeFrame(OPCODE_PING, data), false);
+	}
+	
+	@Override
+	public void pingAsync(@Nonnull byte[] data) {
+		// Writes never block on this engine; whatever the socket can't take is queued for the event loop
+		try {
+			ping(data);
+		} catch (IOException e) {
+			if (!closed.get())
+				socket.onError(e);
+		}
+	}
+	
+	@Override
+	public void close(@Nonnull CloseCode code, @Nonnull String reason) throws IOException {
+		if (!upgraded) {
+			closeChannel();
+			return;
+		}
+		synchronized (outbound) {
+			if (closing || closed.get())
+				return;
+			write(encodeFrame(OPCODE_CLOSE, createClosePayload(code.getValue(), reason)), true);
+		}
+	}
+	
+	/**
+	 * Called by the event loop when the channel has data to read
+	 *
+	 * @param readBuffer the event loop's shared read buffer, used whenever this connection has no partial data left over from a previous read
+	 */
+	void onReadable(@Nonnull ByteBuffer readBuffer) {
+		ByteBuffer buffer = inbound;
+		if (buffer == null) {
+			buffer = readBuffer;
+			buffer.clear();
+		}
+		try {
+			if (channel.read(buffer) == -1) {
+				if (!closing)
+					onException(new EOFException("Connection closed without a close frame"));
+				closeChannel();
+				return;
+			}
+		} catch (IOException e) {
+			onException(e);
+			closeChannel();
+			return;
+		}
+		buffer.flip();
+		int needed;
+		try {
+			needed = upgraded ? processFrames(buffer) : processHandshake(buffer);
+		} catch (WebSocketException e) {
+			onException(e);
+			fail(e.getCode(), e.getReason());
+			return;
+		} catch (IOException e) {
+			onException(e);
+			closeChannel();
+			return;
+		}
+		if (closed.get() || !buffer.hasRemaining()) {
+			inbound = null;
+			return;
+		}
+		if (buffer == readBuffer || buffer.capacity() < needed) {
+			ByteBuffer retained = ByteBuffer.allocate(Math.max(needed, buffer.remaining()));
+			retained.put(buffer);
+			inbound = retained;
+		} else {
+			buffer.compact();
+		}
+	}
+	
+	/**
+	 * Called by the event loop when the channel can accept more queued data
+	 */
+	void onWritable() {
+		IOException exception = null;
+		synchronized (outbound) {
+			try {
+				if (!outbound.isEmpty()) {
+					channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+					ByteBuffer head;
+					while ((head = outbound.peek()) != null && !head.hasRemaining())
+						outbound.poll();
+					if (head != null)
+						return;
+					complete(unflushed, SendStatus.WRITTEN);
+				}
+				if (!closing && !writeQueued())
+					return;
+				if (key.isValid())
+					key.interestOps(SelectionKey.OP_READ);
+				if (!closing)
+					return;
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		if (exception != null)
+			onException(exception);
+		closeChannel();
+	}
+	
+	private void onFlushQueue() {
+		IOException exception = null;
+		synchronized (outbound) {
+			// Anything still in outbound means the socket is full, and onWritable() will pick up the queue once it drains
+			if (closing || closed.get() || !outbound.isEmpty())
+				return;
+			try {
+				writeQueued();
+				return;
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		onException(exception);
+		closeChannel();
+	}
+	
+	/**
+	 * Writes frames from the connection's outbound queue until either the queue is empty or the socket is full.  Frames are written in batches of
+	 * up to the server's maximum write batch size, each with a single gathering write, and released back to the buffer pool once written.  On a
+	 * compressed connection each frame is compressed as it's taken from the queue.  A frame the socket only took part of is completed as written
+	 * once outbound drains.  Must be called on the event loop thread, holding the outbound lock, with nothing in outbound
+	 *
+	 * @return TRUE if the queue was emptied, FALSE if the socket filled up and the event loop is now waiting for it to be writable
+	 * @throws IOException if the write fails
+	 */
+	private boolean writeQueued() throws IOException {
+		int maxBatchBytes = server.getMaxWriteBatchBytes();
+		JSONWebSocketBufferPool pool = server.getBufferPool();
+		JSONWebSocketDeflate deflate = this.deflate;
+		List<JSONWebSocketEncodedFrame> frames = new ArrayList<>();
+		List<ByteBuffer> compressed = new ArrayList<>();
+		List<ByteBuffer> batch = new ArrayList<>();
+		while (true) {
+			try {
+				int batchBytes = 0;
+				JSONWebSocketEncodedFrame frame;
+				while (batchBytes < maxBatchBytes && (frame = socket.pollQueued()) != null) {
+					frames.add(frame);
+					ByteBuffer data = deflate == null ? null : deflate.compress(frame.getPayload(), frame.getOpCode().getValue(), pool);
+					if (data == null)
+						data = frame.getFrame();
+					else
+						compressed.add(data);
+					batch.add(data);
+					batchBytes += data.remaining();
+				}
+				if (batch.isEmpty())
+					return true;
+				ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+				batch.clear();
+				channel.write(buffers);
+				int flushed = buffers.length;
+				for (int i = 0; i < buffers.length; i++) {
+					if (buffers[i].hasRemaining()) {
+						flushed = Math.min(flushed, i);
+						outbound.add(detach(buffers[i]));
+					}
+				}
+				// Only completed once the rest of the batch is in outbound, in case a dependent stage sends something straight away
+				for (int i = 0; i < buffers.length; i++) {
+					if (i < flushed)
+						frames.get(i).complete(SendStatus.WRITTEN);
+					else
+						unflushed.add(frames.get(i));
+				}
+			} catch (IOException e) {
+				for (JSONWebSocketEncodedFrame failed : frames)
+					failed.complete(SendStatus.CLOSED);
+				throw e;
+			} finally {
+				for (JSONWebSocketEncodedFrame written : frames)
+					written.release();
+				frames.clear();
+				for (ByteBuffer written : compressed)
+					pool.release(written);
+				compressed.clear();
+			}
+			if (!outbound.isEmpty()) {
+				if (key.isValid())
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return false;
+			}
+		}
+	}
+	
+	@Override
+	public void abort() {
+		loop.execute(new Runnable() {
+			public void run() {
+				closeChannel();
+			}
+		});
+	}
+	
+	/**
+	 * Closes the underlying channel without any close handshake, notifying the handler if the connection had been opened
+	 */
+	void closeChannel() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// The channel is gone either way
+		}
+		synchronized (outbound) {
+			outbound.clear();
+			complete(unflushed, SendStatus.CLOSED);
+			JSONWebSocketDeflate deflate = this.deflate;
+			if (deflate != null)
+				deflate.close();
+		}
+		if (upgraded)
+			socket.onClose();
+	}
+	
+	private void write(@Nonnull ByteBuffer data, boolean closeAfterWrite) throws IOException {
+		synchronized (outbound) {
+			if (closing || closed.get())
+				throw new IOException("Socket closed");
+			if (outbound.isEmpty()) {
+				try {
+					channel.write(data);
+				} catch (IOException e) {
+					loop.execute(new Runnable() {
+						public void run() {
+							closeChannel();
+						}
+					});
+					throw e;
+				}
+			}
+			closing = closeAfterWrite;
+			if (data.hasRemaining()) {
+				outbound.add(detach(data));
+				loop.execute(new Runnable() {
+					public void run() {
+						if (key.isValid())
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				});
+			} else if (closeAfterWrite && outbound.isEmpty()) {
+				loop.execute(new Runnable() {
+					public void run() {
+						closeChannel();
+					}
+				});
+			}
+		}
+	}
+	
+	private int processHandshake(@Nonnull ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int end = -1;
+		for (int i = start; i + 3 < buffer.limit(); i++) {
+			if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			if (buffer.remaining() >= MAX_HANDSHAKE_SIZE) {
+				reject(JSONWebSocketNioHandshake.createErrorResponse("431 Request Header Fields Too Large", "Request Header Fields Too Large"));
+				return 0;
+			}
+			return Math.min(buffer.remaining() * 2 + 512, MAX_HANDSHAKE_SIZE);
+		}
+		byte[] request = new byte[end - start];
+		buffer.get(request);
+		buffer.position(end + 4);
+		
+		JSONWebSocketNioHandshake handshake;
+		try {
+			handshake = JSONWebSocketNioHandshake.parse(new String(request, StandardCharsets.ISO_8859_1), (InetSocketAddress) channel.getRemoteAddress(), server);
+		} catch (ProtocolException e) {
+			reject(JSONWebSocketNioHandshake.createErrorResponse("400 Bad Request", e.getMessage()));
+			return 0;
+		}
+		handshake.execute();
+		byte[] response = handshake.getResponse();
+		if (!JSONWebSocketNioHandshake.isUpgrade(response)) {
+			reject(response);
+			return 0;
+		}
+		this.handshake = handshake;
+		this.deflate = handshake.getDeflate();
+		write(ByteBuffer.wrap(response), false);
+		this.upgraded = true;
+		socket.onOpen();
+		return processFrames(buffer);
+	}
+	
+	private int processFrames(@Nonnull ByteBuffer buffer) throws IOException {
+		while (!closed.get()) {
+			int start = buffer.position();
+			int available = buffer.remaining();
+			if (available < 2)
+				return 2;
+			int b0 = buffer.get(start) & 0xFF;
+			int b1 = buffer.get(start + 1) & 0xFF;
+			int lengthBits = b1 & 0x7F;
+			int headerLength = 2 + (lengthBits == 126 ? 2 : (lengthBits == 127 ? 8 : 0)) + 4;
+			if (available < headerLength)
+				return headerLength;
+			boolean fin = (b0 & 0x80) != 0;
+			boolean compressed = (b0 & 0x40) != 0;
+			int opcode = b0 & 0x0F;
+			// RSV1 marks the first frame of a compressed message, and is only allowed once permessage-deflate has been negotiated
+			if ((b0 & 0x30) != 0 || (compressed && (deflate == null || (opcode != OPCODE_TEXT && opcode != OPCODE_BINARY))))
+				throw new WebSocketException(CloseCode.ProtocolError, "Reserved bits must be zero");
+			if ((b1 & 0x80) == 0)
+				throw new WebSocketException(CloseCode.ProtocolError, "Client frames must be masked");
+			long payloadLength = lengthBits == 126 ? buffer.getShort(start + 2) & 0xFFFF : (lengthBits == 127 ? buffer.getLong(start + 2) : lengthBits);
+			if (payloadLength < 0 || payloadLength > MAX_MESSAGE_SIZE)
+				throw new WebSocketException(CloseCode.MessageTooBig, "Max message size is " + MAX_MESSAGE_SIZE);
+			int frameLength = headerLength + (int) payloadLength;
+			if (available < frameLength)
+				return frameLength;
+			
+			int maskOffset = start + headerLength - 4;
+			byte[] mask = new byte[]{buffer.get(maskOffset), buffer.get(maskOffset + 1), buffer.get(maskOffset + 2), buffer.get(maskOffset + 3)};
+			buffer.position(start + headerLength);
+			if (opcode >= OPCODE_CLOSE) {
+				byte[] payload = new byte[(int) payloadLength];
+				buffer.get(payload);
+				for (int i = 0; i < payload.length; i++)
+					payload[i] ^= mask[i & 3];
+				onControlFrame(fin, opcode, payload);
+			} else {
+				ByteBuffer payload = server.getBufferPool().acquire((int) payloadLength);
+				readMasked(buffer, payload, mask);
+				onDataFrame(fin, opcode, compressed, payload);
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Handles a text, binary or continuation frame.  The payload is a pooled buffer, which is either handed to the connection along with the
+	 * message or released here.  Compressed messages are decompressed once all of their fragments have arrived
+	 */
+	private void onDataFrame(boolean fin, int opcode, boolean compressed, @Nonnull ByteBuffer payload) throws IOException {
+		JSONWebSocketBufferPool pool = server.getBufferPool();
+		switch (opcode) {
+			case OPCODE_CONTINUATION:
+				if (fragments == null) {
+					pool.release(payload);
+					throw new WebSocketException(CloseCode.ProtocolError, "Continuous frame sequence was not started.");
+				}
+				if (fragments.position() + payload.remaining() > MAX_MESSAGE_SIZE) {
+					pool.release(payload);
+					throw new WebSocketException(CloseCode.MessageTooBig, "Max message size is " + MAX_MESSAGE_SIZE);
+				}
+				appendFragment(payload);
+				if (fin) {
+					ByteBuffer message = fragments;
+					fragments = null;
+					message.flip();
+					socket.onPooledMessage(fragmentsCompressed ? deflate.decompress(message, MAX_MESSAGE_SIZE, pool) : message, fragmentsBinary);
+				}
+				break;
+			case OPCODE_TEXT:
+			case OPCODE_BINARY:
+				if (fragments != null) {
+					pool.release(payload);
+					throw new WebSocketException(CloseCode.ProtocolError, "Continuous frame sequence not completed.");
+				}
+				if (fin) {
+					socket.onPooledMessage(compressed ? deflate.decompress(payload, MAX_MESSAGE_SIZE, pool) : payload, opcode == OPCODE_BINARY);
+				} else {
+					fragmentsCompressed = compressed;
+					fragmentsBinary = opcode == OPCODE_BINARY;
+					fragments = pool.acquire(payload.remaining() * 2);
+					fragments.limit(fragments.capacity());
+					appendFragment(payload);
+				}
+				break;
+			default:
+				pool.release(payload);
+				throw new WebSocketException(CloseCode.ProtocolError, "Unknown opcode: " + opcode);
+		}
+	}
+	
+	/**
+	 * Copies a fragment's payload onto the end of the message being reassembled, moving to a larger pooled buffer if needed, and releases the
+	 * fragment's buffer
+	 */
+	private void appendFragment(@Nonnull ByteBuffer payload) {
+		JSONWebSocketBufferPool pool = server.getBufferPool();
+		if (fragments.remaining() < payload.remaining()) {
+			ByteBuffer grown = pool.acquire(Math.max(fragments.position() + payload.remaining(), fragments.capacity() * 2));
+			grown.limit(grown.capacity());
+			fragments.flip();
+			grown.put(fragments);
+			pool.release(fragments);
+			fragments = grown;
+		}
+		fragments.put(payload);
+		pool.release(payload);
+	}
+	
+	private void onControlFrame(boolean fin, int opcode, @Nonnull byte[] payload) throws IOException {
+		if (!fin || payload.length > 125)
+			throw new WebSocketException(CloseCode.ProtocolError, "Control frames must not be fragmented or exceed 125 bytes");
+		switch (opcode) {
+			case OPCODE_CLOSE:
+				onCloseFrame(payload);
+				break;
+			case OPCODE_PING:
+				if (!closing)
+					write(encodeFrame(OPCODE_PONG, payload), false);
+				break;
+			case OPCODE_PONG:
+				socket.onPong(payload);
+				break;
+			default:
+				throw new WebSocketException(CloseCode.ProtocolError, "Unknown opcode: " + opcode);
+		}
+	}
+	
+	private void onCloseFrame(@Nonnull byte[] payload) throws IOException {
+		synchronized (outbound) {
+			if (closing) {
+				// Answer for our requested close
+				outbound.clear();
+				closeChannel();
+				return;
+			}
+		}
+		int code = CloseCode.NormalClosure.getValue();
+		if (payload.length == 1)
+			throw new WebSocketException(CloseCode.ProtocolError, "Close frame payload must be empty or at least 2 bytes");
+		if (payload.length >= 2) {
+			code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+			if (code < 1000 || code >= 5000 || code == 1004 || code == 1005 || code == 1006 || (code >= 1015 && code < 3000))
+				throw new WebSocketException(CloseCode.ProtocolError, "Invalid close code: " + code);
+		}
+		write(encodeFrame(OPCODE_CLOSE, createClosePayload(code, "")), true);
+	}
+	
+	private void fail(@Nonnull CloseCode code, @Nonnull String reason) {
+		try {
+			close(code, reason);
+		} catch (IOException e) {
+			closeChannel();
+		}
+	}
+	
+	private void reject(@Nonnull byte[] response) throws IOException {
+		write(ByteBuffer.wrap(response), true);
+	}
+	
+	/**
+	 * Completes every frame in the list with the same outcome, and empties the list
+	 */
+	private static void complete(@Nonnull List<JSONWebSocketEncodedFrame> frames, @Nonnull SendStatus status) {
+		for (JSONWebSocketEncodedFrame frame : frames)
+			frame.complete(status);
+		frames.clear();
+	}
+	
+	private void onException(@Nonnull IOException e) {
+		if (upgraded && !closed.get())
+			socket.onError(e);
+	}
+	
+	/**
+	 * Copies a masked payload out of the read buffer into the destination's remaining space, unmasking it along the way
+	 */
+	private static void readMasked(@Nonnull ByteBuffer source, @Nonnull ByteBuffer destination, @Nonnull byte[] mask) {
+		int start = destination.position();
+		int length = destination.remaining();
+		if (destination.hasArray()) {
+			byte[] array = destination.array();
+			int offset = destination.arrayOffset() + start;
+			source.get(array, offset, length);
+			for (int i = 0; i < length; i++)
+				array[offset + i] ^= mask[i & 3];
+		} else {
+			for (int i = 0; i < length; i++)
+				destination.put(start + i, (byte) (source.get() ^ mask[i & 3]));
+		}
+	}
+	
+	/**
+	 * Copies the unwritten part of a buffer that's about to wait in outbound, since the buffer may be pooled and given back as soon as this
+	 * write returns.  This only happens when the socket is full, so the copy isn't on the common path
+	 */
+	@Nonnull
+	private static ByteBuffer detach(@Nonnull ByteBuffer data) {
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data);
+		copy.flip();
+		return copy;
+	}
+	
+	@Nonnull
+	static ByteBuffer encodeFrame(int opcode, @Nonnull byte[] payload) {
+		int headerLength = payload.length < 126 ? 2 : (payload.length <= 0xFFFF ? 4 : 10);
+		ByteBuffer frame = ByteBuffer.allocate(headerLength + payload.length);
+		frame.put((byte) (0x80 | opcode));
+		if (payload.length < 126) {
+			frame.put((byte) payload.length);
+		} else if (payload.length <= 0xFFFF) {
+			frame.put((byte) 126);
+			frame.putShort((short) payload.length);
+		} else {
+			frame.put((byte) 127);
+			frame.putLong(payload.length);
+		}
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+	
+	@Nonnull
+	private static byte[] createClosePayload(int code, @Nonnull String reason) {
+		byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+		int reasonLength = Math.min(reasonBytes.length, 123);
+		byte[] payload = new byte[2 + reasonLength];
+		payload[0] = (byte) (code >> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+		return payload;
+	}
+	
+}
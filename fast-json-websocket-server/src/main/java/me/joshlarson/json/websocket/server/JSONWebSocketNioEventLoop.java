@@ -0,0 +1,167 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * One selector thread of the NIO engine.  Every connection is owned by exactly one event loop for its whole lifetime, so reads and callbacks for a
+ * given connection always happen in order on the same thread
+ */
+class JSONWebSocketNioEventLoop implements Runnable {
+	
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private final JSONWebSocketServer server;
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final ByteBuffer readBuffer;
+	private final AtomicBoolean running;
+	private final Thread thread;
+	
+	JSONWebSocketNioEventLoop(@Nonnull JSONWebSocketServer server, int index, boolean daemon) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.running = new AtomicBoolean(false);
+		this.thread = new Thread(this, "JSONWebSocket NIO Event Loop #" + index);
+		this.thread.setDaemon(daemon);
+	}
+	
+	void start() {
+		running.set(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops the event loop, closing every connection that it owns
+	 */
+	void stop() {
+		running.set(false);
+		if (thread.getState() == Thread.State.NEW)
+			closeAll();
+		else
+			selector.wakeup();
+	}
+	
+	/**
+	 * Waits for the event loop thread to finish closing its connections.  Returns immediately if called from the event loop thread itself
+	 */
+	void awaitTermination() {
+		if (Thread.currentThread() == thread)
+			return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Hands a newly accepted channel to this event loop
+	 *
+	 * @param channel the accepted channel
+	 */
+	void register(@Nonnull final SocketChannel channel) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					key.attach(new JSONWebSocketNioConnection(JSONWebSocketNioEventLoop.this, channel, key, server));
+				} catch (IOException e) {
+					try {
+						channel.close();
+					} catch (IOException t) {
+						// Nothing left to clean up
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Runs the task on the event loop thread
+	 *
+	 * @param task the task to run
+	 */
+	void execute(@Nonnull Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (running.get()) {
+				// Tasks queued from this thread don't wake the selector, so don't block while any are waiting
+				if (tasks.isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+				runTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					JSONWebSocketNioConnection connection = (JSONWebSocketNioConnection) key.attachment();
+					if (key.isValid() && key.isReadable())
+						connection.onReadable(readBuffer);
+					if (key.isValid() && key.isWritable())
+						connection.onWritable();
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// Selector closed underneath us
+		} catch (IOException e) {
+			NanoHTTPD.LOG.log(Level.SEVERE, "Unexpected error in NIO event loop", e);
+		} finally {
+			closeAll();
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				NanoHTTPD.LOG.log(Level.SEVERE, "Exception in NIO event loop task", t);
+			}
+		}
+	}
+	
+	private void closeAll() {
+		runTasks();
+		List<JSONWebSocketNioConnection> connections = new ArrayList<>();
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof JSONWebSocketNioConnection)
+				connections.add((JSONWebSocketNioConnection) attachment);
+		}
+		for (JSONWebSocketNioConnection connection : connections)
+			connection.closeChannel();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Shutting down anyways
+		}
+	}
+	
+}
@@ -0,0 +1,272 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.http.IHTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.content.CookieHandler;
+import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.websockets.NanoWSD;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The HTTP upgrade request for a connection accepted by the NIO engine.  Headers are stored with lower case names, the same as NanoHTTPD.  Like
+ * NanoHTTPD's sessions, the request is answered by {@link #execute()}, after which the response and any negotiated extension can be read
+ */
+class JSONWebSocketNioHandshake implements IHTTPSession {
+	
+	static final String HEADER_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+	
+	private final Method method;
+	private final String uri;
+	private final String queryParameterString;
+	private final Map<String, String> headers;
+	private final Map<String, List<String>> parameters;
+	private final InetSocketAddress remoteAddress;
+	private final JSONWebSocketServer server;
+	private JSONWebSocketDeflate deflate;
+	private byte[] response;
+	
+	private JSONWebSocketNioHandshake(Method method, String uri, String queryParameterString, Map<String, String> headers, InetSocketAddress remoteAddress, JSONWebSocketServer server) {
+		this.method = method;
+		this.uri = uri;
+		this.queryParameterString = queryParameterString;
+		this.headers = headers;
+		this.parameters = decodeParameters(queryParameterString);
+		this.remoteAddress = remoteAddress;
+		this.server = server;
+		this.deflate = null;
+		this.response = null;
+	}
+	
+	/**
+	 * Answers the request with the server's settings: negotiates permessage-deflate and the binary codec's subprotocol, and builds either the
+	 * 101 upgrade response or an error response.  Executing the request again builds the same response
+	 */
+	@Override
+	public void execute() {
+		JSONWebSocketDeflate deflate = null;
+		if (server.isPerMessageDeflate())
+			deflate = JSONWebSocketDeflate.negotiate(headers.get(HEADER_WEBSOCKET_EXTENSIONS.toLowerCase(Locale.US)), server);
+		JSONWebSocketBinaryCodec codec = server.selectBinaryCodec(headers.get(NanoWSD.HEADER_WEBSOCKET_PROTOCOL.toLowerCase(Locale.US)));
+		this.response = createResponse(codec == null ? null : codec.getProtocol(), deflate == null ? null : deflate.getResponseHeader());
+		this.deflate = isUpgrade(response) ? deflate : null;
+	}
+	
+	/**
+	 * Returns the response built by {@link #execute()}
+	 *
+	 * @return the raw response
+	 * @throws IllegalStateException if the request hasn't been executed
+	 */
+	@Nonnull
+	byte[] getResponse() {
+		if (response == null)
+			throw new IllegalStateException("the handshake request hasn't been executed");
+		return response;
+	}
+	
+	/**
+	 * Returns the permessage-deflate state agreed by {@link #execute()}
+	 *
+	 * @return the negotiated state, or null if compression wasn't agreed or the connection wasn't upgraded
+	 */
+	@CheckForNull
+	JSONWebSocketDeflate getDeflate() {
+		return deflate;
+	}
+	
+	@Override
+	public CookieHandler getCookies() {
+		return new CookieHandler(headers);
+	}
+	
+	@Override
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+	
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+	
+	@Override
+	public Method getMethod() {
+		return method;
+	}
+	
+	@Override
+	@Deprecated
+	public Map<String, String> getParms() {
+		Map<String, String> parms = new HashMap<>();
+		for (Map.Entry<String, List<String>> e : parameters.entrySet())
+			parms.put(e.getKey(), e.getValue().get(0));
+		return parms;
+	}
+	
+	@Override
+	public Map<String, List<String>> getParameters() {
+		return parameters;
+	}
+	
+	@Override
+	public String getQueryParameterString() {
+		return queryParameterString;
+	}
+	
+	@Override
+	public String getUri() {
+		return uri;
+	}
+	
+	@Override
+	public void parseBody(Map<String, String> files) {
+		
+	}
+	
+	@Override
+	public String getRemoteIpAddress() {
+		return remoteAddress.getAddress().getHostAddress();
+	}
+	
+	@Override
+	public String getRemoteHostName() {
+		return remoteAddress.getHostName();
+	}
+	
+	/**
+	 * Builds the HTTP response to this request: either the 101 upgrade response, or an error response if this isn't a valid web socket request
+	 *
+	 * @param protocol   the subprotocol the server chose, or null to accept the first one offered
+	 * @param extensions the value of the Sec-WebSocket-Extensions response header, or null if no extension was accepted
+	 * @return the raw response
+	 */
+	@Nonnull
+	private byte[] createResponse(@CheckForNull String protocol, @CheckForNull String extensions) {
+		String upgrade = headers.get(NanoWSD.HEADER_UPGRADE.toLowerCase(Locale.US));
+		String connection = headers.get(NanoWSD.HEADER_CONNECTION.toLowerCase(Locale.US));
+		if (method != Method.GET || upgrade == null || !upgrade.equalsIgnoreCase(NanoWSD.HEADER_UPGRADE_VALUE) || connection == null || !connection.toLowerCase(Locale.US).contains("upgrade"))
+			return createErrorResponse("404 Not Found", "Not Found");
+		String version = headers.get(NanoWSD.HEADER_WEBSOCKET_VERSION.toLowerCase(Locale.US));
+		if (!NanoWSD.HEADER_WEBSOCKET_VERSION_VALUE.equalsIgnoreCase(version))
+			return createErrorResponse("400 Bad Request", "Invalid Websocket-Version " + version);
+		String key = headers.get(NanoWSD.HEADER_WEBSOCKET_KEY.toLowerCase(Locale.US));
+		if (key == null)
+			return createErrorResponse("400 Bad Request", "Missing Websocket-Key");
+		
+		StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n");
+		response.append(NanoWSD.HEADER_UPGRADE).append(": ").append(NanoWSD.HEADER_UPGRADE_VALUE).append("\r\n");
+		response.append(NanoWSD.HEADER_CONNECTION).append(": ").append(NanoWSD.HEADER_CONNECTION_VALUE).append("\r\n");
+		try {
+			response.append(NanoWSD.HEADER_WEBSOCKET_ACCEPT).append(": ").append(NanoWSD.makeAcceptKey(key)).append("\r\n");
+		} catch (NoSuchAlgorithmException e) {
+			return createErrorResponse("500 Internal Server Error", "The SHA-1 Algorithm required for websockets is not available on the server.");
+		}
+		String protocols = headers.get(NanoWSD.HEADER_WEBSOCKET_PROTOCOL.toLowerCase(Locale.US));
+		if (protocol == null && protocols != null)
+			protocol = protocols.split(",")[0].trim();
+		if (protocol != null)
+			response.append(NanoWSD.HEADER_WEBSOCKET_PROTOCOL).append(": ").append(protocol).append("\r\n");
+		if (extensions != null)
+			response.append(HEADER_WEBSOCKET_EXTENSIONS).append(": ").append(extensions).append("\r\n");
+		response.append("\r\n");
+		return response.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Returns TRUE if the response built by {@link #execute()} upgrades the connection
+	 *
+	 * @param response the response to check
+	 * @return TRUE if the response is a 101 Switching Protocols response, FALSE otherwise
+	 */
+	static boolean isUpgrade(@Nonnull byte[] response) {
+		return response.length > 12 && response[9] == '1' && response[10] == '0' && response[11] == '1';
+	}
+	
+	@Nonnull
+	static byte[] createErrorResponse(@Nonnull String status, @Nonnull String message) {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		String header = "HTTP/1.1 " + status + "\r\nContent-Type: " + NanoHTTPD.MIME_PLAINTEXT + "\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n";
+		byte[] headerBytes = header.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] response = new byte[headerBytes.length + body.length];
+		System.arraycopy(headerBytes, 0, response, 0, headerBytes.length);
+		System.arraycopy(body, 0, response, headerBytes.length, body.length);
+		return response;
+	}
+	
+	/**
+	 * Parses the request line and headers of an HTTP request.  The request must not contain the terminating empty line
+	 *
+	 * @param request       the request line and headers
+	 * @param remoteAddress the address of the remote endpoint
+	 * @param server        the server whose settings the request is answered with
+	 * @return the parsed request
+	 * @throws ProtocolException if the request is malformed
+	 */
+	@Nonnull
+	static JSONWebSocketNioHandshake parse(@Nonnull String request, @Nonnull InetSocketAddress remoteAddress, @Nonnull JSONWebSocketServer server) throws ProtocolException {
+		String[] lines = request.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/"))
+			throw new ProtocolException("Malformed request line: " + lines[0]);
+		Method method = Method.lookup(requestLine[0]);
+		if (method == null)
+			throw new ProtocolException("Unknown request method: " + requestLine[0]);
+		
+		String uri = requestLine[1];
+		String query = null;
+		int queryIndex = uri.indexOf('?');
+		if (queryIndex != -1) {
+			query = uri.substring(queryIndex + 1);
+			uri = uri.substring(0, queryIndex);
+		}
+		uri = NanoHTTPD.decodePercent(uri);
+		
+		Map<String, String> headers = new HashMap<>();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0)
+				throw new ProtocolException("Malformed header: " + lines[i]);
+			headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+		}
+		String remoteIp = remoteAddress.getAddress().getHostAddress();
+		headers.put("remote-addr", remoteIp);
+		headers.put("http-client-ip", remoteIp);
+		return new JSONWebSocketNioHandshake(method, uri, query, headers, remoteAddress, server);
+	}
+	
+	@Nonnull
+	private static Map<String, List<String>> decodeParameters(@CheckForNull String queryString) {
+		if (queryString == null)
+			return Collections.emptyMap();
+		Map<String, List<String>> parameters = new HashMap<>();
+		for (String pair : queryString.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			int separator = pair.indexOf('=');
+			String key = NanoHTTPD.decodePercent(separator == -1 ? pair : pair.substring(0, separator)).trim();
+			String value = separator == -1 ? "" : NanoHTTPD.decodePercent(pair.substring(separator + 1));
+			List<String> values = parameters.get(key);
+			if (values == null) {
+				values = new ArrayList<>();
+				parameters.put(key, values);
+			}
+			values.add(value);
+		}
+		return parameters;
+	}
+	
+}
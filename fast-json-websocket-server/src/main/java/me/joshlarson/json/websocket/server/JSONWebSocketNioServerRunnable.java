@@ -0,0 +1,110 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.ServerRunnable;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Replaces NanoHTTPD's accept loop when the server runs on the NIO engine.  NanoHTTPD still owns the listening socket and this thread, which keeps
+ * {@link NanoHTTPD#getListeningPort()}, {@link NanoHTTPD#isAlive()} and {@link NanoHTTPD#stop()} working unchanged; accepted channels are spread
+ * across the event loops round-robin
+ */
+class JSONWebSocketNioServerRunnable extends ServerRunnable {
+	
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+	
+	private final JSONWebSocketServer server;
+	private final ServerSocketChannel channel;
+	private final JSONWebSocketNioEventLoop[] loops;
+	private volatile IOException bindException;
+	private volatile boolean bound;
+	
+	JSONWebSocketNioServerRunnable(@Nonnull JSONWebSocketServer server, @Nonnull ServerSocketChannel channel, int threads, boolean daemon) throws IOException {
+		super(server, 0);
+		this.server = server;
+		this.channel = channel;
+		this.loops = new JSONWebSocketNioEventLoop[threads];
+		for (int i = 0; i < threads; i++)
+			loops[i] = new JSONWebSocketNioEventLoop(server, i, daemon);
+		this.bindException = null;
+		this.bound = false;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			channel.socket().bind(server.hostname != null ? new InetSocketAddress(server.hostname, server.myPort) : new InetSocketAddress(server.myPort));
+		} catch (IOException e) {
+			bindException = e;
+			return;
+		}
+		for (JSONWebSocketNioEventLoop loop : loops)
+			loop.start();
+		bound = true;
+		try {
+			int next = 0;
+			while (channel.isOpen()) {
+				SocketChannel accepted;
+				try {
+					accepted = channel.accept();
+				} catch (ClosedChannelException e) {
+					// Closed by NanoHTTPD.stop()
+					break;
+				} catch (IOException e) {
+					// Such as running out of file descriptors, which may pass as connections close, so the server keeps listening
+					NanoHTTPD.LOG.log(Level.WARNING, "Failed to accept a connection", e);
+					if (!backOff())
+						break;
+					continue;
+				}
+				loops[next].register(accepted);
+				next = (next + 1) % loops.length;
+			}
+		} finally {
+			for (JSONWebSocketNioEventLoop loop : loops)
+				loop.stop();
+		}
+	}
+	
+	@Override
+	public IOException getBindException() {
+		return bindException;
+	}
+	
+	@Override
+	public boolean hasBinded() {
+		return bound;
+	}
+	
+	/**
+	 * Waits a moment after a failed accept, rather than spinning on an error that's likely to repeat straight away
+	 *
+	 * @return TRUE to keep accepting, FALSE if this thread was interrupted
+	 */
+	private boolean backOff() {
+		try {
+			TimeUnit.MILLISECONDS.sleep(ACCEPT_BACKOFF_MILLIS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Waits for every event loop to finish closing its connections
+	 */
+	void awaitTermination() {
+		for (JSONWebSocketNioEventLoop loop : loops)
+			loop.awaitTermination();
+	}
+	
+}
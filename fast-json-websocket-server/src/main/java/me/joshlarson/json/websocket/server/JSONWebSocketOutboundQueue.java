@@ -0,0 +1,169 @@
+package me.joshlarson.json.websocket.server;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of frames sent with {@link JSONWebSocketConnection#sendAsync(me.joshlarson.json.JSONObject)}.  Senders add to it from any
+ * thread and the connection's transport empties it from an I/O thread, applying the server's {@link BackpressurePolicy} whenever it's full.
+ * The queue owns the frames it holds, releasing any it discards, and hands that ownership on to whoever polls a frame
+ */
+class JSONWebSocketOutboundQueue {
+	
+	private final Queue<JSONWebSocketEncodedFrame> frames;
+	private final Lock lock;
+	private final Condition notFull;
+	private long bytes;
+	private boolean closed;
+	
+	JSONWebSocketOutboundQueue() {
+		this.frames = new ArrayDeque<>();
+		this.lock = new ReentrantLock();
+		this.notFull = lock.newCondition();
+		this.bytes = 0;
+		this.closed = false;
+	}
+	
+	/**
+	 * Adds a frame to the queue.  If the queue is full and the policy is {@link BackpressurePolicy#CLOSE}, the queue is closed and the caller is
+	 * responsible for closing the connection.  A frame that isn't queued still belongs to the caller, while any frame that's discarded to make
+	 * room, or because the queue closed, is completed as {@link SendStatus#DROPPED} or {@link SendStatus#CLOSED}
+	 *
+	 * @param frame        the frame to add
+	 * @param capacity     the maximum number of queued frames
+	 * @param policy       what to do if the queue is full
+	 * @param timeoutNanos the longest time to wait for room under the {@link BackpressurePolicy#BLOCK} policy
+	 * @return null if the frame was queued, otherwise why it wasn't
+	 */
+	@CheckForNull
+	SendStatus offer(@Nonnull JSONWebSocketEncodedFrame frame, int capacity, @Nonnull BackpressurePolicy policy, long timeoutNanos) {
+		List<JSONWebSocketEncodedFrame> dropped = null;
+		List<JSONWebSocketEncodedFrame> closedFrames = null;
+		lock.lock();
+		try {
+			if (closed)
+				return SendStatus.CLOSED;
+			if (frames.size() >= capacity) {
+				switch (policy) {
+					case DROP_NEWEST:
+						return SendStatus.DROPPED;
+					case DROP_OLDEST:
+						dropped = new ArrayList<>();
+						while (frames.size() >= capacity) {
+							JSONWebSocketEncodedFrame oldest = frames.poll();
+							bytes -= oldest.getLength();
+							dropped.add(oldest);
+						}
+						break;
+					case BLOCK:
+						while (frames.size() >= capacity && !closed) {
+							if (timeoutNanos <= 0)
+								return SendStatus.DROPPED;
+							timeoutNanos = notFull.awaitNanos(timeoutNanos);
+						}
+						if (closed)
+							return SendStatus.CLOSED;
+						break;
+					case CLOSE:
+						closedFrames = closeLocked();
+						return SendStatus.CLOSED;
+				}
+			}
+			frames.add(frame);
+			bytes += frame.getLength();
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return SendStatus.DROPPED;
+		} finally {
+			lock.unlock();
+			// Discarded frames are completed outside the lock, so the futures' dependent stages can't hold up other senders
+			if (dropped != null)
+				discard(dropped, SendStatus.DROPPED);
+			if (closedFrames != null)
+				discard(closedFrames, SendStatus.CLOSED);
+		}
+	}
+	
+	@CheckForNull
+	JSONWebSocketEncodedFrame poll() {
+		lock.lock();
+		try {
+			JSONWebSocketEncodedFrame frame = frames.poll();
+			if (frame != null) {
+				bytes -= frame.getLength();
+				notFull.signal();
+			}
+			return frame;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	int size() {
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the total encoded size of every queued frame
+	 *
+	 * @return the queued bytes
+	 */
+	long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Discards every queued frame and rejects any more, waking up senders that are blocked waiting for room
+	 */
+	void close() {
+		List<JSONWebSocketEncodedFrame> discarded;
+		lock.lock();
+		try {
+			discarded = closeLocked();
+		} finally {
+			lock.unlock();
+		}
+		discard(discarded, SendStatus.CLOSED);
+	}
+	
+	/**
+	 * Closes the queue and empties it.  Must be called holding the lock
+	 *
+	 * @return the frames that were queued
+	 */
+	@Nonnull
+	private List<JSONWebSocketEncodedFrame> closeLocked() {
+		closed = true;
+		List<JSONWebSocketEncodedFrame> discarded = new ArrayList<>(frames);
+		frames.clear();
+		bytes = 0;
+		notFull.signalAll();
+		return discarded;
+	}
+	
+	private static void discard(@Nonnull List<JSONWebSocketEncodedFrame> frames, @Nonnull SendStatus status) {
+		for (JSONWebSocketEncodedFrame frame : frames) {
+			frame.complete(status);
+			frame.release();
+		}
+	}
+	
+}
@@ -0,0 +1,20 @@
+package me.joshlarson.json.websocket.server;
+
+import me.joshlarson.json.JSONObject;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Handles the messages of a single route in a {@link JSONWebSocketRouter}
+ */
+public interface JSONWebSocketRouteHandler {
+	
+	/**
+	 * Called when a message with this route's discriminator value arrives.  The message is only decoded once it has been routed here
+	 *
+	 * @param socket the socket that the message arrived from
+	 * @param object the JSONObject received
+	 */
+	void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object);
+	
+}
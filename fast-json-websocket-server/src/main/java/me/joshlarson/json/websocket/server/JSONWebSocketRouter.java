@@ -0,0 +1,255 @@
+package me.joshlarson.json.websocket.server;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A connection handler that dispatches each message on the value of a single string field, such as "type", instead of a switch in onMessage.
+ * The field is looked up in the message's raw payload, and its bytes are matched against a table built whenever the routes change, so no
+ * String is created to route a message.  A message is only decoded into a JSONObject once it reaches a route handler; messages for dropped or
+ * unknown values never are. <p>
+ * Every route counts the messages it has received.  Override the other handler callbacks, such as onConnect and onError, as usual </p>
+ * <pre>
+ * JSONWebSocketRouter router = new JSONWebSocketRouter("type");
+ * router.route("chat", chatHandler);
+ * router.drop("typing");
+ * server.setHandler(router);
+ * </pre>
+ */
+public class JSONWebSocketRouter extends JSONWebSocketConnectionHandler {
+	
+	private static final String DEFAULT_FIELD = "type";
+	
+	private final String field;
+	private final AtomicReference<RouteTable> table;
+	private final AtomicLong unrouted;
+	
+	/**
+	 * Creates a router that dispatches on the "type" field
+	 */
+	public JSONWebSocketRouter() {
+		this(DEFAULT_FIELD);
+	}
+	
+	/**
+	 * Creates a router that dispatches on the specified field
+	 *
+	 * @param field the top-level field whose string value selects the route
+	 */
+	public JSONWebSocketRouter(@Nonnull String field) {
+		this.field = Objects.requireNonNull(field, "field");
+		this.table = new AtomicReference<>(new RouteTable(Collections.<String, Route>emptyMap()));
+		this.unrouted = new AtomicLong(0);
+	}
+	
+	/**
+	 * Returns the field that messages are routed on
+	 *
+	 * @return the discriminator field
+	 */
+	@Nonnull
+	public String getField() {
+		return field;
+	}
+	
+	/**
+	 * Sends every message whose discriminator equals the value to a handler, replacing any previous route for that value.  The route's message
+	 * count is kept
+	 *
+	 * @param value   the discriminator value
+	 * @param handler the handler for the route
+	 */
+	public void route(@Nonnull String value, @Nonnull JSONWebSocketRouteHandler handler) {
+		putRoute(value, Objects.requireNonNull(handler, "handler"));
+	}
+	
+	/**
+	 * Discards every message whose discriminator equals the value, without decoding it.  The messages are still counted
+	 *
+	 * @param value the discriminator value
+	 */
+	public void drop(@Nonnull String value) {
+		putRoute(value, null);
+	}
+	
+	/**
+	 * Removes the route for a value, so its messages are treated as unrouted
+	 *
+	 * @param value the discriminator value
+	 * @return TRUE if there was a route for the value, FALSE otherwise
+	 */
+	public boolean removeRoute(@Nonnull String value) {
+		synchronized (table) {
+			Map<String, Route> routes = new LinkedHashMap<>(table.get().routes);
+			if (routes.remove(value) == null)
+				return false;
+			table.set(new RouteTable(routes));
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns the number of messages that have been sent to, or dropped by, the route for a value
+	 *
+	 * @param value the discriminator value
+	 * @return the message count, or 0 if there is no route for the value
+	 */
+	public long getRouteCount(@Nonnull String value) {
+		Route route = table.get().routes.get(value);
+		return route == null ? 0 : route.messages.get();
+	}
+	
+	/**
+	 * Returns the message count of every route
+	 *
+	 * @return a snapshot of the counts, by discriminator value, in the order the routes were added
+	 */
+	@Nonnull
+	public Map<String, Long> getRouteCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (Route route : table.get().routes.values())
+			counts.put(route.value, route.messages.get());
+		return counts;
+	}
+	
+	/**
+	 * Returns the number of messages that didn't match any route, including messages without the discriminator field or where it isn't a string
+	 *
+	 * @return the unrouted message count
+	 */
+	public long getUnroutedCount() {
+		return unrouted.get();
+	}
+	
+	@Override
+	public final void onLazyMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONWebSocketLazyMessage message) {
+		Route route = table.get().find(message, field);
+		if (route == null) {
+			unrouted.incrementAndGet();
+			onUnroutedMessage(socket, message);
+			return;
+		}
+		route.messages.incrementAndGet();
+		if (route.handler != null)
+			route.handler.onMessage(socket, message.toJSONObject());
+	}
+	
+	/**
+	 * Called when a message doesn't match any route.  The default implementation ignores it
+	 *
+	 * @param socket  the socket that the message arrived from
+	 * @param message the message received, which is only valid until this returns
+	 */
+	public void onUnroutedMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONWebSocketLazyMessage message) {
+		
+	}
+	
+	private void putRoute(@Nonnull String value, @CheckForNull JSONWebSocketRouteHandler handler) {
+		Objects.requireNonNull(value, "value");
+		synchronized (table) {
+			Map<String, Route> routes = new LinkedHashMap<>(table.get().routes);
+			Route previous = routes.get(value);
+			routes.put(value, new Route(value, handler, previous == null ? new AtomicLong(0) : previous.messages));
+			table.set(new RouteTable(routes));
+		}
+	}
+	
+	private static final class Route {
+		
+		private final String value;
+		private final byte[] utf8;
+		private final int hash;
+		private final JSONWebSocketRouteHandler handler;
+		private final AtomicLong messages;
+		
+		Route(String value, JSONWebSocketRouteHandler handler, AtomicLong messages) {
+			this.value = value;
+			this.utf8 = value.getBytes(StandardCharsets.UTF_8);
+			this.hash = hash(utf8, 0, utf8.length);
+			this.handler = handler;
+			this.messages = messages;
+		}
+		
+		boolean matches(byte[] buffer, int offset, int length, int hash) {
+			if (this.hash != hash || utf8.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (utf8[i] != buffer[offset + i])
+					return false;
+			}
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * An immutable snapshot of the routes, with an open-addressed table for matching raw UTF-8 bytes
+	 */
+	private static final class RouteTable {
+		
+		private final Map<String, Route> routes;
+		private final Route[] slots;
+		private final int mask;
+		
+		RouteTable(Map<String, Route> routes) {
+			this.routes = Collections.unmodifiableMap(routes);
+			int size = Integer.highestOneBit(Math.max(2, routes.size() * 2) - 1) << 1;
+			this.slots = new Route[size];
+			this.mask = size - 1;
+			for (Route route : routes.values()) {
+				int index = route.hash & mask;
+				while (slots[index] != null)
+					index = (index + 1) & mask;
+				slots[index] = route;
+			}
+		}
+		
+		@CheckForNull
+		Route find(@Nonnull JSONWebSocketLazyMessage message, @Nonnull String field) {
+			byte[] buffer = message.getBuffer();
+			if (buffer == null) {
+				Object value = message.get(field);
+				return value instanceof String ? routes.get(value) : null;
+			}
+			int index = message.findField(field);
+			if (index == -1)
+				return null;
+			int offset = message.getValueOffset(index);
+			int length = message.getValueLength(index);
+			if (buffer[offset] != '"')
+				return null;
+			// Skip the quotes.  Values with escape sequences don't match their UTF-8 bytes, so those are decoded instead
+			offset++;
+			length -= 2;
+			int hash = 0;
+			for (int i = 0; i < length; i++) {
+				byte b = buffer[offset + i];
+				if (b == '\\')
+					return routes.get(message.getString(field));
+				hash = JSONWebSocketKeyCache.hash(hash, b);
+			}
+			hash ^= hash >>> 16;
+			for (int slot = hash & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+				if (slots[slot].matches(buffer, offset, length, hash))
+					return slots[slot];
+			}
+			return null;
+		}
+		
+	}
+	
+	private static int hash(byte[] buffer, int offset, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+			hash = JSONWebSocketKeyCache.hash(hash, buffer[offset + i]);
+		return hash ^ (hash >>> 16);
+	}
+	
+}
@@ -0,0 +1,137 @@
+package me.joshlarson.json.websocket.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running round-trip time statistics for one socket, fed by every timed pong, including the heartbeat's.  A socket's pongs are handled by one
+ * thread at a time, so samples are recorded without any compare-and-set loops, and every value can be read from any thread without locking.
+ * Values read one after another may come from different samples. <p>
+ * Percentiles come from a histogram with the same log-linear buckets as {@link JSONWebSocketLatencyHistogram}, 8 per power of two between 1
+ * microsecond and 34 seconds, so they are within about 6% of the real value.  The histogram is only allocated by the first sample, and takes
+ * under 1 KiB </p>
+ */
+public final class JSONWebSocketRttStats {
+	
+	private static final int BUCKETS = JSONWebSocketLatencyHistogram.BUCKETS;
+	private static final int EWMA_SHIFT = 3;
+	
+	private final AtomicLong count;
+	private final AtomicLong last;
+	private final AtomicLong ewma;
+	private final AtomicLong min;
+	private final AtomicLong max;
+	private volatile int[] histogram;
+	
+	JSONWebSocketRttStats() {
+		this.count = new AtomicLong(0);
+		this.last = new AtomicLong(0);
+		this.ewma = new AtomicLong(0);
+		this.min = new AtomicLong(Long.MAX_VALUE);
+		this.max = new AtomicLong(0);
+		this.histogram = null;
+	}
+	
+	/**
+	 * Returns the number of round trips measured
+	 *
+	 * @return the sample count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the most recent round-trip time
+	 *
+	 * @return the last sample in nanoseconds, or 0 if there are none
+	 */
+	public long getLastNanos() {
+		return last.get();
+	}
+	
+	/**
+	 * Returns the exponentially weighted moving average of the round-trip time, where each sample has a weight of 1/8, like TCP's smoothed RTT.
+	 * It follows the link's current latency, while a single slow pong barely moves it
+	 *
+	 * @return the smoothed round-trip time in nanoseconds, or 0 if there are no samples
+	 */
+	public long getEwmaNanos() {
+		return ewma.get();
+	}
+	
+	/**
+	 * Returns the shortest round-trip time measured
+	 *
+	 * @return the minimum in nanoseconds, or 0 if there are no samples
+	 */
+	public long getMinNanos() {
+		long min = this.min.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+	
+	/**
+	 * Returns the longest round-trip time measured
+	 *
+	 * @return the maximum in nanoseconds, or 0 if there are no samples
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns an estimate of a percentile of every round-trip time measured
+	 *
+	 * @param percentile the percentile, from 0 to 100, such as 99 for the 99th percentile
+	 * @return the estimated round-trip time in nanoseconds, or 0 if there are no samples
+	 */
+	public long getPercentileNanos(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		// Reading the count first makes every sample it includes visible in the histogram
+		if (count.get() == 0)
+			return 0;
+		int[] histogram = this.histogram;
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += histogram[i];
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+			if (seen >= rank)
+				return Math.max(getMinNanos(), Math.min(getMaxNanos(), JSONWebSocketLatencyHistogram.getBucketMidpoint(i)));
+		}
+		return getMaxNanos();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("JSONWebSocketRttStats[count=%d last=%.3fms ewma=%.3fms min=%.3fms max=%.3fms p50=%.3fms p99=%.3fms]", getCount(),
+				getLastNanos() / 1E6, getEwmaNanos() / 1E6, getMinNanos() / 1E6, getMaxNanos() / 1E6, getPercentileNanos(50) / 1E6, getPercentileNanos(99) / 1E6);
+	}
+	
+	/**
+	 * Adds a round-trip time measured from a timed pong.  Must only be called by one thread at a time
+	 *
+	 * @param rttNano the round-trip time in nanoseconds
+	 */
+	void record(long rttNano) {
+		long rtt = Math.max(0, rttNano);
+		int[] histogram = this.histogram;
+		if (histogram == null) {
+			histogram = new int[BUCKETS];
+			this.histogram = histogram;
+		}
+		histogram[JSONWebSocketLatencyHistogram.getBucket(rtt)]++;
+		long samples = count.get();
+		long average = ewma.get();
+		last.set(rtt);
+		ewma.set(samples == 0 ? rtt : average + ((rtt - average) >> EWMA_SHIFT));
+		if (rtt < min.get())
+			min.set(rtt);
+		if (rtt > max.get())
+			max.set(rtt);
+		count.set(samples + 1);
+	}
+	
+}
@@ -0,0 +1,69 @@
+package me.joshlarson.json.websocket.server;
+
+import javax.annotation.Nonnull;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the handler callbacks of a single connection one at a time and in submission order, on the server's callback executor if one is set or
+ * on the calling thread otherwise.  At most one task from this queue is submitted to the callback executor at a time, so a busy connection
+ * can't occupy more than one executor thread, and it gives the thread back after each batch so other connections get their turn
+ */
+class JSONWebSocketSerialExecutor implements Executor {
+	
+	private static final int MAX_BATCH = 64;
+	
+	private final JSONWebSocketServer server;
+	private final Queue<Runnable> tasks;
+	private final AtomicBoolean scheduled;
+	private final Runnable drain;
+	
+	JSONWebSocketSerialExecutor(@Nonnull JSONWebSocketServer server) {
+		this.server = server;
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.scheduled = new AtomicBoolean(false);
+		this.drain = new Runnable() {
+			public void run() {
+				drain(MAX_BATCH);
+			}
+		};
+	}
+	
+	@Override
+	public void execute(@Nonnull Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+	
+	private void schedule() {
+		while (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+			Executor executor = server.getCallbackExecutor();
+			if (executor != null) {
+				try {
+					executor.execute(drain);
+					return;
+				} catch (RejectedExecutionException e) {
+					// The executor is shutting down, fall back to running the callbacks here so they aren't lost
+				}
+			}
+			drain(Integer.MAX_VALUE);
+		}
+	}
+	
+	private void drain(int maxBatch) {
+		try {
+			Runnable task;
+			for (int i = 0; i < maxBatch && (task = tasks.poll()) != null; i++) {
+				task.run();
+			}
+		} finally {
+			scheduled.set(false);
+		}
+		if (maxBatch != Integer.MAX_VALUE)
+			schedule();
+	}
+	
+}
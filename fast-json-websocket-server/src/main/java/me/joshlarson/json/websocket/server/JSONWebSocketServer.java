@@ -1,26 +1,130 @@
 package me.joshlarson.json.websocket.server;
 
+import me.joshlarson.json.JSONObject;
 import org.nanohttpd.protocols.http.IHTTPSession;
+import org.nanohttpd.protocols.http.ServerRunnable;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.Status;
+import org.nanohttpd.protocols.http.sockets.SecureServerSocketFactory;
 import org.nanohttpd.protocols.websockets.NanoWSD;
 import org.nanohttpd.protocols.websockets.WebSocket;
+import org.nanohttpd.util.IFactoryThrowing;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
 public class JSONWebSocketServer extends NanoWSD {
 	
+	private static final IFactoryThrowing<ServerSocket, IOException> NIO_SERVER_SOCKET_FACTORY = new IFactoryThrowing<ServerSocket, IOException>() {
+		public ServerSocket create() throws IOException {
+			return ServerSocketChannel.open().socket();
+		}
+	};
+	
+	private static final ThreadFactory WRITER_THREAD_FACTORY = new ThreadFactory() {
+		private final AtomicInteger threadId = new AtomicInteger(0);
+		
+		public Thread newThread(@Nonnull Runnable r) {
+			Thread thread = new Thread(r, "JSONWebSocket Writer #" + threadId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	
 	private final AtomicReference<JSONWebSocketConnectionHandler> handler;
+	private final AtomicReference<Executor> callbackExecutor;
+	private final ConcurrentMap<Long, JSONWebSocketConnection> connections;
+	private final JSONWebSocketTopicIndex topics;
+	private final AtomicInteger outboundQueueCapacity;
+	private final AtomicReference<BackpressurePolicy> backpressurePolicy;
+	private final AtomicLong backpressureTimeout;
+	private final AtomicInteger maxWriteBatchBytes;
+	private final AtomicLong maxWriteDelay;
+	private final AtomicReference<JSONWebSocketBufferPool> bufferPool;
+	private final AtomicReference<JSONWebSocketKeyCache> keyCache;
+	private final AtomicReference<String> rpcIdField;
+	private final AtomicReference<String> rpcReplyField;
+	private final AtomicLong heartbeatInterval;
+	private final AtomicInteger maxMissedPongs;
+	private final AtomicBoolean perMessageDeflate;
+	private final AtomicInteger compressionThreshold;
+	private final AtomicInteger compressionWindowBits;
+	private final AtomicBoolean compressionContextTakeover;
+	private final JSONWebSocketCompressorPool compressorPool;
+	private final List<JSONWebSocketBinaryCodec> binaryCodecs;
+	private final AtomicReference<ExecutorService> writerExecutor;
+	private final AtomicReference<ServerEngine> engine;
+	private final AtomicInteger eventLoopThreads;
+	private final AtomicReference<JSONWebSocketNioServerRunnable> nioServer;
+	private final JSONWebSocketServerMetrics metrics;
+	private volatile boolean daemon;
 	
 	public JSONWebSocketServer(int port) {
-		super(port);
-		this.handler = new AtomicReference<>(null);
+		this((String) null, port);
 	}
 	
-	public JSONWebSocketServer(@Nonnull String hostname, int port) {
+	/**
+	 * Creates a server that listens on the specified interface
+	 *
+	 * @param hostname the hostname or address to listen on, or null to listen on every interface
+	 * @param port     the port to listen on
+	 */
+	public JSONWebSocketServer(@Nullable String hostname, int port) {
 		super(hostname, port);
 		this.handler = new AtomicReference<>(null);
+		this.callbackExecutor = new AtomicReference<>(null);
+		this.connections = new ConcurrentHashMap<>();
+		this.topics = new JSONWebSocketTopicIndex();
+		this.outboundQueueCapacity = new AtomicInteger(1024);
+		this.backpressurePolicy = new AtomicReference<>(BackpressurePolicy.DROP_NEWEST);
+		this.backpressureTimeout = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+		this.maxWriteBatchBytes = new AtomicInteger(64 * 1024);
+		this.maxWriteDelay = new AtomicLong(0);
+		this.bufferPool = new AtomicReference<>(new JSONWebSocketBufferPool());
+		this.keyCache = new AtomicReference<>(new JSONWebSocketKeyCache());
+		this.rpcIdField = new AtomicReference<>("id");
+		this.rpcReplyField = new AtomicReference<>("replyTo");
+		this.heartbeatInterval = new AtomicLong(0);
+		this.maxMissedPongs = new AtomicInteger(2);
+		this.perMessageDeflate = new AtomicBoolean(false);
+		this.compressionThreshold = new AtomicInteger(256);
+		this.compressionWindowBits = new AtomicInteger(15);
+		this.compressionContextTakeover = new AtomicBoolean(true);
+		this.compressorPool = new JSONWebSocketCompressorPool();
+		this.binaryCodecs = new CopyOnWriteArrayList<>();
+		this.writerExecutor = new AtomicReference<>(null);
+		this.engine = new AtomicReference<>(ServerEngine.NANOHTTPD);
+		this.eventLoopThreads = new AtomicInteger(Runtime.getRuntime().availableProcessors());
+		this.nioServer = new AtomicReference<>(null);
+		this.metrics = new JSONWebSocketServerMetrics(this);
+		this.daemon = true;
 	}
 	
 	public JSONWebSocketServer(@Nonnull InetAddress address, int port) {
@@ -40,9 +144,614 @@ public class JSONWebSocketServer extends NanoWSD {
 		this.handler.set(handler);
 	}
 	
+	/**
+	 * Sets the executor that runs handler callbacks.  Callbacks for the same connection still run one at a time and in the order the events
+	 * arrived, but callbacks for different connections may run concurrently, so a slow handler no longer holds up reading from its socket. <p>
+	 * The server does not shut down a supplied executor when it stops </p>
+	 *
+	 * @param executor the callback executor, or null to run callbacks directly on the I/O threads (the default)
+	 */
+	public void setCallbackExecutor(@Nullable Executor executor) {
+		this.callbackExecutor.set(executor);
+	}
+	
+	/**
+	 * Runs every handler callback on its own virtual thread, while keeping callbacks for the same connection in order.  Requires Java 21 or
+	 * newer
+	 *
+	 * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+	 */
+	public void setVirtualThreadCallbackExecutor() {
+		try {
+			setCallbackExecutor((Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+	
+	/**
+	 * Sets the maximum number of messages each connection can have waiting in its outbound queue, for messages sent with
+	 * {@link JSONWebSocketConnection#sendAsync(JSONObject)}
+	 *
+	 * @param capacity the outbound queue capacity, defaults to 1024
+	 */
+	public void setOutboundQueueCapacity(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.outboundQueueCapacity.set(capacity);
+	}
+	
+	/**
+	 * Sets what happens when {@link JSONWebSocketConnection#sendAsync(JSONObject)} is called while the connection's outbound queue is full
+	 *
+	 * @param policy the backpressure policy, defaults to {@link BackpressurePolicy#DROP_NEWEST}
+	 */
+	public void setBackpressurePolicy(@Nonnull BackpressurePolicy policy) {
+		Objects.requireNonNull(policy, "policy");
+		this.backpressurePolicy.set(policy);
+	}
+	
+	/**
+	 * Sets the longest time a sender will wait for room in an outbound queue under the {@link BackpressurePolicy#BLOCK} policy
+	 *
+	 * @param timeout the timeout, defaults to 1 second
+	 * @param unit    the unit of the timeout
+	 */
+	public void setBackpressureTimeout(long timeout, @Nonnull TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout must not be negative");
+		this.backpressureTimeout.set(unit.toNanos(timeout));
+	}
+	
+	/**
+	 * Sets the most bytes of queued messages that are combined into a single socket write.  Small messages sent with
+	 * {@link JSONWebSocketConnection#sendAsync(JSONObject)} that are waiting at the same time are written together, which saves system calls and
+	 * TCP segments
+	 *
+	 * @param bytes the maximum batch size, defaults to 64 KiB
+	 */
+	public void setMaxWriteBatchBytes(int bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("bytes must be positive");
+		this.maxWriteBatchBytes.set(bytes);
+	}
+	
+	/**
+	 * Sets how long a message sent with {@link JSONWebSocketConnection#sendAsync(JSONObject)} may wait for more messages to batch with, unless a
+	 * full batch is ready sooner.  A small delay trades a little latency for fewer, larger writes when sending bursts of small messages
+	 *
+	 * @param micros the maximum delay in microseconds, defaults to 0 which writes as soon as possible
+	 */
+	public void setMaxWriteDelayMicros(long micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("micros must not be negative");
+		this.maxWriteDelay.set(TimeUnit.MICROSECONDS.toNanos(micros));
+	}
+	
+	/**
+	 * Sets the pool that frame buffers are taken from, for both received and sent messages.  A pool may be shared between servers
+	 *
+	 * @param pool the buffer pool, defaults to a heap buffer pool that retains up to 32 MiB
+	 */
+	public void setBufferPool(@Nonnull JSONWebSocketBufferPool pool) {
+		this.bufferPool.set(Objects.requireNonNull(pool, "pool"));
+	}
+	
+	/**
+	 * Returns the pool that frame buffers are taken from, whose hit, miss and retained byte counts show how well it's working
+	 *
+	 * @return the buffer pool
+	 */
+	@Nonnull
+	public JSONWebSocketBufferPool getBufferPool() {
+		return bufferPool.get();
+	}
+	
+	/**
+	 * Sets the cache that strings in incoming JSON messages are looked up in, so keys that every client repeats are decoded without allocating.
+	 * The cache is shared by every connection, and may be shared between servers
+	 *
+	 * @param cache the key cache, defaults to a cache that holds 1024 keys and no values
+	 */
+	public void setKeyCache(@Nonnull JSONWebSocketKeyCache cache) {
+		this.keyCache.set(Objects.requireNonNull(cache, "cache"));
+	}
+	
+	/**
+	 * Returns the cache that strings in incoming JSON messages are looked up in, whose hit rate shows how well it's working
+	 *
+	 * @return the key cache
+	 */
+	@Nonnull
+	public JSONWebSocketKeyCache getKeyCache() {
+		return keyCache.get();
+	}
+	
+	/**
+	 * Sets the field that RPC calls carry their id in, for {@link JSONWebSocketConnection#call(JSONObject, long, TimeUnit)} and
+	 * {@link JSONWebSocketConnection#reply(JSONObject, JSONObject)}
+	 *
+	 * @param field the id field, defaults to "id"
+	 */
+	public void setRpcIdField(@Nonnull String field) {
+		this.rpcIdField.set(Objects.requireNonNull(field, "field"));
+	}
+	
+	/**
+	 * Returns the field that RPC calls carry their id in
+	 *
+	 * @return the id field
+	 */
+	@Nonnull
+	public String getRpcIdField() {
+		return rpcIdField.get();
+	}
+	
+	/**
+	 * Sets the field that RPC responses carry the id of the request they answer in.  Only messages with this field are matched against pending
+	 * calls, so both sides can make calls at once without a request being mistaken for a response
+	 *
+	 * @param field the reply field, defaults to "replyTo"
+	 */
+	public void setRpcReplyField(@Nonnull String field) {
+		this.rpcReplyField.set(Objects.requireNonNull(field, "field"));
+	}
+	
+	/**
+	 * Returns the field that RPC responses carry the id of the request they answer in
+	 *
+	 * @return the reply field
+	 */
+	@Nonnull
+	public String getRpcReplyField() {
+		return rpcReplyField.get();
+	}
+	
+	/**
+	 * Pings every connection once per interval, and drops any connection that leaves too many of those pings in a row unanswered.  A silent
+	 * peer is closed abnormally (close code 1006): no close frame is sent, since it wouldn't be answered, and the socket is closed straight away
+	 * instead of staying open until a write fails, which may never happen.  Any message from the peer counts as an answer. <p>
+	 * The pings are timed, so they also report {@link JSONWebSocketConnectionHandler#onPongTimed(JSONWebSocketConnection, long)}.  Every
+	 * connection's heartbeat is a single entry on one timer wheel, which costs the same per connection no matter how many there are.  The
+	 * setting applies to connections opened after it's changed </p>
+	 *
+	 * @param interval       the time between pings, defaults to 0 which disables the heartbeat
+	 * @param unit           the unit of the interval
+	 * @param maxMissedPongs the number of pings in a row that may go unanswered before the connection is dropped, defaults to 2
+	 */
+	public void setHeartbeat(long interval, @Nonnull TimeUnit unit, int maxMissedPongs) {
+		if (interval < 0)
+			throw new IllegalArgumentException("interval must not be negative");
+		if (maxMissedPongs <= 0)
+			throw new IllegalArgumentException("maxMissedPongs must be positive");
+		this.maxMissedPongs.set(maxMissedPongs);
+		this.heartbeatInterval.set(unit.toNanos(interval));
+	}
+	
+	/**
+	 * Sets whether the permessage-deflate extension is offered to clients that ask for it.  JSON usually compresses several times over, which
+	 * trades CPU time for bandwidth.  Only the {@link ServerEngine#NIO} engine supports compression; NanoHTTPD connections are always
+	 * uncompressed, and starting a NanoHTTPD server with this enabled logs a warning. <p> Only affects connections opened afterwards </p>
+	 *
+	 * @param enabled TRUE to negotiate compression, defaults to FALSE
+	 */
+	public void setPerMessageDeflate(boolean enabled) {
+		this.perMessageDeflate.set(enabled);
+	}
+	
+	/**
+	 * Sets the smallest message that's compressed on a connection that negotiated permessage-deflate.  Small messages barely compress and cost
+	 * as much to deflate per byte, so anything shorter is sent as it is
+	 *
+	 * @param bytes the minimum encoded message size, defaults to 256 bytes
+	 */
+	public void setCompressionThreshold(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("bytes must not be negative");
+		this.compressionThreshold.set(bytes);
+	}
+	
+	/**
+	 * Sets the largest LZ77 window, as a power of two, used by either side of a compressed connection.  The server only compresses messages that
+	 * fit in a window smaller than the maximum, and each one on its own, while clients are asked to limit their own window and so the memory
+	 * needed to inflate their messages. <p> Only affects connections opened afterwards </p>
+	 *
+	 * @param bits the window size in bits, from 8 to 15, defaults to 15
+	 */
+	public void setCompressionWindowBits(int bits) {
+		if (bits < 8 || bits > 15)
+			throw new IllegalArgumentException("bits must be between 8 and 15");
+		this.compressionWindowBits.set(bits);
+	}
+	
+	/**
+	 * Sets whether compression context is kept from one message to the next.  With context takeover, repeated keys and values in later messages
+	 * compress far better, but each connection holds on to a Deflater and an Inflater for its lifetime.  Without it, connections borrow them
+	 * from a shared pool for the length of a single message. <p> Only affects connections opened afterwards </p>
+	 *
+	 * @param contextTakeover TRUE to keep context between messages, defaults to TRUE
+	 */
+	public void setCompressionContextTakeover(boolean contextTakeover) {
+		this.compressionContextTakeover.set(contextTakeover);
+	}
+	
+	/**
+	 * Adds a binary encoding that clients may ask for by offering its subprotocol.  Connections that agree on a codec are sent binary frames
+	 * encoded with it, and their binary frames are decoded with it, while handlers still receive JSONObjects.  When a client offers several
+	 * subprotocols with codecs, the codec that was added first wins. <p> Must be done before starting </p>
+	 *
+	 * @param codec the codec to add
+	 * @see JSONWebSocketCborCodec
+	 */
+	public void addBinaryCodec(@Nonnull JSONWebSocketBinaryCodec codec) {
+		Objects.requireNonNull(codec, "codec");
+		this.binaryCodecs.add(codec);
+	}
+	
+	/**
+	 * Removes a binary encoding added with {@link #addBinaryCodec(JSONWebSocketBinaryCodec)}. <p> Must be done before starting </p>
+	 *
+	 * @param codec the codec to remove
+	 * @return TRUE if the codec was removed, FALSE if it wasn't added
+	 */
+	public boolean removeBinaryCodec(@Nonnull JSONWebSocketBinaryCodec codec) {
+		return this.binaryCodecs.remove(codec);
+	}
+	
+	/**
+	 * Sets the engine that accepts and services connections.  Handlers and connections behave the same regardless of the engine. <p> Must be done
+	 * before starting </p>
+	 *
+	 * @param engine the server engine, defaults to {@link ServerEngine#NANOHTTPD}
+	 */
+	public void setEngine(@Nonnull ServerEngine engine) {
+		Objects.requireNonNull(engine, "engine");
+		this.engine.set(engine);
+	}
+	
+	/**
+	 * Sets the number of event-loop threads used by the {@link ServerEngine#NIO} engine. <p> Must be done before starting </p>
+	 *
+	 * @param threads the number of event-loop threads, defaults to the number of available processors
+	 */
+	public void setEventLoopThreads(int threads) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		this.eventLoopThreads.set(threads);
+	}
+	
+	/**
+	 * Looks up an open connection by its socket id.  Lookups don't block, even while connections are opening and closing on other threads
+	 *
+	 * @param socketId the id returned by {@link JSONWebSocketConnection#getSocketId()}
+	 * @return the connection, or null if no open connection has that id
+	 */
+	@CheckForNull
+	public JSONWebSocketConnection getConnection(long socketId) {
+		return connections.get(socketId);
+	}
+	
+	/**
+	 * Returns a read-only, live view of every open connection.  Connections are added before the handler's onConnect() function is called, and
+	 * removed before its onDisconnect() function is called.  Iterating the view never throws a ConcurrentModificationException or blocks
+	 * connections from opening or closing; it may or may not reflect changes made during the iteration
+	 *
+	 * @return the open connections
+	 */
+	@Nonnull
+	public Collection<JSONWebSocketConnection> getConnections() {
+		return Collections.unmodifiableCollection(connections.values());
+	}
+	
+	/**
+	 * Returns the number of open connections
+	 *
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+	
+	/**
+	 * Sends a message to every connected client.  The JSONObject is encoded once as a compact string and framed once, or once per binary codec
+	 * in use, and the same bytes are then written to each connection.  A connection that fails to send reports the error through the handler's
+	 * onError() function instead of interrupting the broadcast
+	 *
+	 * @param object the JSONObject to send
+	 * @return the number of connections the message was written to
+	 */
+	public int broadcast(@Nonnull JSONObject object) {
+		return broadcast(connections.values(), object);
+	}
+	
+	/**
+	 * Sends a message to each of the specified connections.  The JSONObject is encoded once as a compact string and framed once, or once per
+	 * binary codec in use, and the same bytes are then written to each connection.  Connections that are already closed are skipped, and a
+	 * connection that fails to send reports the error through the handler's onError() function instead of interrupting the broadcast
+	 *
+	 * @param connections the connections to send to
+	 * @param object      the JSONObject to send
+	 * @return the number of connections the message was written to
+	 */
+	public int broadcast(@Nonnull Collection<JSONWebSocketConnection> connections, @Nonnull JSONObject object) {
+		Objects.requireNonNull(connections, "connections");
+		Objects.requireNonNull(object, "object");
+		JSONWebSocketBufferPool pool = bufferPool.get();
+		// Keyed by codec, with null for JSON text; each encoding is only built once a connection needs it
+		Map<JSONWebSocketBinaryCodec, JSONWebSocketEncodedFrame> frames = new HashMap<>();
+		try {
+			int sent = 0;
+			for (JSONWebSocketConnection connection : connections) {
+				JSONWebSocketBinaryCodec codec = connection.getBinaryCodec();
+				JSONWebSocketEncodedFrame frame = frames.get(codec);
+				if (frame == null) {
+					frame = new JSONWebSocketEncodedFrame(object, codec, pool);
+					frames.put(codec, frame);
+				}
+				if (connection.send(frame))
+					sent++;
+			}
+			return sent;
+		} finally {
+			for (JSONWebSocketEncodedFrame frame : frames.values())
+				frame.release();
+		}
+	}
+	
+	/**
+	 * Subscribes a connection to a topic, so it receives every message later published to that topic.  Subscriptions are removed automatically
+	 * when the connection closes
+	 *
+	 * @param connection the connection to subscribe
+	 * @param topic      the topic to subscribe to
+	 * @return TRUE if the connection was subscribed, FALSE if it was already subscribed or has closed
+	 */
+	public boolean subscribe(@Nonnull JSONWebSocketConnection connection, @Nonnull String topic) {
+		Objects.requireNonNull(connection, "connection");
+		Objects.requireNonNull(topic, "topic");
+		return topics.subscribe(connection, topic);
+	}
+	
+	/**
+	 * Unsubscribes a connection from a topic
+	 *
+	 * @param connection the connection to unsubscribe
+	 * @param topic      the topic to unsubscribe from
+	 * @return TRUE if the connection was subscribed, FALSE otherwise
+	 */
+	public boolean unsubscribe(@Nonnull JSONWebSocketConnection connection, @Nonnull String topic) {
+		Objects.requireNonNull(connection, "connection");
+		Objects.requireNonNull(topic, "topic");
+		return topics.unsubscribe(connection, topic);
+	}
+	
+	/**
+	 * Sends a message to every connection subscribed to a topic.  Like {@link #broadcast(Collection, JSONObject)}, the JSONObject is encoded
+	 * once no matter how many subscribers there are, and publishing never waits on connections subscribing or unsubscribing
+	 *
+	 * @param topic  the topic to publish to
+	 * @param object the JSONObject to send
+	 * @return the number of connections the message was written to
+	 */
+	public int publish(@Nonnull String topic, @Nonnull JSONObject object) {
+		Objects.requireNonNull(topic, "topic");
+		Objects.requireNonNull(object, "object");
+		Collection<JSONWebSocketConnection> subscribers = topics.getSubscribers(topic);
+		if (subscribers == null)
+			return 0;
+		return broadcast(subscribers, object);
+	}
+	
+	/**
+	 * Returns the number of connections subscribed to a topic
+	 *
+	 * @param topic the topic
+	 * @return the number of subscribers
+	 */
+	public int getSubscriberCount(@Nonnull String topic) {
+		Collection<JSONWebSocketConnection> subscribers = topics.getSubscribers(topic);
+		return subscribers == null ? 0 : subscribers.size();
+	}
+	
+	/**
+	 * Returns the server's message, connection and handler latency metrics, which can also be published over JMX
+	 *
+	 * @return the live metrics
+	 */
+	@Nonnull
+	public JSONWebSocketServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	@CheckForNull
+	JSONWebSocketConnectionHandler getHandler() {
+		return handler.get();
+	}
+	
+	@CheckForNull
+	Executor getCallbackExecutor() {
+		return callbackExecutor.get();
+	}
+	
+	int getOutboundQueueCapacity() {
+		return outboundQueueCapacity.get();
+	}
+	
+	@Nonnull
+	BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy.get();
+	}
+	
+	long getBackpressureTimeoutNanos() {
+		return backpressureTimeout.get();
+	}
+	
+	int getMaxWriteBatchBytes() {
+		return maxWriteBatchBytes.get();
+	}
+	
+	long getMaxWriteDelayNanos() {
+		return maxWriteDelay.get();
+	}
+	
+	long getHeartbeatIntervalNanos() {
+		return heartbeatInterval.get();
+	}
+	
+	int getMaxMissedPongs() {
+		return maxMissedPongs.get();
+	}
+	
+	boolean isPerMessageDeflate() {
+		return perMessageDeflate.get();
+	}
+	
+	int getCompressionThreshold() {
+		return compressionThreshold.get();
+	}
+	
+	int getCompressionWindowBits() {
+		return compressionWindowBits.get();
+	}
+	
+	boolean isCompressionContextTakeover() {
+		return compressionContextTakeover.get();
+	}
+	
+	@Nonnull
+	JSONWebSocketCompressorPool getCompressorPool() {
+		return compressorPool;
+	}
+	
+	/**
+	 * Chooses the binary codec for a new connection from the subprotocols its client offered
+	 *
+	 * @param protocols the Sec-WebSocket-Protocol request header, a comma separated list
+	 * @return the first added codec whose subprotocol was offered, or null if there is none
+	 */
+	@CheckForNull
+	JSONWebSocketBinaryCodec selectBinaryCodec(@CheckForNull String protocols) {
+		if (protocols == null || binaryCodecs.isEmpty())
+			return null;
+		String[] offered = protocols.split(",");
+		for (JSONWebSocketBinaryCodec codec : binaryCodecs) {
+			for (String protocol : offered) {
+				if (protocol.trim().equals(codec.getProtocol()))
+					return codec;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the scheduler for the delayed flushes of coalesced writes.  It's shared by every server, like the timer wheel, and its thread is
+	 * only started the first time a write delay is used
+	 *
+	 * @return the shared flush scheduler
+	 */
+	@Nonnull
+	ScheduledExecutorService getFlushScheduler() {
+		return FlushScheduler.INSTANCE;
+	}
+	
+	/**
+	 * Returns the executor that writes outbound queues on the NanoHTTPD engine, which has no I/O threads of its own for writing.  It's created the
+	 * first time it's needed, and shut down when the server stops
+	 *
+	 * @return the writer executor
+	 */
+	@Nonnull
+	Executor getWriterExecutor() {
+		ExecutorService executor = writerExecutor.get();
+		while (executor == null) {
+			// A pool that loses the race hasn't started any threads, so it can simply be dropped
+			writerExecutor.compareAndSet(null, Executors.newCachedThreadPool(WRITER_THREAD_FACTORY));
+			executor = writerExecutor.get();
+		}
+		return executor;
+	}
+	
+	void onConnectionOpened(@Nonnull JSONWebSocketConnection connection) {
+		connections.put(connection.getSocketId(), connection);
+		metrics.onHandshake();
+	}
+	
+	void onConnectionClosed(@Nonnull JSONWebSocketConnection connection) {
+		connections.remove(connection.getSocketId());
+		topics.unsubscribeAll(connection);
+		metrics.onDisconnect();
+	}
+	
+	@Override
+	public void start(int timeout, boolean daemon) throws IOException {
+		if (engine.get() == ServerEngine.NIO && super.getServerSocketFactory() instanceof SecureServerSocketFactory)
+			throw new IOException("The NIO engine does not support secure connections");
+		if (engine.get() != ServerEngine.NIO && perMessageDeflate.get())
+			LOG.log(Level.WARNING, "permessage-deflate is only supported by the NIO engine, so NanoHTTPD connections stay uncompressed");
+		this.daemon = daemon;
+		super.start(timeout, daemon);
+	}
+	
+	@Override
+	public void stop() {
+		super.stop();
+		JSONWebSocketNioServerRunnable nioServer = this.nioServer.getAndSet(null);
+		if (nioServer != null)
+			nioServer.awaitTermination();
+		// Writes already queued still finish, but the idle threads don't outlive the server
+		ExecutorService writer = writerExecutor.getAndSet(null);
+		if (writer != null)
+			writer.shutdown();
+	}
+	
+	@Override
+	public IFactoryThrowing<ServerSocket, IOException> getServerSocketFactory() {
+		if (engine.get() == ServerEngine.NIO)
+			return NIO_SERVER_SOCKET_FACTORY;
+		return super.getServerSocketFactory();
+	}
+	
+	@Override
+	protected ServerRunnable createServerRunnable(int timeout) {
+		if (engine.get() != ServerEngine.NIO)
+			return super.createServerRunnable(timeout);
+		try {
+			JSONWebSocketNioServerRunnable nioServer = new JSONWebSocketNioServerRunnable(this, getMyServerSocket().getChannel(), eventLoopThreads.get(), daemon);
+			this.nioServer.set(nioServer);
+			return nioServer;
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to create NIO event loops", e);
+		}
+	}
+	
+	@Override
+	public Response handleWebSocket(IHTTPSession session) {
+		Response response = super.handleWebSocket(session);
+		// NanoHTTPD accepts the first subprotocol offered, which isn't necessarily the codec's
+		JSONWebSocketBinaryCodec codec = selectBinaryCodec(session.getHeaders().get(HEADER_WEBSOCKET_PROTOCOL));
+		if (response != null && codec != null && response.getStatus() == Status.SWITCH_PROTOCOL)
+			response.addHeader(HEADER_WEBSOCKET_PROTOCOL, codec.getProtocol());
+		return response;
+	}
+	
 	@Override
 	protected final WebSocket openWebSocket(@Nonnull IHTTPSession ihttpSession) {
-		return new JSONWebSocketConnectionImpl(ihttpSession, handler);
+		return new JSONWebSocketConnectionImpl(ihttpSession, this);
+	}
+	
+	/**
+	 * Holds the shared flush scheduler, so it's only created when it's first used
+	 */
+	private static final class FlushScheduler {
+		
+		private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(@Nonnull Runnable r) {
+				Thread thread = new Thread(r, "JSONWebSocket Flush Scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
 	}
 	
 }
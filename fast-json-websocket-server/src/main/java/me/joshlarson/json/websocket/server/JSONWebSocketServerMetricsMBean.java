@@ -0,0 +1,40 @@
+package me.joshlarson.json.websocket.server;
+
+/**
+ * The JMX view of a {@link JSONWebSocketServerMetrics}.  Every attribute is read live when it's requested
+ */
+public interface JSONWebSocketServerMetricsMBean {
+	
+	boolean isEnabled();
+	
+	void setEnabled(boolean enabled);
+	
+	long getHandshakes();
+	
+	long getDisconnects();
+	
+	int getOpenConnections();
+	
+	long getMessagesIn();
+	
+	long getBytesIn();
+	
+	long getMessagesOut();
+	
+	long getBytesOut();
+	
+	long getDecodeErrors();
+	
+	long getHandlerCalls();
+	
+	double getHandlerTimeMeanMicros();
+	
+	double getHandlerTimeP50Micros();
+	
+	double getHandlerTimeP99Micros();
+	
+	double getHandlerTimeP999Micros();
+	
+	double getHandlerTimeMaxMicros();
+	
+}
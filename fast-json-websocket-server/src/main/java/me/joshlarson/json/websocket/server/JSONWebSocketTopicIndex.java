@@ -0,0 +1,74 @@
+package me.joshlarson.json.websocket.server;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Maps topics to their subscribers.  Each topic's subscribers are kept in a copy-on-write set, so publishing only takes a lock-free snapshot;
+ * subscribing and unsubscribing lock one of a fixed set of stripes chosen by the topic, so changes to unrelated topics don't contend
+ */
+class JSONWebSocketTopicIndex {
+	
+	private static final int STRIPES = 64;
+	
+	private final ConcurrentMap<String, CopyOnWriteArraySet<JSONWebSocketConnection>> topics;
+	private final Object[] locks;
+	
+	JSONWebSocketTopicIndex() {
+		this.topics = new ConcurrentHashMap<>();
+		this.locks = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+	
+	boolean subscribe(@Nonnull JSONWebSocketConnection connection, @Nonnull String topic) {
+		boolean added;
+		synchronized (lock(topic)) {
+			CopyOnWriteArraySet<JSONWebSocketConnection> subscribers = topics.get(topic);
+			if (subscribers == null) {
+				subscribers = new CopyOnWriteArraySet<>();
+				topics.put(topic, subscribers);
+			}
+			added = subscribers.add(connection);
+			connection.getTopics().add(topic);
+		}
+		// Checked after subscribing, so either this or unsubscribeAll() from the disconnect will see the subscription
+		if (!connection.isConnected()) {
+			unsubscribe(connection, topic);
+			return false;
+		}
+		return added;
+	}
+	
+	boolean unsubscribe(@Nonnull JSONWebSocketConnection connection, @Nonnull String topic) {
+		synchronized (lock(topic)) {
+			connection.getTopics().remove(topic);
+			CopyOnWriteArraySet<JSONWebSocketConnection> subscribers = topics.get(topic);
+			if (subscribers == null || !subscribers.remove(connection))
+				return false;
+			if (subscribers.isEmpty())
+				topics.remove(topic);
+			return true;
+		}
+	}
+	
+	void unsubscribeAll(@Nonnull JSONWebSocketConnection connection) {
+		for (String topic : connection.getTopics())
+			unsubscribe(connection, topic);
+	}
+	
+	@CheckForNull
+	Collection<JSONWebSocketConnection> getSubscribers(@Nonnull String topic) {
+		return topics.get(topic);
+	}
+	
+	@Nonnull
+	private Object lock(@Nonnull String topic) {
+		return locks[(topic.hashCode() & 0x7FFFFFFF) % STRIPES];
+	}
+	
+}
@@ -0,0 +1,42 @@
+package me.joshlarson.json.websocket.server;
+
+import org.nanohttpd.protocols.http.IHTTPSession;
+import org.nanohttpd.protocols.websockets.CloseCode;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * The engine-specific half of a {@link JSONWebSocketConnection}.  Each server engine provides one of these per connection, and reports socket events
+ * back through the connection's package-private event methods
+ */
+interface JSONWebSocketTransport {
+	
+	@Nonnull
+	IHTTPSession getHandshakeRequest();
+	
+	boolean isCompressed();
+	
+	void sendEncoded(@Nonnull JSONWebSocketEncodedFrame frame) throws IOException;
+	
+	/**
+	 * Starts writing the frames in the connection's outbound queue, unless that is already in progress.  Called after every frame is queued
+	 */
+	void flushQueue();
+	
+	void ping(@Nonnull byte[] data) throws IOException;
+	
+	/**
+	 * Sends a ping without blocking the calling thread, reporting any failure through the connection's onError().  Used by the heartbeat, which
+	 * runs on the shared timer thread
+	 */
+	void pingAsync(@Nonnull byte[] data);
+	
+	void close(@Nonnull CloseCode code, @Nonnull String reason) throws IOException;
+	
+	/**
+	 * Drops the connection without a close handshake, for a peer that has stopped responding.  The connection's onClose() is still called
+	 */
+	void abort();
+	
+}
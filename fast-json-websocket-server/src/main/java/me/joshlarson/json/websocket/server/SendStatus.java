@@ -0,0 +1,20 @@
+package me.joshlarson.json.websocket.server;
+
+/**
+ * What happened to a message sent with {@link JSONWebSocketConnection#sendAsync(me.joshlarson.json.JSONObject)}
+ */
+public enum SendStatus {
+	/**
+	 * The message was written to the socket
+	 */
+	WRITTEN,
+	/**
+	 * The outbound queue was full and the message was discarded, either straight away or, under {@link BackpressurePolicy#DROP_OLDEST}, later
+	 * on to make room for a newer one
+	 */
+	DROPPED,
+	/**
+	 * The connection closed, or was closed because the outbound queue was full, before the message was written
+	 */
+	CLOSED
+}
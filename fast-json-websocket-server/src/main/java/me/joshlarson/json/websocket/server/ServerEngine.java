@@ -0,0 +1,13 @@
+package me.joshlarson.json.websocket.server;
+
+public enum ServerEngine {
+	/**
+	 * The default NanoHTTPD engine, which dedicates one blocking thread to every open connection
+	 */
+	NANOHTTPD,
+	/**
+	 * A non-blocking engine built on java.nio selectors, which services every connection from a small fixed set of event-loop threads.  Does not
+	 * support secure connections
+	 */
+	NIO
+}
@@ -50,8 +50,8 @@ public class TestJSONWebSocket {
 	
 	@Before
 	public void initializeConnections() throws IOException {
-		server = new JSONWebSocketServer(Constants.PORT);
-		client = new JSONWebSocketClient();
+		server = createServer();
+		client = createClient();
 		connected.set(false);
 		disconnected.set(false);
 		serverPongCount.set(0);
@@ -78,6 +78,14 @@ public class TestJSONWebSocket {
 		}
 	}
 	
+	protected JSONWebSocketServer createServer() {
+		return new JSONWebSocketServer(Constants.PORT);
+	}
+	
+	protected JSONWebSocketClient createClient() {
+		return new JSONWebSocketClient();
+	}
+	
 	protected void setupHandler() {
 		serverMessageHandler = defaultServerMessageHandler;
 		clientMessageHandler = defaultClientMessageHandler;
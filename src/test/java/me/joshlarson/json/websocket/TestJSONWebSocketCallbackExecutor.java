@@ -0,0 +1,100 @@
+package me.joshlarson.json.websocket;
+
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.client.CloseCode;
+import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketServer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class TestJSONWebSocketCallbackExecutor extends TestJSONWebSocketServer {
+	
+	private static final ExecutorService CALLBACK_EXECUTOR = Executors.newFixedThreadPool(4, new ThreadFactory() {
+		private final AtomicInteger threadId = new AtomicInteger(0);
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "callback-" + threadId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	@Override
+	protected JSONWebSocketServer createServer() {
+		JSONWebSocketServer server = new JSONWebSocketServer(Constants.PORT);
+		server.setCallbackExecutor(CALLBACK_EXECUTOR);
+		return server;
+	}
+	
+	/**
+	 * The base test relies on the handler blocking the reader thread until the client has dropped the connection.  With a callback executor the
+	 * reader keeps going and sees the client's close frame, so this only checks that the disconnect is reported
+	 */
+	@Override
+	@Test
+	public void testClientSpontaneousDisconnect() {
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				socket.disconnect(CloseCode.ABNORMAL_CLOSURE, "", 0);
+			}
+		};
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		serverErrorHandler = new ErrorHandler() {
+			public void onError(Throwable t) {
+				
+			}
+		};
+		client.send(new JSONObject());
+		client.flush();
+		waitForDisconnect();
+		Assert.assertTrue(disconnected.get());
+	}
+	
+	@Test
+	public void testServerCallbacksInOrder() {
+		final int messages = 1000;
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+		final AtomicBoolean wrongThread = new AtomicBoolean(false);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				if (!Thread.currentThread().getName().startsWith("callback-"))
+					wrongThread.set(true);
+				if (((Number) object.get("seq")).intValue() != received.get())
+					outOfOrder.set(true);
+				received.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < messages; i++) {
+			JSONObject object = new JSONObject();
+			object.put("seq", i);
+			Assert.assertTrue(client.send(object));
+		}
+		client.flush();
+		waitForNumber(received, messages);
+		Assert.assertEquals(messages, received.get());
+		Assert.assertFalse(outOfOrder.get());
+		Assert.assertFalse(wrongThread.get());
+	}
+	
+}
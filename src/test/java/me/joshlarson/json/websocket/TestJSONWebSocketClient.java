@@ -3,6 +3,8 @@ package me.joshlarson.json.websocket;
 import me.joshlarson.json.JSONException;
 import me.joshlarson.json.JSONObject;
 import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.client.JSONWebSocketClientMetrics;
+import me.joshlarson.json.websocket.client.OverflowPolicy;
 import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
 import org.junit.Assert;
 import org.junit.Test;
@@ -11,7 +13,15 @@ import org.junit.runners.JUnit4;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -90,6 +100,61 @@ public class TestJSONWebSocketClient extends TestJSONWebSocket {
 		Assert.assertTrue(validPong.get());
 	}
 	
+	@Test
+	public void testClientRttStats() {
+		final AtomicBoolean receivedPong = new AtomicBoolean(false);
+		final AtomicLong rtt = new AtomicLong(-1);
+		client.setHandler(new DefaultClientHandler() {
+			@Override
+			public void onPongTimed(@Nonnull JSONWebSocketClient socket, long rttNano) {
+				rtt.set(rttNano);
+				receivedPong.set(true);
+			}
+		});
+		client.pingTimed();
+		waitForBoolean(receivedPong);
+		Assert.assertTrue(receivedPong.get());
+		Assert.assertEquals(1, client.getRttStats().getCount());
+		Assert.assertEquals(rtt.get(), client.getRttStats().getLastNanos());
+		Assert.assertEquals(client.getRttStats().getLastNanos(), client.getRttStats().getEwmaNanos());
+	}
+	
+	@Test
+	public void testClientMetrics() {
+		final AtomicInteger received = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				received.incrementAndGet();
+			}
+		};
+		JSONWebSocketClientMetrics metrics = client.getMetrics();
+		for (int i = 0; i < 5; i++) {
+			JSONObject object = new JSONObject();
+			object.put("seq", i);
+			client.send(object);
+		}
+		client.flush();
+		waitForNumber(received, 5);
+		Assert.assertEquals(1, metrics.getConnects());
+		Assert.assertTrue(metrics.isConnected());
+		Assert.assertEquals(5, metrics.getMessagesOut());
+		Assert.assertEquals(5 * "{\"seq\":0}".length(), metrics.getBytesOut());
+		Assert.assertEquals(5, metrics.getMessagesIn());
+		Assert.assertEquals(5 * "{\"seq\":0}".length(), metrics.getBytesIn());
+		Assert.assertEquals(5, metrics.getHandlerCalls());
+		Assert.assertEquals(0, metrics.getDecodeErrors());
+	}
+	
 	@Test
 	public void testServerSpontaneousDisconnect() {
 		final AtomicBoolean success = new AtomicBoolean(false);
@@ -122,4 +187,264 @@ public class TestJSONWebSocketClient extends TestJSONWebSocket {
 		Assert.assertTrue(success.get());
 	}
 	
+	@Test
+	public void testClientSendAsync() throws Exception {
+		final int messages = 200;
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				if (((Number) object.get("seq")).intValue() != received.get())
+					outOfOrder.set(true);
+				received.incrementAndGet();
+			}
+		};
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < messages; i++) {
+			JSONObject object = new JSONObject();
+			object.put("seq", i);
+			if (i % 2 == 0)
+				futures.add(client.sendAsync(object));
+			else
+				Assert.assertTrue(client.send(object));
+		}
+		for (CompletableFuture<Void> future : futures)
+			future.get(1, TimeUnit.SECONDS);
+		waitForNumber(received, messages);
+		Assert.assertEquals(messages, received.get());
+		Assert.assertFalse(outOfOrder.get());
+	}
+	
+	@Test
+	public void testClientSendAsyncDisconnected() throws Exception {
+		client.disconnect();
+		waitForDisconnect();
+		CompletableFuture<Void> future = client.sendAsync(new JSONObject());
+		Assert.assertTrue(future.isCompletedExceptionally());
+	}
+	
+	@Test
+	public void testClientConnectAsync() throws Exception {
+		final AtomicInteger received = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				received.incrementAndGet();
+			}
+		};
+		JSONWebSocketClient [] clients = new JSONWebSocketClient[16];
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = createClient();
+			futures.add(clients[i].connectAsync(Constants.SERVER_URI));
+		}
+		for (int i = 0; i < clients.length; i++) {
+			futures.get(i).get(5, TimeUnit.SECONDS);
+			Assert.assertTrue(clients[i].isConnected());
+			Assert.assertTrue(clients[i].send(new JSONObject()));
+		}
+		waitForNumber(received, clients.length);
+		Assert.assertEquals(clients.length, received.get());
+		for (JSONWebSocketClient c : clients)
+			c.disconnect();
+	}
+	
+	@Test
+	public void testClientConnectAsyncRefused() throws Exception {
+		JSONWebSocketClient refused = createClient();
+		try {
+			refused.connectAsync(URI.create("ws://localhost:" + (Constants.PORT + 1))).get(5, TimeUnit.SECONDS);
+			Assert.fail("connecting to a closed port should fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertFalse(refused.isConnected());
+	}
+	
+	@Test
+	public void testClientCork() throws Exception {
+		final int messages = 100;
+		final AtomicInteger received = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				received.incrementAndGet();
+			}
+		};
+		CompletableFuture<Void> last = null;
+		client.cork();
+		client.cork();
+		for (int i = 0; i < messages; i++)
+			last = client.sendAsync(new JSONObject());
+		client.uncork();
+		client.uncork();
+		last.get(1, TimeUnit.SECONDS);
+		waitForNumber(received, messages);
+		Assert.assertEquals(messages, received.get());
+		try {
+			client.uncork();
+			Assert.fail("uncork() without cork() should throw");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void testClientReconnect() throws Exception {
+		client.setReconnect(10, 100, TimeUnit.MILLISECONDS, 0);
+		server.stop();
+		long start = System.nanoTime();
+		while (!client.isReconnecting() && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertTrue(client.isReconnecting());
+		Assert.assertFalse(client.isConnected());
+		Assert.assertFalse(client.send(new JSONObject()));
+		
+		server = createServer();
+		server.setHandler(new DefaultServerHandler());
+		server.start();
+		start = System.nanoTime();
+		while (client.getMetrics().getReconnects() == 0 && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertEquals(1, client.getMetrics().getReconnects());
+		Assert.assertTrue(client.isConnected());
+		Assert.assertFalse(client.isReconnecting());
+		client.disconnect();
+		Thread.sleep(50);
+		Assert.assertFalse(client.isConnected());
+		Assert.assertFalse(client.isReconnecting());
+	}
+	
+	@Test
+	public void testClientReconnectReplaysBuffer() throws Exception {
+		final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				received.add(((Number) object.get("seq")).longValue());
+			}
+		};
+		client.setReconnect(10, 100, TimeUnit.MILLISECONDS, 0);
+		client.setOutboundBuffer(16, OverflowPolicy.REJECT_NEWEST);
+		server.stop();
+		long start = System.nanoTime();
+		while (!client.isReconnecting() && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertTrue(client.isReconnecting());
+		CompletableFuture<Void> last = null;
+		for (int seq = 0; seq < 20; seq++) {
+			JSONObject object = new JSONObject();
+			object.put("seq", seq);
+			if (seq == 15)
+				last = client.sendAsync(object);
+			else
+				Assert.assertEquals(seq < 16, client.send(object));
+		}
+		Assert.assertEquals(16, client.getBufferedMessageCount());
+		
+		server = createServer();
+		server.setHandler(new DefaultServerHandler());
+		server.start();
+		last.get(5, TimeUnit.SECONDS);
+		start = System.nanoTime();
+		while (received.size() < 16 && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		List<Long> expected = new ArrayList<>();
+		for (long seq = 0; seq < 16; seq++)
+			expected.add(seq);
+		Assert.assertEquals(expected, new ArrayList<>(received));
+		JSONWebSocketClientMetrics metrics = client.getMetrics();
+		Assert.assertEquals(1, metrics.getReconnects());
+		Assert.assertTrue(metrics.getReconnectAttempts() >= 1);
+		Assert.assertEquals(16, metrics.getMessagesBuffered());
+		Assert.assertEquals(16, metrics.getMessagesReplayed());
+		Assert.assertEquals(4, metrics.getMessagesDropped());
+		Assert.assertEquals(0, client.getBufferedMessageCount());
+		client.disconnect();
+	}
+	
+	@Test
+	public void testClientReconnectOnConnectWaitsForSend() throws Exception {
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicBoolean sentDuringOnConnect = new AtomicBoolean(false);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				received.add((String) object.get("text"));
+			}
+		};
+		client.setHandler(new DefaultClientHandler() {
+			@Override
+			public void onConnect(@Nonnull final JSONWebSocketClient socket) {
+				JSONObject hello = new JSONObject();
+				hello.put("text", "hello");
+				socket.send(hello);
+				// Another thread's send is buffered behind the replay, rather than waiting for onConnect() to return
+				Thread sender = new Thread(new Runnable() {
+					public void run() {
+						JSONObject late = new JSONObject();
+						late.put("text", "late");
+						socket.sendAsync(late);
+					}
+				});
+				sender.start();
+				try {
+					sender.join(5000);
+					sentDuringOnConnect.set(!sender.isAlive());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		client.setReconnect(10, 100, TimeUnit.MILLISECONDS, 0);
+		client.setOutboundBuffer(16, OverflowPolicy.REJECT_NEWEST);
+		server.stop();
+		long start = System.nanoTime();
+		while (!client.isReconnecting() && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertTrue(client.isReconnecting());
+		JSONObject buffered = new JSONObject();
+		buffered.put("text", "buffered");
+		Assert.assertTrue(client.send(buffered));
+		
+		server = createServer();
+		server.setHandler(new DefaultServerHandler());
+		server.start();
+		start = System.nanoTime();
+		while (received.size() < 3 && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertTrue(sentDuringOnConnect.get());
+		Assert.assertEquals(Arrays.asList("hello", "buffered", "late"), new ArrayList<>(received));
+		Assert.assertEquals(0, client.getBufferedMessageCount());
+		client.disconnect();
+	}
+	
+	@Test
+	public void testClientReconnectGivesUp() throws Exception {
+		final AtomicBoolean gaveUp = new AtomicBoolean(false);
+		clientErrorHandler = new ErrorHandler() {
+			public void onError(Throwable t) {
+				if (t instanceof IOException && t.getMessage().startsWith("Gave up reconnecting"))
+					gaveUp.set(true);
+			}
+		};
+		client.setReconnect(5, 20, TimeUnit.MILLISECONDS, 3);
+		client.setOutboundBuffer(2, OverflowPolicy.DROP_OLDEST);
+		server.stop();
+		long start = System.nanoTime();
+		while (!client.isReconnecting() && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		List<CompletableFuture<Void>> sent = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			sent.add(client.sendAsync(new JSONObject()));
+		Assert.assertTrue(sent.get(0).isCompletedExceptionally());
+		Assert.assertEquals(2, client.getBufferedMessageCount());
+		start = System.nanoTime();
+		while (!gaveUp.get() && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertTrue(gaveUp.get());
+		Assert.assertFalse(client.isReconnecting());
+		Assert.assertEquals(3, client.getMetrics().getReconnectAttempts());
+		Assert.assertEquals(0, client.getMetrics().getReconnects());
+		for (CompletableFuture<Void> future : sent)
+			Assert.assertTrue(future.isCompletedExceptionally());
+		Assert.assertEquals(3, client.getMetrics().getMessagesDropped());
+	}
+	
 }
@@ -0,0 +1,195 @@
+package me.joshlarson.json.websocket;
+
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.client.JSONWebSocketEventLoopGroup;
+import me.joshlarson.json.websocket.client.JSONWebSocketHandler;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketServer;
+import me.joshlarson.json.websocket.server.ServerEngine;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class TestJSONWebSocketClientEventLoop extends TestJSONWebSocketClient {
+	
+	private static JSONWebSocketEventLoopGroup group;
+	
+	@BeforeClass
+	public static void startGroup() throws IOException {
+		group = new JSONWebSocketEventLoopGroup(2);
+	}
+	
+	@AfterClass
+	public static void stopGroup() {
+		group.shutdown();
+	}
+	
+	@Override
+	protected JSONWebSocketServer createServer() {
+		// The NIO engine doesn't add a thread per connection either, so any change in the thread count comes from the clients
+		JSONWebSocketServer server = new JSONWebSocketServer(Constants.PORT);
+		server.setEngine(ServerEngine.NIO);
+		server.setEventLoopThreads(2);
+		return server;
+	}
+	
+	@Override
+	protected JSONWebSocketClient createClient() {
+		JSONWebSocketClient client = new JSONWebSocketClient();
+		client.setEventLoopGroup(group);
+		return client;
+	}
+	
+	/**
+	 * The event loop answers the server's close frame before it can write anything more, so sends after the close fail quietly instead of
+	 * reporting an error
+	 */
+	@Test
+	@Override
+	public void testServerSpontaneousDisconnect() {
+		final AtomicInteger count = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				if (count.getAndIncrement() < 256)
+					return;
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientErrorHandler = new ErrorHandler() {
+			public void onError(Throwable t) {
+				// Writes racing the close may still fail with a broken pipe
+			}
+		};
+		for (int i = 0; i < 512; i++) {
+			JSONObject obj = new JSONObject();
+			obj.put("id", i);
+			client.send(obj);
+			client.flush();
+		}
+		waitForDisconnect();
+		Assert.assertTrue(disconnected.get());
+		Assert.assertFalse(client.isConnected());
+	}
+	
+	@Test
+	public void testClientEventLoopManyClients() throws Exception {
+		final int clientCount = 50;
+		final int messages = 20;
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+		int threadsBefore = Thread.activeCount();
+		JSONWebSocketClient [] clients = new JSONWebSocketClient[clientCount];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = createClient();
+			clients[i].setHandler(new JSONWebSocketHandler() {
+				private int next = 0;
+				
+				@Override
+				public void onMessage(@Nonnull JSONWebSocketClient socket, @Nonnull JSONObject object) {
+					if (((Number) object.get("seq")).intValue() != next++)
+						outOfOrder.set(true);
+					received.incrementAndGet();
+				}
+			});
+			clients[i].connect(Constants.SERVER_URI);
+		}
+		// Threaded clients would add a reading and a writing thread each
+		Assert.assertTrue(Thread.activeCount() - threadsBefore < clientCount);
+		for (int seq = 0; seq < messages; seq++) {
+			for (JSONWebSocketClient c : clients) {
+				JSONObject object = new JSONObject();
+				object.put("seq", seq);
+				c.send(object);
+			}
+		}
+		waitForNumber(received, clientCount * messages);
+		Assert.assertEquals(clientCount * messages, received.get());
+		Assert.assertFalse(outOfOrder.get());
+		for (JSONWebSocketClient c : clients)
+			c.disconnect();
+	}
+	
+	@Test
+	public void testClientEventLoopPerMessageDeflate() throws Exception {
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		server.setPerMessageDeflate(true);
+		server.setCompressionThreshold(64);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				received.add(object.getString("key"));
+			}
+		};
+		List<String> sent = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			StringBuilder value = new StringBuilder();
+			for (int j = 0; j < (i % 3 == 0 ? 4 : (i % 3 == 1 ? 100 : 20000 * i)); j++)
+				value.append("value").append(j % 10);
+			sent.add(value.toString());
+		}
+		JSONWebSocketClient compressed = createClient();
+		compressed.setPerMessageDeflate(true);
+		compressed.setCompressionThreshold(64);
+		compressed.setHandler(new DefaultClientHandler());
+		compressed.connect(Constants.SERVER_URI);
+		try {
+			Assert.assertTrue(compressed.isCompressed());
+			for (String value : sent) {
+				JSONObject object = new JSONObject();
+				object.put("key", value);
+				Assert.assertTrue(compressed.send(object));
+			}
+			long start = System.nanoTime();
+			while (received.size() < sent.size() && System.nanoTime() - start < 5E9)
+				Thread.sleep(1);
+			Assert.assertEquals(sent, new ArrayList<>(received));
+		} finally {
+			compressed.disconnect();
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testClientEventLoopRejectsSecure() throws IOException {
+		JSONWebSocketClient secure = createClient();
+		secure.connect(URI.create("wss://localhost:" + Constants.PORT));
+	}
+	
+}
@@ -0,0 +1,308 @@
+package me.joshlarson.json.websocket;
+
+import me.joshlarson.json.JSONObject;
+import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.server.BackpressurePolicy;
+import me.joshlarson.json.websocket.server.JSONWebSocketBufferPool;
+import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketServer;
+import me.joshlarson.json.websocket.server.SendStatus;
+import me.joshlarson.json.websocket.server.ServerEngine;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class TestJSONWebSocketNioServer extends TestJSONWebSocketServer {
+	
+	@Override
+	protected JSONWebSocketServer createServer() {
+		JSONWebSocketServer server = new JSONWebSocketServer(Constants.PORT);
+		server.setEngine(ServerEngine.NIO);
+		server.setEventLoopThreads(2);
+		return server;
+	}
+	
+	@Test
+	public void testServerLargeEcho() {
+		final AtomicBoolean receivedEcho = new AtomicBoolean(false);
+		final AtomicBoolean validEcho = new AtomicBoolean(false);
+		final StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			value.append((char) ('a' + i % 26));
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				validEcho.set(value.toString().equals(object.getString("key")));
+				receivedEcho.set(true);
+			}
+		};
+		JSONObject object = new JSONObject();
+		object.put("key", value.toString());
+		Assert.assertTrue(client.send(object));
+		client.flush();
+		waitForBoolean(receivedEcho);
+		Assert.assertTrue(receivedEcho.get());
+		Assert.assertTrue(validEcho.get());
+	}
+	
+	@Test
+	public void testServerDirectBufferPool() {
+		final int messages = 200;
+		final long maxRetainedBytes = 64 * 1024;
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+		JSONWebSocketBufferPool pool = new JSONWebSocketBufferPool(maxRetainedBytes, true);
+		server.setBufferPool(pool);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				if (((Number) object.get("seq")).intValue() != received.getAndIncrement())
+					outOfOrder.set(true);
+			}
+		};
+		for (int i = 0; i < messages; i++) {
+			JSONObject object = new JSONObject();
+			object.put("seq", i);
+			object.put("padding", new String(new char[i * 50]).replace('\0', 'x'));
+			Assert.assertTrue(client.send(object));
+		}
+		client.flush();
+		waitForNumber(received, messages);
+		Assert.assertEquals(messages, received.get());
+		Assert.assertFalse(outOfOrder.get());
+		Assert.assertTrue(pool.getHits() > 0);
+		Assert.assertTrue(pool.getRetainedBytes() <= maxRetainedBytes);
+	}
+	
+	@Test
+	public void testServerPerMessageDeflate() throws Exception {
+		testServerPerMessageDeflate(15, true);
+	}
+	
+	@Test
+	public void testServerPerMessageDeflateNoContextTakeover() throws Exception {
+		testServerPerMessageDeflate(10, false);
+	}
+	
+	@Test
+	public void testServerPerMessageDeflateDisabled() {
+		Assert.assertFalse(client.isCompressed());
+	}
+	
+	private void testServerPerMessageDeflate(int windowBits, boolean contextTakeover) throws Exception {
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicBoolean serverCompressed = new AtomicBoolean(false);
+		server.setPerMessageDeflate(true);
+		server.setCompressionThreshold(64);
+		server.setCompressionWindowBits(windowBits);
+		server.setCompressionContextTakeover(contextTakeover);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				serverCompressed.set(socket.isCompressed());
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				received.add(object.getString("key"));
+			}
+		};
+		List<String> sent = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			StringBuilder value = new StringBuilder();
+			for (int j = 0; j < (i % 3 == 0 ? 4 : (i % 3 == 1 ? 100 : 20000 * i)); j++)
+				value.append("value").append(j % 10);
+			sent.add(value.toString());
+		}
+		JSONWebSocketClient compressed = new JSONWebSocketClient();
+		compressed.setPerMessageDeflate(true);
+		compressed.setCompressionThreshold(64);
+		compressed.setHandler(new DefaultClientHandler());
+		compressed.connect(Constants.SERVER_URI);
+		try {
+			Assert.assertTrue(compressed.isCompressed());
+			for (String value : sent) {
+				JSONObject object = new JSONObject();
+				object.put("key", value);
+				Assert.assertTrue(compressed.send(object));
+			}
+			compressed.flush();
+			long start = System.nanoTime();
+			while (received.size() < sent.size() && System.nanoTime() - start < 5E9)
+				Thread.sleep(1);
+			Assert.assertEquals(sent, new ArrayList<>(received));
+			Assert.assertTrue(serverCompressed.get());
+		} finally {
+			compressed.disconnect();
+		}
+	}
+	
+	@Test
+	public void testServerManyConnections() throws Exception {
+		final AtomicInteger received = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				received.incrementAndGet();
+			}
+		};
+		JSONWebSocketClient [] clients = new JSONWebSocketClient[32];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new JSONWebSocketClient();
+			clients[i].connect(Constants.SERVER_URI);
+			clients[i].send(new JSONObject());
+		}
+		waitForNumber(received, clients.length);
+		Assert.assertEquals(clients.length, received.get());
+		for (JSONWebSocketClient c : clients)
+			c.disconnect();
+	}
+	
+	@Test
+	public void testServerMalformedHandshake() throws IOException {
+		try (Socket socket = new Socket("localhost", Constants.PORT)) {
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write("GARBAGE\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)).readLine();
+			Assert.assertEquals("HTTP/1.1 400 Bad Request", statusLine);
+		}
+	}
+	
+	@Test
+	public void testServerCloseFrameOneBytePayload() throws IOException {
+		final AtomicInteger serverErrors = new AtomicInteger(0);
+		serverErrorHandler = new ErrorHandler() {
+			public void onError(Throwable t) {
+				serverErrors.incrementAndGet();
+			}
+		};
+		try (Socket socket = new Socket("localhost", Constants.PORT)) {
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET / HTTP/1.1\r\nHost: localhost:" + Constants.PORT + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+					"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			// A masked close frame with a single payload byte, which can't hold a status code
+			out.write(new byte[]{(byte) 0x88, (byte) 0x81, 0, 0, 0, 0, 0x03});
+			out.flush();
+			InputStream in = socket.getInputStream();
+			int headerEnd = 0;
+			while (headerEnd < 4) {
+				int b = in.read();
+				Assert.assertNotEquals(-1, b);
+				headerEnd = (b == (headerEnd % 2 == 0 ? '\r' : '\n')) ? headerEnd + 1 : 0;
+			}
+			Assert.assertEquals(0x88, in.read());
+			Assert.assertTrue(in.read() >= 2);
+			int code = (in.read() << 8) | in.read();
+			Assert.assertEquals(1002, code);
+		}
+		Assert.assertEquals(1, serverErrors.get());
+	}
+	
+	@Test
+	public void testServerBackpressureDropNewest() throws Exception {
+		List<Integer> received = testServerBackpressure(BackpressurePolicy.DROP_NEWEST, SendStatus.WRITTEN, SendStatus.WRITTEN, SendStatus.WRITTEN, SendStatus.DROPPED, SendStatus.DROPPED);
+		Assert.assertEquals(Arrays.asList(0, 1, 2), received);
+	}
+	
+	@Test
+	public void testServerBackpressureDropOldest() throws Exception {
+		List<Integer> received = testServerBackpressure(BackpressurePolicy.DROP_OLDEST, SendStatus.DROPPED, SendStatus.DROPPED, SendStatus.WRITTEN, SendStatus.WRITTEN, SendStatus.WRITTEN);
+		Assert.assertEquals(Arrays.asList(2, 3, 4), received);
+	}
+	
+	@Test
+	public void testServerBackpressureBlock() throws Exception {
+		server.setBackpressureTimeout(0, TimeUnit.MILLISECONDS);
+		List<Integer> received = testServerBackpressure(BackpressurePolicy.BLOCK, SendStatus.WRITTEN, SendStatus.WRITTEN, SendStatus.WRITTEN, SendStatus.DROPPED, SendStatus.DROPPED);
+		Assert.assertEquals(Arrays.asList(0, 1, 2), received);
+	}
+	
+	@Test
+	public void testServerBackpressureClose() throws Exception {
+		testServerBackpressure(BackpressurePolicy.CLOSE, SendStatus.CLOSED, SendStatus.CLOSED, SendStatus.CLOSED, SendStatus.CLOSED, SendStatus.CLOSED);
+		waitForDisconnect();
+		Assert.assertTrue(disconnected.get());
+	}
+	
+	/**
+	 * Handlers run on the event loop thread, which is also the thread that empties the outbound queue, so every message sent from a handler stays
+	 * queued until the handler returns
+	 */
+	private List<Integer> testServerBackpressure(BackpressurePolicy policy, final SendStatus ... expected) throws Exception {
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<CompletableFuture<SendStatus>> futures = Collections.synchronizedList(new ArrayList<CompletableFuture<SendStatus>>());
+		final AtomicBoolean sent = new AtomicBoolean(false);
+		server.setOutboundQueueCapacity(3);
+		server.setBackpressurePolicy(policy);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				for (int i = 0; i < expected.length; i++) {
+					JSONObject reply = new JSONObject();
+					reply.put("seq", i);
+					futures.add(socket.sendAsync(reply));
+				}
+				sent.set(true);
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				received.add(((Number) object.get("seq")).intValue());
+			}
+		};
+		client.send(new JSONObject());
+		client.flush();
+		waitForBoolean(sent);
+		List<SendStatus> statuses = new ArrayList<>();
+		for (CompletableFuture<SendStatus> future : futures)
+			statuses.add(future.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList(expected), statuses);
+		long start = System.nanoTime();
+		while (received.size() < 3 && policy != BackpressurePolicy.CLOSE && System.nanoTime() - start < 1E9)
+			Thread.yield();
+		return new ArrayList<>(received);
+	}
+	
+}
@@ -1,20 +1,44 @@
 package me.joshlarson.json.websocket;
 
+import me.joshlarson.json.JSONArray;
 import me.joshlarson.json.JSONException;
 import me.joshlarson.json.JSONObject;
 import me.joshlarson.json.websocket.client.CloseCode;
 import me.joshlarson.json.websocket.client.JSONWebSocketClient;
+import me.joshlarson.json.websocket.server.JSONWebSocketCborCodec;
 import me.joshlarson.json.websocket.server.JSONWebSocketConnection;
+import me.joshlarson.json.websocket.server.JSONWebSocketKeyCache;
+import me.joshlarson.json.websocket.server.JSONWebSocketLazyMessage;
+import me.joshlarson.json.websocket.server.JSONWebSocketRouteHandler;
+import me.joshlarson.json.websocket.server.JSONWebSocketRouter;
+import me.joshlarson.json.websocket.server.JSONWebSocketRttStats;
+import me.joshlarson.json.websocket.server.JSONWebSocketServerMetrics;
+import me.joshlarson.json.websocket.server.SendStatus;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RunWith(JUnit4.class)
 public class TestJSONWebSocketServer extends TestJSONWebSocket {
@@ -80,6 +104,41 @@ public class TestJSONWebSocketServer extends TestJSONWebSocket {
 		Assert.assertTrue(validPong.get());
 	}
 	
+	@Test
+	public void testServerRttStats() {
+		final AtomicBoolean receivedPong = new AtomicBoolean(false);
+		final AtomicLong rtt = new AtomicLong(-1);
+		final AtomicReference<JSONWebSocketConnection> connection = new AtomicReference<>(null);
+		server.setHandler(new DefaultServerHandler() {
+			@Override
+			public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+				try {
+					socket.pingTimed();
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+			@Override
+			public void onPongTimed(@Nonnull JSONWebSocketConnection socket, long rttNano) {
+				rtt.set(rttNano);
+				connection.set(socket);
+				receivedPong.set(true);
+			}
+		});
+		client.send(new JSONObject());
+		client.flush();
+		waitForBoolean(receivedPong);
+		Assert.assertTrue(receivedPong.get());
+		JSONWebSocketRttStats stats = connection.get().getRttStats();
+		Assert.assertEquals(1, stats.getCount());
+		Assert.assertEquals(rtt.get(), stats.getLastNanos());
+		Assert.assertEquals(stats.getLastNanos(), stats.getEwmaNanos());
+		Assert.assertEquals(stats.getLastNanos(), stats.getMinNanos());
+		Assert.assertEquals(stats.getLastNanos(), stats.getMaxNanos());
+		Assert.assertEquals(stats.getLastNanos(), stats.getPercentileNanos(99));
+	}
+	
 	@Test
 	public void testServerEcho() {
 		final AtomicBoolean receivedEcho = new AtomicBoolean(false);
@@ -114,6 +173,512 @@ public class TestJSONWebSocketServer extends TestJSONWebSocket {
 		Assert.assertTrue(validEcho.get());
 	}
 	
+	@Test
+	public void testServerEchoEncoding() {
+		final AtomicReference<String> echo = new AtomicReference<>(null);
+		final AtomicBoolean receivedEcho = new AtomicBoolean(false);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				echo.set(object.toString(true));
+				receivedEcho.set(true);
+			}
+		};
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 70000)
+			large.append("large \u00e9\u4e2d\ud83d\ude00 ");
+		JSONArray array = new JSONArray();
+		array.add(Long.MIN_VALUE);
+		array.add(-42);
+		array.add(12.5);
+		array.add(true);
+		array.add(null);
+		array.add(new JSONObject());
+		JSONObject nested = new JSONObject();
+		nested.put("array", array);
+		JSONObject object = new JSONObject();
+		object.put("escapes", "quote\" backslash\\ newline\n tab\t control\u0001");
+		object.put("unicode", "\u00e9\u4e2d\ud83d\ude00");
+		object.put("nested", nested);
+		object.put("large", large.toString());
+		Assert.assertTrue(client.send(object));
+		client.flush();
+		waitForBoolean(receivedEcho);
+		Assert.assertTrue(receivedEcho.get());
+		Assert.assertEquals(object.toString(true), echo.get());
+	}
+	
+	@Test
+	public void testServerBinaryCodec() throws Exception {
+		final AtomicReference<String> echo = new AtomicReference<>(null);
+		final AtomicInteger echoes = new AtomicInteger(0);
+		final AtomicInteger broadcasts = new AtomicInteger(0);
+		final AtomicInteger binaryConnections = new AtomicInteger(0);
+		server.addBinaryCodec(new JSONWebSocketCborCodec());
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				if (socket.getBinaryCodec() != null)
+					binaryConnections.incrementAndGet();
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				if (object.containsKey("broadcast")) {
+					if (((Number) object.get("broadcast")).doubleValue() == 1.5)
+						broadcasts.incrementAndGet();
+				} else {
+					echo.set(object.toString(true));
+					echoes.incrementAndGet();
+				}
+			}
+		};
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 70000)
+			large.append("large \u00e9\u4e2d\ud83d\ude00 ");
+		JSONArray array = new JSONArray();
+		array.add(Long.MIN_VALUE);
+		array.add(-42);
+		array.add(12.5);
+		array.add(true);
+		array.add(null);
+		array.add(new JSONObject());
+		JSONObject object = new JSONObject();
+		object.put("unicode", "\u00e9\u4e2d\ud83d\ude00");
+		object.put("array", array);
+		object.put("large", large.toString());
+		
+		JSONWebSocketClient binary = new JSONWebSocketClient();
+		binary.setBinaryCodec(new me.joshlarson.json.websocket.client.JSONWebSocketCborCodec());
+		binary.addProtocol("json");
+		binary.setHandler(new DefaultClientHandler());
+		binary.connect(Constants.SERVER_URI);
+		try {
+			Assert.assertEquals(JSONWebSocketCborCodec.PROTOCOL, binary.getAgreedProtocol());
+			Assert.assertNull(client.getAgreedProtocol());
+			Assert.assertTrue(binary.send(object));
+			binary.flush();
+			waitForNumber(echoes, 1);
+			Assert.assertEquals(object.toString(true), echo.get());
+			Assert.assertEquals(1, binaryConnections.get());
+			
+			JSONObject message = new JSONObject();
+			message.put("broadcast", 1.5);
+			Assert.assertEquals(2, server.broadcast(message));
+			waitForNumber(broadcasts, 2);
+			Assert.assertEquals(2, broadcasts.get());
+		} finally {
+			binary.disconnect();
+		}
+	}
+	
+	@Test
+	public void testServerKeyCache() {
+		final AtomicReference<JSONObject> first = new AtomicReference<>(null);
+		final AtomicReference<JSONObject> second = new AtomicReference<>(null);
+		final AtomicInteger echoes = new AtomicInteger(0);
+		JSONWebSocketKeyCache cache = new JSONWebSocketKeyCache(64, 16);
+		server.setKeyCache(cache);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				if (!first.compareAndSet(null, object))
+					second.set(object);
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				echoes.incrementAndGet();
+			}
+		};
+		JSONObject object = new JSONObject();
+		object.put("type", "move");
+		object.put("unicode \u00e9", "\u4e2d");
+		object.put("escaped \"key\"", "escaped\nvalue");
+		object.put("description", "a value that is longer than sixteen bytes");
+		Assert.assertTrue(client.send(object));
+		Assert.assertTrue(client.send(object));
+		client.flush();
+		waitForNumber(echoes, 2);
+		Assert.assertEquals(object, first.get());
+		Assert.assertEquals(object, second.get());
+		Assert.assertSame(cached(first.get(), "type"), cached(second.get(), "type"));
+		Assert.assertSame(cached(first.get(), "unicode \u00e9"), cached(second.get(), "unicode \u00e9"));
+		Assert.assertSame(first.get().get("type"), second.get().get("type"));
+		Assert.assertNotSame(first.get().get("description"), second.get().get("description"));
+		Assert.assertNotSame(cached(first.get(), "escaped \"key\""), cached(second.get(), "escaped \"key\""));
+		Assert.assertEquals(5, cache.getHits());
+		Assert.assertEquals(5, cache.getMisses());
+		Assert.assertTrue(client.getKeyCache().getHits() > 0);
+	}
+	
+	@Test
+	public void testServerLazyMessage() {
+		final AtomicReference<String> type = new AtomicReference<>(null);
+		final AtomicReference<JSONObject> decoded = new AtomicReference<>(null);
+		final AtomicReference<JSONWebSocketLazyMessage> retained = new AtomicReference<>(null);
+		final AtomicInteger messages = new AtomicInteger(0);
+		server.setHandler(new DefaultServerHandler() {
+			public void onLazyMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONWebSocketLazyMessage message) {
+				if (!message.containsKey("type") || message.containsKey("missing") || message.get("missing") != null)
+					failed.set(true);
+				type.set(message.getString("type"));
+				if (messages.get() == 1)
+					decoded.set(message.toJSONObject());
+				retained.set(message);
+				messages.incrementAndGet();
+			}
+		});
+		JSONArray array = new JSONArray();
+		array.add(1);
+		array.add("two");
+		JSONObject object = new JSONObject();
+		object.put("type", "move");
+		object.put("array", array);
+		object.put("nested", new JSONObject());
+		object.put("unicode", "\u00e9\u4e2d\ud83d\ude00");
+		Assert.assertTrue(client.send(object));
+		Assert.assertTrue(client.send(object));
+		client.flush();
+		waitForNumber(messages, 2);
+		Assert.assertEquals(2, messages.get());
+		Assert.assertEquals("move", type.get());
+		Assert.assertEquals(object.toString(true), decoded.get().toString(true));
+		try {
+			retained.get().get("type");
+			Assert.fail("Lazy message was readable after onLazyMessage returned");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void testServerRouter() {
+		final AtomicReference<JSONObject> chat = new AtomicReference<>(null);
+		final AtomicInteger events = new AtomicInteger(0);
+		final AtomicInteger unrouted = new AtomicInteger(0);
+		JSONWebSocketRouter router = new JSONWebSocketRouter("kind") {
+			public void onConnect(@Nonnull JSONWebSocketConnection socket) { connected.set(true); }
+			
+			public void onDisconnect(@Nonnull JSONWebSocketConnection socket) { disconnected.set(true); }
+			
+			public void onUnroutedMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONWebSocketLazyMessage message) {
+				unrouted.incrementAndGet();
+			}
+		};
+		router.route("chat", new JSONWebSocketRouteHandler() {
+			public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+				chat.set(object);
+			}
+		});
+		router.route("\u00e9v\u00e9nement", new JSONWebSocketRouteHandler() {
+			public void onMessage(@Nonnull JSONWebSocketConnection socket, @Nonnull JSONObject object) {
+				events.incrementAndGet();
+			}
+		});
+		router.drop("typing");
+		server.setHandler(router);
+		
+		String [] kinds = {"chat", "typing", "typing", "\u00e9v\u00e9nement", "unknown", "cha", "chats"};
+		for (String kind : kinds) {
+			JSONObject object = new JSONObject();
+			object.put("kind", kind);
+			object.put("text", "hello");
+			Assert.assertTrue(client.send(object));
+		}
+		JSONObject numeric = new JSONObject();
+		numeric.put("kind", 5);
+		Assert.assertTrue(client.send(numeric));
+		Assert.assertTrue(client.send(new JSONObject()));
+		client.flush();
+		waitForNumber(unrouted, 5);
+		waitForNumber(events, 1);
+		Assert.assertEquals(5, unrouted.get());
+		Assert.assertEquals(5, router.getUnroutedCount());
+		Assert.assertEquals(1, events.get());
+		Assert.assertEquals("hello", chat.get().get("text"));
+		Assert.assertEquals(1, router.getRouteCount("chat"));
+		Assert.assertEquals(2, router.getRouteCount("typing"));
+		Assert.assertEquals(1, router.getRouteCount("\u00e9v\u00e9nement"));
+		Assert.assertEquals(0, router.getRouteCount("unknown"));
+		Assert.assertEquals(3, router.getRouteCounts().size());
+		Assert.assertTrue(router.removeRoute("typing"));
+		Assert.assertFalse(router.removeRoute("typing"));
+		Assert.assertEquals(0, router.getRouteCount("typing"));
+	}
+	
+	@Test
+	public void testServerRpc() throws Exception {
+		final AtomicInteger serverMessages = new AtomicInteger(0);
+		final AtomicInteger clientMessages = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				serverMessages.incrementAndGet();
+				if (object.containsKey("ignore"))
+					return;
+				JSONObject response = new JSONObject();
+				response.put("sum", ((Number) object.get("a")).longValue() + ((Number) object.get("b")).longValue());
+				try {
+					socket.reply(object, response);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				clientMessages.incrementAndGet();
+				JSONObject response = new JSONObject();
+				response.put("echo", object.get("text"));
+				socket.reply(object, response);
+			}
+		};
+		List<CompletableFuture<JSONObject>> calls = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			JSONObject request = new JSONObject();
+			request.put("a", i);
+			request.put("b", 1000);
+			calls.add(client.call(request, 5, TimeUnit.SECONDS));
+		}
+		client.flush();
+		for (int i = 0; i < calls.size(); i++)
+			Assert.assertEquals(1000L + i, calls.get(i).get(5, TimeUnit.SECONDS).get("sum"));
+		Assert.assertEquals(0, clientMessages.get());
+		Assert.assertEquals(0, client.getPendingCallCount());
+		
+		JSONWebSocketConnection connection = server.getConnections().iterator().next();
+		JSONObject request = new JSONObject();
+		request.put("text", "hello");
+		Assert.assertEquals("hello", connection.call(request, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).get("echo"));
+		Assert.assertEquals(1, clientMessages.get());
+		Assert.assertEquals(100, serverMessages.get());
+		Assert.assertEquals(0, connection.getPendingCallCount());
+		
+		JSONObject ignored = new JSONObject();
+		ignored.put("ignore", true);
+		CompletableFuture<JSONObject> timeout = client.call(ignored, 50, TimeUnit.MILLISECONDS);
+		client.flush();
+		try {
+			timeout.get(5, TimeUnit.SECONDS);
+			Assert.fail("Call without a response completed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertEquals(0, client.getPendingCallCount());
+		
+		CompletableFuture<JSONObject> disconnected = client.call(ignored, 5, TimeUnit.SECONDS);
+		client.flush();
+		waitForNumber(serverMessages, 102);
+		server.closeAllConnections();
+		try {
+			disconnected.get(5, TimeUnit.SECONDS);
+			Assert.fail("Call completed after the connection closed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+	
+	@Test
+	public void testServerRpcConcurrentCalls() throws Exception {
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				JSONObject response = new JSONObject();
+				response.put("side", "server");
+				response.put("value", object.get("value"));
+				try {
+					socket.reply(object, response);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				JSONObject response = new JSONObject();
+				response.put("side", "client");
+				response.put("value", object.get("value"));
+				socket.reply(object, response);
+			}
+		};
+		JSONWebSocketConnection connection = server.getConnections().iterator().next();
+		List<CompletableFuture<JSONObject>> clientCalls = new ArrayList<>();
+		List<CompletableFuture<JSONObject>> serverCalls = new ArrayList<>();
+		// Both sides number their calls from 1, so each side's requests carry the same ids as the other side's pending calls
+		for (int i = 0; i < 50; i++) {
+			JSONObject clientRequest = new JSONObject();
+			clientRequest.put("value", i);
+			clientCalls.add(client.call(clientRequest, 5, TimeUnit.SECONDS));
+			JSONObject serverRequest = new JSONObject();
+			serverRequest.put("value", i);
+			serverCalls.add(connection.call(serverRequest, 5, TimeUnit.SECONDS));
+		}
+		client.flush();
+		for (int i = 0; i < 50; i++) {
+			JSONObject clientResponse = clientCalls.get(i).get(5, TimeUnit.SECONDS);
+			Assert.assertEquals("server", clientResponse.get("side"));
+			Assert.assertEquals((long) i, ((Number) clientResponse.get("value")).longValue());
+			JSONObject serverResponse = serverCalls.get(i).get(5, TimeUnit.SECONDS);
+			Assert.assertEquals("client", serverResponse.get("side"));
+			Assert.assertEquals((long) i, ((Number) serverResponse.get("value")).longValue());
+		}
+		Assert.assertEquals(0, client.getPendingCallCount());
+		Assert.assertEquals(0, connection.getPendingCallCount());
+	}
+	
+	@Test
+	public void testServerHeartbeat() throws Exception {
+		final AtomicInteger serverErrors = new AtomicInteger(0);
+		final AtomicInteger clientTimedPongs = new AtomicInteger(0);
+		serverErrorHandler = new ErrorHandler() {
+			public void onError(Throwable t) {
+				serverErrors.incrementAndGet();
+			}
+		};
+		server.setHeartbeat(50, TimeUnit.MILLISECONDS, 2);
+		JSONWebSocketClient live = new JSONWebSocketClient();
+		live.setHeartbeat(50, TimeUnit.MILLISECONDS, 2);
+		live.setHandler(new DefaultClientHandler() {
+			@Override
+			public void onPongTimed(@Nonnull JSONWebSocketClient socket, long rttNano) {
+				clientTimedPongs.incrementAndGet();
+			}
+		});
+		live.connect(Constants.SERVER_URI);
+		try (Socket silent = new Socket("localhost", Constants.PORT)) {
+			// Completes the handshake, then never answers anything
+			silent.setSoTimeout(5000);
+			OutputStream out = silent.getOutputStream();
+			out.write(("GET / HTTP/1.1\r\nHost: localhost:" + Constants.PORT + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+					"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			InputStream in = silent.getInputStream();
+			int headerEnd = 0;
+			while (headerEnd < 4) {
+				int b = in.read();
+				Assert.assertNotEquals(-1, b);
+				headerEnd = (b == (headerEnd % 2 == 0 ? '\r' : '\n')) ? headerEnd + 1 : 0;
+			}
+			// Only pings arrive before the socket is dropped, with no close frame
+			int pings = 0;
+			int opcode;
+			while ((opcode = in.read()) != -1) {
+				Assert.assertEquals(0x89, opcode);
+				int length = in.read();
+				for (int i = 0; i < length; i++)
+					Assert.assertNotEquals(-1, in.read());
+				pings++;
+			}
+			Assert.assertEquals(2, pings);
+		}
+		long start = System.nanoTime();
+		while (server.getConnectionCount() > 2 && System.nanoTime() - start < 1E9)
+			Thread.sleep(1);
+		Assert.assertEquals(2, server.getConnectionCount());
+		Assert.assertEquals(1, serverErrors.get());
+		
+		waitForNumber(clientTimedPongs, 3);
+		Assert.assertTrue(clientTimedPongs.get() >= 3);
+		Assert.assertTrue(live.isConnected());
+		for (JSONWebSocketConnection connection : server.getConnections())
+			Assert.assertTrue(connection.getMissedPongs() <= 1);
+		live.disconnect();
+	}
+	
+	@Test
+	public void testServerMetrics() throws Exception {
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicInteger decodeErrors = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				received.incrementAndGet();
+				try {
+					socket.send(object);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				}
+			}
+		};
+		serverErrorHandler = new ErrorHandler() {
+			public void onError(Throwable t) {
+				if (t instanceof JSONException)
+					decodeErrors.incrementAndGet();
+			}
+		};
+		JSONWebSocketServerMetrics metrics = server.getMetrics();
+		Assert.assertEquals(1, metrics.getHandshakes());
+		Assert.assertEquals(1, metrics.getOpenConnections());
+		for (int i = 0; i < 10; i++) {
+			JSONObject object = new JSONObject();
+			object.put("seq", i);
+			Assert.assertTrue(client.send(object));
+		}
+		Assert.assertTrue(client.send(new JSONObject() {
+			public String toString(boolean compact) {
+				return "{invalid{";
+			}
+		}));
+		client.flush();
+		waitForNumber(received, 10);
+		waitForNumber(decodeErrors, 1);
+		Assert.assertEquals(11, metrics.getMessagesIn());
+		Assert.assertEquals(10 * "{\"seq\":0}".length() + "{invalid{".length(), metrics.getBytesIn());
+		Assert.assertEquals(1, metrics.getDecodeErrors());
+		Assert.assertEquals(10, metrics.getHandlerCalls());
+		Assert.assertTrue(metrics.getHandlerTimePercentileNanos(99) > 0);
+		Assert.assertEquals(10, metrics.getMessagesOut());
+		Assert.assertEquals(10 * "{\"seq\":0}".length(), metrics.getBytesOut());
+		
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.registerMBean("test");
+		try {
+			Assert.assertEquals(11L, mbeans.getAttribute(name, "MessagesIn"));
+			Assert.assertEquals(1, mbeans.getAttribute(name, "OpenConnections"));
+			Assert.assertEquals(1L, mbeans.getAttribute(name, "DecodeErrors"));
+			Assert.assertTrue((Double) mbeans.getAttribute(name, "HandlerTimeP99Micros") > 0);
+		} finally {
+			metrics.unregisterMBean();
+		}
+		Assert.assertFalse(mbeans.isRegistered(name));
+		
+		metrics.setEnabled(false);
+		client.send(new JSONObject());
+		client.flush();
+		waitForNumber(received, 11);
+		Assert.assertEquals(11, received.get());
+		Assert.assertEquals(11, metrics.getMessagesIn());
+		Assert.assertEquals(10, metrics.getHandlerCalls());
+	}
+	
+	private static String cached(JSONObject object, String key) {
+		for (String k : object.keySet()) {
+			if (k.equals(key))
+				return k;
+		}
+		return null;
+	}
+	
 	@Test
 	public void testServerInvalidJSON() {
 		final AtomicBoolean success = new AtomicBoolean(false);
@@ -234,4 +799,189 @@ public class TestJSONWebSocketServer extends TestJSONWebSocket {
 		Assert.assertTrue(success.get());
 	}
 	
+	@Test
+	public void testServerBroadcast() throws Exception {
+		final AtomicInteger ready = new AtomicInteger(0);
+		final AtomicInteger received = new AtomicInteger(0);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				ready.incrementAndGet();
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				if ("value".equals(object.getString("key")))
+					received.incrementAndGet();
+			}
+		};
+		JSONWebSocketClient [] clients = new JSONWebSocketClient[3];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new JSONWebSocketClient();
+			clients[i].setHandler(new DefaultClientHandler());
+			clients[i].connect(Constants.SERVER_URI);
+			clients[i].send(new JSONObject());
+		}
+		client.send(new JSONObject());
+		waitForNumber(ready, clients.length + 1);
+		
+		JSONObject object = new JSONObject();
+		object.put("key", "value");
+		Assert.assertEquals(clients.length + 1, server.broadcast(object));
+		waitForNumber(received, clients.length + 1);
+		Assert.assertEquals(clients.length + 1, received.get());
+		for (JSONWebSocketClient c : clients)
+			c.disconnect();
+	}
+	
+	@Test
+	public void testServerConnectionRegistry() {
+		final AtomicBoolean received = new AtomicBoolean(false);
+		final AtomicLong socketId = new AtomicLong(-1);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				socketId.set(socket.getSocketId());
+				received.set(true);
+			}
+		};
+		client.send(new JSONObject());
+		client.flush();
+		waitForBoolean(received);
+		Assert.assertTrue(received.get());
+		Assert.assertEquals(1, server.getConnectionCount());
+		JSONWebSocketConnection connection = server.getConnection(socketId.get());
+		Assert.assertNotNull(connection);
+		Assert.assertEquals(socketId.get(), connection.getSocketId());
+		Assert.assertTrue(server.getConnections().contains(connection));
+		Assert.assertNull(server.getConnection(socketId.get() + 1));
+		
+		client.disconnect();
+		waitForDisconnect();
+		Assert.assertEquals(0, server.getConnectionCount());
+		Assert.assertNull(server.getConnection(socketId.get()));
+		Assert.assertTrue(server.getConnections().isEmpty());
+	}
+	
+	@Test
+	public void testServerPublish() throws Exception {
+		final AtomicBoolean subscribed = new AtomicBoolean(false);
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicReference<JSONWebSocketConnection> connection = new AtomicReference<>(null);
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				if (!server.subscribe(socket, object.getString("subscribe")))
+					failed.set(true);
+				connection.set(socket);
+				subscribed.set(true);
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				if ("news".equals(object.getString("topic")))
+					received.incrementAndGet();
+				else
+					failed.set(true);
+			}
+		};
+		JSONObject subscribe = new JSONObject();
+		subscribe.put("subscribe", "news");
+		client.send(subscribe);
+		waitForBoolean(subscribed);
+		Assert.assertEquals(1, server.getSubscriberCount("news"));
+		Assert.assertFalse(server.subscribe(connection.get(), "news"));
+		
+		JSONObject news = new JSONObject();
+		news.put("topic", "news");
+		JSONObject weather = new JSONObject();
+		weather.put("topic", "weather");
+		Assert.assertEquals(0, server.publish("weather", weather));
+		Assert.assertEquals(1, server.publish("news", news));
+		waitForNumber(received, 1);
+		Assert.assertEquals(1, received.get());
+		
+		Assert.assertTrue(server.unsubscribe(connection.get(), "news"));
+		Assert.assertFalse(server.unsubscribe(connection.get(), "news"));
+		Assert.assertEquals(0, server.publish("news", news));
+		
+		Assert.assertTrue(server.subscribe(connection.get(), "news"));
+		client.disconnect();
+		waitForDisconnect();
+		Assert.assertEquals(0, server.getSubscriberCount("news"));
+		Assert.assertFalse(server.subscribe(connection.get(), "news"));
+		Assert.assertEquals(0, server.getSubscriberCount("news"));
+	}
+	
+	@Test
+	public void testServerSendAsync() throws Exception {
+		testServerSendAsync(500);
+	}
+	
+	@Test
+	public void testServerSendAsyncCoalesced() throws Exception {
+		server.setMaxWriteBatchBytes(256);
+		server.setMaxWriteDelayMicros(500);
+		testServerSendAsync(500);
+	}
+	
+	@Test
+	public void testServerFlushSchedulerShared() throws Exception {
+		// Every server schedules its delayed flushes on the same thread, however many servers the test suite has created and stopped
+		server.setMaxWriteBatchBytes(256);
+		server.setMaxWriteDelayMicros(500);
+		testServerSendAsync(50);
+		Assert.assertEquals(1, countThreads("JSONWebSocket Flush Scheduler"));
+	}
+	
+	@Test
+	public void testServerStopShutsDownWriters() throws Exception {
+		testServerSendAsync(50);
+		server.stop();
+		long start = System.nanoTime();
+		while (countThreads("JSONWebSocket Writer") > 0 && System.nanoTime() - start < 5E9)
+			Thread.sleep(1);
+		Assert.assertEquals(0, countThreads("JSONWebSocket Writer"));
+	}
+	
+	private void testServerSendAsync(final int messages) throws Exception {
+		final AtomicInteger received = new AtomicInteger(0);
+		final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+		final AtomicReference<JSONWebSocketConnection> connection = new AtomicReference<>(null);
+		final List<CompletableFuture<SendStatus>> futures = Collections.synchronizedList(new ArrayList<CompletableFuture<SendStatus>>());
+		serverMessageHandler = new ServerMessageHandler() {
+			public void onMessage(JSONWebSocketConnection socket, JSONObject object) {
+				connection.set(socket);
+				for (int i = 0; i < messages; i++) {
+					JSONObject reply = new JSONObject();
+					reply.put("seq", i);
+					futures.add(socket.sendAsync(reply));
+				}
+			}
+		};
+		clientMessageHandler = new ClientMessageHandler() {
+			public void onMessage(JSONWebSocketClient socket, JSONObject object) {
+				if (((Number) object.get("seq")).intValue() != received.get())
+					outOfOrder.set(true);
+				received.incrementAndGet();
+			}
+		};
+		server.setOutboundQueueCapacity(messages);
+		client.send(new JSONObject());
+		client.flush();
+		waitForNumber(received, messages);
+		Assert.assertEquals(messages, received.get());
+		Assert.assertFalse(outOfOrder.get());
+		Assert.assertEquals(0, connection.get().getQueueDepth());
+		Assert.assertEquals(messages, futures.size());
+		for (CompletableFuture<SendStatus> future : futures)
+			Assert.assertEquals(SendStatus.WRITTEN, future.get(5, TimeUnit.SECONDS));
+	}
+	
+	private static int countThreads(String prefix) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && thread.getName().startsWith(prefix))
+				count++;
+		}
+		return count;
+	}
+	
 }